@@ -0,0 +1,63 @@
+package hpbm.app;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import hpbm.app.core.AlertEngine;
+import hpbm.app.core.AlertRule;
+
+/**
+ * Shows raised alerts as notifications, one per rule, and withdraws them once cleared. Called on the
+ * ingestion thread, which the notification manager is fine with.
+ */
+public final class AlertNotifier implements AlertEngine.Listener {
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+
+    public AlertNotifier( Context context ) {
+        this.context = context.getApplicationContext();
+        this.notificationManager = (NotificationManager) context.getSystemService( Context.NOTIFICATION_SERVICE );
+    }
+
+    @Override
+    public void onAlertRaised( AlertRule rule, long timestamp, float value ) {
+        Intent intent = new Intent( context, MainActivity.class );
+        Notification notification = new Notification.Builder( context )
+            .setSmallIcon( R.drawable.notification_icon )
+            .setContentTitle( context.getString( R.string.app_name ) )
+            .setContentText( getText( rule, value ) )
+            .setWhen( timestamp )
+            .setAutoCancel( true )
+            .setContentIntent( PendingIntent.getActivity( context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT ) )
+            .build();
+        notificationManager.notify( getNotificationId( rule ), notification );
+    }
+
+    @Override
+    public void onAlertCleared( AlertRule rule, long timestamp ) {
+        notificationManager.cancel( getNotificationId( rule ) );
+    }
+
+    private String getText( AlertRule rule, float value ) {
+        switch ( rule.getMetric() ) {
+            case REMAINING_PART:
+                return context.getString( R.string.alert_remaining_below, Math.round( value * 100f ) );
+            case TIME_TO_EMPTY:
+                return context.getString( R.string.alert_time_to_empty_below, Math.round( value / 60f ) );
+            default:
+                if ( rule.isBelow() ) {
+                    return context.getString( R.string.alert_no_flow, rule.getHoldMillis() / (60 * 1000) );
+                }
+                return context.getString( R.string.alert_flow_above, value );
+        }
+    }
+
+    private static int getNotificationId( AlertRule rule ) {
+        return rule.getId().hashCode();
+    }
+
+}
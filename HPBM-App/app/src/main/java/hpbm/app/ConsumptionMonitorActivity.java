@@ -1,36 +1,49 @@
 package hpbm.app;
 
 import android.content.Intent;
-import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
+import android.view.ViewTreeObserver;
 import android.widget.TextView;
 
 import hpbm.app.core.Communicator;
 import hpbm.app.core.CommunicatorProvider;
 import hpbm.app.core.HPBMData;
+import hpbm.app.core.HPBMDataBatch;
 import hpbm.app.core.HPBMDataHandler;
+import hpbm.app.core.SampleWindow;
+import hpbm.app.core.Subscription;
+import hpbm.app.core.SubscriptionOptions;
 
 public class ConsumptionMonitorActivity extends AppCompatActivity {
 
     private static final String TAG = ConsumptionMonitorActivity.class.getSimpleName();
 
     private Communicator communicator;
+    private Subscription subscription;
+    private final SampleWindow latestSample = new SampleWindow();
+    private SparklineView sparkline;
+    private long createdAt;             // [ms] uptime
+    private boolean showingSample;      // false while the readouts show defaults
+    private final ViewTreeObserver.OnPreDrawListener meaningfulFrameListener = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            findViewById(R.id.gauge).getViewTreeObserver().removeOnPreDrawListener(this);
+            Log.d( TAG, "Time to meaningful display: " + (SystemClock.uptimeMillis() - createdAt) + " ms" );
+            return true;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAt = SystemClock.uptimeMillis();
         setContentView(R.layout.activity_consumption_monitor);
 
         communicator = CommunicatorProvider.getCommunicator();
-        communicator.setDataHandler(new HPBMDataHandler() {
-            @Override
-            public void onDataReceived(HPBMData data) {
-                displayHPBMData( data );
-            }
-        });
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         if (toolbar != null) {
@@ -40,23 +53,61 @@ public class ConsumptionMonitorActivity extends AppCompatActivity {
         }
 
         TextView fp = (TextView) findViewById(R.id.fill_percentage);
-        fp.setTypeface(Typeface.createFromAsset(getApplicationContext().getAssets(), "Comfortaa-Bold.ttf"));
+        fp.setTypeface(ResourceCache.getTypeface(this, ResourceCache.FONT_COMFORTAA_BOLD));
+
+        sparkline = (SparklineView) findViewById(R.id.consumption_sparkline);
+        sparkline.setSamples(communicator.getSampleBuffer());
+
+        // The sample buffer outlives the activity and is restored from the last known state after a relaunch,
+        // the defaults are only for a first run
+        if ( !displayLatestSample() ) {
+            setGaugeValue(1f);
+            setCurrentConsumptionValue(0f);
+            setAverageConsumptionValue(0f);
+            setTimeToEmpty(0);
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        displayLatestSample();
+        sparkline.update();
+        // The screen only ever shows the newest sample, so it keeps just that one while the UI thread is busy
+        subscription = communicator.subscribe(new HPBMDataHandler() {
+            @Override
+            public void onDataReceived(HPBMData data) {
+                displayHPBMData( data.getRemainingPart(), data.getCurrentConsumption(), data.getAverageConsumption(), data.getTimeToEmpty() );
+                sparkline.update();
+            }
 
-        setGaugeValue(1f);
-        setCurrentConsumptionValue(0f);
-        setAverageConsumptionValue(0f);
-        setTimeToEmpty(0);
+            @Override
+            public void onBatchReceived(HPBMDataBatch batch) {
+                int last = batch.size() - 1;
+                displayHPBMData( batch.getRemainingPart( last ), batch.getCurrentConsumption( last ), batch.getAverageConsumption( last ), batch.getTimeToEmpty( last ) );
+                // Only the newest sample is delivered, the sparkline reads all of them from the buffer
+                sparkline.update();
+            }
+        }, SubscriptionOptions.keepLatest( MainThreadExecutor.INSTANCE ));
+    }
 
+    @Override
+    protected void onStop() {
+        subscription.cancel();
+        subscription = null;
+        super.onStop();
     }
 
     @Override
     protected void onResume() {
         Log.d( TAG, "Resuming..." );
         super.onResume();
+        communicator.setMonitorVisible( true );
     }
 
     @Override
     protected void onPause() {
+        communicator.setMonitorVisible( false );
         super.onPause();
     }
 
@@ -70,17 +121,21 @@ public class ConsumptionMonitorActivity extends AppCompatActivity {
         communicator.onActivityResult( this, requestCode, resultCode, intent );
     }
 
-    private void displayHPBMData(final HPBMData data ) {
-        if ( data == null ) return;
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                setGaugeValue( data.getRemainingPart() );
-                setCurrentConsumptionValue( data.getCurrentConsumption() );
-                setAverageConsumptionValue( data.getAverageConsumption()  );
-                setTimeToEmpty( data.getTimeToEmpty() );
-            }
-        });
+    private boolean displayLatestSample() {
+        if ( !communicator.getSampleBuffer().latest( 1, latestSample ) ) return false;
+        displayHPBMData( latestSample.getRemainingPart( 0 ), latestSample.getCurrentConsumption( 0 ), latestSample.getAverageConsumption( 0 ), latestSample.getTimeToEmpty( 0 ) );
+        return true;
+    }
+
+    private void displayHPBMData( float remainingPart, float currentConsumption, float averageConsumption, int timeToEmpty ) {
+        if ( !showingSample ) {
+            showingSample = true;
+            findViewById(R.id.gauge).getViewTreeObserver().addOnPreDrawListener(meaningfulFrameListener);
+        }
+        setGaugeValue( remainingPart );
+        setCurrentConsumptionValue( currentConsumption );
+        setAverageConsumptionValue( averageConsumption );
+        setTimeToEmpty( timeToEmpty );
     }
 
     private void setGaugeValue( float gaugeValue ) {
@@ -11,7 +11,11 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Toast;
 
+import hpbm.app.core.CommandCallback;
+import hpbm.app.core.CommandFailure;
+import hpbm.app.core.CommandType;
 import hpbm.app.core.CommunicatorProvider;
 
 public class DeviceSetupActivity extends AppCompatActivity {
@@ -61,7 +65,22 @@ public class DeviceSetupActivity extends AppCompatActivity {
     }
 
     private void start() {
-        CommunicatorProvider.getCommunicator().sendRefillToMessage( this, initWaterAmount );
+        CommunicatorProvider.getCommunicator().sendRefillToMessage( this, initWaterAmount, new CommandCallback() {
+            @Override
+            public void onCommandAcknowledged(CommandType type, long latencyMillis) {
+                Log.d( getClass().getSimpleName(), "Initial water amount set after " + latencyMillis + " ms" );
+            }
+
+            @Override
+            public void onCommandFailed(CommandType type, final CommandFailure failure) {
+                runOnUiThread( new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText( getApplicationContext(), getString( R.string.command_failed, failure ), Toast.LENGTH_LONG ).show();
+                    }
+                });
+            }
+        });
         Intent in = new Intent(DeviceSetupActivity.this, ConsumptionMonitorActivity.class);
         startActivity(in);
     }
@@ -12,6 +12,8 @@ import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.view.View;
 
+import hpbm.app.core.Tracer;
+
 public class GaugeView extends View {
 
     private static final float MIN_VALUE_ANGLE = -75;
@@ -29,6 +31,8 @@ public class GaugeView extends View {
     private static final float NEEDLE_AXIS_X = 45;          // [px]
     private static final float NEEDLE_AXIS_Y = 383;         // [px]
 
+    private static final String TRACE_ON_DRAW = "GaugeView.onDraw";
+
     private static final int SCALE_FILL_COLOR = Color.argb(255, 42, 169, 234);
 
     private Drawable mScaleDrawable;
@@ -61,17 +65,22 @@ public class GaugeView extends View {
     }
 
     private void init(AttributeSet attrs, int defStyle) {
-        mScaleDrawable = getContext().getDrawable(R.drawable.scale);
+        mScaleDrawable = ResourceCache.getDrawable(getContext(), R.drawable.scale);
         mScaleDrawable.setCallback(this);
-        mNeedleDrawable = getContext().getDrawable(R.drawable.needle);
+        mNeedleDrawable = ResourceCache.getDrawable(getContext(), R.drawable.needle);
         mNeedleDrawable.setCallback(this);
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        drawScale( canvas );
-        drawNeedle( canvas );
+        Tracer.begin( TRACE_ON_DRAW );
+        try {
+            drawScale( canvas );
+            drawNeedle( canvas );
+        } finally {
+            Tracer.end( TRACE_ON_DRAW );
+        }
     }
 
     private void drawScale( Canvas canvas ) {
@@ -0,0 +1,101 @@
+package hpbm.app;
+
+import android.app.Application;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import hpbm.app.core.AlertRule;
+import hpbm.app.core.Communicator;
+import hpbm.app.core.CommunicatorProvider;
+import hpbm.app.core.MessageInterpreterImpl;
+import hpbm.app.core.SystraceSink;
+import hpbm.app.core.Tracer;
+import hpbm.app.sim.SimCommunicator;
+import hpbm.app.storage.HistoryCache;
+import hpbm.app.storage.SessionStorage;
+
+/**
+ * Keeps the process start cheap: nothing is created here that the first frame does not need. The
+ * communicator is created on first use and lives as long as the process, so recreated activities and
+ * the background ingestion share it. The session storage is created along with it and records the
+ * sessions of whichever communicator is used.
+ */
+public class HPBMApplication extends Application {
+
+    private static final String TAG = HPBMApplication.class.getSimpleName();
+
+    private volatile SessionStorage sessionStorage;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.onApplicationCreated();
+        if ( BuildConfig.DEBUG ) {
+            Tracer.addSink( SystraceSink.INSTANCE );
+        }
+        CommunicatorProvider.setFactory( new CommunicatorProvider.Factory() {
+            @Override
+            public Communicator createCommunicator() {
+                return HPBMApplication.this.createCommunicator();
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory( int level ) {
+        super.onTrimMemory( level );
+        if ( level >= TRIM_MEMORY_MODERATE ) {
+            ResourceCache.clear();
+        }
+        SessionStorage storage = sessionStorage;
+        HistoryCache history = storage != null ? storage.getHistory() : null;
+        if ( history == null ) return;
+        if ( level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL ) {
+            history.evictAll();
+        } else if ( level >= TRIM_MEMORY_RUNNING_LOW ) {
+            history.trimToSize( history.getMaxBytes() / 2 );
+        }
+        Log.d( TAG, "Trimmed the history on memory level " + level + ": " + history );
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory( TRIM_MEMORY_COMPLETE );
+    }
+
+    /**
+     * History, drink events and recalibration of the archived sessions, created with the communicator.
+     */
+    public SessionStorage getSessionStorage() {
+        CommunicatorProvider.getCommunicator();     // creates the storage along with it
+        return sessionStorage;
+    }
+
+    private Communicator createCommunicator() {
+        Communicator communicator = new SimCommunicator( new MessageInterpreterImpl() );
+        //Communicator communicator = new BLECommunicator( new MessageInterpreterImpl() );
+        //Communicator communicator = new SocketCommunicator( new MessageInterpreterImpl(), SocketCommunicator.EMULATOR_HOST, SocketCommunicator.DEFAULT_PORT, 4 );
+        communicator.getAlerts().setRules( AlertRule.createDefaults() );
+        communicator.getAlerts().setListener( new AlertNotifier( this ) );
+        SessionStorage storage = new SessionStorage( new File( getFilesDir(), SessionStorage.DIRECTORY_NAME ), new SessionStorage.Listener() {
+            @Override
+            public void onSessionArchived( File archive, long samples, long logBytes, long archiveBytes ) {
+                Log.d( TAG, "Archived " + samples + " samples in " + archive.getName() + ", " + logBytes + " -> " + archiveBytes + " bytes." );
+            }
+
+            @Override
+            public void onStorageFailed( String message, IOException ex ) {
+                Log.w( TAG, message, ex );
+            }
+        } );
+        communicator.addRecorder( storage );
+        sessionStorage = storage;
+        // Read in the background, the monitor shows it once it is in the sample buffer
+        communicator.restoreLastKnownState( getFilesDir() );
+        return communicator;
+    }
+
+}
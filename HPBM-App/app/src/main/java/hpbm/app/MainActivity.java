@@ -8,6 +8,7 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -15,6 +16,8 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -23,13 +26,16 @@ import java.util.Map;
 import hpbm.app.ble.BluetoothDeviceInfo;
 import hpbm.app.core.Communicator;
 import hpbm.app.core.CommunicatorProvider;
-import hpbm.app.core.MessageInterpreterImpl;
 import hpbm.app.core.HPBMDevicesDiscoveryHandler;
-import hpbm.app.sim.SimCommunicator;
+import hpbm.app.core.SpanLog;
+import hpbm.app.core.Tracer;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = MainActivity.class.getSimpleName();
+    private static final String SPAN_LOG_FILE_NAME = "spans.json";
+
+    private static SpanLog spanLog;
 
     private ListView listView;
     private View devicesView;
@@ -44,10 +50,6 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        communicator = new SimCommunicator( new MessageInterpreterImpl() );
-        //communicator = new BLECommunicator( new MessageInterpreterImpl() );
-        CommunicatorProvider.setCommunicator( communicator );
-
         setContentView(R.layout.activity_main);
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
@@ -81,6 +83,26 @@ public class MainActivity extends AppCompatActivity {
         searchingForDevicesView.setVisibility(View.VISIBLE);
         devicesView.setVisibility(View.GONE);
 
+        // The communicator and the scan are not needed for the first frame, they start right after it
+        listView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                listView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace.onFirstFrame();
+                listView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listAvailableDevices();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    private void listAvailableDevices() {
+        if ( isFinishing() ) return;
+        communicator = CommunicatorProvider.getCommunicator();
         communicator.listAvailableDevices(this, new HPBMDevicesDiscoveryHandler() {
             @Override
             public void onDeviceDiscovered(final BluetoothDeviceInfo device) {
@@ -97,6 +119,7 @@ public class MainActivity extends AppCompatActivity {
                         searchingForDevicesView.setVisibility(View.GONE);
                         devicesView.setVisibility(View.VISIBLE);
                         adapter.notifyDataSetChanged();
+                        StartupTrace.onDevicesListed();
                     }
                 });
             }
@@ -111,6 +134,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        MenuItem recordTraceItem = menu.findItem(R.id.action_record_trace);
+        recordTraceItem.setVisible( BuildConfig.DEBUG );
+        recordTraceItem.setChecked( spanLog != null );
         return true;
     }
 
@@ -124,13 +150,37 @@ public class MainActivity extends AppCompatActivity {
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_record_trace) {
+            item.setChecked( toggleSpanLog() );
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
     }
 
+    private boolean toggleSpanLog() {
+        if ( spanLog != null ) {
+            Tracer.removeSink( spanLog );
+            spanLog.stop();
+            Log.d( TAG, "Span log written to " + spanLog.getFile() + " (" + spanLog.getDroppedEvents() + " events dropped)" );
+            spanLog = null;
+            return false;
+        }
+        SpanLog log = new SpanLog( new File( getExternalFilesDir(null), SPAN_LOG_FILE_NAME ) );
+        try {
+            log.start();
+        } catch ( IOException ex ) {
+            Log.w( TAG, ex );
+            return false;
+        }
+        spanLog = log;
+        Tracer.addSink( spanLog );
+        return true;
+    }
+
     private void connectWithSelectedDevice() {
         String deviceAddress = deviceAddressMap.get( selectedDeviceName );
+        communicator = CommunicatorProvider.getCommunicator();
         if ( communicator.connect( this, deviceAddress ) ) {
             Intent in = new Intent(this, DeviceSetupActivity.class);
             startActivity(in);
@@ -0,0 +1,24 @@
+package hpbm.app;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the UI thread, e.g. to deliver samples straight to views.
+ */
+public final class MainThreadExecutor implements Executor {
+
+    public static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+    private final Handler handler = new Handler( Looper.getMainLooper() );
+
+    private MainThreadExecutor() {}
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post( command );
+    }
+
+}
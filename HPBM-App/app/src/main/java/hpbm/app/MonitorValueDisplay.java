@@ -10,9 +10,12 @@ import android.widget.TextView;
 
 import java.util.Arrays;
 
+import hpbm.app.core.Tracer;
+
 public class MonitorValueDisplay extends LinearLayout {
 
     private static final String NAMESPACE = "http://schemas.android.com/apk/res-auto";
+    private static final String TRACE_SET_VALUE = "MonitorValueDisplay.setValue";
 
     private TextView labelView;
     private TextView valueView;
@@ -37,7 +40,7 @@ public class MonitorValueDisplay extends LinearLayout {
     private void init(AttributeSet attrs, int defStyle) {
         setOrientation( VERTICAL );
 
-        Typeface font = Typeface.createFromAsset(getContext().getAssets(), "Comfortaa-Bold.ttf");
+        Typeface font = ResourceCache.getTypeface(getContext(), ResourceCache.FONT_COMFORTAA_BOLD);
 
         labelView = new TextView(getContext());
         labelView.setText( attrs.getAttributeValue( NAMESPACE, "label" ) );
@@ -78,6 +81,15 @@ public class MonitorValueDisplay extends LinearLayout {
     }
 
     public final void setValue( Object... values ) {
+        Tracer.begin( TRACE_SET_VALUE );
+        try {
+            updateValueText( values );
+        } finally {
+            Tracer.end( TRACE_SET_VALUE );
+        }
+    }
+
+    private void updateValueText( Object[] values ) {
         if ( values == null || (values.length == 1 && values[0] == null) ) {
             valueView.setText("");
         } else if ( formatString != null ) {
@@ -0,0 +1,54 @@
+package hpbm.app;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of typefaces and drawables. Loading a font from the assets parses the whole file,
+ * and every view of the monitor asked for the same one; now the first asks and the rest share it.
+ * Drawables are cached by their constant state, so every caller gets its own instance with its own
+ * bounds, sharing the decoded bitmap.
+ */
+public final class ResourceCache {
+
+    public static final String FONT_COMFORTAA_BOLD = "Comfortaa-Bold.ttf";
+
+    private static final Map<String, Typeface> typefaces = new HashMap<>();
+    private static final Map<Integer, Drawable.ConstantState> drawables = new HashMap<>();
+
+    private ResourceCache() {}
+
+    public static synchronized Typeface getTypeface( Context context, String asset ) {
+        Typeface typeface = typefaces.get( asset );
+        if ( typeface == null ) {
+            typeface = Typeface.createFromAsset( context.getApplicationContext().getAssets(), asset );
+            typefaces.put( asset, typeface );
+        }
+        return typeface;
+    }
+
+    public static synchronized Drawable getDrawable( Context context, int id ) {
+        Drawable.ConstantState state = drawables.get( id );
+        if ( state == null ) {
+            Drawable drawable = context.getDrawable( id );
+            state = drawable.getConstantState();
+            if ( state == null ) return drawable;
+            drawables.put( id, state );
+            return drawable;
+        }
+        return state.newDrawable( context.getResources() );
+    }
+
+    /**
+     * Drops everything, e.g. when the system runs low on memory. Views keep what they already got.
+     */
+    public static synchronized void clear() {
+        typefaces.clear();
+        drawables.clear();
+    }
+
+}
@@ -0,0 +1,232 @@
+package hpbm.app;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.Arrays;
+
+import hpbm.app.core.SampleRingBuffer;
+import hpbm.app.core.SampleWindow;
+import hpbm.app.core.Tracer;
+
+/**
+ * Strip chart of the current consumption over the last minutes, one pixel column per time slice. The
+ * chart lives in a bitmap used as a ring: a new sample only renders the columns it advances, and scrolling
+ * is drawing the ring in two parts starting at the oldest column. Neither depends on the length of the
+ * window, and nothing is allocated after the view was laid out.
+ *
+ * Samples are read from the communicator's sample buffer on {@link #update()}, so the chart also fills
+ * with the samples that arrived before it was shown.
+ */
+public class SparklineView extends View {
+
+    public static final int DEFAULT_WINDOW_MINUTES = 5;
+    public static final int DEFAULT_MAX_RATE = 25;              // [ml/s] top of the chart
+
+    private static final String NAMESPACE = "http://schemas.android.com/apk/res-auto";
+    private static final String TRACE_UPDATE = "SparklineView.update";
+    private static final long MAX_FILL = 60 * 1000;             // [ms] longer without samples is left empty
+    private static final long NO_COLUMN = Long.MIN_VALUE;
+    private static final int LINE_COLOR = Color.argb(255, 42, 169, 234);
+    private static final int FILL_COLOR = Color.argb(64, 42, 169, 234);
+    private static final float LINE_WIDTH = 3f;                 // [px]
+
+    private final Paint linePaint = new Paint();
+    private final Paint fillPaint = new Paint();
+    private final Paint clearPaint = new Paint();
+    private final Rect source = new Rect();
+    private final Rect destination = new Rect();
+    private final SampleWindow samples = new SampleWindow();
+
+    private long windowMillis;
+    private float maxRate;                  // [ml/s]
+    private SampleRingBuffer buffer;
+    private long nextSequence;
+
+    private Bitmap chart;
+    private Canvas chartCanvas;
+    private float[] values;                 // [ml/s] peak rate of each column, NaN where no sample covers it
+    private long millisPerColumn;
+    private long lastColumn = NO_COLUMN;    // time slice of the newest column
+
+    public SparklineView(Context context) {
+        super(context);
+        init(null);
+    }
+
+    public SparklineView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(attrs);
+    }
+
+    public SparklineView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init(attrs);
+    }
+
+    private void init(AttributeSet attrs) {
+        int windowMinutes = attrs != null ? attrs.getAttributeIntValue( NAMESPACE, "windowMinutes", DEFAULT_WINDOW_MINUTES ) : DEFAULT_WINDOW_MINUTES;
+        int maxRate = attrs != null ? attrs.getAttributeIntValue( NAMESPACE, "maxRate", DEFAULT_MAX_RATE ) : DEFAULT_MAX_RATE;
+        this.windowMillis = windowMinutes * 60 * 1000L;
+        this.maxRate = maxRate;
+        linePaint.setColor( LINE_COLOR );
+        linePaint.setStyle( Paint.Style.FILL );
+        fillPaint.setColor( FILL_COLOR );
+        fillPaint.setStyle( Paint.Style.FILL );
+        clearPaint.setXfermode( new PorterDuffXfermode( PorterDuff.Mode.CLEAR ) );
+    }
+
+    /**
+     * @param buffer the chart reads from, null to show nothing
+     */
+    public void setSamples( SampleRingBuffer buffer ) {
+        this.buffer = buffer;
+        reset();
+    }
+
+    public void setWindow( long millis ) {
+        windowMillis = millis;
+        reset();
+    }
+
+    public long getWindow() {
+        return windowMillis;
+    }
+
+    /**
+     * Draws the samples appended to the buffer since the last update. Call it on the UI thread whenever
+     * new samples arrived.
+     */
+    public void update() {
+        if ( buffer == null || chart == null ) return;
+        Tracer.begin( TRACE_UPDATE );
+        try {
+            boolean added = false;
+            while ( buffer.since( nextSequence, Integer.MAX_VALUE, samples ) ) {
+                for ( int i = 0; i < samples.size(); i++ ) {
+                    add( samples.getTimestamp( i ), samples.getCurrentConsumption( i ) );
+                }
+                nextSequence = samples.getEndSequence();
+                added = true;
+            }
+            if ( added ) {
+                invalidate();
+            }
+        } finally {
+            Tracer.end( TRACE_UPDATE );
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if ( chart != null ) {
+            chart.recycle();
+            chart = null;
+        }
+        if ( w <= 0 || h <= 0 ) return;
+        chart = Bitmap.createBitmap( w, h, Bitmap.Config.ARGB_8888 );
+        chartCanvas = new Canvas( chart );
+        values = new float[w];
+        reset();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if ( chart == null || lastColumn == NO_COLUMN ) return;
+        int width = chart.getWidth();
+        int height = chart.getHeight();
+        int oldest = (int) ((lastColumn + 1) % width);
+        source.set( oldest, 0, width, height );
+        destination.set( 0, 0, width - oldest, height );
+        canvas.drawBitmap( chart, source, destination, null );
+        if ( oldest > 0 ) {
+            source.set( 0, 0, oldest, height );
+            destination.set( width - oldest, 0, width, height );
+            canvas.drawBitmap( chart, source, destination, null );
+        }
+    }
+
+    /**
+     * Starts over from the samples of the last window still in the buffer.
+     */
+    private void reset() {
+        lastColumn = NO_COLUMN;
+        if ( chart == null ) return;
+        chart.eraseColor( Color.TRANSPARENT );
+        Arrays.fill( values, Float.NaN );
+        millisPerColumn = Math.max( 1, windowMillis / chart.getWidth() );
+        nextSequence = buffer != null ? Math.max( 0, buffer.getWriteSequence() - buffer.getReadableCapacity() ) : 0;
+        update();
+        invalidate();
+    }
+
+    /**
+     * @param rate [ml/s] over the interval since the previous sample
+     */
+    private void add( long timestamp, float rate ) {
+        long column = timestamp / millisPerColumn;
+        if ( lastColumn == NO_COLUMN ) {
+            lastColumn = column;
+            setColumn( column, rate );
+            return;
+        }
+        if ( column < lastColumn ) return;     // older, e.g. synced from the backlog
+        if ( column == lastColumn ) {
+            int x = (int) (column % values.length);
+            if ( Float.isNaN( values[x] ) || rate > values[x] ) {
+                setColumn( column, rate );
+            }
+            return;
+        }
+
+        if ( column - lastColumn >= values.length ) {
+            // Nothing of the window is left
+            chart.eraseColor( Color.TRANSPARENT );
+            Arrays.fill( values, Float.NaN );
+        } else {
+            // The sample's rate covers its interval, a long gap stays empty
+            long covered = Math.max( lastColumn, (timestamp - MAX_FILL) / millisPerColumn );
+            for ( long c = lastColumn + 1; c <= column; c++ ) {
+                setColumn( c, c > covered ? rate : Float.NaN );
+            }
+        }
+        lastColumn = column;
+    }
+
+    private void setColumn( long column, float value ) {
+        int x = (int) (column % values.length);
+        values[x] = value;
+        int height = chart.getHeight();
+        chartCanvas.drawRect( x, 0, x + 1, height, clearPaint );
+        if ( Float.isNaN( value ) ) return;
+
+        float y = toY( value, height );
+        chartCanvas.drawRect( x, y, x + 1, height, fillPaint );
+        // The line joins the previous column's level
+        float previous = values[(x + values.length - 1) % values.length];
+        float top = y;
+        float bottom = y;
+        if ( !Float.isNaN( previous ) ) {
+            float previousY = toY( previous, height );
+            top = Math.min( top, previousY );
+            bottom = Math.max( bottom, previousY );
+        }
+        chartCanvas.drawRect( x, Math.max( 0, top - LINE_WIDTH / 2 ), x + 1, Math.min( height, bottom + LINE_WIDTH / 2 ), linePaint );
+    }
+
+    private float toY( float value, int height ) {
+        float part = Math.max( 0f, Math.min( 1f, value / maxRate ) );
+        return (height - LINE_WIDTH / 2) - part * (height - LINE_WIDTH);
+    }
+
+}
@@ -0,0 +1,51 @@
+package hpbm.app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Milestones of a cold start, measured from {@link HPBMApplication#onCreate()}, the earliest point the
+ * app's own code runs: the first frame of the launch activity, and the device list becoming usable. Each
+ * milestone is logged once per process, later activities do not count.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    private static long applicationCreatedAt;   // [ms] uptime, 0 before the application was created
+    private static long firstFrameAt;           // [ms] uptime, 0 until reached
+    private static long devicesListedAt;        // [ms] uptime, 0 until reached
+
+    private StartupTrace() {}
+
+    static void onApplicationCreated() {
+        applicationCreatedAt = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Called on the UI thread before the launch activity's first frame is drawn.
+     */
+    static void onFirstFrame() {
+        if ( firstFrameAt != 0 || applicationCreatedAt == 0 ) return;
+        firstFrameAt = SystemClock.uptimeMillis();
+        Log.d( TAG, "Time to first frame: " + getTimeToFirstFrame() + " ms" );
+    }
+
+    /**
+     * Called on the UI thread once the discovered devices are shown and can be picked.
+     */
+    static void onDevicesListed() {
+        if ( devicesListedAt != 0 || applicationCreatedAt == 0 ) return;
+        devicesListedAt = SystemClock.uptimeMillis();
+        Log.d( TAG, "Time to interactive device list: " + getTimeToDevicesListed() + " ms" );
+    }
+
+    public static long getTimeToFirstFrame() {  // [ms], -1 until reached
+        return firstFrameAt != 0 ? firstFrameAt - applicationCreatedAt : -1;
+    }
+
+    public static long getTimeToDevicesListed() {  // [ms], -1 until reached
+        return devicesListedAt != 0 ? devicesListedAt - applicationCreatedAt : -1;
+    }
+
+}
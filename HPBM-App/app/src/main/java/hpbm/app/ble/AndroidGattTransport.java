@@ -0,0 +1,249 @@
+package hpbm.app.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import hpbm.app.core.GattTransport;
+
+/**
+ * {@link GattTransport} on Android's BluetoothGatt.
+ */
+class AndroidGattTransport implements GattTransport {
+
+    private final static String TAG = AndroidGattTransport.class.getSimpleName();
+
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothGattCallback mGattCallback = createGattCallbackImpl();
+    private volatile Callback mCallback;
+    private volatile BluetoothGatt mGatt;
+    private BluetoothDevice mDevice;
+
+    AndroidGattTransport(Context context, BluetoothAdapter adapter) {
+        mContext = context.getApplicationContext();
+        mAdapter = adapter;
+    }
+
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean connect(String address, boolean autoConnect) {
+        mDevice = mAdapter.getRemoteDevice(address);
+        if (mDevice == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+        mGatt = mDevice.connectGatt(mContext, autoConnect, mGattCallback);
+        return true;
+    }
+
+    @Override
+    public boolean reconnect() {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            Log.w(TAG, "disconnect: not connected");
+            return;
+        }
+        gatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            gatt.close();
+            mGatt = null;
+            mDevice = null;
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public boolean hasService(UUID service) {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.getService(service) != null;
+    }
+
+    @Override
+    public int getCharacteristicProperties(UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+        return gattCharacteristic != null ? gattCharacteristic.getProperties() : 0;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+        if (gatt == null || gattCharacteristic == null) {
+            Log.w(TAG, "Read: characteristic not found: " + characteristic);
+            return false;
+        }
+        return gatt.readCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+        if (gatt == null || gattCharacteristic == null) {
+            Log.w(TAG, "Write: characteristic not found: " + characteristic);
+            return false;
+        }
+        // The stack copies the value when the write is issued
+        gattCharacteristic.setValue(value);
+        return gatt.writeCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean setNotification(UUID service, UUID characteristic, boolean enable, boolean indicate) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic dataCharacteristic = getCharacteristic(service, characteristic);
+        if (gatt == null || dataCharacteristic == null) {
+            Log.w(TAG, "Characteristic with UUID " + characteristic + " not found");
+            return false;
+        }
+        BluetoothGattDescriptor config = dataCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (config == null) {
+            return false;
+        }
+        if (!indicate) {
+            // enableNotification/disable locally
+            gatt.setCharacteristicNotification(dataCharacteristic, enable);
+        }
+        // enableNotification/disable remotely
+        if (enable) {
+            config.setValue(indicate ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        } else {
+            config.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        }
+        return gatt.writeDescriptor(config);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.readRemoteRssi();
+    }
+
+    /**
+     * Call to private Android method 'refresh'
+     * This method does actually clear the cache from a bluetooth device. But the problem is that we don't have access to it. But in java we have reflection, so we can access this method.
+     * http://stackoverflow.com/questions/22596951/how-to-programmatically-force-bluetooth-low-energy-service-discovery-on-android
+     */
+    boolean refreshDeviceCache() {
+        try {
+            BluetoothGatt localBluetoothGatt = mGatt;
+            Method localMethod = localBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
+            if (localMethod != null) {
+                boolean result = ((Boolean) localMethod.invoke(localBluetoothGatt, new Object[0])).booleanValue();
+                if (result) {
+                    Log.d(TAG, "Bluetooth refresh cache");
+                }
+                return result;
+            }
+        } catch (Exception localException) {
+            Log.e(TAG, "An exception occurred while refreshing device");
+        }
+        return false;
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattService gattService = gatt != null ? gatt.getService(service) : null;
+        return gattService != null ? gattService.getCharacteristic(characteristic) : null;
+    }
+
+    private BluetoothGattCallback createGattCallbackImpl() {
+        return new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                // BluetoothProfile's states are the transport's
+                mCallback.onConnectionStateChange(newState);
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                Log.d(TAG, "onServicesDiscovered status: " + status);
+                mCallback.onServicesDiscovered(status == BluetoothGatt.GATT_SUCCESS);
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.d(TAG, "onCharacteristicRead status: " + status);
+                }
+                mCallback.onCharacteristicRead(characteristic.getUuid(), characteristic.getValue(), status == BluetoothGatt.GATT_SUCCESS);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                mCallback.onCharacteristicChanged(characteristic.getUuid(), characteristic.getValue());
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                mCallback.onDescriptorWrite(descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), status == BluetoothGatt.GATT_SUCCESS);
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                mCallback.onCharacteristicWrite(characteristic.getUuid(), status == BluetoothGatt.GATT_SUCCESS);
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                Log.d(TAG, "onMtuChanged mtu: " + mtu + " status: " + status);
+                mCallback.onMtuChanged(mtu, status == BluetoothGatt.GATT_SUCCESS);
+            }
+
+            @Override
+            public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.d(TAG, "onReadRemoteRssi status: " + status);
+                }
+                mCallback.onReadRemoteRssi(rssi, status == BluetoothGatt.GATT_SUCCESS);
+            }
+        };
+    }
+
+}
@@ -5,9 +5,6 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
@@ -24,20 +21,45 @@ import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 import android.view.WindowManager;
 
-import java.nio.charset.Charset;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.UUID;
 
 import hpbm.app.R;
+import hpbm.app.core.AlertEngine;
+import hpbm.app.core.BacklogSync;
+import hpbm.app.core.CommandBuffer;
+import hpbm.app.core.CommandBufferPool;
+import hpbm.app.core.CommandCallback;
+import hpbm.app.core.CommandChannel;
+import hpbm.app.core.CommandFailure;
+import hpbm.app.core.CommandType;
 import hpbm.app.core.Communicator;
+import hpbm.app.core.DevicePipeline;
+import hpbm.app.core.GattClient;
+import hpbm.app.core.GattTransport;
+import hpbm.app.core.ConsumptionEstimator;
 import hpbm.app.core.MessageInterpreter;
-import hpbm.app.core.HPBMData;
 import hpbm.app.core.HPBMDataHandler;
 import hpbm.app.core.HPBMDevicesDiscoveryHandler;
+import hpbm.app.core.IngestionThread;
+import hpbm.app.core.LatencyHistogram;
+import hpbm.app.core.LinkStatistics;
+import hpbm.app.core.NordicUart;
+import hpbm.app.core.NotificationRouter;
+import hpbm.app.core.ReportMode;
+import hpbm.app.core.SampleRingBuffer;
+import hpbm.app.core.ScanSetup;
+import hpbm.app.core.Subscription;
+import hpbm.app.core.SubscriptionOptions;
+import hpbm.app.storage.LastKnownState;
+import hpbm.app.storage.SessionLog;
 
 public class BLECommunicator implements Communicator {
 
@@ -46,53 +68,109 @@ public class BLECommunicator implements Communicator {
     private static final int ACTIVITY_REQUEST_CODE_ENABLE_BLUETOOTH = 1;
     private static final int ACTIVITY_REQUEST_CODE_ENABLE_LOCATION = 2;
 
-    // Service Constants
-    private static final String UUID_SERVICE = "6e400001-b5a3-f393-e0a9-e50e24dcca9e";
-    private static final String UUID_RX = "6e400003-b5a3-f393-e0a9-e50e24dcca9e";
-    private static final String UUID_TX = "6e400002-b5a3-f393-e0a9-e50e24dcca9e";
-    private static final int TX_MAX_CHARACTERS = 20;
     private static final int SCAN_TIMEOUT = 2000; // [ms]
+    private static final String BACKLOG_FILE_NAME = "backlog.log";
 
     private BluetoothLeScanner mScanner;
     private BleManager mBleManager;
-    private BluetoothGattService mUartService;
+    private volatile boolean mUartAvailable;
     private String mDeviceAddress;
-    private final LinkedList<Runnable> actionChain = new LinkedList<>();
+    private ScanSetup scanSetup;                // UI thread only
     private final MessageInterpreter messageInterpreter;
+    private volatile LastKnownState lastKnownState;
+    private final CommandBufferPool commandPool = new CommandBufferPool();
+    private final CommandChannel.Transport commandTransport = new CommandChannel.Transport() {
+        @Override
+        public boolean send(CommandBuffer command) {
+            return sendCommand(command);
+        }
+    };
+    private final DevicePipeline pipeline;
+    private BacklogSync backlogSync;
+    private volatile long backlogGapStart;      // [ms] last live sample before the current connection
+    private final BacklogSync.Listener backlogListener = new BacklogSync.Listener() {
+        @Override
+        public void onBacklogSample(int sequence, long timestamp, int pulses, int periodMillis) {
+            // Catch up with what was consumed while out of range, the device keeps counting in every report mode
+            ConsumptionEstimator estimator = pipeline.getEstimator();
+            if ( estimator != null && backlogGapStart > 0 && timestamp - periodMillis >= backlogGapStart ) {
+                estimator.addPulses(pulses, periodMillis);
+            }
+        }
+
+        @Override
+        public void onSyncCompleted(int storedSamples, long transferMillis) {
+            Log.d(TAG, "Backlog sync stored " + storedSamples + " samples in " + transferMillis + " ms.");
+            if ( mBleManager != null ) {
+                mBleManager.requestConnectionPriority(GattTransport.CONNECTION_PRIORITY_BALANCED);
+            }
+        }
+
+        @Override
+        public void onSyncFailed(IOException ex) {
+            Log.w(TAG, "Backlog sync failed.", ex);
+        }
+    };
+    private final CommandCallback reportModeCallback = new CommandCallback() {
+        @Override
+        public void onCommandAcknowledged(CommandType type, long latencyMillis) {
+            Log.d(TAG, "Report mode " + pipeline.getReportMode() + " confirmed after " + latencyMillis + " ms.");
+        }
+
+        @Override
+        public void onCommandFailed(CommandType type, CommandFailure failure) {
+            Log.w(TAG, "Report mode " + pipeline.getReportMode() + " not confirmed: " + failure);
+        }
+    };
+    private final NotificationRouter notificationRouter;
     private HPBMDataHandler dataHandler;
 
     public BLECommunicator(MessageInterpreter messageInterpreter ) {
+        this( messageInterpreter, null, ReportMode.DERIVED );
+    }
+
+    /**
+     * @param estimator When not null, the device is switched to raw pulse reporting and all consumption figures are computed by the estimator.
+     */
+    public BLECommunicator(MessageInterpreter messageInterpreter, ConsumptionEstimator estimator ) {
+        this( messageInterpreter, estimator, estimator != null ? ReportMode.RAW_PULSES : ReportMode.DERIVED );
+    }
+
+    /**
+     * @param estimator Required by the raw pulse report modes, where all consumption figures are computed by the estimator.
+     */
+    public BLECommunicator(MessageInterpreter messageInterpreter, ConsumptionEstimator estimator, ReportMode reportMode ) {
         this.messageInterpreter = messageInterpreter;
+        this.pipeline = new DevicePipeline("HPBMIngestion", messageInterpreter, estimator, reportMode, commandPool, commandTransport);
+        this.notificationRouter = new NotificationRouter(pipeline.getIngestionThread());
+        notificationRouter.addRoute(NordicUart.RX, DevicePipeline.CHANNEL_MESSAGES);
     }
 
     public void setDataHandler(HPBMDataHandler dataHandler) {
         this.dataHandler = dataHandler;
+        pipeline.setDataHandler(dataHandler);
     }
 
     public HPBMDataHandler getDataHandler() {
         return dataHandler;
     }
 
+    @Override
+    public Subscription subscribe(HPBMDataHandler handler, SubscriptionOptions options) {
+        return pipeline.subscribe(handler, options);
+    }
+
+    @Override
+    public SampleRingBuffer getSampleBuffer() {
+        return pipeline.getSampleBuffer();
+    }
+
     @Override
     public boolean onRequestPermissionsResult( final Activity hostActivity, int requestCode, String[] permissions, int[] grantResults) {
         switch (requestCode) {
             case PERMISSION_REQUEST_CODE_COARSE_LOCATION: {
-                if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                    Log.d(TAG, "Location permission granted");
-                    runNextActionInChain();
-                } else {
-                    AlertDialog dialog = new AlertDialog.Builder(hostActivity)
-                        .setTitle("Unable to continue")
-                        .setMessage("Since location access has not been granted, this application will now exit. Bye!")
-                        .setPositiveButton(android.R.string.ok, null)
-                        .setOnDismissListener(new DialogInterface.OnDismissListener() {
-                            @Override
-                            public void onDismiss(DialogInterface dialog) {
-                                hostActivity.finish();
-                            }
-                        })
-                        .show();
-                    keepDialogOnOrientationChanges(dialog);
+                if ( scanSetup != null ) {
+                    scanSetup.onPromptAnswered(ScanSetup.Prerequisite.LOCATION_PERMISSION);
                 }
                 return true;
             }
@@ -102,11 +180,12 @@ public class BLECommunicator implements Communicator {
 
     @Override
     public boolean onActivityResult( Activity hostActivity, int requestCode, int resultCode, Intent intent) {
-        if ( requestCode == ACTIVITY_REQUEST_CODE_ENABLE_BLUETOOTH && resultCode == Activity.RESULT_OK ) {
-            runNextActionInChain();
+        // The setup checks for itself whether the prompt fixed anything
+        if ( requestCode == ACTIVITY_REQUEST_CODE_ENABLE_BLUETOOTH ) {
+            if ( scanSetup != null ) scanSetup.onPromptAnswered(ScanSetup.Prerequisite.BLUETOOTH_ENABLED);
             return true;
         } else if ( requestCode == ACTIVITY_REQUEST_CODE_ENABLE_LOCATION ) {
-            setupLocationServiceForScanning(hostActivity);
+            if ( scanSetup != null ) scanSetup.onPromptAnswered(ScanSetup.Prerequisite.LOCATION_SERVICE);
             return true;
         }
         return false;
@@ -114,44 +193,11 @@ public class BLECommunicator implements Communicator {
 
     @Override
     public void listAvailableDevices( final Activity hostActivity, final HPBMDevicesDiscoveryHandler handler) {
-        clearActionChain();
-
-        addActionToChain(new Runnable() {
-            @Override
-            public void run() {
-                setupBleManager( hostActivity );
-            }
-        });
-
-        addActionToChain(new Runnable() {
-            @Override
-            public void run() {
-                setupBluetooth( hostActivity );
-            }
-        });
-
-        addActionToChain(new Runnable() {
-            @Override
-            public void run() {
-                setupLocationServiceForScanning( hostActivity );
-            }
-        });
-
-        addActionToChain(new Runnable() {
-            @Override
-            public void run() {
-                setupLocationPermissions( hostActivity );
-            }
-        });
-
-        addActionToChain(new Runnable() {
-            @Override
-            public void run() {
-                startScan( hostActivity, handler );
-            }
-        });
-
-        startActionChain();
+        if ( scanSetup != null ) {
+            scanSetup.cancel();
+        }
+        scanSetup = new ScanSetup(new ScanSetupEnvironment(hostActivity, handler));
+        scanSetup.start();
     }
 
     @Override
@@ -163,7 +209,10 @@ public class BLECommunicator implements Communicator {
 //
 //        if ( mDeviceAddress != null ) {
 //            Log.d(TAG, "Found a device address in the settings. Will try to connect to it.");
-            mBleManager = new BleManager(hostActivity, createBleManagerListenerImpl() );
+            openBacklog(hostActivity);
+            if ( mBleManager == null ) {
+                mBleManager = new BleManager(hostActivity, createBleManagerListenerImpl());
+            }
             return mBleManager.connect(hostActivity, mDeviceAddress);
 //            if ( connected ) {
 //                Log.d( TAG, "Connection successful! No need to do the full setup procedure.");
@@ -230,140 +279,210 @@ public class BLECommunicator implements Communicator {
         if ( mBleManager != null ) {
             mBleManager.close();
         }
+        pipeline.endSession();
+        IngestionThread ingestionThread = pipeline.getIngestionThread();
+        if ( ingestionThread.getDroppedPayloads() > 0 ) {
+            Log.w(TAG, "Ingestion dropped " + ingestionThread.getDroppedPayloads() + " payloads.");
+        }
         saveSettings( hostActivity );
         return true;
     }
 
     @Override
-    public boolean sendRefillToMessage(Activity hostActivity, float amount) {
-        String message = messageInterpreter.createRefillToMessage( amount );
-        return sendData(message);
+    public boolean sendRefillToMessage(Activity hostActivity, float amount, CommandCallback callback) {
+        return pipeline.sendRefillTo(amount, callback);
     }
 
     @Override
-    public boolean sendRefillWithMessage(Activity hostActivity, float amount) {
-        String message = messageInterpreter.createRefillWithMessage( amount );
-        return sendData(message);
+    public boolean sendRefillWithMessage(Activity hostActivity, float amount, CommandCallback callback) {
+        return pipeline.sendRefillWith(amount, callback);
     }
 
     @Override
-    public boolean sendResetMessage( Activity hostActivity ) {
-        String message = messageInterpreter.createResetMessage();
-        return sendData(message);
+    public boolean sendResetMessage( Activity hostActivity, CommandCallback callback ) {
+        return pipeline.sendReset(callback);
+    }
+
+    @Override
+    public LatencyHistogram getCommandLatency(CommandType type) {
+        return pipeline.getCommandLatency(type);
+    }
+
+    @Override
+    public LinkStatistics getLinkStatistics() {
+        return pipeline.getLinkStatistics();
+    }
+
+    @Override
+    public void setMonitorVisible(boolean visible) {
+        pipeline.setMonitorVisible(visible);
+    }
+
+    @Override
+    public AlertEngine getAlerts() {
+        return pipeline.getAlerts();
+    }
+
+    @Override
+    public void addRecorder(DevicePipeline.Recorder recorder) {
+        pipeline.addRecorder(recorder);
+    }
+
+    @Override
+    public synchronized void restoreLastKnownState(File directory) {
+        if ( lastKnownState != null ) return;
+        LastKnownState state = new LastKnownState(new File(directory, LastKnownState.FILE_NAME), pipeline.getSampleBuffer(), pipeline.getEstimator());
+        lastKnownState = state;
+        state.restoreLater(new LastKnownState.Listener() {
+            @Override
+            public void onRestored(int samples) {
+                pipeline.publishLatest();
+            }
+
+            @Override
+            public void onRestoreFailed(IOException ex) {
+                Log.w(TAG, "Unable to restore the last known state.", ex);
+            }
+        });
+        // Sessions started from now on wait for the restore
+        pipeline.addRecorder(state);
     }
 
 
     // *************************************************
     // ************** PRIVATE METHODS ******************
     // *************************************************
-    private void setupBleManager( Activity hostActivity ) {
-        if ( mBleManager == null ) {
-            Log.d(TAG, "Setup BLE Manager");
-            mBleManager = new BleManager(hostActivity, createBleManagerListenerImpl());
+    /**
+     * Checks and prompts for the scan prerequisites on Android, on the UI thread.
+     */
+    private final class ScanSetupEnvironment implements ScanSetup.Environment {
+
+        private final Activity hostActivity;
+        private final HPBMDevicesDiscoveryHandler handler;
+
+        ScanSetupEnvironment( Activity hostActivity, HPBMDevicesDiscoveryHandler handler ) {
+            this.hostActivity = hostActivity;
+            this.handler = handler;
         }
-        runNextActionInChain();
-    }
 
-    private void setupBluetooth( Activity hostActivity ) {
-        // Check Bluetooth HW status
-        int errorMessageId = 0;
-        final int bleStatus = BleUtils.getBleStatus(hostActivity.getBaseContext());
-        switch (bleStatus) {
-            case BleUtils.STATUS_BLE_NOT_AVAILABLE:
-                errorMessageId = R.string.dialog_error_no_ble;
-                break;
-            case BleUtils.STATUS_BLUETOOTH_NOT_AVAILABLE: {
-                errorMessageId = R.string.dialog_error_no_bluetooth;
-                break;
-            }
-            case BleUtils.STATUS_BLUETOOTH_DISABLED: {
-                Log.d(TAG, "Launch settings dialog to enable Bluetooth");
-                // if not enabled, launch settings dialog to enable it (user should always be prompted before automatically enabling bluetooth)
-                Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-                hostActivity.startActivityForResult(enableBtIntent, ACTIVITY_REQUEST_CODE_ENABLE_BLUETOOTH);
-                // execution will continue at onActivityResult()
-                return;
+        @Override
+        public boolean isSatisfied( ScanSetup.Prerequisite prerequisite ) {
+            switch ( prerequisite ) {
+                case BLUETOOTH_HARDWARE: {
+                    int bleStatus = BleUtils.getBleStatus(hostActivity.getBaseContext());
+                    return bleStatus != BleUtils.STATUS_BLE_NOT_AVAILABLE && bleStatus != BleUtils.STATUS_BLUETOOTH_NOT_AVAILABLE;
+                }
+                case BLUETOOTH_ENABLED:
+                    return BleUtils.getBleStatus(hostActivity.getBaseContext()) == BleUtils.STATUS_BLE_ENABLED;
+                case LOCATION_SERVICE: {
+                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return true;    // Location services are only needed to be enabled from Android 6.0
+                    int locationMode = Settings.Secure.LOCATION_MODE_OFF;
+                    try {
+                        locationMode = Settings.Secure.getInt(hostActivity.getContentResolver(), Settings.Secure.LOCATION_MODE);
+                    } catch (Settings.SettingNotFoundException e) {
+                        Log.w(TAG, e);
+                    }
+                    return locationMode != Settings.Secure.LOCATION_MODE_OFF;
+                }
+                case LOCATION_PERMISSION:
+                    return Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                        || hostActivity.checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
             }
+            return false;
         }
 
-        if (errorMessageId > 0) {
-            Log.d(TAG, "Bluetooth Error: " + hostActivity.getApplicationContext().getText(errorMessageId));
+        @Override
+        public void explain( EnumSet<ScanSetup.Prerequisite> missing, final Runnable proceed ) {
+            Log.d(TAG, "Missing for scanning: " + missing);
+            // The system's Bluetooth prompt explains itself, location needs telling why
+            StringBuilder message = new StringBuilder();
+            if ( missing.contains(ScanSetup.Prerequisite.LOCATION_SERVICE) ) {
+                message.append(hostActivity.getText(R.string.dialog_error_nolocationservices_requiredforscan_marshmallow));
+            }
+            if ( missing.contains(ScanSetup.Prerequisite.LOCATION_PERMISSION) ) {
+                if ( message.length() > 0 ) message.append("\n\n");
+                message.append(hostActivity.getText(R.string.location_access_request_message));
+            }
+            if ( message.length() == 0 ) {
+                proceed.run();
+                return;
+            }
             AlertDialog dialog = new AlertDialog.Builder(hostActivity)
-                    .setMessage(errorMessageId)
+                    .setTitle(R.string.location_access_request_title)
+                    .setMessage(message)
                     .setPositiveButton(android.R.string.ok, null)
+                    .setOnDismissListener(new DialogInterface.OnDismissListener() {
+                        @Override
+                        public void onDismiss(DialogInterface dialog) {
+                            proceed.run();
+                        }
+                    })
                     .show();
             keepDialogOnOrientationChanges(dialog);
-        } else {
-            runNextActionInChain();
         }
-    }
 
-    private void tryToConnect( Activity hostActivity ) {
-        if ( mDeviceAddress != null && mBleManager.isAdapterEnabled() ) {
-            boolean connected = mBleManager.connect(hostActivity, mDeviceAddress );
-            if ( connected ) {
-                Log.d(TAG, "Connection to device at \"" + mDeviceAddress + "\" established. Breaking setup procedure.");
-                clearActionChain();
-                return;
+        @Override
+        public void prompt( ScanSetup.Prerequisite prerequisite ) {
+            // Each prompt opens on top of the previous one, the answers come back as the user gets to them
+            switch ( prerequisite ) {
+                case BLUETOOTH_ENABLED:
+                    Log.d(TAG, "Launch settings dialog to enable Bluetooth");
+                    // user should always be prompted before automatically enabling bluetooth
+                    hostActivity.startActivityForResult(new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE), ACTIVITY_REQUEST_CODE_ENABLE_BLUETOOTH);
+                    break;
+                case LOCATION_SERVICE:
+                    hostActivity.startActivityForResult(new Intent(Settings.ACTION_LOCATION_SOURCE_SETTINGS), ACTIVITY_REQUEST_CODE_ENABLE_LOCATION);
+                    break;
+                case LOCATION_PERMISSION:
+                    ActivityCompat.requestPermissions(hostActivity, new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, PERMISSION_REQUEST_CODE_COARSE_LOCATION);
+                    break;
+                default:
+                    break;
             }
         }
-        runNextActionInChain();
-    }
-
-    private void setupLocationServiceForScanning( final Activity hostActivity ) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {        // Location services are only needed to be enabled from Android 6.0
-            Log.d(TAG, "Checking location service...");
-            int locationMode = Settings.Secure.LOCATION_MODE_OFF;
-            try {
-                locationMode = Settings.Secure.getInt(hostActivity.getContentResolver(), Settings.Secure.LOCATION_MODE);
-            } catch (Settings.SettingNotFoundException e) {
-                Log.w(TAG, e);
-            }
 
-            if ( locationMode == Settings.Secure.LOCATION_MODE_OFF ) {
-                Log.d(TAG, "Location service is off. Alert the user.");
-                AlertDialog dialog = new AlertDialog.Builder(hostActivity)
-                        .setMessage(R.string.dialog_error_nolocationservices_requiredforscan_marshmallow)
-                        .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialog, int which) {
-                                hostActivity.startActivityForResult( new Intent(Settings.ACTION_LOCATION_SOURCE_SETTINGS), ACTIVITY_REQUEST_CODE_ENABLE_LOCATION );
-                            }
-                        })
-                        .show();
-                keepDialogOnOrientationChanges(dialog);
-            } else {
-                Log.d(TAG, "Location service is on. Continue.");
-                runNextActionInChain();
-            }
-        } else {
-            runNextActionInChain();
+        @Override
+        public void startScan() {
+            Log.d(TAG, "Tap to scan: " + scanSetup.getLastSetupMillis() + " ms");
+            BLECommunicator.this.startScan(hostActivity, handler);
         }
-    }
 
-    private void setupLocationPermissions( final Activity hostActivity ) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            Log.d(TAG, "Checking location permissions...");
-            if ( hostActivity.checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED ) {
-                Log.d(TAG, "Location permissions not granted. Alert the user.");
-                AlertDialog dialog = new AlertDialog.Builder(hostActivity)
-                        .setTitle(R.string.location_access_request_title)
-                        .setMessage(R.string.location_access_request_message)
+        @Override
+        public void onSetupFailed( ScanSetup.Prerequisite prerequisite ) {
+            Log.d(TAG, "Unable to scan, missing " + prerequisite);
+            switch ( prerequisite ) {
+                case BLUETOOTH_HARDWARE: {
+                    int errorMessageId = BleUtils.getBleStatus(hostActivity.getBaseContext()) == BleUtils.STATUS_BLE_NOT_AVAILABLE
+                        ? R.string.dialog_error_no_ble : R.string.dialog_error_no_bluetooth;
+                    AlertDialog dialog = new AlertDialog.Builder(hostActivity)
+                            .setMessage(errorMessageId)
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                    keepDialogOnOrientationChanges(dialog);
+                    break;
+                }
+                case LOCATION_SERVICE:
+                    // Back from the settings without turning it on, ask again
+                    scanSetup.start();
+                    break;
+                case LOCATION_PERMISSION: {
+                    AlertDialog dialog = new AlertDialog.Builder(hostActivity)
+                        .setTitle("Unable to continue")
+                        .setMessage("Since location access has not been granted, this application will now exit. Bye!")
                         .setPositiveButton(android.R.string.ok, null)
                         .setOnDismissListener(new DialogInterface.OnDismissListener() {
                             @Override
                             public void onDismiss(DialogInterface dialog) {
-                                ActivityCompat.requestPermissions(hostActivity, new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, PERMISSION_REQUEST_CODE_COARSE_LOCATION);
+                                hostActivity.finish();
                             }
                         })
                         .show();
-                keepDialogOnOrientationChanges(dialog);
-            } else {
-                Log.d(TAG, "Location permissions granted. Continue.");
-                runNextActionInChain();
+                    keepDialogOnOrientationChanges(dialog);
+                    break;
+                }
+                default:
+                    break;
             }
-        } else {
-            runNextActionInChain();
         }
     }
 
@@ -376,7 +495,7 @@ public class BLECommunicator implements Communicator {
             Log.w(TAG, "Failed to start device scan! Bluetooth adapter not initialized or unspecified address.");
         } else {
 
-            List<ScanFilter> filters = Arrays.asList( new ScanFilter.Builder().setServiceUuid( ParcelUuid.fromString(UUID_SERVICE) ).build() );
+            List<ScanFilter> filters = Arrays.asList( new ScanFilter.Builder().setServiceUuid( new ParcelUuid(NordicUart.SERVICE) ).build() );
 
             mScanner = bluetoothAdapter.getBluetoothLeScanner();
             mScanner.startScan(
@@ -419,41 +538,43 @@ public class BLECommunicator implements Communicator {
         }
     }
 
-    private void addActionToChain(Runnable action) {
-        actionChain.add(action);
-    }
-
-    private void startActionChain() {
-        runNextActionInChain();
-    }
-
-    private void runNextActionInChain() {
-        if (actionChain.size() > 0) {
-            actionChain.pollFirst().run();
+    private void openBacklog(Activity hostActivity) {
+        if ( backlogSync != null ) return;
+        try {
+            SessionLog log = SessionLog.open(new File(hostActivity.getFilesDir(), BACKLOG_FILE_NAME));
+            backlogSync = new BacklogSync(messageInterpreter, log, commandPool, commandTransport, backlogListener);
+            pipeline.setBacklogSync(backlogSync);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open the backlog, samples missed while out of range will not be synced.", ex);
         }
     }
 
-    private void clearActionChain() {
-        actionChain.clear();
-    }
-
-    private boolean sendData(String text) {
-        Log.d( TAG, "Sending message \"" + text + "\"" );
-        String line = text + "\n";
-        byte[] value = line.getBytes(Charset.forName("UTF-8"));
-        return sendData(value);
+    /**
+     * Asks the device for the samples it buffered since the last one stored. The transfer runs with the
+     * highest connection priority, which is dropped again once it completes.
+     */
+    private void requestBacklog() {
+        if ( backlogSync == null ) return;
+        backlogGapStart = pipeline.getLastSampleAt();
+        CommandChannel commandChannel = pipeline.getCommandChannel();
+        CommandChannel.Request request = commandChannel.open(CommandType.SYNC_BACKLOG, null);
+        if ( request != null ) {
+            backlogSync.writeRequest(request.getCommand());
+            mBleManager.requestConnectionPriority(GattTransport.CONNECTION_PRIORITY_HIGH);
+            commandChannel.submit(request);
+        }
     }
 
-    private boolean sendData(byte[] data) {
-        if (mUartService != null) {
-            // Split the value into chunks (UART service has a maximum number of characters that can be written )
-            for (int i = 0; i < data.length; i += TX_MAX_CHARACTERS) {
-                final byte[] chunk = Arrays.copyOfRange(data, i, Math.min(i + TX_MAX_CHARACTERS, data.length));
-                mBleManager.writeService(mUartService, UUID_TX, chunk);
-            }
+    /**
+     * Hands the encoded command to the BLE manager, which chunks it by the negotiated MTU and returns the buffer to the pool.
+     */
+    private boolean sendCommand(CommandBuffer command) {
+        if (mUartAvailable) {
+            mBleManager.writeService(NordicUart.SERVICE, NordicUart.TX, command, commandPool);
             return true;
         } else {
             Log.w(TAG, "UART service not available. Unable to send data");
+            commandPool.release(command);
             return false;
         }
     }
@@ -469,7 +590,8 @@ public class BLECommunicator implements Communicator {
         SharedPreferences settings = hostActivity.getSharedPreferences(TAG, 0);
         SharedPreferences.Editor editor = settings.edit();
         editor.putString("deviceAddress", mDeviceAddress);
-        editor.commit();
+        // Written in the background, the caller does not wait for the disk
+        editor.apply();
     }
 
     private void keepDialogOnOrientationChanges(Dialog dialog) {
@@ -480,35 +602,32 @@ public class BLECommunicator implements Communicator {
         dialog.getWindow().setAttributes(lp);
     }
 
-    private BleManager.BleManagerListener createBleManagerListenerImpl() {
-        return  new BleManager.BleManagerListener() {
+    private GattClient.Listener createBleManagerListenerImpl() {
+        return  new GattClient.Listener() {
             @Override
             public void onServicesDiscovered() {
-                mUartService = mBleManager.getGattService(UUID_SERVICE);
-                mBleManager.enableNotification(mUartService, UUID_RX, true);
+                mUartAvailable = mBleManager.hasService(NordicUart.SERVICE);
+                // Notifications arriving ahead of the session wait in the ingestion queue
+                mBleManager.enableNotification(NordicUart.SERVICE, NordicUart.RX, true);
+                pipeline.startSession(reportModeCallback);
+                requestBacklog();
             }
 
             @Override
-            public void onDataAvailable(BluetoothGattCharacteristic characteristic) {
-                if (characteristic.getService().getUuid().toString().equalsIgnoreCase(UUID_SERVICE)) {
-                    if (characteristic.getUuid().toString().equalsIgnoreCase(UUID_RX)) {
-                        byte[] bytes = characteristic.getValue();
-                        String message = new String(bytes, Charset.forName("UTF-8"));
-                        HPBMData data = messageInterpreter.readMessage(message);
-                        if ( dataHandler != null ) {
-                            dataHandler.onDataReceived(data);
-                        }
-                    }
-                }
+            public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+                // Only copy the payload, parsing happens on the ingestion thread so the GATT queue keeps moving
+                notificationRouter.route(characteristic, value, System.currentTimeMillis());
             }
 
             @Override
             public void onDisconnected() {
-                Log.d(TAG, "Disconnected.");
+                Log.d(TAG, "Disconnected. Link: " + pipeline.getLinkStatistics());
+                mUartAvailable = false;
+                pipeline.endSession();
             }
 
             @Override
-            public void onDataAvailable(BluetoothGattDescriptor descriptor) {}
+            public void onCharacteristicRead(UUID characteristic, byte[] value) {}
 
             @Override
             public void onReadRemoteRssi(int rssi) {}
@@ -0,0 +1,148 @@
+package hpbm.app.core;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates the alert rules on every sample as it is ingested, in the background and whether or not any
+ * activity is running. Each rule keeps a few fields of state, so a sample costs the same however long the
+ * history is, and evaluating does not allocate.
+ *
+ * Samples older than the last one evaluated, e.g. synced from the device's backlog, are not evaluated: they
+ * tell about the past, alerts are about now.
+ */
+public final class AlertEngine {
+
+    public interface Listener {
+        void onAlertRaised( AlertRule rule, long timestamp, float value );
+        // Only for alerts whose raising was notified
+        void onAlertCleared( AlertRule rule, long timestamp );
+    }
+
+    private static final long NOT_PAST = Long.MIN_VALUE;
+
+    private Listener listener;
+    private AlertRule[] rules = new AlertRule[0];
+    private long[] pastSince = new long[0];         // [ms] the figure has been past the threshold since, or NOT_PAST
+    private boolean[] raised = new boolean[0];
+    private boolean[] notified = new boolean[0];    // the raised alert was notified
+    private long[] notifiedAt = new long[0];        // [ms] NOT_PAST if the alert was not notified yet
+    private long lastTimestamp = Long.MIN_VALUE;
+    private long raisedCount;
+    private long suppressedCount;
+
+    public synchronized void setListener( Listener listener ) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the rules. Rules with the id of a current one keep its state, so an alert is not raised
+     * again by changing its threshold.
+     */
+    public synchronized void setRules( AlertRule... rules ) {
+        long[] pastSince = new long[rules.length];
+        boolean[] raised = new boolean[rules.length];
+        boolean[] notified = new boolean[rules.length];
+        long[] notifiedAt = new long[rules.length];
+        Arrays.fill( pastSince, NOT_PAST );
+        Arrays.fill( notifiedAt, NOT_PAST );
+        for ( int i = 0; i < rules.length; i++ ) {
+            for ( int j = 0; j < this.rules.length; j++ ) {
+                if ( this.rules[j].getId().equals( rules[i].getId() ) ) {
+                    pastSince[i] = this.pastSince[j];
+                    raised[i] = this.raised[j];
+                    notified[i] = this.notified[j];
+                    notifiedAt[i] = this.notifiedAt[j];
+                }
+            }
+        }
+        this.rules = rules.clone();
+        this.pastSince = pastSince;
+        this.raised = raised;
+        this.notified = notified;
+        this.notifiedAt = notifiedAt;
+    }
+
+    public synchronized AlertRule[] getRules() {
+        return rules.clone();
+    }
+
+    public synchronized boolean isRaised( String id ) {
+        for ( int i = 0; i < rules.length; i++ ) {
+            if ( rules[i].getId().equals( id ) ) return raised[i];
+        }
+        return false;
+    }
+
+    public synchronized long getRaisedCount() {
+        return raisedCount;
+    }
+
+    /**
+     * @return raisings not notified because the rule notified within its repeat interval
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    public synchronized void evaluate( HPBMDataBatch batch ) {
+        for ( int i = 0; i < batch.size(); i++ ) {
+            evaluate( batch.getTimestamp( i ), batch.getCurrentConsumption( i ), batch.getRemainingPart( i ), batch.getTimeToEmpty( i ) );
+        }
+    }
+
+    /**
+     * @param timeToEmpty [s], negative while unknown
+     */
+    public synchronized void evaluate( long timestamp, float currentConsumption, float remainingPart, int timeToEmpty ) {
+        if ( timestamp <= lastTimestamp ) return;
+        lastTimestamp = timestamp;
+        for ( int i = 0; i < rules.length; i++ ) {
+            AlertRule rule = rules[i];
+            float value;
+            switch ( rule.getMetric() ) {
+                case CURRENT_CONSUMPTION:
+                    value = currentConsumption;
+                    break;
+                case REMAINING_PART:
+                    value = remainingPart;
+                    break;
+                default:
+                    if ( timeToEmpty < 0 ) continue;
+                    value = timeToEmpty;
+                    break;
+            }
+
+            if ( raised[i] ) {
+                if ( rule.isClear( value ) ) {
+                    raised[i] = false;
+                    pastSince[i] = NOT_PAST;
+                    if ( notified[i] && listener != null ) {
+                        listener.onAlertCleared( rule, timestamp );
+                    }
+                }
+                continue;
+            }
+            if ( !rule.isPast( value ) ) {
+                pastSince[i] = NOT_PAST;
+                continue;
+            }
+            if ( pastSince[i] == NOT_PAST ) {
+                pastSince[i] = timestamp;
+            }
+            if ( timestamp - pastSince[i] < rule.getHoldMillis() ) continue;
+
+            raised[i] = true;
+            raisedCount++;
+            notified[i] = notifiedAt[i] == NOT_PAST || timestamp - notifiedAt[i] >= rule.getRepeatMillis();
+            if ( !notified[i] ) {
+                suppressedCount++;
+                continue;
+            }
+            notifiedAt[i] = timestamp;
+            if ( listener != null ) {
+                listener.onAlertRaised( rule, timestamp, value );
+            }
+        }
+    }
+
+}
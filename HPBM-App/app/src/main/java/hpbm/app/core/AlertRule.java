@@ -0,0 +1,118 @@
+package hpbm.app.core;
+
+/**
+ * A threshold on one figure of the samples. The alert is raised once the figure has been past the threshold
+ * for the hold time, and cleared only once it is back past the clear threshold, so a figure hovering at the
+ * threshold does not raise it again and again. Raising notifies at most once per repeat interval.
+ */
+public final class AlertRule {
+
+    public enum Metric {
+        CURRENT_CONSUMPTION,    // [ml/s]
+        REMAINING_PART,
+        TIME_TO_EMPTY           // [s]
+    }
+
+    public static final long DEFAULT_REPEAT_INTERVAL = 30 * 60 * 1000;    // [ms]
+    public static final float NO_FLOW_RATE = 0.1f;                          // [ml/s] less than a pulse per second
+
+    private final String id;
+    private final Metric metric;
+    private final boolean below;            // raised below the threshold, else above it
+    private final float threshold;
+    private final float clearThreshold;
+    private final long holdMillis;
+    private final long repeatMillis;
+
+    public AlertRule( String id, Metric metric, boolean below, float threshold, float clearThreshold, long holdMillis, long repeatMillis ) {
+        if ( below ? clearThreshold < threshold : clearThreshold > threshold ) {
+            throw new IllegalArgumentException( "The clear threshold must lie on the safe side of the threshold: " + id );
+        }
+        this.id = id;
+        this.metric = metric;
+        this.below = below;
+        this.threshold = threshold;
+        this.clearThreshold = clearThreshold;
+        this.holdMillis = holdMillis;
+        this.repeatMillis = repeatMillis;
+    }
+
+    /**
+     * @param part of the pack, cleared 5 % above, e.g. by a refill
+     */
+    public static AlertRule remainingBelow( String id, float part ) {
+        return new AlertRule( id, Metric.REMAINING_PART, true, part, part + 0.05f, 0, DEFAULT_REPEAT_INTERVAL );
+    }
+
+    /**
+     * @param seconds cleared a fifth above
+     */
+    public static AlertRule timeToEmptyBelow( String id, int seconds ) {
+        return new AlertRule( id, Metric.TIME_TO_EMPTY, true, seconds, seconds * 1.2f, 0, DEFAULT_REPEAT_INTERVAL );
+    }
+
+    /**
+     * Nothing drunk for the given time, cleared by the next sip.
+     */
+    public static AlertRule noFlowFor( String id, long millis ) {
+        return new AlertRule( id, Metric.CURRENT_CONSUMPTION, true, NO_FLOW_RATE, NO_FLOW_RATE, millis, DEFAULT_REPEAT_INTERVAL );
+    }
+
+    /**
+     * Flow above the rate for longer than anyone drinks, e.g. a leaking hose. Cleared at half the rate.
+     */
+    public static AlertRule flowAbove( String id, float rate, long holdMillis ) {
+        return new AlertRule( id, Metric.CURRENT_CONSUMPTION, false, rate, rate / 2f, holdMillis, DEFAULT_REPEAT_INTERVAL );
+    }
+
+    public static AlertRule[] createDefaults() {
+        return new AlertRule[] {
+            remainingBelow( "remaining", 0.15f ),
+            timeToEmptyBelow( "timeToEmpty", 30 * 60 ),
+            noFlowFor( "noFlow", 2 * 3600 * 1000 ),
+            flowAbove( "leak", 2f, 60 * 1000 )
+        };
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public boolean isBelow() {
+        return below;
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    public float getClearThreshold() {
+        return clearThreshold;
+    }
+
+    public long getHoldMillis() {
+        return holdMillis;
+    }
+
+    public long getRepeatMillis() {
+        return repeatMillis;
+    }
+
+    boolean isPast( float value ) {
+        return below ? value < threshold : value > threshold;
+    }
+
+    boolean isClear( float value ) {
+        return below ? value >= clearThreshold : value <= clearThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return id + ": " + metric + (below ? " < " : " > ") + threshold;
+    }
+
+}
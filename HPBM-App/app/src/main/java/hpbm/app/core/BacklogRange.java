@@ -0,0 +1,40 @@
+package hpbm.app.core;
+
+/**
+ * Reusable holder for the range of backlog samples the device announces at the start of a sync.
+ */
+public final class BacklogRange {
+
+    private int firstSequence;
+    private int lastSequence;       // first &gt; last when there is nothing to sync
+    private int periodMillis;       // [ms] covered by one sample
+    private int windowSamples;      // samples the device sends ahead of the acknowledgement
+
+    public int getFirstSequence() {
+        return firstSequence;
+    }
+
+    public int getLastSequence() {
+        return lastSequence;
+    }
+
+    public int getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public int getWindowSamples() {
+        return windowSamples;
+    }
+
+    public int size() {
+        return Math.max( 0, lastSequence - firstSequence + 1 );
+    }
+
+    public void set( int firstSequence, int lastSequence, int periodMillis, int windowSamples ) {
+        this.firstSequence = firstSequence;
+        this.lastSequence = lastSequence;
+        this.periodMillis = periodMillis;
+        this.windowSamples = windowSamples;
+    }
+
+}
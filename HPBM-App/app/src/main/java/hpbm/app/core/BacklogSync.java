@@ -0,0 +1,188 @@
+package hpbm.app.core;
+
+import java.io.IOException;
+
+import hpbm.app.storage.SessionLog;
+
+/**
+ * App side of the backlog sync: after a reconnect the device is asked for every sample it buffered since
+ * the last one in the {@link SessionLog}. The device announces the range (SH), then streams chunks of
+ * samples (S) as notifications, keeping at most a window of samples ahead of the app's acknowledgement
+ * (SA). Chunks are decoded on the ingestion thread as they arrive and appended straight to the log; the
+ * acknowledgement goes out right after decoding, before anything is flushed, so decoding and storage
+ * overlap with the transfer of the next chunks. Chunks must arrive in order: a chunk beyond the next expected
+ * sample is ignored and the device goes back to the last acknowledged sample, repeating the announcement,
+ * when its acknowledgement times out.
+ */
+public final class BacklogSync {
+
+    public interface Listener {
+        /**
+         * Called on the ingestion thread for every sample stored.
+         *
+         * @param timestamp Estimated end of the period the sample covers [ms]
+         */
+        void onBacklogSample( int sequence, long timestamp, int pulses, int periodMillis );
+        void onSyncCompleted( int storedSamples, long transferMillis );  // [ms] from the range announcement to the last chunk
+        void onSyncFailed( IOException ex );
+    }
+
+    private static final int CHUNK_CAPACITY = 256;
+
+    private final MessageInterpreter messageInterpreter;
+    private final SessionLog log;
+    private final CommandBufferPool pool;
+    private final CommandChannel.Transport transport;
+    private final Listener listener;
+    private final BacklogRange range = new BacklogRange();
+    private final BacklogRange announced = new BacklogRange();
+    private final PulseBatch chunk = new PulseBatch( CHUNK_CAPACITY );
+
+    private boolean active;
+    private int requestedSequence;
+    private int nextSequence;           // next sample expected
+    private int lastAckedSequence;
+    private int ackInterval;            // [samples]
+    private int storedSamples;
+    private long headerReceivedAt;      // [ms]
+    private long headerReceivedNanos;
+
+    public BacklogSync( MessageInterpreter messageInterpreter, SessionLog log, CommandBufferPool pool, CommandChannel.Transport transport, Listener listener ) {
+        this.messageInterpreter = messageInterpreter;
+        this.log = log;
+        this.pool = pool;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    public SessionLog getLog() {
+        return log;
+    }
+
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Writes the request for everything newer than the log's last sample and expects the device's answer.
+     */
+    public synchronized void writeRequest( CommandBuffer out ) {
+        requestedSequence = log.getLastDeviceSequence() + 1;
+        messageInterpreter.writeSyncRequestCommand( requestedSequence, out );
+        active = true;
+        nextSequence = -1;
+    }
+
+    /**
+     * The link went away, a new sync starts with the next request.
+     */
+    public synchronized void cancel() {
+        active = false;
+        flushLog();
+    }
+
+    /**
+     * Runs on the ingestion thread.
+     *
+     * @return true if the payload belonged to the sync and was consumed
+     */
+    public boolean onPayload( byte[] payload, int length, long receivedAt ) {
+        if ( length == 0 || payload[0] != PayloadDecoder.SYNC_PREFIX ) return false;
+        synchronized ( this ) {
+            if ( messageInterpreter.readSyncHeader( payload, length, announced ) ) {
+                // The device repeats the announcement whenever it goes back, in case the first one was lost
+                boolean repeated = nextSequence >= 0 && announced.getFirstSequence() == range.getFirstSequence() && announced.getLastSequence() == range.getLastSequence();
+                if ( active && !repeated ) {
+                    range.set( announced.getFirstSequence(), announced.getLastSequence(), announced.getPeriodMillis(), announced.getWindowSamples() );
+                    onHeader( receivedAt );
+                }
+                return true;
+            }
+            if ( !active || nextSequence < 0 ) return false;
+            int sequence = messageInterpreter.readSyncChunk( payload, length, range.getPeriodMillis(), chunk );
+            if ( sequence < 0 ) return false;
+            if ( sequence <= nextSequence && sequence + chunk.size() > nextSequence ) {
+                onChunk( nextSequence - sequence );
+            } else if ( sequence < nextSequence ) {
+                // Resent samples the device could not know arrived, tell it where to continue
+                sendAck( nextSequence - 1 );
+            }
+            return true;
+        }
+    }
+
+    private void onHeader( long receivedAt ) {
+        if ( range.getLastSequence() + 1 < requestedSequence ) {
+            // The device has fewer samples than the log, so it restarted and counts from zero again
+            log.resetDeviceSequence();
+        }
+        headerReceivedAt = receivedAt;
+        headerReceivedNanos = System.nanoTime();
+        nextSequence = range.getFirstSequence();
+        lastAckedSequence = nextSequence - 1;
+        ackInterval = Math.max( 1, range.getWindowSamples() / 2 );
+        storedSamples = 0;
+        if ( range.size() == 0 ) {
+            complete();
+        }
+    }
+
+    /**
+     * @param skip Leading samples of the chunk that are stored already
+     */
+    private void onChunk( int skip ) {
+        int period = range.getPeriodMillis();
+        int first = nextSequence - skip;
+        try {
+            for ( int i = skip; i < chunk.size(); i++ ) {
+                int sequence = first + i;
+                long timestamp = headerReceivedAt - (long) (range.getLastSequence() - sequence) * period;
+                if ( log.append( sequence, timestamp, chunk.getPulses( i ), period ) ) {
+                    storedSamples++;
+                    if ( listener != null ) {
+                        listener.onBacklogSample( sequence, timestamp, chunk.getPulses( i ), period );
+                    }
+                }
+            }
+        } catch ( IOException ex ) {
+            active = false;
+            if ( listener != null ) {
+                listener.onSyncFailed( ex );
+            }
+            return;
+        }
+        nextSequence = first + chunk.size();
+        if ( nextSequence > range.getLastSequence() ) {
+            sendAck( range.getLastSequence() );
+            complete();
+        } else if ( nextSequence - 1 - lastAckedSequence >= ackInterval ) {
+            sendAck( nextSequence - 1 );
+        }
+    }
+
+    private void sendAck( int sequence ) {
+        CommandBuffer ack = pool.acquire();
+        messageInterpreter.writeSyncAckCommand( sequence, ack );
+        transport.send( ack );
+        lastAckedSequence = sequence;
+    }
+
+    private void complete() {
+        active = false;
+        flushLog();
+        if ( listener != null ) {
+            listener.onSyncCompleted( storedSamples, (System.nanoTime() - headerReceivedNanos) / 1000000 );
+        }
+    }
+
+    private void flushLog() {
+        try {
+            log.flush();
+        } catch ( IOException ex ) {
+            if ( listener != null ) {
+                listener.onSyncFailed( ex );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,12 @@
+package hpbm.app.core;
+
+/**
+ * What a {@link SampleStream} subscription does with samples that arrive faster than its handler consumes them.
+ * None of the policies ever blocks the publishing thread.
+ */
+public enum BackpressurePolicy {
+    KEEP_LATEST,        // only the newest pending sample is kept, older pending ones are replaced
+    BOUNDED_BUFFER,     // pending samples are queued up to the capacity, beyond that the oldest ones are discarded
+    SAMPLE_EVERY_N,     // only every n-th sample is forwarded, queued like BOUNDED_BUFFER
+    DROP                // samples arriving while a delivery is pending or in progress are discarded
+}
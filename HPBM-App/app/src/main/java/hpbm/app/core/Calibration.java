@@ -0,0 +1,125 @@
+package hpbm.app.core;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Volume per flow meter pulse. The meter is not linear, so a calibrated pack is described by a curve:
+ * millilitres per pulse at a few pulse rates, linearly interpolated in between and held constant beyond
+ * the first and last point. A single point is the constant coefficient of the firmware.
+ *
+ * The flow a curve yields, pulse rate times volume per pulse, must rise with the pulse rate, so a flow
+ * maps back to exactly one pulse rate, see {@link #getPulseRate(float)}.
+ */
+public final class Calibration {
+
+    private final float[] pulseRates;       // [1/s] ascending
+    private final float[] millilitres;      // [ml] per pulse at the pulse rate
+    private final float[] flows;            // [ml/s] at the pulse rate
+
+    public Calibration( float[] pulseRates, float[] millilitresPerPulse ) {
+        if ( pulseRates.length == 0 || pulseRates.length != millilitresPerPulse.length ) {
+            throw new IllegalArgumentException( "A calibration needs as many volumes as pulse rates, at least one" );
+        }
+        this.pulseRates = pulseRates.clone();
+        this.millilitres = millilitresPerPulse.clone();
+        this.flows = new float[pulseRates.length];
+        for ( int i = 0; i < pulseRates.length; i++ ) {
+            if ( !(millilitres[i] > 0f) || pulseRates[i] < 0f || (i > 0 && !(pulseRates[i] > pulseRates[i - 1])) ) {
+                throw new IllegalArgumentException( "Pulse rates must ascend and volumes be positive: " + this );
+            }
+            flows[i] = pulseRates[i] * millilitres[i];
+            if ( i > 0 && !(flows[i] > flows[i - 1] && risesWithin( i - 1 )) ) {
+                throw new IllegalArgumentException( "The flow must rise with the pulse rate: " + this );
+            }
+        }
+    }
+
+    public static Calibration constant( float millilitresPerPulse ) {
+        return new Calibration( new float[] { 0f }, new float[] { millilitresPerPulse } );
+    }
+
+    public static Calibration createDefault() {
+        return constant( ConsumptionEstimator.DEFAULT_PULSE_TO_CONSUMED_COEFF );
+    }
+
+    public boolean isConstant() {
+        return pulseRates.length == 1;
+    }
+
+    /**
+     * @param pulseRate [1/s]
+     * @return [ml] per pulse
+     */
+    public float getMillilitresPerPulse( float pulseRate ) {
+        int last = pulseRates.length - 1;
+        if ( pulseRate <= pulseRates[0] ) return millilitres[0];
+        if ( pulseRate >= pulseRates[last] ) return millilitres[last];
+        int i = Arrays.binarySearch( pulseRates, pulseRate );
+        if ( i >= 0 ) return millilitres[i];
+        i = -i - 2;   // segment starting at i
+        float fraction = (pulseRate - pulseRates[i]) / (pulseRates[i + 1] - pulseRates[i]);
+        return millilitres[i] + fraction * (millilitres[i + 1] - millilitres[i]);
+    }
+
+    /**
+     * @return [ml] the pulses counted over the interval stand for
+     */
+    public float toMillilitres( int pulses, int intervalMillis ) {
+        if ( isConstant() || intervalMillis <= 0 ) return pulses * millilitres[0];
+        return pulses * getMillilitresPerPulse( 1000f * pulses / intervalMillis );
+    }
+
+    /**
+     * Inverse of the flow: the pulse rate a flow was measured at with this calibration.
+     *
+     * @param flow [ml/s]
+     * @return [1/s]
+     */
+    public float getPulseRate( float flow ) {
+        if ( !(flow > 0f) ) return 0f;
+        int last = pulseRates.length - 1;
+        if ( flow <= flows[0] ) return flow / millilitres[0];
+        if ( flow >= flows[last] ) return flow / millilitres[last];
+        int i = Arrays.binarySearch( flows, flow );
+        if ( i >= 0 ) return pulseRates[i];
+        i = -i - 2;
+        // Within the segment ml(r) = a + b * r, so the flow r * ml(r) is quadratic in r
+        double b = (millilitres[i + 1] - millilitres[i]) / (double) (pulseRates[i + 1] - pulseRates[i]);
+        double a = millilitres[i] - b * pulseRates[i];
+        if ( Math.abs( b ) < 1e-12 ) return (float) (flow / a);
+        return (float) ((-a + Math.sqrt( a * a + 4 * b * flow )) / (2 * b));
+    }
+
+    /**
+     * A falling volume per pulse must not turn the flow over before the segment ends.
+     */
+    private boolean risesWithin( int segment ) {
+        double b = (millilitres[segment + 1] - millilitres[segment]) / (double) (pulseRates[segment + 1] - pulseRates[segment]);
+        double a = millilitres[segment] - b * pulseRates[segment];
+        return b >= 0 || -a / (2 * b) >= pulseRates[segment + 1];
+    }
+
+    @Override
+    public boolean equals( Object other ) {
+        if ( !(other instanceof Calibration) ) return false;
+        Calibration calibration = (Calibration) other;
+        return Arrays.equals( pulseRates, calibration.pulseRates ) && Arrays.equals( millilitres, calibration.millilitres );
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode( pulseRates ) + Arrays.hashCode( millilitres );
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < pulseRates.length; i++ ) {
+            if ( i > 0 ) text.append( ", " );
+            text.append( String.format( Locale.US, "%.4gml@%.4g/s", millilitres[i], pulseRates[i] ) );
+        }
+        return text.toString();
+    }
+
+}
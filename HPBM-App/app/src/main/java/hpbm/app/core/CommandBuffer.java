@@ -0,0 +1,72 @@
+package hpbm.app.core;
+
+import java.nio.BufferOverflowException;
+
+/**
+ * Reusable byte buffer a command is encoded into, see {@link MessageInterpreter}. Numbers are written as
+ * ASCII digits directly, so encoding a command needs neither strings nor boxing.
+ */
+public final class CommandBuffer {
+
+    private final byte[] data;
+    private int length;
+
+    public CommandBuffer( int capacity ) {
+        this.data = new byte[capacity];
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public CommandBuffer append( byte b ) {
+        if ( length == data.length ) throw new BufferOverflowException();
+        data[length++] = b;
+        return this;
+    }
+
+    public CommandBuffer append( byte[] bytes ) {
+        return append( bytes, 0, bytes.length );
+    }
+
+    public CommandBuffer append( byte[] bytes, int offset, int count ) {
+        if ( length + count > data.length ) throw new BufferOverflowException();
+        System.arraycopy( bytes, offset, data, length, count );
+        length += count;
+        return this;
+    }
+
+    public CommandBuffer append( int value ) {
+        if ( value < 0 ) {
+            append( (byte) '-' );
+            if ( value == Integer.MIN_VALUE ) {
+                // Cannot be negated, the last digit is written separately
+                append( -(value / 10) );
+                return append( (byte) ('0' - value % 10) );
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for ( int v = value; v >= 10; v /= 10 ) digits++;
+        if ( length + digits > data.length ) throw new BufferOverflowException();
+        for ( int i = length + digits - 1; i >= length; i-- ) {
+            data[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+}
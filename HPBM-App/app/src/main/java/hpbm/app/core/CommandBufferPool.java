@@ -0,0 +1,57 @@
+package hpbm.app.core;
+
+/**
+ * Pool of command buffers shared by the thread encoding commands and the radio thread that releases them
+ * once their last byte was handed to the stack. When the pool runs dry a new buffer is created; released
+ * buffers beyond the pool size are left to the garbage collector.
+ */
+public final class CommandBufferPool {
+
+    public static final int DEFAULT_BUFFER_CAPACITY = 512;  // [B] Enough for a calibration table
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    private final CommandBuffer[] buffers;
+    private final int bufferCapacity;
+    private int size;
+
+    public CommandBufferPool() {
+        this( DEFAULT_POOL_SIZE, DEFAULT_BUFFER_CAPACITY );
+    }
+
+    public CommandBufferPool( int poolSize, int bufferCapacity ) {
+        this.buffers = new CommandBuffer[poolSize];
+        this.bufferCapacity = bufferCapacity;
+        for ( ; size < poolSize; size++ ) {
+            buffers[size] = new CommandBuffer( bufferCapacity );
+        }
+    }
+
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    /**
+     * @return an empty buffer
+     */
+    public CommandBuffer acquire() {
+        CommandBuffer buffer = null;
+        synchronized ( this ) {
+            if ( size > 0 ) {
+                buffer = buffers[--size];
+                buffers[size] = null;
+            }
+        }
+        if ( buffer == null ) {
+            return new CommandBuffer( bufferCapacity );
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release( CommandBuffer buffer ) {
+        if ( size < buffers.length && buffer.getCapacity() == bufferCapacity ) {
+            buffers[size++] = buffer;
+        }
+    }
+
+}
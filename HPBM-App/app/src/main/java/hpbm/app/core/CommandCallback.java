@@ -0,0 +1,10 @@
+package hpbm.app.core;
+
+/**
+ * Result of a command sent through a {@link CommandChannel}. Called on the thread that resolved the command,
+ * usually the ingestion thread, so implementations must not block and have to post UI updates themselves.
+ */
+public interface CommandCallback {
+    void onCommandAcknowledged( CommandType type, long latencyMillis );  // [ms] from the last attempt
+    void onCommandFailed( CommandType type, CommandFailure failure );
+}
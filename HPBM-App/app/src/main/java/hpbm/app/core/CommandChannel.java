@@ -0,0 +1,261 @@
+package hpbm.app.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request/response command protocol on top of a fire-and-forget transport. Every command is prefixed with
+ * a correlation id that the device echoes in its acknowledgement, so several commands can be in flight
+ * at once. Unacknowledged commands are resent with the same id (the device ignores duplicates) until
+ * they are acknowledged or run out of attempts. The round trip of every acknowledged command, from its
+ * first send, is recorded in a latency histogram per command type.
+ *
+ * Usage: {@link #open(CommandType, CommandCallback)}, encode the command into {@link Request#getCommand()},
+ * then {@link #submit(Request)}.
+ */
+public final class CommandChannel {
+
+    public interface Transport {
+        /**
+         * Sends the command and releases the buffer to the pool the channel was created with, whether it was sent or not.
+         */
+        boolean send( CommandBuffer command );
+    }
+
+    public static final int MAX_IN_FLIGHT = 16;
+    public static final long DEFAULT_ACK_TIMEOUT = 2500;    // [ms] The device polls for commands once per second
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final int MAX_ID = 9999;
+
+    private final MessageInterpreter messageInterpreter;
+    private final CommandBufferPool pool;
+    private final Transport transport;
+    private final long ackTimeout;
+    private final int maxAttempts;
+    private final Request[] requests = new Request[MAX_IN_FLIGHT];
+    private final Map<CommandType, LatencyHistogram> latencies = new EnumMap<>( CommandType.class );
+    private ScheduledExecutorService timeoutExecutor;
+    private int lastId;
+
+    public CommandChannel( MessageInterpreter messageInterpreter, CommandBufferPool pool, Transport transport ) {
+        this( messageInterpreter, pool, transport, DEFAULT_ACK_TIMEOUT, DEFAULT_MAX_ATTEMPTS );
+    }
+
+    public CommandChannel( MessageInterpreter messageInterpreter, CommandBufferPool pool, Transport transport, long ackTimeout, int maxAttempts ) {
+        this.messageInterpreter = messageInterpreter;
+        this.pool = pool;
+        this.transport = transport;
+        this.ackTimeout = ackTimeout;
+        this.maxAttempts = maxAttempts;
+        for ( int i = 0; i < MAX_IN_FLIGHT; i++ ) {
+            requests[i] = new Request( pool );
+        }
+        for ( CommandType type : CommandType.values() ) {
+            latencies.put( type, new LatencyHistogram() );
+        }
+    }
+
+    public LatencyHistogram getLatencyHistogram( CommandType type ) {
+        return latencies.get( type );
+    }
+
+    public synchronized int getInFlightCount() {
+        int count = 0;
+        for ( Request request : requests ) {
+            if ( request.inUse ) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reserves a correlation id and writes its prefix.
+     *
+     * @return null if too many commands are in flight, the callback has been told already
+     */
+    public Request open( CommandType type, CommandCallback callback ) {
+        synchronized ( this ) {
+            for ( Request request : requests ) {
+                if ( !request.inUse ) {
+                    lastId = lastId % MAX_ID + 1;
+                    request.open( lastId, type, callback );
+                    messageInterpreter.writeCommandId( lastId, request.command );
+                    return request;
+                }
+            }
+        }
+        if ( callback != null ) {
+            callback.onCommandFailed( type, CommandFailure.TOO_MANY_IN_FLIGHT );
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the command could not be sent, the callback has been told already
+     */
+    public boolean submit( Request request ) {
+        return transmit( request, request.id );
+    }
+
+    /**
+     * Called with the id of a positive acknowledgement received from the device.
+     */
+    public void onAcknowledged( int id ) {
+        complete( id, null );
+    }
+
+    /**
+     * Called with the id of a negative acknowledgement received from the device.
+     */
+    public void onRejected( int id ) {
+        complete( id, CommandFailure.REJECTED );
+    }
+
+    /**
+     * Fails every command in flight, e.g. when the connection is lost.
+     */
+    public void cancelAll() {
+        int[] ids = new int[MAX_IN_FLIGHT];
+        int count = 0;
+        synchronized ( this ) {
+            for ( Request request : requests ) {
+                if ( request.inUse ) ids[count++] = request.id;
+            }
+        }
+        for ( int i = 0; i < count; i++ ) {
+            complete( ids[i], CommandFailure.NOT_CONNECTED );
+        }
+    }
+
+    private boolean transmit( Request request, int id ) {
+        CommandBuffer copy;
+        synchronized ( this ) {
+            if ( !request.inUse || request.id != id ) return true;  // resolved meanwhile
+            if ( request.attempts++ == 0 ) {
+                request.sentAt = System.nanoTime();     // resends and their timeouts count into the latency
+            }
+            request.timeout = scheduleTimeout( request, id );
+            copy = pool.acquire();
+            copy.append( request.command.getData(), 0, request.command.getLength() );
+        }
+        if ( !transport.send( copy ) ) {
+            complete( id, CommandFailure.NOT_CONNECTED );
+            return false;
+        }
+        return true;
+    }
+
+    private ScheduledFuture<?> scheduleTimeout( final Request request, final int id ) {
+        if ( timeoutExecutor == null ) {
+            timeoutExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread( runnable, "CommandTimeouts" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            });
+        }
+        return timeoutExecutor.schedule( new Runnable() {
+            @Override
+            public void run() {
+                onTimeout( request, id );
+            }
+        }, ackTimeout, TimeUnit.MILLISECONDS );
+    }
+
+    private void onTimeout( Request request, int id ) {
+        boolean retry;
+        synchronized ( this ) {
+            if ( !request.inUse || request.id != id ) return;
+            retry = request.attempts < maxAttempts;
+        }
+        if ( retry ) {
+            transmit( request, id );
+        } else {
+            complete( id, CommandFailure.TIMED_OUT );
+        }
+    }
+
+    private void complete( int id, CommandFailure failure ) {
+        CommandType type;
+        CommandCallback callback;
+        long latencyMillis;
+        synchronized ( this ) {
+            Request request = find( id );
+            if ( request == null ) return;  // late duplicate acknowledgement
+            type = request.type;
+            callback = request.callback;
+            latencyMillis = (System.nanoTime() - request.sentAt) / 1000000;
+            if ( request.timeout != null ) {
+                request.timeout.cancel( false );
+            }
+            request.close();
+        }
+        if ( failure == null ) {
+            latencies.get( type ).record( latencyMillis );
+        }
+        if ( callback != null ) {
+            if ( failure == null ) {
+                callback.onCommandAcknowledged( type, latencyMillis );
+            } else {
+                callback.onCommandFailed( type, failure );
+            }
+        }
+    }
+
+    private Request find( int id ) {
+        for ( Request request : requests ) {
+            if ( request.inUse && request.id == id ) return request;
+        }
+        return null;
+    }
+
+    /**
+     * A command in flight. The slot, including its buffer, is reused once the command is resolved.
+     */
+    public static final class Request {
+
+        private final CommandBuffer command;
+        private boolean inUse;
+        private int id;
+        private CommandType type;
+        private CommandCallback callback;
+        private int attempts;
+        private long sentAt;        // [ns] of the first attempt
+        private ScheduledFuture<?> timeout;
+
+        private Request( CommandBufferPool pool ) {
+            this.command = new CommandBuffer( pool.getBufferCapacity() );
+        }
+
+        public CommandBuffer getCommand() {
+            return command;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        private void open( int id, CommandType type, CommandCallback callback ) {
+            this.inUse = true;
+            this.id = id;
+            this.type = type;
+            this.callback = callback;
+            this.attempts = 0;
+            this.command.clear();
+        }
+
+        private void close() {
+            this.inUse = false;
+            this.callback = null;
+            this.timeout = null;
+        }
+
+    }
+
+}
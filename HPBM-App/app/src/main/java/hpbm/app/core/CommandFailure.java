@@ -0,0 +1,11 @@
+package hpbm.app.core;
+
+/**
+ * Why a command sent through a {@link CommandChannel} did not complete.
+ */
+public enum CommandFailure {
+    REJECTED,           // the device answered with a negative acknowledgement
+    TIMED_OUT,          // no acknowledgement after all attempts
+    NOT_CONNECTED,      // the connection went away before the acknowledgement
+    TOO_MANY_IN_FLIGHT  // all correlation slots are taken
+}
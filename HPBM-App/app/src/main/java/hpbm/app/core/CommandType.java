@@ -0,0 +1,13 @@
+package hpbm.app.core;
+
+/**
+ * Commands the app sends to the device. Latency is tracked per type.
+ */
+public enum CommandType {
+    REFILL_TO,          // "RT:<amount ml>"
+    REFILL_WITH,        // "RW:<amount ml>"
+    RESET,              // "RST"
+    REPORT_MODE,        // "MD:<D|R|B>"
+    REPORT_INTERVAL,    // "RI:<idle interval ms>"
+    SYNC_BACKLOG        // "SY:<first sequence>"
+}
@@ -3,14 +3,29 @@ package hpbm.app.core;
 import android.app.Activity;
 import android.content.Intent;
 
+import java.io.File;
+
 public interface Communicator {
     void setDataHandler( HPBMDataHandler dataHandler );
+    Subscription subscribe( HPBMDataHandler handler, SubscriptionOptions options );
+    SampleRingBuffer getSampleBuffer();
     boolean onRequestPermissionsResult( Activity hostActivity, int requestCode, String permissions[], int[] grantResults );
     boolean onActivityResult( Activity hostActivity, int requestCode, int resultCode, Intent intent );
     void listAvailableDevices( Activity hostActivity, HPBMDevicesDiscoveryHandler handler );
     boolean connect( Activity hostActivity, String hpbmDeviceAddress );
     boolean disconnect( Activity hostActivity );
-    boolean sendRefillToMessage( Activity hostActivity, float amount );   // [ml]
-    boolean sendRefillWithMessage( Activity hostActivity, float amount ); // [ml]
-    boolean sendResetMessage( Activity hostActivity );
+    // Commands are acknowledged by the device, the callback (may be null) learns the outcome
+    boolean sendRefillToMessage( Activity hostActivity, float amount, CommandCallback callback );   // [ml]
+    boolean sendRefillWithMessage( Activity hostActivity, float amount, CommandCallback callback ); // [ml]
+    boolean sendResetMessage( Activity hostActivity, CommandCallback callback );
+    LatencyHistogram getCommandLatency( CommandType type );
+    LinkStatistics getLinkStatistics();     // of the current or last session
+    // Monitors call this from onResume/onPause, the device reports fast only while one is visible
+    void setMonitorVisible( boolean visible );
+    // Evaluated on every live sample in the background, set its rules and listener
+    AlertEngine getAlerts();
+    // Seeds the sample buffer from the snapshot in the directory in the background and keeps it saved there, call before connecting
+    void restoreLastKnownState( File directory );
+    // Takes part in every session from the next one on, e.g. to store the samples, call before connecting
+    void addRecorder( DevicePipeline.Recorder recorder );
 }
@@ -2,13 +2,28 @@ package hpbm.app.core;
 
 public final class CommunicatorProvider {
 
+    public interface Factory {
+        Communicator createCommunicator();
+    }
+
     private static Communicator communicator;
+    private static Factory factory;
+
+    public static synchronized void setFactory(Factory factory) {
+        CommunicatorProvider.factory = factory;
+    }
 
-    public static void setCommunicator(Communicator communicator) {
+    public static synchronized void setCommunicator(Communicator communicator) {
         CommunicatorProvider.communicator = communicator;
     }
 
-    public static Communicator getCommunicator() {
+    /**
+     * Creates the communicator with the factory on first use.
+     */
+    public static synchronized Communicator getCommunicator() {
+        if ( communicator == null && factory != null ) {
+            communicator = factory.createCommunicator();
+        }
         return communicator;
     }
 }
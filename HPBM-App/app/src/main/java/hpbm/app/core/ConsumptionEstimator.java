@@ -0,0 +1,146 @@
+package hpbm.app.core;
+
+/**
+ * Phone-side replacement for the consumption math of the firmware. Turns raw flow meter pulse counts
+ * into the figures carried by {@link HPBMData}. The displayed average and the rate used for the
+ * time-to-empty forecast come from pluggable {@link RateEstimator}s.
+ *
+ * Thread safe: pulses are added on the ingestion thread while refills and snapshots come from others. The
+ * lock is almost never contended and allocation free.
+ * Until the first refill the amounts are those the device starts with, unless {@link #seed(float, float)}
+ * restores the ones last known.
+ */
+public final class ConsumptionEstimator {
+
+    public static final float DEFAULT_PULSE_TO_CONSUMED_COEFF = 0.135f;  // [ml] Must match PULSE_TO_CONSUMED_COEFF in HPBM-Device
+    public static final float DEFAULT_FORECAST_HALF_LIFE = 300f;         // [s]
+    public static final float DEFAULT_INITIAL_AMOUNT = 200f;             // [ml] Must match INITIAL_WATER_AMOUNT in HPBM-Device
+
+    private final Calibration calibration;
+    private final RateEstimator averageEstimator;
+    private final RateEstimator forecastEstimator;
+
+    // Guarded by this
+    private float initialAmount = DEFAULT_INITIAL_AMOUNT;      // [ml]
+    private float remainingAmount = DEFAULT_INITIAL_AMOUNT;    // [ml]
+    private float currentRate;                  // [ml/s]
+    private boolean refilled;                   // the amounts were set by a refill, a seed does not override them
+
+    public ConsumptionEstimator( float pulseToConsumedCoeff, RateEstimator averageEstimator, RateEstimator forecastEstimator ) {
+        this( Calibration.constant( pulseToConsumedCoeff ), averageEstimator, forecastEstimator );
+    }
+
+    public ConsumptionEstimator( Calibration calibration, RateEstimator averageEstimator, RateEstimator forecastEstimator ) {
+        this.calibration = calibration;
+        this.averageEstimator = averageEstimator;
+        this.forecastEstimator = forecastEstimator;
+    }
+
+    public static ConsumptionEstimator createDefault() {
+        return new ConsumptionEstimator(
+            DEFAULT_PULSE_TO_CONSUMED_COEFF,
+            new CumulativeRateEstimator(),
+            new EwmaRateEstimator( DEFAULT_FORECAST_HALF_LIFE )
+        );
+    }
+
+    public synchronized void refillTo( float amount ) {
+        refilled = true;
+        initialAmount = amount;
+        remainingAmount = amount;
+        currentRate = 0f;
+        averageEstimator.reset();
+        forecastEstimator.reset();
+    }
+
+    public synchronized void refillWith( float amount ) {
+        refillTo( remainingAmount + amount );
+    }
+
+    /**
+     * Takes the amounts last known, e.g. from a snapshot of the previous run, unless a refill has set them
+     * already. The rates are left as they are.
+     *
+     * @return false if the amounts were kept
+     */
+    public synchronized boolean seed( float initialAmount, float remainingAmount ) {  // [ml]
+        if ( refilled || !(initialAmount > 0f) || !(remainingAmount >= 0f) ) return false;
+        this.initialAmount = initialAmount;
+        this.remainingAmount = Math.min( remainingAmount, initialAmount );
+        return true;
+    }
+
+    public synchronized void addPulses( int pulses, int intervalMillis ) {
+        float consumed = calibration.toMillilitres( pulses, intervalMillis );
+        remainingAmount = Math.max( 0f, remainingAmount - consumed );
+        currentRate = intervalMillis > 0 ? 1000f * consumed / intervalMillis : 0f;
+        averageEstimator.addSample( consumed, intervalMillis );
+        forecastEstimator.addSample( consumed, intervalMillis );
+    }
+
+    /**
+     * Feeds every sample of the batch and appends the resulting figures to {@code out}.
+     *
+     * @param lastTimestamp [ms] time of the last sample of the batch, earlier samples are spaced by the batch period
+     */
+    public synchronized void addPulses( PulseBatch pulses, long lastTimestamp, HPBMDataBatch out ) {
+        int size = pulses.size();
+        for ( int i = 0; i < size; i++ ) {
+            addPulses( pulses.getPulses( i ), pulses.getPeriodMillis() );
+            appendTo( lastTimestamp - (long) (size - 1 - i) * pulses.getPeriodMillis(), out );
+        }
+    }
+
+    public float getPulseToConsumedCoeff() {  // [ml] at the lowest pulse rate
+        return calibration.getMillilitresPerPulse( 0f );
+    }
+
+    public Calibration getCalibration() {
+        return calibration;
+    }
+
+    public synchronized float getInitialAmount() {
+        return initialAmount;
+    }
+
+    public synchronized float getRemainingAmount() {
+        return remainingAmount;
+    }
+
+    public synchronized float getRemainingPart() {
+        return initialAmount > 0f ? remainingAmount / initialAmount : 0f;
+    }
+
+    public synchronized float getCurrentRate() {
+        return currentRate;
+    }
+
+    public synchronized float getAverageRate() {
+        return averageEstimator.getRate();
+    }
+
+    public synchronized float getForecastRate() {
+        return forecastEstimator.getRate();
+    }
+
+    public synchronized int getTimeToEmpty() {  // [s], -1 when no consumption has been seen yet
+        if ( remainingAmount <= 0f ) return 0;
+        float rate = forecastEstimator.getRate();
+        if ( !(rate > 0f) ) return -1;
+        return (int) Math.min( Integer.MAX_VALUE, remainingAmount / rate );
+    }
+
+    public synchronized HPBMData toData() {
+        return new HPBMData( currentRate, getReportedAverageRate(), getRemainingPart(), getTimeToEmpty() );
+    }
+
+    public synchronized boolean appendTo( long timestamp, HPBMDataBatch out ) {
+        return out.add( timestamp, currentRate, getReportedAverageRate(), getRemainingPart(), getTimeToEmpty() );
+    }
+
+    private float getReportedAverageRate() {
+        float averageRate = averageEstimator.getRate();
+        return Float.isNaN( averageRate ) ? -1f : averageRate;  // -1 is what the firmware reports before the first measurement
+    }
+
+}
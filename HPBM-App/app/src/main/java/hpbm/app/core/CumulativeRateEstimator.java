@@ -0,0 +1,28 @@
+package hpbm.app.core;
+
+/**
+ * Average rate since the last refill. Same figure the firmware reports as the average consumption.
+ */
+public final class CumulativeRateEstimator implements RateEstimator {
+
+    private double totalConsumed;   // [ml]
+    private long totalMillis;       // [ms]
+
+    @Override
+    public void reset() {
+        totalConsumed = 0;
+        totalMillis = 0;
+    }
+
+    @Override
+    public void addSample(float consumed, int intervalMillis) {
+        totalConsumed += consumed;
+        totalMillis += intervalMillis;
+    }
+
+    @Override
+    public float getRate() {
+        return totalMillis > 0 ? (float) (1000.0 * totalConsumed / totalMillis) : Float.NaN;
+    }
+
+}
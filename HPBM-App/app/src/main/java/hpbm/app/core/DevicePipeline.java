@@ -0,0 +1,342 @@
+package hpbm.app.core;
+
+import java.util.Arrays;
+
+/**
+ * What every communicator does with an HPBM-Device, whatever carries its messages: the device's messages
+ * are decoded on an {@link IngestionThread}, acknowledgements resolve commands, envelopes are followed by a
+ * {@link LinkMonitor}, pulses go through the estimator, and the samples are buffered, published, checked
+ * against the alert rules and handed to the recorders. Commands go out through the transport given.
+ *
+ * A communicator offers the messages it receives to {@link #getIngestionThread()} on
+ * {@link #CHANNEL_MESSAGES} and brackets every connection with {@link #startSession(CommandCallback)} and
+ * {@link #endSession()}.
+ */
+public final class DevicePipeline {
+
+    /**
+     * Takes part in the sessions of the pipeline, e.g. to store their samples. Sessions start and end
+     * while ingestion is stopped, samples are handed over on the ingestion thread in between.
+     */
+    public interface Recorder {
+        void onSessionStarted();
+        void onSamples( HPBMDataBatch batch, long receivedAt );  // [ms]
+        void onSessionEnded();
+    }
+
+    public static final int CHANNEL_MESSAGES = 0;
+
+    private static final int BATCH_CAPACITY = 64;
+    private static final String TRACE_DISPATCH = "Communicator.dispatch";
+    private static final Recorder[] NO_RECORDERS = new Recorder[0];
+
+    private final MessageInterpreter messageInterpreter;
+    private final ConsumptionEstimator estimator;
+    private final ReportMode reportMode;
+    private final CommandChannel commandChannel;
+    private final ReportRateController reportRateController;
+    private final SampleRingBuffer sampleBuffer = new SampleRingBuffer();
+    private final SampleStream sampleStream = new SampleStream();
+    private final AlertEngine alertEngine = new AlertEngine();
+    private final IngestionThread ingestionThread;
+    // Touched by the ingestion thread, or while it is stopped
+    private final PulseBatch pulseBatch = new PulseBatch( BATCH_CAPACITY );
+    private final HPBMDataBatch dataBatch = new HPBMDataBatch( BATCH_CAPACITY );
+    private final SampleEnvelope envelope = new SampleEnvelope();
+    private final LinkMonitor linkMonitor = new LinkMonitor();
+    private boolean envelopePending;            // an envelope arrived ahead of its message
+    private volatile Recorder[] recorders = NO_RECORDERS;
+    private volatile BacklogSync backlogSync;
+    private boolean sessionActive;              // guarded by this
+    private volatile long lastSampleAt;         // [ms]
+    private volatile long ignoredPulseMessages;
+
+    /**
+     * @param estimator Required by the raw pulse report modes, where all consumption figures are computed by the estimator.
+     * @param transport Sends commands, releasing them to the pool
+     */
+    public DevicePipeline( String name, MessageInterpreter messageInterpreter, ConsumptionEstimator estimator, ReportMode reportMode,
+                           CommandBufferPool pool, CommandChannel.Transport transport ) {
+        if ( reportMode != ReportMode.DERIVED && estimator == null ) {
+            throw new IllegalArgumentException( "Report mode " + reportMode + " requires an estimator" );
+        }
+        this.messageInterpreter = messageInterpreter;
+        this.estimator = estimator;
+        this.reportMode = reportMode;
+        this.commandChannel = new CommandChannel( messageInterpreter, pool, transport );
+        this.reportRateController = new ReportRateController( commandChannel, messageInterpreter );
+        this.ingestionThread = new IngestionThread( name, new IngestionThread.PayloadHandler() {
+            @Override
+            public void onPayload( int channel, byte[] payload, int length, long timestamp ) {
+                if ( channel == CHANNEL_MESSAGES ) {
+                    onMessageReceived( payload, length, timestamp );
+                }
+            }
+        } );
+    }
+
+    public IngestionThread getIngestionThread() {
+        return ingestionThread;
+    }
+
+    public CommandChannel getCommandChannel() {
+        return commandChannel;
+    }
+
+    public ConsumptionEstimator getEstimator() {
+        return estimator;
+    }
+
+    public ReportMode getReportMode() {
+        return reportMode;
+    }
+
+    public SampleRingBuffer getSampleBuffer() {
+        return sampleBuffer;
+    }
+
+    public AlertEngine getAlerts() {
+        return alertEngine;
+    }
+
+    public void setDataHandler( HPBMDataHandler dataHandler ) {
+        sampleStream.setDefaultHandler( dataHandler );
+    }
+
+    public Subscription subscribe( HPBMDataHandler handler, SubscriptionOptions options ) {
+        return sampleStream.subscribe( handler, options );
+    }
+
+    public LinkStatistics getLinkStatistics() {
+        return linkMonitor.getStatistics();
+    }
+
+    public LatencyHistogram getCommandLatency( CommandType type ) {
+        return commandChannel.getLatencyHistogram( type );
+    }
+
+    public void setMonitorVisible( boolean visible ) {
+        reportRateController.setMonitorVisible( visible );
+    }
+
+    /**
+     * @return [ms] phone time the last live sample arrived, 0 before the first
+     */
+    public long getLastSampleAt() {
+        return lastSampleAt;
+    }
+
+    /**
+     * @return Pulse messages dropped because no estimator was configured
+     */
+    public long getIgnoredPulseMessages() {
+        return ignoredPulseMessages;
+    }
+
+    public synchronized void addRecorder( Recorder recorder ) {
+        Recorder[] updated = Arrays.copyOf( recorders, recorders.length + 1 );
+        updated[recorders.length] = recorder;
+        recorders = updated;
+    }
+
+    /**
+     * Backlog sync messages are handed to it ahead of the live ones, null to stop.
+     */
+    public void setBacklogSync( BacklogSync backlogSync ) {
+        this.backlogSync = backlogSync;
+    }
+
+    /**
+     * Called when the device is connected and its messages can arrive. Resets the session state, starts
+     * ingestion and tells the device how to report. Messages offered before are processed in the new session.
+     *
+     * @param reportModeCallback Learns whether the device confirmed the report mode, may be null
+     */
+    public synchronized void startSession( CommandCallback reportModeCallback ) {
+        // A transport can report a connection again without a disconnect, the state is only reset while nothing is ingested
+        ingestionThread.stop();
+        Recorder[] current = recorders;
+        if ( sessionActive ) {
+            for ( Recorder recorder : current ) {
+                recorder.onSessionEnded();
+            }
+        }
+        sessionActive = true;
+        linkMonitor.reset( System.currentTimeMillis() );
+        envelopePending = false;
+        for ( Recorder recorder : current ) {
+            recorder.onSessionStarted();
+        }
+        ingestionThread.start();
+        CommandChannel.Request request = commandChannel.open( CommandType.REPORT_MODE, reportModeCallback );
+        if ( request != null ) {
+            messageInterpreter.writeReportModeCommand( reportMode, request.getCommand() );
+            commandChannel.submit( request );
+        }
+        reportRateController.onConnected();
+    }
+
+    /**
+     * Called when the connection is gone or closed. Processes what arrived, stops ingestion, fails the
+     * commands in flight and ends the session of the recorders. Once ended, further calls do nothing, so both
+     * a closing app and the transport noticing the disconnect can call it.
+     */
+    public synchronized void endSession() {
+        if ( !sessionActive ) return;
+        sessionActive = false;
+        ingestionThread.stop();
+        reportRateController.onDisconnected();
+        commandChannel.cancelAll();
+        BacklogSync sync = backlogSync;
+        if ( sync != null ) {
+            sync.cancel();
+        }
+        for ( Recorder recorder : recorders ) {
+            recorder.onSessionEnded();
+        }
+    }
+
+    /**
+     * Publishes the newest sample of the buffer to the subscribers, for samples put into the buffer outside
+     * a session, e.g. restored from a snapshot, so monitors already open show them before the device
+     * reports. Does nothing during a session, the live samples follow.
+     */
+    public synchronized void publishLatest() {
+        if ( sessionActive ) return;
+        SampleWindow latest = new SampleWindow();
+        if ( !sampleBuffer.latest( 1, latest ) || latest.isEmpty() ) return;
+        HPBMDataBatch batch = new HPBMDataBatch( 1 );
+        batch.add( latest.getTimestamp( 0 ), latest.getDeviceSequence( 0 ), -1, latest.getReceivedAt( 0 ), latest.getCurrentConsumption( 0 ),
+            latest.getAverageConsumption( 0 ), latest.getRemainingPart( 0 ), latest.getTimeToEmpty( 0 ) );
+        sampleStream.publish( batch );
+    }
+
+    /**
+     * The estimator, if any, is refilled once the device acknowledges the command: a rejected or lost
+     * refill leaves both as they were.
+     */
+    public boolean sendRefillTo( float amount, CommandCallback callback ) {  // [ml]
+        CommandChannel.Request request = commandChannel.open( CommandType.REFILL_TO, refillOnAcknowledge( amount, callback ) );
+        if ( request == null ) return false;
+        messageInterpreter.writeRefillToCommand( amount, request.getCommand() );
+        return commandChannel.submit( request );
+    }
+
+    public boolean sendRefillWith( float amount, CommandCallback callback ) {  // [ml]
+        CommandChannel.Request request = commandChannel.open( CommandType.REFILL_WITH, refillOnAcknowledge( amount, callback ) );
+        if ( request == null ) return false;
+        messageInterpreter.writeRefillWithCommand( amount, request.getCommand() );
+        return commandChannel.submit( request );
+    }
+
+    public boolean sendReset( CommandCallback callback ) {
+        CommandChannel.Request request = commandChannel.open( CommandType.RESET, callback );
+        if ( request == null ) return false;
+        messageInterpreter.writeResetCommand( request.getCommand() );
+        return commandChannel.submit( request );
+    }
+
+    private CommandCallback refillOnAcknowledge( final float amount, final CommandCallback callback ) {
+        if ( estimator == null ) return callback;
+        return new CommandCallback() {
+            @Override
+            public void onCommandAcknowledged( CommandType type, long latencyMillis ) {
+                // On the ingestion thread, between the samples from before the refill and those after it
+                if ( type == CommandType.REFILL_TO ) {
+                    estimator.refillTo( amount );
+                } else {
+                    estimator.refillWith( amount );
+                }
+                if ( callback != null ) {
+                    callback.onCommandAcknowledged( type, latencyMillis );
+                }
+            }
+
+            @Override
+            public void onCommandFailed( CommandType type, CommandFailure failure ) {
+                if ( callback != null ) {
+                    callback.onCommandFailed( type, failure );
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs on the ingestion thread, allocation free for well-formed messages.
+     *
+     * @param receivedAt Time the message arrived [ms]
+     */
+    private void onMessageReceived( byte[] payload, int length, long receivedAt ) {
+        int commandId = messageInterpreter.readCommandAck( payload, length );
+        if ( commandId >= 0 ) {
+            commandChannel.onAcknowledged( commandId );
+            return;
+        }
+        commandId = messageInterpreter.readCommandNack( payload, length );
+        if ( commandId >= 0 ) {
+            commandChannel.onRejected( commandId );
+            return;
+        }
+
+        BacklogSync sync = backlogSync;
+        if ( sync != null && sync.onPayload( payload, length, receivedAt ) ) {
+            return;
+        }
+
+        int envelopeLength = messageInterpreter.readEnvelope( payload, length, envelope );
+        if ( envelopeLength > 0 ) {
+            length -= envelopeLength;
+            System.arraycopy( payload, envelopeLength, payload, 0, length );
+            envelopePending = true;
+            if ( length == 0 ) return;  // sent alone by older firmware, its derived message comes next
+        }
+        boolean numbered = envelopePending;
+        envelopePending = false;
+
+        dataBatch.clear();
+        boolean pulses = messageInterpreter.readPulseBatch( payload, length, pulseBatch ) || messageInterpreter.readPulseReport( payload, length, pulseBatch );
+        if ( !pulses && !messageInterpreter.readMessage( payload, length, receivedAt, dataBatch ) ) return;
+        if ( pulses && estimator == null ) {
+            ignoredPulseMessages++;     // the device was not asked for pulses
+            return;
+        }
+
+        long lastTimestamp = receivedAt;
+        long firstSequence = -1;
+        long lastDeviceTime = -1;
+        if ( numbered ) {
+            if ( linkMonitor.onMessage( envelope, pulses ? pulseBatch.size() : dataBatch.size(), receivedAt ) == LinkMonitor.Arrival.DUPLICATE ) {
+                return;  // counted already
+            }
+            firstSequence = linkMonitor.getSequence();
+            lastDeviceTime = linkMonitor.getDeviceTime();
+            lastTimestamp = linkMonitor.toPhoneTime( lastDeviceTime );
+        }
+        int periodMillis = 0;
+        if ( pulses ) {
+            estimator.addPulses( pulseBatch, lastTimestamp, dataBatch );
+            periodMillis = pulseBatch.getPeriodMillis();
+        }
+        int last = dataBatch.size() - 1;
+        for ( int i = 0; i <= last; i++ ) {
+            long offset = (long) (last - i) * periodMillis;
+            dataBatch.setOrigin( i, lastTimestamp - offset, numbered ? firstSequence + i : -1, numbered ? lastDeviceTime - offset : -1, receivedAt );
+        }
+        if ( dataBatch.isEmpty() ) return;
+        lastSampleAt = receivedAt;
+
+        // Called on the ingestion thread only, which makes it the single writer of the sample buffer
+        Tracer.begin( TRACE_DISPATCH );
+        try {
+            sampleBuffer.append( dataBatch );
+            sampleStream.publish( dataBatch );
+            alertEngine.evaluate( dataBatch );
+        } finally {
+            Tracer.end( TRACE_DISPATCH );
+        }
+        for ( Recorder recorder : recorders ) {
+            recorder.onSamples( dataBatch, receivedAt );
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package hpbm.app.core;
+
+import java.util.Locale;
+
+/**
+ * One sip or drink: a run of consumption with pauses no longer than the segmenter tolerates.
+ */
+public final class DrinkEvent {
+
+    private final long start;           // [ms] the first consuming sample's interval began
+    private final long end;             // [ms] the last consuming sample was taken
+    private final float volume;         // [ml]
+    private final float peakRate;       // [ml/s]
+
+    public DrinkEvent( long start, long end, float volume, float peakRate ) {
+        this.start = start;
+        this.end = end;
+        this.volume = volume;
+        this.peakRate = peakRate;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getDuration() {  // [ms]
+        return end - start;
+    }
+
+    public float getVolume() {
+        return volume;
+    }
+
+    public float getPeakRate() {
+        return peakRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( Locale.US, "%d+%dms %.1fml peak %.2fml/s", start, end - start, volume, peakRate );
+    }
+
+}
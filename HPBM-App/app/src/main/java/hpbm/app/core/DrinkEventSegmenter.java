@@ -0,0 +1,105 @@
+package hpbm.app.core;
+
+/**
+ * Cuts the live sample stream of one device into {@link DrinkEvent}s as it arrives, with a handful of
+ * fields of state and no allocation but the events themselves.
+ *
+ * An event starts with a sample flowing at least the start rate, so single stray pulses do not start one,
+ * and continues as long as anything flows, with pauses up to the pause tolerance bridged: a sip stalling
+ * for a breath stays one sip. It ends once the pause is exceeded, the stream has a gap, or the session ends
+ * ({@link #flush()}). Events below the minimum volume are noise and dropped.
+ */
+public final class DrinkEventSegmenter {
+
+    public interface Listener {
+        void onDrinkEvent( DrinkEvent event );
+    }
+
+    public static final float DEFAULT_START_RATE = 0.5f;       // [ml/s] a few pulses per second
+    public static final long DEFAULT_MAX_PAUSE = 3000;          // [ms]
+    public static final float DEFAULT_MIN_VOLUME = 2f;          // [ml]
+    public static final long DEFAULT_MAX_INTERVAL = 5000;       // [ms] longer between samples is a gap
+
+    private static final long INITIAL_INTERVAL = 1000;          // [ms] assumed until two samples tell
+
+    private final Listener listener;
+    private final float startRate;
+    private final long maxPause;
+    private final float minVolume;
+    private final long maxInterval;
+
+    private long lastTimestamp = Long.MIN_VALUE;
+    private long lastInterval = INITIAL_INTERVAL;
+    private boolean drinking;
+    private long start;
+    private long lastFlowing;
+    private float volume;
+    private float peakRate;
+
+    public DrinkEventSegmenter( Listener listener ) {
+        this( listener, DEFAULT_START_RATE, DEFAULT_MAX_PAUSE, DEFAULT_MIN_VOLUME, DEFAULT_MAX_INTERVAL );
+    }
+
+    public DrinkEventSegmenter( Listener listener, float startRate, long maxPause, float minVolume, long maxInterval ) {
+        this.listener = listener;
+        this.startRate = startRate;
+        this.maxPause = maxPause;
+        this.minVolume = minVolume;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Samples must come in time order, older ones (duplicates, reordered samples) are ignored.
+     *
+     * @param rate [ml/s] consumption over the sample's interval
+     */
+    public void add( long timestamp, float rate ) {
+        if ( timestamp <= lastTimestamp ) return;
+        boolean gap = false;
+        if ( lastTimestamp != Long.MIN_VALUE ) {
+            long interval = timestamp - lastTimestamp;
+            if ( interval <= maxInterval ) {
+                lastInterval = interval;
+            } else {
+                gap = true;
+            }
+        }
+        lastTimestamp = timestamp;
+        if ( drinking && (gap || timestamp - lastFlowing > maxPause) ) {
+            flush();
+        }
+        if ( !(rate > 0f) || (!drinking && rate < startRate) ) return;
+
+        if ( !drinking ) {
+            drinking = true;
+            start = timestamp - lastInterval;
+            volume = 0f;
+            peakRate = 0f;
+        }
+        volume += rate * lastInterval / 1000f;
+        peakRate = Math.max( peakRate, rate );
+        lastFlowing = timestamp;
+    }
+
+    public void add( HPBMDataBatch batch ) {
+        for ( int i = 0; i < batch.size(); i++ ) {
+            add( batch.getTimestamp( i ), batch.getCurrentConsumption( i ) );
+        }
+    }
+
+    /**
+     * Ends the event in progress, e.g. when the session ends.
+     */
+    public void flush() {
+        if ( !drinking ) return;
+        drinking = false;
+        if ( volume >= minVolume && listener != null ) {
+            listener.onDrinkEvent( new DrinkEvent( start, lastFlowing, volume, peakRate ) );
+        }
+    }
+
+    public boolean isDrinking() {
+        return drinking;
+    }
+
+}
@@ -0,0 +1,44 @@
+package hpbm.app.core;
+
+/**
+ * Exponentially weighted moving average of the rate. The weight of a sample depends on the length of
+ * its interval, so irregular sampling does not skew the result.
+ */
+public final class EwmaRateEstimator implements RateEstimator {
+
+    private final double timeConstant;  // [ms]
+    private double rate;                // [ml/s]
+    private boolean initialized;
+
+    public EwmaRateEstimator( float halfLife ) {  // [s]
+        if ( halfLife <= 0f ) {
+            throw new IllegalArgumentException( "Half-life must be positive: " + halfLife );
+        }
+        this.timeConstant = 1000.0 * halfLife / Math.log( 2.0 );
+    }
+
+    @Override
+    public void reset() {
+        rate = 0;
+        initialized = false;
+    }
+
+    @Override
+    public void addSample(float consumed, int intervalMillis) {
+        if ( intervalMillis <= 0 ) return;
+        double sampleRate = 1000.0 * consumed / intervalMillis;
+        if ( initialized ) {
+            double alpha = 1.0 - Math.exp( -intervalMillis / timeConstant );
+            rate += alpha * (sampleRate - rate);
+        } else {
+            rate = sampleRate;
+            initialized = true;
+        }
+    }
+
+    @Override
+    public float getRate() {
+        return initialized ? (float) rate : Float.NaN;
+    }
+
+}
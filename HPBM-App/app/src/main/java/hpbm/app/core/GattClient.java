@@ -0,0 +1,380 @@
+package hpbm.app.core;
+
+import java.util.LinkedList;
+import java.util.UUID;
+
+/**
+ * The app's side of a GATT connection on top of a {@link GattTransport}: operations are queued and issued
+ * one at a time, as the platform stacks require, commands are written in chunks of the negotiated MTU's
+ * payload, and a larger MTU is negotiated ahead of the first write. Nothing in here is platform specific,
+ * so it runs against a fake peripheral on the JVM as it does against the phone's Bluetooth stack.
+ *
+ * The queue is shared by the threads issuing operations and the transport's callback thread.
+ */
+public final class GattClient implements GattTransport.Callback {
+
+    public static final int DEFAULT_MTU = 23;       // [B] ATT default, 20 bytes of payload per write
+    public static final int REQUESTED_MTU = 247;    // [B] Fits a full data length extension packet
+    public static final int ATT_WRITE_OVERHEAD = 3;
+
+    private static final String TRACE_EXECUTE_ACTION = "GattClient.executeAction";
+    private static final String TRACE_CHARACTERISTIC_CHANGED = "GattClient.onCharacteristicChanged";
+    private static final String TRACE_SERVICES_DISCOVERED = "GattClient.onServicesDiscovered";
+
+    public interface Listener {
+
+        void onConnected();
+
+        void onConnecting();
+
+        void onDisconnected();
+
+        void onServicesDiscovered();
+
+        void onCharacteristicRead( UUID characteristic, byte[] value );
+
+        void onCharacteristicChanged( UUID characteristic, byte[] value );
+
+        void onReadRemoteRssi( int rssi );
+    }
+
+    private interface Action {
+        /**
+         * @return true if the action is done, false if it waits for the transport's callback
+         */
+        boolean execute();
+    }
+
+    private final GattTransport transport;
+    private final Listener listener;
+    private final LinkedList<Action> queue = new LinkedList<>();
+    private Action currentAction;
+    private volatile int state = GattTransport.STATE_DISCONNECTED;
+    private volatile int mtu = DEFAULT_MTU;
+    private final byte[][] chunks = new byte[REQUESTED_MTU - ATT_WRITE_OVERHEAD + 1][];  // reused write values, by length
+
+    public GattClient( GattTransport transport, Listener listener ) {
+        this.transport = transport;
+        this.listener = listener;
+        transport.setCallback( this );
+    }
+
+    public GattTransport getTransport() {
+        return transport;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public int getMaxWriteLength() {
+        return mtu - ATT_WRITE_OVERHEAD;
+    }
+
+    /**
+     * @return false if the connection could not be initiated, the result is reported to the listener otherwise
+     */
+    public boolean connect( String address, boolean autoConnect ) {
+        state = GattTransport.STATE_CONNECTING;
+        if ( listener != null ) {
+            listener.onConnecting();
+        }
+        if ( !transport.connect( address, autoConnect ) ) {
+            state = GattTransport.STATE_DISCONNECTED;
+            return false;
+        }
+        return true;
+    }
+
+    public boolean reconnect() {
+        if ( !transport.reconnect() ) return false;
+        state = GattTransport.STATE_CONNECTING;
+        if ( listener != null ) {
+            listener.onConnecting();
+        }
+        return true;
+    }
+
+    /**
+     * The result is reported to the listener.
+     */
+    public void disconnect() {
+        transport.disconnect();
+    }
+
+    /**
+     * Drops the queue and releases the connection, without telling the listener.
+     */
+    public void close() {
+        dropQueue();
+        state = GattTransport.STATE_DISCONNECTED;
+        mtu = DEFAULT_MTU;
+        transport.close();
+    }
+
+    public boolean hasService( UUID service ) {
+        return transport.hasService( service );
+    }
+
+    public boolean isCharacteristicReadable( UUID service, UUID characteristic ) {
+        return (transport.getCharacteristicProperties( service, characteristic ) & GattTransport.PROPERTY_READ) != 0;
+    }
+
+    public boolean isCharacteristicNotifiable( UUID service, UUID characteristic ) {
+        return (transport.getCharacteristicProperties( service, characteristic ) & GattTransport.PROPERTY_NOTIFY) != 0;
+    }
+
+    public void readCharacteristic( final UUID service, final UUID characteristic ) {
+        enqueue( new Action() {
+            @Override
+            public boolean execute() {
+                return !isCharacteristicReadable( service, characteristic ) || !transport.readCharacteristic( service, characteristic );
+            }
+        } );
+    }
+
+    /**
+     * Writes the command in chunks of the negotiated MTU's payload size and releases the buffer to the pool
+     * once the last chunk was handed to the transport, or the write failed.
+     *
+     * @return false if not connected, the buffer is released right away then
+     */
+    public boolean write( UUID service, UUID characteristic, CommandBuffer command, CommandBufferPool pool ) {
+        if ( state == GattTransport.STATE_DISCONNECTED ) {
+            pool.release( command );
+            return false;
+        }
+        enqueue( new CommandWriteAction( service, characteristic, command, pool ) );
+        return true;
+    }
+
+    public void enableNotification( UUID service, UUID characteristic, boolean enabled ) {
+        enqueue( createNotifyAction( service, characteristic, enabled, false ) );
+    }
+
+    public void enableIndication( UUID service, UUID characteristic, boolean enabled ) {
+        enqueue( createNotifyAction( service, characteristic, enabled, true ) );
+    }
+
+    /**
+     * @param priority One of the GattTransport.CONNECTION_PRIORITY_* constants, high for bulk transfers.
+     */
+    public void requestConnectionPriority( int priority ) {
+        if ( state != GattTransport.STATE_DISCONNECTED ) {
+            transport.requestConnectionPriority( priority );
+        }
+    }
+
+    /**
+     * @return true if the listener is told the RSSI later
+     */
+    public boolean readRemoteRssi() {
+        return state != GattTransport.STATE_DISCONNECTED && transport.readRemoteRssi();
+    }
+
+    // Transport callbacks
+
+    @Override
+    public void onConnectionStateChange( int newState ) {
+        if ( newState == GattTransport.STATE_CONNECTED ) {
+            state = GattTransport.STATE_CONNECTED;
+            if ( listener != null ) {
+                listener.onConnected();
+            }
+            // Attempts to discover services after successful connection.
+            transport.discoverServices();
+
+        } else if ( newState == GattTransport.STATE_DISCONNECTED ) {
+            state = GattTransport.STATE_DISCONNECTED;
+            mtu = DEFAULT_MTU;
+            dropQueue();
+            if ( listener != null ) {
+                listener.onDisconnected();
+            }
+
+        } else if ( newState == GattTransport.STATE_CONNECTING ) {
+            state = GattTransport.STATE_CONNECTING;
+            if ( listener != null ) {
+                listener.onConnecting();
+            }
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered( boolean success ) {
+        // Ahead of any write the listener queues, so commands are chunked by the negotiated size
+        enqueue( new Action() {
+            @Override
+            public boolean execute() {
+                // Without a callback to wait for the request is done
+                return !transport.requestMtu( REQUESTED_MTU );
+            }
+        } );
+        if ( listener != null ) {
+            Tracer.begin( TRACE_SERVICES_DISCOVERED );
+            try {
+                listener.onServicesDiscovered();
+            } finally {
+                Tracer.end( TRACE_SERVICES_DISCOVERED );
+            }
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead( UUID characteristic, byte[] value, boolean success ) {
+        completeAction();
+        if ( listener != null && success ) {
+            listener.onCharacteristicRead( characteristic, value );
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite( UUID characteristic, boolean success ) {
+        completeAction();
+    }
+
+    @Override
+    public void onCharacteristicChanged( UUID characteristic, byte[] value ) {
+        if ( listener != null ) {
+            Tracer.begin( TRACE_CHARACTERISTIC_CHANGED );
+            try {
+                listener.onCharacteristicChanged( characteristic, value );
+            } finally {
+                Tracer.end( TRACE_CHARACTERISTIC_CHANGED );
+            }
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite( UUID characteristic, UUID descriptor, boolean success ) {
+        completeAction();
+    }
+
+    @Override
+    public void onMtuChanged( int mtu, boolean success ) {
+        if ( success ) {
+            this.mtu = Math.min( mtu, REQUESTED_MTU );
+        }
+        completeAction();
+    }
+
+    @Override
+    public void onReadRemoteRssi( int rssi, boolean success ) {
+        if ( listener != null && success ) {
+            listener.onReadRemoteRssi( rssi );
+        }
+    }
+
+    // Queue
+
+    private synchronized void enqueue( Action action ) {
+        queue.add( action );
+        executeNextAction();
+    }
+
+    private synchronized void completeAction() {
+        currentAction = null;
+        executeNextAction();
+    }
+
+    /**
+     * Releases the buffers of the commands not written yet, nothing will acknowledge their writes.
+     */
+    private synchronized void dropQueue() {
+        if ( currentAction instanceof CommandWriteAction ) {
+            ((CommandWriteAction) currentAction).release();
+        }
+        for ( Action action : queue ) {
+            if ( action instanceof CommandWriteAction ) {
+                ((CommandWriteAction) action).release();
+            }
+        }
+        queue.clear();
+        currentAction = null;
+    }
+
+    private void executeNextAction() {
+        if ( currentAction != null ) return;
+        while ( !queue.isEmpty() ) {
+            Action action = queue.pop();
+            currentAction = action;
+            boolean executed;
+            Tracer.begin( TRACE_EXECUTE_ACTION );
+            try {
+                executed = action.execute();
+            } finally {
+                Tracer.end( TRACE_EXECUTE_ACTION );
+            }
+            if ( !executed ) break;
+            currentAction = null;
+        }
+    }
+
+    private Action createNotifyAction( final UUID service, final UUID characteristic, final boolean enable, final boolean indicate ) {
+        return new Action() {
+            @Override
+            public boolean execute() {
+                return !transport.setNotification( service, characteristic, enable, indicate );
+            }
+        };
+    }
+
+    /**
+     * Writes a command chunk by chunk, a chunk per execution. The buffer goes back to the pool once, after
+     * the last chunk or a failed write, or when the queue is dropped.
+     */
+    private final class CommandWriteAction implements Action {
+
+        private final UUID service;
+        private final UUID characteristic;
+        private final CommandBuffer command;
+        private final CommandBufferPool pool;
+        private int offset;
+        private boolean released;
+
+        CommandWriteAction( UUID service, UUID characteristic, CommandBuffer command, CommandBufferPool pool ) {
+            this.service = service;
+            this.characteristic = characteristic;
+            this.command = command;
+            this.pool = pool;
+        }
+
+        @Override
+        public boolean execute() {
+            int length = Math.min( getMaxWriteLength(), command.getLength() - offset );
+            byte[] chunk = chunks[length];
+            if ( chunk == null ) {
+                chunk = new byte[length];
+                chunks[length] = chunk;
+            }
+            System.arraycopy( command.getData(), offset, chunk, 0, length );
+            // The transport copies the value, so the chunk array can be reused right after
+            if ( !transport.writeCharacteristic( service, characteristic, chunk ) ) {
+                // Nothing will acknowledge it, the command channel times the command out
+                release();
+                return true;
+            }
+            offset += length;
+            if ( offset < command.getLength() ) {
+                // Write the next chunk as soon as this one is acknowledged, ahead of anything queued meanwhile
+                queue.addFirst( this );
+            } else {
+                release();
+            }
+            return false;
+        }
+
+        void release() {
+            if ( !released ) {
+                released = true;
+                pool.release( command );
+            }
+        }
+
+    }
+
+}
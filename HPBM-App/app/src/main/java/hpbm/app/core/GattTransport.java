@@ -0,0 +1,97 @@
+package hpbm.app.core;
+
+import java.util.UUID;
+
+/**
+ * The GATT operations the app needs from a connection to one peripheral, addressed by UUIDs so nothing
+ * platform specific leaks into the callers. Operations are asynchronous: a call returning true is answered
+ * by exactly one callback, one returning false by none. Callbacks may come on any thread.
+ *
+ * The values of the constants are the platform's, so they pass through unchanged.
+ */
+public interface GattTransport {
+
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+    int PROPERTY_INDICATE = 0x20;
+
+    UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString( "00002902-0000-1000-8000-00805f9b34fb" );
+
+    interface Callback {
+        void onConnectionStateChange( int state );
+
+        void onServicesDiscovered( boolean success );
+
+        void onCharacteristicRead( UUID characteristic, byte[] value, boolean success );
+
+        void onCharacteristicWrite( UUID characteristic, boolean success );
+
+        void onCharacteristicChanged( UUID characteristic, byte[] value );
+
+        void onDescriptorWrite( UUID characteristic, UUID descriptor, boolean success );
+
+        void onMtuChanged( int mtu, boolean success );
+
+        void onReadRemoteRssi( int rssi, boolean success );
+    }
+
+    void setCallback( Callback callback );
+
+    /**
+     * @return false if there is no peripheral with the address, the connection result comes with {@link Callback#onConnectionStateChange}
+     */
+    boolean connect( String address, boolean autoConnect );
+
+    /**
+     * Connects again to the peripheral of the last connection, reusing it.
+     */
+    boolean reconnect();
+
+    void disconnect();
+
+    /**
+     * Releases the connection, no callback follows.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    boolean hasService( UUID service );
+
+    /**
+     * @return the PROPERTY_* flags, 0 if the peripheral has no such characteristic
+     */
+    int getCharacteristicProperties( UUID service, UUID characteristic );
+
+    boolean readCharacteristic( UUID service, UUID characteristic );
+
+    /**
+     * The value is copied before the call returns, so the caller may reuse it right away.
+     */
+    boolean writeCharacteristic( UUID service, UUID characteristic, byte[] value );
+
+    /**
+     * Enables or disables notifications or indications locally and writes the characteristic's client
+     * configuration descriptor, answered with {@link Callback#onDescriptorWrite}.
+     */
+    boolean setNotification( UUID service, UUID characteristic, boolean enable, boolean indicate );
+
+    boolean requestMtu( int mtu );
+
+    /**
+     * Applied by the platform without a callback.
+     */
+    boolean requestConnectionPriority( int priority );
+
+    boolean readRemoteRssi();
+
+}
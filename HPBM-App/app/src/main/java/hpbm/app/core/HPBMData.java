@@ -2,18 +2,46 @@ package hpbm.app.core;
 
 public final class HPBMData {
 
+    private final long timestamp;           // [ms] phone time at which the sample was taken, 0 if unknown
+    private final long deviceSequence;      // -1 if the device does not number its samples
+    private final long deviceTime;          // [ms] device uptime at which the sample was taken, -1 if unknown
+    private final long receivedAt;          // [ms] phone time the notification arrived, 0 if unknown
     private final float currentConsumption; // [ml/s]
     private final float averageConsumption; // [ml/s]
     private final float remainingPart;
     private final int timeToEmpty;          // [s]
 
     public HPBMData(float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty) {
+        this( 0, -1, -1, 0, currentConsumption, averageConsumption, remainingPart, timeToEmpty );
+    }
+
+    public HPBMData(long timestamp, long deviceSequence, long deviceTime, long receivedAt, float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty) {
+        this.timestamp = timestamp;
+        this.deviceSequence = deviceSequence;
+        this.deviceTime = deviceTime;
+        this.receivedAt = receivedAt;
         this.currentConsumption = currentConsumption;
         this.averageConsumption = averageConsumption;
         this.remainingPart = remainingPart;
         this.timeToEmpty = timeToEmpty;
     }
 
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getDeviceSequence() {
+        return deviceSequence;
+    }
+
+    public long getDeviceTime() {
+        return deviceTime;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
     public float getAverageConsumption() {
         return averageConsumption;
     }
@@ -0,0 +1,136 @@
+package hpbm.app.core;
+
+/**
+ * Reusable, column oriented view of consecutive samples delivered in one callback. The content is only
+ * valid for the duration of {@link HPBMDataHandler#onBatchReceived(HPBMDataBatch)}; handlers that need
+ * the values later must copy them.
+ */
+public final class HPBMDataBatch {
+
+    private final long[] timestamps;          // [ms]
+    private final long[] deviceSequences;
+    private final long[] deviceTimes;         // [ms]
+    private final long[] receivedAt;          // [ms]
+    private final float[] currentConsumption; // [ml/s]
+    private final float[] averageConsumption; // [ml/s]
+    private final float[] remainingPart;
+    private final int[] timeToEmpty;          // [s]
+    private int size;
+
+    public HPBMDataBatch( int capacity ) {
+        timestamps = new long[capacity];
+        deviceSequences = new long[capacity];
+        deviceTimes = new long[capacity];
+        receivedAt = new long[capacity];
+        currentConsumption = new float[capacity];
+        averageConsumption = new float[capacity];
+        remainingPart = new float[capacity];
+        timeToEmpty = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return currentConsumption.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds a sample the device did not number, it is taken to have arrived at its timestamp.
+     */
+    public boolean add( long timestamp, float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty ) {
+        return add( timestamp, -1, -1, timestamp, currentConsumption, averageConsumption, remainingPart, timeToEmpty );
+    }
+
+    public boolean add( long timestamp, long deviceSequence, long deviceTime, long receivedAt, float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty ) {
+        if ( size == this.currentConsumption.length ) return false;
+        this.timestamps[size] = timestamp;
+        this.deviceSequences[size] = deviceSequence;
+        this.deviceTimes[size] = deviceTime;
+        this.receivedAt[size] = receivedAt;
+        this.currentConsumption[size] = currentConsumption;
+        this.averageConsumption[size] = averageConsumption;
+        this.remainingPart[size] = remainingPart;
+        this.timeToEmpty[size] = timeToEmpty;
+        size++;
+        return true;
+    }
+
+    public boolean add( long timestamp, HPBMData data ) {
+        return add( timestamp, data.getCurrentConsumption(), data.getAverageConsumption(), data.getRemainingPart(), data.getTimeToEmpty() );
+    }
+
+    public long getTimestamp( int index ) {  // [ms] phone time at which the sample was taken
+        checkIndex( index );
+        return timestamps[index];
+    }
+
+    public long getDeviceSequence( int index ) {  // -1 if the device does not number its samples
+        checkIndex( index );
+        return deviceSequences[index];
+    }
+
+    public long getDeviceTime( int index ) {  // [ms] device uptime at which the sample was taken, -1 if unknown
+        checkIndex( index );
+        return deviceTimes[index];
+    }
+
+    public long getReceivedAt( int index ) {  // [ms] phone time the notification carrying the sample arrived
+        checkIndex( index );
+        return receivedAt[index];
+    }
+
+    /**
+     * Attaches the device's numbering to a sample added without it.
+     */
+    public void setOrigin( int index, long timestamp, long deviceSequence, long deviceTime, long receivedAt ) {
+        checkIndex( index );
+        this.timestamps[index] = timestamp;
+        this.deviceSequences[index] = deviceSequence;
+        this.deviceTimes[index] = deviceTime;
+        this.receivedAt[index] = receivedAt;
+    }
+
+    public float getCurrentConsumption( int index ) {
+        checkIndex( index );
+        return currentConsumption[index];
+    }
+
+    public float getAverageConsumption( int index ) {
+        checkIndex( index );
+        return averageConsumption[index];
+    }
+
+    public float getRemainingPart( int index ) {
+        checkIndex( index );
+        return remainingPart[index];
+    }
+
+    public int getTimeToEmpty( int index ) {
+        checkIndex( index );
+        return timeToEmpty[index];
+    }
+
+    /**
+     * Creates an immutable copy of a single sample.
+     */
+    public HPBMData getData( int index ) {
+        checkIndex( index );
+        return new HPBMData( timestamps[index], deviceSequences[index], deviceTimes[index], receivedAt[index],
+            currentConsumption[index], averageConsumption[index], remainingPart[index], timeToEmpty[index] );
+    }
+
+    private void checkIndex( int index ) {
+        if ( index < 0 || index >= size ) throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+    }
+
+}
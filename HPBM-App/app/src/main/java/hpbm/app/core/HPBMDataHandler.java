@@ -1,5 +1,11 @@
 package hpbm.app.core;
 
+/**
+ * Receives the samples read from an HPBM device. Communicators always deliver samples through
+ * {@link #onBatchReceived(HPBMDataBatch)}; handlers that only care about single samples should extend
+ * {@link HPBMDataHandlerAdapter}.
+ */
 public interface HPBMDataHandler {
     void onDataReceived( HPBMData data );
+    void onBatchReceived( HPBMDataBatch batch );
 }
@@ -0,0 +1,16 @@
+package hpbm.app.core;
+
+/**
+ * Lets single-sample handlers receive batches: every sample of a batch is passed to
+ * {@link #onDataReceived(HPBMData)} in order.
+ */
+public abstract class HPBMDataHandlerAdapter implements HPBMDataHandler {
+
+    @Override
+    public void onBatchReceived(HPBMDataBatch batch) {
+        for ( int i = 0; i < batch.size(); i++ ) {
+            onDataReceived( batch.getData( i ) );
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package hpbm.app.core;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated thread that processes raw notification payloads. Radio callbacks only copy the payload into
+ * a {@link SpscPayloadRing} with {@link #offer(int, byte[], long)} and return; decoding, storage and dispatch
+ * all happen here, so slow processing never delays the GATT callback thread. Because it is the only
+ * thread touching decoded samples, it is also the single writer of the communicator's sample buffer.
+ */
+public final class IngestionThread {
+
+    public interface PayloadHandler {
+        void onPayload( int channel, byte[] payload, int length, long timestamp );  // [ms]
+    }
+
+    public static final int DEFAULT_SLOTS = 256;
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 512;  // Largest ATT attribute value
+
+    private static final long MAX_PARK_NANOS = 50000000L;  // [ns] backstop should a wakeup still be missed
+
+    private static final String TRACE_PROCESS_PAYLOAD = "IngestionThread.processPayload";
+
+    private final SpscPayloadRing ring;
+    private final PayloadHandler handler;
+    private final String name;
+    private volatile Thread thread;
+    private volatile boolean waiting;
+    private volatile boolean running;
+    private volatile long failedPayloads;  // written by the ingestion thread only
+
+    public IngestionThread( String name, PayloadHandler handler ) {
+        this( name, handler, new SpscPayloadRing( DEFAULT_SLOTS, DEFAULT_MAX_PAYLOAD_SIZE ) );
+    }
+
+    public IngestionThread( String name, PayloadHandler handler, SpscPayloadRing ring ) {
+        this.name = name;
+        this.handler = handler;
+        this.ring = ring;
+    }
+
+    public synchronized void start() {
+        if ( running ) return;
+        running = true;
+        Thread t = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                processLoop();
+            }
+        }, name );
+        t.setDaemon( true );
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the thread after it has processed the payloads already offered. Once this returns, state the
+     * handler keeps can be touched from the calling thread until the next {@link #start()}.
+     */
+    public void stop() {
+        Thread t;
+        synchronized ( this ) {
+            if ( !running ) return;
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        LockSupport.unpark( t );
+        if ( t == Thread.currentThread() ) return;  // called by the handler, the loop ends after this payload
+        // Wait for the remaining payloads, so a restarted thread never runs alongside this one
+        try {
+            t.join();
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Called from the producer thread: a producer that can wait checks this instead of having payloads dropped.
+     */
+    public boolean isFull() {
+        return ring.isFull();
+    }
+
+    /**
+     * @return true once every payload offered so far has been processed
+     */
+    public boolean isDrained() {
+        return ring.isEmpty();
+    }
+
+    public long getDroppedPayloads() {
+        return ring.getDroppedPayloads();
+    }
+
+    public long getFailedPayloads() {
+        return failedPayloads;
+    }
+
+    /**
+     * Called from the producer (radio) thread only. Copies the payload and returns immediately.
+     *
+     * @return false if the payload had to be dropped
+     */
+    public boolean offer( int channel, byte[] payload, long timestamp ) {
+        return offer( channel, payload, 0, payload.length, timestamp );
+    }
+
+    public boolean offer( int channel, byte[] payload, int offset, int length, long timestamp ) {
+        boolean accepted = ring.offer( channel, payload, offset, length, timestamp );
+        if ( waiting ) {
+            LockSupport.unpark( thread );
+        }
+        return accepted;
+    }
+
+    private void processLoop() {
+        while ( true ) {
+            int slot = ring.peek();
+            if ( slot < 0 ) {
+                if ( !running ) return;
+                waiting = true;
+                // Re-check after announcing the wait, so an offer racing with it is not missed: both the
+                // announcement and the ring's head are volatile writes, so either this sees the payload or
+                // the producer sees the announcement. The timeout only bounds the damage of a lost wakeup.
+                if ( ring.isEmpty() && running ) {
+                    LockSupport.parkNanos( this, MAX_PARK_NANOS );
+                }
+                waiting = false;
+                continue;
+            }
+
+            Tracer.begin( TRACE_PROCESS_PAYLOAD );
+            try {
+                handler.onPayload( ring.getChannel( slot ), ring.getPayload( slot ), ring.getLength( slot ), ring.getTimestamp( slot ) );
+            } catch ( RuntimeException ex ) {
+                // A malformed payload must not take the ingestion down, just skip it
+                failedPayloads++;
+            } finally {
+                Tracer.end( TRACE_PROCESS_PAYLOAD );
+                ring.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package hpbm.app.core;
+
+import java.util.Locale;
+
+/**
+ * Latency distribution in power-of-two millisecond buckets: bucket 0 counts latencies below 1 ms,
+ * bucket i those in [2^(i-1), 2^i) ms, the last bucket everything above. Cheap enough to record every call.
+ */
+public final class LatencyHistogram {
+
+    public static final int BUCKETS = 18;   // the last bucket starts at 65 s
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;           // [ms]
+    private long max;           // [ms]
+
+    public synchronized void record( long latencyMillis ) {
+        counts[bucketOf( latencyMillis )]++;
+        count++;
+        sum += latencyMillis;
+        max = Math.max( max, latencyMillis );
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized float getMean() {  // [ms], NaN without samples
+        return count > 0 ? (float) sum / count : Float.NaN;
+    }
+
+    public synchronized long getBucketCount( int bucket ) {
+        return counts[bucket];
+    }
+
+    /**
+     * @param quantile in [0, 1]
+     * @return upper bound of the bucket holding the quantile [ms], -1 without samples
+     */
+    public synchronized long getQuantile( float quantile ) {
+        if ( count == 0 ) return -1;
+        long rank = (long) Math.ceil( quantile * count );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS - 1; i++ ) {
+            seen += counts[i];
+            if ( seen >= rank ) return Math.min( 1L << i, max );
+        }
+        return max;
+    }
+
+    public synchronized void clear() {
+        for ( int i = 0; i < BUCKETS; i++ ) counts[i] = 0;
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( Locale.US, "n=%d mean=%.1fms p50<=%dms p90<=%dms p99<=%dms max=%dms",
+            getCount(), getMean(), getQuantile( 0.5f ), getQuantile( 0.9f ), getQuantile( 0.99f ), getMax() );
+    }
+
+    static int bucketOf( long latencyMillis ) {
+        if ( latencyMillis < 1 ) return 0;
+        int bucket = 64 - Long.numberOfLeadingZeros( latencyMillis );  // 1 -> 1, 2..3 -> 2, 4..7 -> 3
+        return Math.min( bucket, BUCKETS - 1 );
+    }
+
+}
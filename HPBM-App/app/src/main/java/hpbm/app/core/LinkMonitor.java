@@ -0,0 +1,198 @@
+package hpbm.app.core;
+
+/**
+ * Follows the device's sample numbering through one session. Extends the wrapping sequence and uptime
+ * of every {@link SampleEnvelope}, classifies each message as in order, after a gap, reordered or
+ * duplicate, and maps device uptime to phone time.
+ *
+ * The mapping is drift corrected: the smallest offset between receive time and device time seen per
+ * minute of device time is the one with the least transit delay, and a line fitted through those minima
+ * of the last {@link #EPOCHS} minutes follows the drift of the device clock. Whatever a message took
+ * longer than that line is its transit delay, its variation the jitter.
+ */
+public final class LinkMonitor {
+
+    public enum Arrival { IN_ORDER, GAP, REORDERED, DUPLICATE }
+
+    public static final long EPOCH_MILLIS = 60000;  // [ms] of device time per offset minimum
+    public static final int EPOCHS = 16;
+
+    private static final long SEQUENCE_MODULUS = 1L << PayloadDecoder.ENVELOPE_SEQUENCE_BITS;
+    private static final long TIME_MODULUS = 1L << PayloadDecoder.ENVELOPE_TIME_BITS;
+    private static final int HISTORY = 64;          // samples below the newest one duplicates are detected for
+    private static final float JITTER_GAIN = 1f / 16;
+
+    private final LatencyHistogram delays = new LatencyHistogram();
+    private final long[] epochDeviceTimes = new long[EPOCHS];   // [ms] of the minimum
+    private final long[] epochOffsets = new long[EPOCHS];       // [ms] receive time - device time
+    private int epochCount;
+    private long currentEpoch;
+
+    private long sessionStart;                  // [ms]
+    private boolean started;
+    private long nextSequence;                  // one past the newest sample
+    private long seen;                          // bit i set: sample nextSequence - 1 - i arrived
+    private long newestDeviceTime;              // [ms]
+    private long receivedSamples;
+    private long lostSamples;
+    private long duplicateSamples;
+    private long reorderedSamples;
+    private float jitter;                       // [ms]
+    private long lastDelay;                     // [ms]
+
+    // phone time = device time + offset + slope * (device time - origin)
+    private double offset;
+    private double slope;
+    private long origin;
+
+    // Extended numbering of the last message
+    private long sequence;
+    private long deviceTime;
+
+    public LinkMonitor() {
+        reset( 0 );
+    }
+
+    /**
+     * Starts a new session, e.g. after connecting.
+     */
+    public synchronized void reset( long now ) {
+        delays.clear();
+        epochCount = 0;
+        currentEpoch = Long.MIN_VALUE;
+        sessionStart = now;
+        started = false;
+        seen = 0;
+        receivedSamples = 0;
+        lostSamples = 0;
+        duplicateSamples = 0;
+        reorderedSamples = 0;
+        jitter = 0f;
+        lastDelay = -1;
+        offset = 0;
+        slope = 0;
+        origin = 0;
+    }
+
+    /**
+     * @param sampleCount Samples in the message, numbered consecutively from the envelope's sequence
+     * @param receivedAt Phone time the message arrived [ms]
+     */
+    public synchronized Arrival onMessage( SampleEnvelope envelope, int sampleCount, long receivedAt ) {
+        if ( !started ) {
+            started = true;
+            nextSequence = envelope.getSequence();
+            newestDeviceTime = envelope.getDeviceTime();
+        }
+        sequence = nextSequence + wrapDelta( envelope.getSequence() - nextSequence, SEQUENCE_MODULUS );
+        deviceTime = newestDeviceTime + wrapDelta( envelope.getDeviceTime() - newestDeviceTime, TIME_MODULUS );
+
+        Arrival arrival;
+        if ( sequence >= nextSequence ) {
+            long gap = sequence - nextSequence;
+            long advance = gap + sampleCount;
+            seen = advance >= HISTORY ? 0 : seen << advance;
+            seen |= sampleCount >= HISTORY ? -1L : (1L << sampleCount) - 1;
+            nextSequence = sequence + sampleCount;
+            lostSamples += gap;
+            arrival = gap > 0 ? Arrival.GAP : Arrival.IN_ORDER;
+        } else {
+            long age = nextSequence - 1 - sequence;
+            if ( age >= HISTORY || (seen >>> age & 1) != 0 ) {
+                // Too old to tell counts as a duplicate as well, pulses must never be counted twice
+                duplicateSamples += sampleCount;
+                return Arrival.DUPLICATE;
+            }
+            for ( int i = 0; i < sampleCount && age - i >= 0; i++ ) {
+                seen |= 1L << (age - i);
+            }
+            reorderedSamples += sampleCount;
+            lostSamples = Math.max( 0, lostSamples - sampleCount );
+            arrival = Arrival.REORDERED;
+        }
+        receivedSamples += sampleCount;
+        newestDeviceTime = Math.max( newestDeviceTime, deviceTime );
+        observeClock( deviceTime, receivedAt );
+        return arrival;
+    }
+
+    /**
+     * @return Sequence of the first sample of the last message
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Device uptime the last message was sent at [ms]
+     */
+    public synchronized long getDeviceTime() {
+        return deviceTime;
+    }
+
+    public synchronized long toPhoneTime( long deviceTime ) {  // [ms]
+        return deviceTime + Math.round( offset + slope * (deviceTime - origin) );
+    }
+
+    public synchronized LinkStatistics getStatistics() {
+        return new LinkStatistics( sessionStart, receivedSamples, lostSamples, duplicateSamples, reorderedSamples,
+            jitter, delays.getQuantile( 0.5f ), delays.getQuantile( 0.99f ), delays.getMax(), (float) (slope * 1e6) );
+    }
+
+    private void observeClock( long deviceTime, long receivedAt ) {
+        long observed = receivedAt - deviceTime;
+        long epoch = deviceTime / EPOCH_MILLIS;
+        if ( epoch > currentEpoch ) {
+            currentEpoch = epoch;
+            int slot = epochCount++ % EPOCHS;
+            epochDeviceTimes[slot] = deviceTime;
+            epochOffsets[slot] = observed;
+            fit();
+        } else if ( epoch == currentEpoch ) {
+            int slot = (epochCount - 1) % EPOCHS;
+            if ( observed < epochOffsets[slot] ) {
+                epochDeviceTimes[slot] = deviceTime;
+                epochOffsets[slot] = observed;
+                fit();
+            }
+        }
+
+        long delay = Math.max( 0, receivedAt - toPhoneTime( deviceTime ) );
+        delays.record( delay );
+        if ( lastDelay >= 0 ) {
+            jitter += (Math.abs( delay - lastDelay ) - jitter) * JITTER_GAIN;
+        }
+        lastDelay = delay;
+    }
+
+    /**
+     * Least squares line through the offset minima, centered on their mean device time.
+     */
+    private void fit() {
+        int count = Math.min( epochCount, EPOCHS );
+        double meanTime = 0;
+        double meanOffset = 0;
+        for ( int i = 0; i < count; i++ ) {
+            meanTime += epochDeviceTimes[i];
+            meanOffset += epochOffsets[i];
+        }
+        meanTime /= count;
+        meanOffset /= count;
+        double covariance = 0;
+        double variance = 0;
+        for ( int i = 0; i < count; i++ ) {
+            double dt = epochDeviceTimes[i] - meanTime;
+            covariance += dt * (epochOffsets[i] - meanOffset);
+            variance += dt * dt;
+        }
+        origin = Math.round( meanTime );
+        offset = meanOffset;
+        slope = variance > 0 ? covariance / variance : 0;
+    }
+
+    private static long wrapDelta( long difference, long modulus ) {
+        long delta = ((difference % modulus) + modulus) % modulus;
+        return delta >= modulus / 2 ? delta - modulus : delta;
+    }
+
+}
@@ -0,0 +1,86 @@
+package hpbm.app.core;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the link quality of one session, see {@link LinkMonitor}.
+ */
+public final class LinkStatistics {
+
+    private final long sessionStart;        // [ms]
+    private final long receivedSamples;
+    private final long lostSamples;
+    private final long duplicateSamples;
+    private final long reorderedSamples;
+    private final float jitterMillis;       // [ms] smoothed variation of the transit delay
+    private final long delayP50;            // [ms] transit delay above the fastest one seen
+    private final long delayP99;            // [ms]
+    private final long delayMax;            // [ms]
+    private final float driftPpm;           // of the device clock against the phone clock
+
+    public LinkStatistics( long sessionStart, long receivedSamples, long lostSamples, long duplicateSamples, long reorderedSamples,
+                           float jitterMillis, long delayP50, long delayP99, long delayMax, float driftPpm ) {
+        this.sessionStart = sessionStart;
+        this.receivedSamples = receivedSamples;
+        this.lostSamples = lostSamples;
+        this.duplicateSamples = duplicateSamples;
+        this.reorderedSamples = reorderedSamples;
+        this.jitterMillis = jitterMillis;
+        this.delayP50 = delayP50;
+        this.delayP99 = delayP99;
+        this.delayMax = delayMax;
+        this.driftPpm = driftPpm;
+    }
+
+    public long getSessionStart() {
+        return sessionStart;
+    }
+
+    public long getReceivedSamples() {
+        return receivedSamples;
+    }
+
+    public long getLostSamples() {
+        return lostSamples;
+    }
+
+    public long getDuplicateSamples() {
+        return duplicateSamples;
+    }
+
+    public long getReorderedSamples() {
+        return reorderedSamples;
+    }
+
+    public float getLossRate() {  // NaN before the first sample
+        long expected = receivedSamples + lostSamples;
+        return expected > 0 ? (float) lostSamples / expected : Float.NaN;
+    }
+
+    public float getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public long getDelayP50() {
+        return delayP50;
+    }
+
+    public long getDelayP99() {
+        return delayP99;
+    }
+
+    public long getDelayMax() {
+        return delayMax;
+    }
+
+    public float getDriftPpm() {
+        return driftPpm;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( Locale.US, "received=%d lost=%d (%.2f%%) duplicates=%d reordered=%d jitter=%.1fms delay p50<=%dms p99<=%dms max=%dms drift=%.0fppm",
+            receivedSamples, lostSamples, 100f * getLossRate(), duplicateSamples, reorderedSamples, jitterMillis, delayP50, delayP99, delayMax, driftPpm );
+    }
+
+}
@@ -1,8 +1,22 @@
 package hpbm.app.core;
 
 public interface MessageInterpreter {
-    HPBMData readMessage(String message );
-    String createRefillToMessage( float newTotalAmount );  // [ml]
-    String createRefillWithMessage( float refillAmount );  // [ml]
-    String createResetMessage();
+    // Readers decode straight from the notification payload and return false when it is not of their kind
+    int readEnvelope( byte[] payload, int length, SampleEnvelope out );    // length of the envelope or 0
+    boolean readMessage( byte[] payload, int length, long timestamp, HPBMDataBatch out );
+    boolean readPulseReport( byte[] payload, int length, PulseBatch out );
+    boolean readPulseBatch( byte[] payload, int length, PulseBatch out );
+    int readCommandAck( byte[] payload, int length );       // correlation id or -1
+    int readCommandNack( byte[] payload, int length );      // correlation id or -1
+    boolean readSyncHeader( byte[] payload, int length, BacklogRange out );
+    int readSyncChunk( byte[] payload, int length, int periodMillis, PulseBatch out );  // sequence of the first sample or -1
+    // Writers encode a complete command, line terminator included, into the buffer
+    void writeCommandId( int id, CommandBuffer out );       // prefix correlating the command with its acknowledgement
+    void writeRefillToCommand( float newTotalAmount, CommandBuffer out );  // [ml]
+    void writeRefillWithCommand( float refillAmount, CommandBuffer out );  // [ml]
+    void writeResetCommand( CommandBuffer out );
+    void writeReportModeCommand( ReportMode mode, CommandBuffer out );
+    void writeReportIntervalCommand( int idleIntervalMillis, CommandBuffer out );  // [ms] 0 reports every sample
+    void writeSyncRequestCommand( int fromSequence, CommandBuffer out );
+    void writeSyncAckCommand( int sequence, CommandBuffer out );    // flow control, every sample up to the sequence arrived
 }
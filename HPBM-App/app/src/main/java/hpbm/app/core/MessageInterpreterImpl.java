@@ -1,46 +1,129 @@
 package hpbm.app.core;
 
-import android.util.Log;
-
-import java.util.StringTokenizer;
+import java.nio.charset.Charset;
 
 public class MessageInterpreterImpl implements MessageInterpreter {
 
-    private static final String TAG = MessageInterpreterImpl.class.getSimpleName();
-
-    @Override
-    public HPBMData readMessage(String message) {
-        // Message pattern: <current consumption [ml/s]>,<average consumption [ml/s]>,<amount remaining [ml]>,<time to empty [s]>
-        StringTokenizer tokenizer = new StringTokenizer( message, "," );
-        if ( tokenizer.countTokens() == 4 ) {
-            try {
-                float currentConsumption = Float.parseFloat(tokenizer.nextToken());
-                float averageConsumption = Float.parseFloat(tokenizer.nextToken());
-                float remainingPart = Float.parseFloat(tokenizer.nextToken());
-                int timeToEmpty = Integer.parseInt(tokenizer.nextToken());
-                return new HPBMData(currentConsumption, averageConsumption, remainingPart, timeToEmpty);
-            } catch ( NumberFormatException ex ) {
-                Log.w( TAG, ex );
-                return null;
-            }
-        } else {
-            return null;
+    private static final String TRACE_READ_MESSAGE = "MessageInterpreter.readMessage";
+    private static final String TRACE_READ_PULSE_REPORT = "MessageInterpreter.readPulseReport";
+    private static final String TRACE_READ_PULSE_BATCH = "MessageInterpreter.readPulseBatch";
+
+    // Fixed commands and command prefixes, encoded once
+    private static final byte LINE_END = '\n';
+    private static final byte COMMAND_ID_PREFIX = '#';
+    private static final byte COMMAND_ID_SEPARATOR = ',';
+    private static final byte[] REFILL_TO_PREFIX = encode( "RT:" );
+    private static final byte[] REFILL_WITH_PREFIX = encode( "RW:" );
+    private static final byte[] REPORT_INTERVAL_PREFIX = encode( "RI:" );
+    private static final byte[] SYNC_REQUEST_PREFIX = encode( "SY:" );
+    private static final byte[] SYNC_ACK_PREFIX = encode( "SA:" );
+    private static final byte[] RESET_COMMAND = encode( "RST\n" );
+    private static final byte[] REPORT_MODE_DERIVED_COMMAND = encode( "MD:D\n" );
+    private static final byte[] REPORT_MODE_RAW_PULSES_COMMAND = encode( "MD:R\n" );
+    private static final byte[] REPORT_MODE_BATCHED_PULSES_COMMAND = encode( "MD:B\n" );
+
+    @Override
+    public int readEnvelope(byte[] payload, int length, SampleEnvelope out) {
+        return PayloadDecoder.decodeEnvelope( payload, length, out );
+    }
+
+    @Override
+    public boolean readMessage(byte[] payload, int length, long timestamp, HPBMDataBatch out) {
+        Tracer.begin( TRACE_READ_MESSAGE );
+        try {
+            return PayloadDecoder.decodeDerived( payload, length, timestamp, out );
+        } finally {
+            Tracer.end( TRACE_READ_MESSAGE );
+        }
+    }
+
+    @Override
+    public boolean readPulseReport(byte[] payload, int length, PulseBatch out) {
+        Tracer.begin( TRACE_READ_PULSE_REPORT );
+        try {
+            return PayloadDecoder.decodePulseReport( payload, length, out );
+        } finally {
+            Tracer.end( TRACE_READ_PULSE_REPORT );
         }
     }
 
     @Override
-    public String createRefillToMessage(float newTotalAmount) {
-        return "RT:" + new Float(newTotalAmount).intValue();
+    public boolean readPulseBatch(byte[] payload, int length, PulseBatch out) {
+        if ( !PayloadDecoder.isPulseBatch( payload, length ) ) return false;
+        Tracer.begin( TRACE_READ_PULSE_BATCH );
+        try {
+            return PayloadDecoder.decodePulseBatch( payload, length, out );
+        } finally {
+            Tracer.end( TRACE_READ_PULSE_BATCH );
+        }
     }
 
     @Override
-    public String createRefillWithMessage(float refillAmount) {
-        return "RW:" + new Float(refillAmount).intValue();
+    public int readCommandAck(byte[] payload, int length) {
+        return PayloadDecoder.decodeCommandAck( payload, length, PayloadDecoder.COMMAND_ACK_PREFIX );
     }
 
     @Override
-    public String createResetMessage() {
-        return "RST";
+    public int readCommandNack(byte[] payload, int length) {
+        return PayloadDecoder.decodeCommandAck( payload, length, PayloadDecoder.COMMAND_NACK_PREFIX );
+    }
+
+    @Override
+    public boolean readSyncHeader(byte[] payload, int length, BacklogRange out) {
+        return PayloadDecoder.decodeSyncHeader( payload, length, out );
+    }
+
+    @Override
+    public int readSyncChunk(byte[] payload, int length, int periodMillis, PulseBatch out) {
+        return PayloadDecoder.decodeSyncChunk( payload, length, periodMillis, out );
+    }
+
+    @Override
+    public void writeCommandId(int id, CommandBuffer out) {
+        out.append( COMMAND_ID_PREFIX ).append( id ).append( COMMAND_ID_SEPARATOR );
+    }
+
+    @Override
+    public void writeRefillToCommand(float newTotalAmount, CommandBuffer out) {
+        out.append( REFILL_TO_PREFIX ).append( (int) newTotalAmount ).append( LINE_END );
+    }
+
+    @Override
+    public void writeRefillWithCommand(float refillAmount, CommandBuffer out) {
+        out.append( REFILL_WITH_PREFIX ).append( (int) refillAmount ).append( LINE_END );
+    }
+
+    @Override
+    public void writeResetCommand(CommandBuffer out) {
+        out.append( RESET_COMMAND );
+    }
+
+    @Override
+    public void writeReportModeCommand(ReportMode mode, CommandBuffer out) {
+        switch ( mode ) {
+            case RAW_PULSES: out.append( REPORT_MODE_RAW_PULSES_COMMAND ); break;
+            case BATCHED_PULSES: out.append( REPORT_MODE_BATCHED_PULSES_COMMAND ); break;
+            default: out.append( REPORT_MODE_DERIVED_COMMAND ); break;
+        }
+    }
+
+    @Override
+    public void writeReportIntervalCommand(int idleIntervalMillis, CommandBuffer out) {
+        out.append( REPORT_INTERVAL_PREFIX ).append( idleIntervalMillis ).append( LINE_END );
+    }
+
+    @Override
+    public void writeSyncRequestCommand(int fromSequence, CommandBuffer out) {
+        out.append( SYNC_REQUEST_PREFIX ).append( fromSequence ).append( LINE_END );
+    }
+
+    @Override
+    public void writeSyncAckCommand(int sequence, CommandBuffer out) {
+        out.append( SYNC_ACK_PREFIX ).append( sequence ).append( LINE_END );
+    }
+
+    private static byte[] encode( String command ) {
+        return command.getBytes( Charset.forName( "US-ASCII" ) );
     }
 
 }
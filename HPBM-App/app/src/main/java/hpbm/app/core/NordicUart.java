@@ -0,0 +1,16 @@
+package hpbm.app.core;
+
+import java.util.UUID;
+
+/**
+ * UUIDs of the Nordic UART service the device talks through. RX notifies the app, the app writes to TX.
+ */
+public final class NordicUart {
+
+    public static final UUID SERVICE = UUID.fromString( "6e400001-b5a3-f393-e0a9-e50e24dcca9e" );
+    public static final UUID RX = UUID.fromString( "6e400003-b5a3-f393-e0a9-e50e24dcca9e" );
+    public static final UUID TX = UUID.fromString( "6e400002-b5a3-f393-e0a9-e50e24dcca9e" );
+
+    private NordicUart() {}
+
+}
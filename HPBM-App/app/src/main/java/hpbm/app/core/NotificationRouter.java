@@ -0,0 +1,36 @@
+package hpbm.app.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Routes characteristic notifications to ingestion channels with one table lookup keyed by the
+ * characteristic's UUID. The table is built up front, so routing a notification neither converts
+ * UUIDs to strings nor allocates.
+ */
+public final class NotificationRouter {
+
+    private volatile Map<UUID, Integer> channels = Collections.emptyMap();  // copy on write
+    private final IngestionThread ingestionThread;
+
+    public NotificationRouter( IngestionThread ingestionThread ) {
+        this.ingestionThread = ingestionThread;
+    }
+
+    public synchronized void addRoute( UUID characteristic, int channel ) {
+        Map<UUID, Integer> updated = new HashMap<>( channels );
+        updated.put( characteristic, channel );
+        channels = updated;
+    }
+
+    /**
+     * @return false if the characteristic has no route or the ingestion ring is full
+     */
+    public boolean route( UUID characteristic, byte[] payload, long timestamp ) {
+        Integer channel = channels.get( characteristic );
+        return channel != null && ingestionThread.offer( channel, payload, timestamp );
+    }
+
+}
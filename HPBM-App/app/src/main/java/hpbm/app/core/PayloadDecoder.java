@@ -0,0 +1,246 @@
+package hpbm.app.core;
+
+/**
+ * Decodes device messages straight from the notification bytes, without building strings or boxing
+ * numbers. All messages are ASCII; trailing line breaks are ignored.
+ */
+public final class PayloadDecoder {
+
+    public static final byte PULSE_BATCH_PREFIX = 'B';
+    public static final byte COMMAND_ACK_PREFIX = 'A';
+    public static final byte COMMAND_NACK_PREFIX = 'N';
+    public static final byte SYNC_PREFIX = 'S';
+    public static final int SYNC_SAMPLE_BITS = 6;          // per character, two characters per sample
+    public static final int SYNC_SAMPLE_MAX = (1 << 2 * SYNC_SAMPLE_BITS) - 1;
+    public static final byte ENVELOPE_PREFIX = '~';
+    public static final int ENVELOPE_SEQUENCE_BITS = 12;   // two characters
+    public static final int ENVELOPE_TIME_BITS = 24;       // four characters, wraps after 4.6 h
+    public static final int ENVELOPE_LENGTH = 7;
+    public static final int PULSE_BATCH_PERIOD_UNIT = 5;   // [ms]
+    public static final int PULSE_BATCH_SAMPLE_MAX = 63;
+
+    private static final byte SIX_BIT_ZERO = '0';
+    private static final byte SIX_BIT_ESCAPE = '\\';       // skipped, AT+BLEUARTTX takes it for the start of an escape sequence
+    private static final int INVALID_INT = Integer.MIN_VALUE;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = { 1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+    private PayloadDecoder() {}
+
+    /**
+     * Message pattern: &lt;current consumption [ml/s]&gt;,&lt;average consumption [ml/s]&gt;,&lt;remaining part&gt;,&lt;time to empty [s]&gt;
+     */
+    public static boolean decodeDerived( byte[] payload, int length, long timestamp, HPBMDataBatch out ) {
+        int end = trimmedLength( payload, length );
+        int comma1 = indexOf( payload, ',', 0, end );
+        int comma2 = indexOf( payload, ',', comma1 + 1, end );
+        int comma3 = indexOf( payload, ',', comma2 + 1, end );
+        if ( comma1 < 0 || comma2 < 0 || comma3 < 0 || indexOf( payload, ',', comma3 + 1, end ) >= 0 ) return false;
+        float currentConsumption = parseFloat( payload, 0, comma1 );
+        float averageConsumption = parseFloat( payload, comma1 + 1, comma2 );
+        float remainingPart = parseFloat( payload, comma2 + 1, comma3 );
+        int timeToEmpty = parseInt( payload, comma3 + 1, end );
+        if ( Float.isNaN( currentConsumption ) || Float.isNaN( averageConsumption ) || Float.isNaN( remainingPart ) || timeToEmpty == INVALID_INT ) {
+            return false;
+        }
+        return out.add( timestamp, currentConsumption, averageConsumption, remainingPart, timeToEmpty );
+    }
+
+    /**
+     * Message pattern: P:&lt;pulse count&gt;,&lt;interval [ms]&gt;. The report is decoded as a single sample batch.
+     */
+    public static boolean decodePulseReport( byte[] payload, int length, PulseBatch out ) {
+        int end = trimmedLength( payload, length );
+        if ( end < 2 || payload[0] != 'P' || payload[1] != ':' ) return false;
+        int comma = indexOf( payload, ',', 2, end );
+        if ( comma < 0 ) return false;
+        int pulses = parseInt( payload, 2, comma );
+        int intervalMillis = parseInt( payload, comma + 1, end );
+        if ( pulses == INVALID_INT || pulses < 0 || intervalMillis == INVALID_INT || intervalMillis < 0 ) return false;
+        out.clear( intervalMillis );
+        return out.add( pulses );
+    }
+
+    public static boolean isPulseBatch( byte[] payload, int length ) {
+        return length > 0 && payload[0] == PULSE_BATCH_PREFIX;
+    }
+
+    /**
+     * Message pattern: B&lt;period&gt;&lt;sample&gt;... where period = period [ms] / 5 and sample = pulse count, each
+     * in one character of six bits, see {@link #encodeSixBits(int)}
+     */
+    public static boolean decodePulseBatch( byte[] payload, int length, PulseBatch out ) {
+        int end = trimmedLength( payload, length );
+        if ( end < 2 || payload[0] != PULSE_BATCH_PREFIX ) return false;
+        int periodMillis = decodeSixBits( payload[1] ) * PULSE_BATCH_PERIOD_UNIT;
+        if ( periodMillis <= 0 ) return false;
+        out.clear( periodMillis );
+        for ( int i = 2; i < end; i++ ) {
+            int pulses = decodeSixBits( payload[i] );
+            if ( pulses < 0 || !out.add( pulses ) ) {
+                out.clear( periodMillis );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Message pattern: &lt;prefix&gt;:&lt;correlation id&gt;, A for an acknowledged and N for a rejected command.
+     *
+     * @return the correlation id or -1 if the payload is no such message
+     */
+    public static int decodeCommandAck( byte[] payload, int length, byte prefix ) {
+        int end = trimmedLength( payload, length );
+        if ( end < 3 || payload[0] != prefix || payload[1] != ':' ) return -1;
+        int id = parseInt( payload, 2, end );
+        return id == INVALID_INT || id < 0 ? -1 : id;
+    }
+
+    /**
+     * Envelope pattern: ~&lt;sequence&gt;&lt;device time&gt; in front of a live message, or alone right before
+     * a derived message from firmware that sent them apart. The sequence of the message's first sample takes two, the device
+     * uptime [ms] four characters of six bits each, see {@link #encodeSixBits(int)}, high bits first.
+     *
+     * @return length of the envelope, 0 if the payload does not start with one
+     */
+    public static int decodeEnvelope( byte[] payload, int length, SampleEnvelope out ) {
+        if ( length < ENVELOPE_LENGTH || payload[0] != ENVELOPE_PREFIX ) return 0;
+        int sequence = 0;
+        int deviceTime = 0;
+        for ( int i = 1; i < ENVELOPE_LENGTH; i++ ) {
+            int value = decodeSixBits( payload[i] );
+            if ( value < 0 ) return 0;
+            if ( i < 3 ) {
+                sequence = sequence << 6 | value;
+            } else {
+                deviceTime = deviceTime << 6 | value;
+            }
+        }
+        out.set( sequence, deviceTime );
+        return ENVELOPE_LENGTH;
+    }
+
+    /**
+     * Message pattern: SH:&lt;first sequence&gt;,&lt;last sequence&gt;,&lt;period [ms]&gt;,&lt;window [samples]&gt;
+     */
+    public static boolean decodeSyncHeader( byte[] payload, int length, BacklogRange out ) {
+        int end = trimmedLength( payload, length );
+        if ( end < 4 || payload[0] != SYNC_PREFIX || payload[1] != 'H' || payload[2] != ':' ) return false;
+        int comma1 = indexOf( payload, ',', 3, end );
+        int comma2 = comma1 < 0 ? -1 : indexOf( payload, ',', comma1 + 1, end );
+        int comma3 = comma2 < 0 ? -1 : indexOf( payload, ',', comma2 + 1, end );
+        if ( comma3 < 0 ) return false;
+        int first = parseInt( payload, 3, comma1 );
+        int last = parseInt( payload, comma1 + 1, comma2 );
+        int periodMillis = parseInt( payload, comma2 + 1, comma3 );
+        int window = parseInt( payload, comma3 + 1, end );
+        if ( first == INVALID_INT || last == INVALID_INT || periodMillis <= 0 || window <= 0 ) return false;
+        out.set( first, last, periodMillis, window );
+        return true;
+    }
+
+    /**
+     * Message pattern: S&lt;sequence of the first sample&gt;,&lt;sample&gt;... where every sample is a pulse count
+     * in two characters of six bits each, see {@link #encodeSixBits(int)}, high bits first.
+     *
+     * @return sequence of the first sample or -1 if the payload is no sync chunk
+     */
+    public static int decodeSyncChunk( byte[] payload, int length, int periodMillis, PulseBatch out ) {
+        int end = trimmedLength( payload, length );
+        if ( end < 3 || payload[0] != SYNC_PREFIX || payload[1] < '0' || payload[1] > '9' ) return -1;
+        int comma = indexOf( payload, ',', 1, end );
+        if ( comma < 0 || (end - comma - 1) % 2 != 0 ) return -1;
+        int sequence = parseInt( payload, 1, comma );
+        if ( sequence == INVALID_INT ) return -1;
+        out.clear( periodMillis );
+        for ( int i = comma + 1; i < end; i += 2 ) {
+            int high = decodeSixBits( payload[i] );
+            int low = decodeSixBits( payload[i + 1] );
+            if ( high < 0 || low < 0 || !out.add( high << SYNC_SAMPLE_BITS | low ) ) {
+                out.clear( periodMillis );
+                return -1;
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Six bits in one printable character as the device sends them: '0' + value, one more from the backslash
+     * on, so the characters run from '0' to 'p' without the backslash.
+     */
+    public static byte encodeSixBits( int value ) {
+        int c = SIX_BIT_ZERO + value;
+        return (byte) (c < SIX_BIT_ESCAPE ? c : c + 1);
+    }
+
+    /**
+     * @return the value of a character written by {@link #encodeSixBits(int)}, -1 for any other character
+     */
+    public static int decodeSixBits( byte b ) {
+        if ( b < SIX_BIT_ZERO || b == SIX_BIT_ESCAPE || b > SIX_BIT_ZERO + 64 ) return -1;
+        return b < SIX_BIT_ESCAPE ? b - SIX_BIT_ZERO : b - SIX_BIT_ZERO - 1;
+    }
+
+    private static int trimmedLength( byte[] payload, int length ) {
+        while ( length > 0 && payload[length - 1] <= ' ' ) length--;
+        return length;
+    }
+
+    private static int indexOf( byte[] payload, char c, int from, int end ) {
+        for ( int i = from; i < end; i++ ) {
+            if ( payload[i] == c ) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value or {@link Float#NaN} if the field is not a plain decimal number
+     */
+    static float parseFloat( byte[] payload, int start, int end ) {
+        boolean negative = start < end && payload[start] == '-';
+        if ( negative ) start++;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for ( int i = start; i < end; i++ ) {
+            byte b = payload[i];
+            if ( b == '.' && !fraction ) {
+                fraction = true;
+            } else if ( b >= '0' && b <= '9' ) {
+                if ( digits < MAX_MANTISSA_DIGITS ) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if ( fraction ) fractionDigits++;
+                } else if ( !fraction ) {
+                    return Float.NaN;   // beyond float range anyway
+                }
+            } else {
+                return Float.NaN;
+            }
+        }
+        if ( digits == 0 ) return Float.NaN;
+        float value = fractionDigits < POWERS_OF_TEN.length
+            ? (float) (mantissa / POWERS_OF_TEN[fractionDigits])
+            : (float) (mantissa / Math.pow( 10, fractionDigits ));
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the value or {@link #INVALID_INT} if the field is not a plain integer
+     */
+    static int parseInt( byte[] payload, int start, int end ) {
+        boolean negative = start < end && payload[start] == '-';
+        if ( negative ) start++;
+        if ( start >= end || end - start > 9 ) return INVALID_INT;
+        int value = 0;
+        for ( int i = start; i < end; i++ ) {
+            byte b = payload[i];
+            if ( b < '0' || b > '9' ) return INVALID_INT;
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+}
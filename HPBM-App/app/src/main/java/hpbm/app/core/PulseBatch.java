@@ -0,0 +1,44 @@
+package hpbm.app.core;
+
+/**
+ * Reusable holder for the pulse samples of one batched notification. All samples cover the same period.
+ */
+public final class PulseBatch {
+
+    private final int[] pulses;
+    private int size;
+    private int periodMillis;   // [ms]
+
+    public PulseBatch( int capacity ) {
+        this.pulses = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return pulses.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public int getPulses( int index ) {
+        if ( index >= size ) throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+        return pulses[index];
+    }
+
+    public void clear( int periodMillis ) {
+        this.periodMillis = periodMillis;
+        this.size = 0;
+    }
+
+    public boolean add( int pulses ) {
+        if ( size == this.pulses.length ) return false;
+        this.pulses[size++] = pulses;
+        return true;
+    }
+
+}
@@ -0,0 +1,11 @@
+package hpbm.app.core;
+
+/**
+ * Streaming estimator of the consumption rate. Implementations must update in O(1) time and keep
+ * O(1) state per sample, so they can run on every sample for the whole lifetime of a session.
+ */
+public interface RateEstimator {
+    void reset();
+    void addSample( float consumed, int intervalMillis );  // [ml], [ms]
+    float getRate();                                        // [ml/s], NaN until enough samples were seen
+}
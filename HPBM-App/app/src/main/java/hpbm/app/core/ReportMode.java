@@ -0,0 +1,10 @@
+package hpbm.app.core;
+
+/**
+ * What the device reports in its notifications.
+ */
+public enum ReportMode {
+    DERIVED,            // "<ccr>,<acr>,<rp>,<tte>" once per second, computed on the device
+    RAW_PULSES,         // "P:<pulses>,<interval ms>" once per second
+    BATCHED_PULSES      // "B<period><samples>" - many raw pulse samples packed into one notification
+}
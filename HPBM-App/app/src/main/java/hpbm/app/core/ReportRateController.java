@@ -0,0 +1,173 @@
+package hpbm.app.core;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts how often the device reports to whether anyone is looking. While a monitor is visible the device
+ * reports every sample. Once none has been visible for {@link #DEFAULT_SLOW_DOWN_DELAY} it reports idle
+ * samples only every {@link #DEFAULT_IDLE_INTERVAL}, which wakes radio and phone a fraction as often. The
+ * device bursts back to reporting every sample by itself as soon as it counts pulses again, so consumption
+ * is never reported late, and pulses of unreported idle samples are carried into the next report. A command
+ * that fails is sent again while connected, after a delay that doubles with every failure in a row.
+ */
+public final class ReportRateController {
+
+    public static final int FAST_INTERVAL = 0;                  // [ms] report every sample
+    public static final int DEFAULT_IDLE_INTERVAL = 30000;      // [ms]
+    public static final long DEFAULT_SLOW_DOWN_DELAY = 5000;    // [ms] rides out rotations and quick app switches
+    public static final long RETRY_DELAY = 1000;                // [ms] after the first failure
+    public static final long MAX_RETRY_DELAY = 30000;           // [ms]
+
+    private final CommandChannel commandChannel;
+    private final MessageInterpreter messageInterpreter;
+    private final int idleInterval;
+    private final long slowDownDelay;
+    private final CommandCallback callback = new CommandCallback() {
+        @Override
+        public void onCommandAcknowledged(CommandType type, long latencyMillis) {
+            synchronized ( ReportRateController.this ) {
+                failures = 0;
+            }
+        }
+
+        @Override
+        public void onCommandFailed(CommandType type, CommandFailure failure) {
+            synchronized ( ReportRateController.this ) {
+                sentInterval = -1;  // unknown, sent again after the backoff, with the next change or connection
+                scheduleRetry();
+            }
+        }
+    };
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> pendingSlowDown;
+    private ScheduledFuture<?> pendingRetry;
+    private int failures;               // in a row, stretch the retry delay
+    private int visibleMonitors;
+    private boolean connected;
+    private int sentInterval = -1;      // [ms] -1 while the device's interval is unknown
+    private long intervalChanges;
+
+    public ReportRateController( CommandChannel commandChannel, MessageInterpreter messageInterpreter ) {
+        this( commandChannel, messageInterpreter, DEFAULT_IDLE_INTERVAL, DEFAULT_SLOW_DOWN_DELAY );
+    }
+
+    public ReportRateController( CommandChannel commandChannel, MessageInterpreter messageInterpreter, int idleInterval, long slowDownDelay ) {
+        this.commandChannel = commandChannel;
+        this.messageInterpreter = messageInterpreter;
+        this.idleInterval = idleInterval;
+        this.slowDownDelay = slowDownDelay;
+    }
+
+    /**
+     * Called from a monitor's onResume/onPause. Speeding up is immediate, slowing down waits for the delay.
+     */
+    public synchronized void setMonitorVisible( boolean visible ) {
+        visibleMonitors = Math.max( 0, visibleMonitors + (visible ? 1 : -1) );
+        apply();
+    }
+
+    /**
+     * The device keeps its interval across connections of the app, so it is always told the current one.
+     */
+    public synchronized void onConnected() {
+        connected = true;
+        sentInterval = -1;
+        failures = 0;
+        cancelSlowDown();
+        cancelRetry();
+        apply();
+    }
+
+    public synchronized void onDisconnected() {
+        connected = false;
+        sentInterval = -1;
+        cancelSlowDown();
+        cancelRetry();
+    }
+
+    public synchronized int getTargetInterval() {
+        return visibleMonitors > 0 ? FAST_INTERVAL : idleInterval;
+    }
+
+    public synchronized long getIntervalChanges() {
+        return intervalChanges;
+    }
+
+    private void apply() {
+        if ( visibleMonitors > 0 ) {
+            cancelSlowDown();
+            send( FAST_INTERVAL );
+        } else if ( pendingSlowDown == null ) {
+            pendingSlowDown = getExecutor().schedule( new Runnable() {
+                @Override
+                public void run() {
+                    synchronized ( ReportRateController.this ) {
+                        pendingSlowDown = null;
+                        if ( visibleMonitors == 0 ) send( idleInterval );
+                    }
+                }
+            }, slowDownDelay, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    private void send( int interval ) {
+        if ( !connected || interval == sentInterval ) return;
+        CommandChannel.Request request = commandChannel.open( CommandType.REPORT_INTERVAL, callback );
+        if ( request == null ) return;
+        messageInterpreter.writeReportIntervalCommand( interval, request.getCommand() );
+        sentInterval = interval;
+        intervalChanges++;
+        commandChannel.submit( request );
+    }
+
+    /**
+     * Sends the target interval again once the backoff has passed. A pending slow down sends it by itself.
+     */
+    private void scheduleRetry() {
+        if ( !connected || pendingRetry != null ) return;
+        long delay = Math.min( RETRY_DELAY << Math.min( failures, 16 ), MAX_RETRY_DELAY );
+        failures++;
+        pendingRetry = getExecutor().schedule( new Runnable() {
+            @Override
+            public void run() {
+                synchronized ( ReportRateController.this ) {
+                    pendingRetry = null;
+                    if ( pendingSlowDown == null ) send( getTargetInterval() );
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS );
+    }
+
+    private void cancelRetry() {
+        if ( pendingRetry != null ) {
+            pendingRetry.cancel( false );
+            pendingRetry = null;
+        }
+    }
+
+    private void cancelSlowDown() {
+        if ( pendingSlowDown != null ) {
+            pendingSlowDown.cancel( false );
+            pendingSlowDown = null;
+        }
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        if ( executor == null ) {
+            executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread( runnable, "ReportRate" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+}
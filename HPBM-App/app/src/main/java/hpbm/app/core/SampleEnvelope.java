@@ -0,0 +1,25 @@
+package hpbm.app.core;
+
+/**
+ * Reusable holder for the numbering the device puts in front of its live messages. Both values are the
+ * low bits of the device's counters and wrap, {@link LinkMonitor} extends them.
+ */
+public final class SampleEnvelope {
+
+    private int sequence;       // of the first sample of the message
+    private int deviceTime;     // [ms] device uptime when the message was sent
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public int getDeviceTime() {
+        return deviceTime;
+    }
+
+    public void set( int sequence, int deviceTime ) {
+        this.sequence = sequence;
+        this.deviceTime = deviceTime;
+    }
+
+}
@@ -0,0 +1,156 @@
+package hpbm.app.core;
+
+/**
+ * Fixed-size, column oriented history of the most recent samples. Memory use is set at construction
+ * and never grows, no matter how long the app runs.
+ *
+ * Concurrency contract: exactly one writer thread appends (the thread that dispatches samples of the
+ * communicator), any number of reader threads read through {@link SampleWindow}s without locking.
+ * Every appended sample gets a sequence number; the buffer publishes the number of appended samples
+ * through a volatile counter after the sample has been written, so readers never see a sample before
+ * it is complete. Windows only cover the newest {@link #getReadableCapacity()} samples, which leaves a
+ * guard zone the writer has to fill up before it can overwrite a sample a reader has just been handed.
+ * Readers that hold on to a window for long can confirm the values they read with
+ * {@link SampleWindow#isValid()}.
+ */
+public final class SampleRingBuffer {
+
+    public static final int DEFAULT_CAPACITY = 1 << 15;  // 9 h at 1 Hz, 50 min at 11 Hz
+
+    private final int mask;
+    private final int readableCapacity;
+    private final long[] timestamps;            // [ms]
+    private final long[] deviceSequences;
+    private final long[] receivedAt;            // [ms]
+    private final float[] currentConsumption;   // [ml/s]
+    private final float[] averageConsumption;   // [ml/s]
+    private final float[] remainingPart;
+    private final int[] timeToEmpty;            // [s]
+
+    private volatile long writeSequence;        // number of samples ever appended
+
+    public SampleRingBuffer() {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     * @param capacity Number of samples kept, must be a power of two.
+     */
+    public SampleRingBuffer( int capacity ) {
+        if ( capacity < 16 || Integer.bitCount( capacity ) != 1 ) {
+            throw new IllegalArgumentException( "Capacity must be a power of two not smaller than 16: " + capacity );
+        }
+        mask = capacity - 1;
+        readableCapacity = capacity - capacity / 16;
+        timestamps = new long[capacity];
+        deviceSequences = new long[capacity];
+        receivedAt = new long[capacity];
+        currentConsumption = new float[capacity];
+        averageConsumption = new float[capacity];
+        remainingPart = new float[capacity];
+        timeToEmpty = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public int getReadableCapacity() {
+        return readableCapacity;
+    }
+
+    /**
+     * @return Sequence number the next appended sample will get, which is also the number of samples appended so far.
+     */
+    public long getWriteSequence() {
+        return writeSequence;
+    }
+
+    // Writer side
+
+    public void append( long timestamp, float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty ) {
+        append( timestamp, -1, timestamp, currentConsumption, averageConsumption, remainingPart, timeToEmpty );
+    }
+
+    public void append( long timestamp, long deviceSequence, long receivedAt, float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty ) {
+        long sequence = writeSequence;
+        int index = (int) sequence & mask;
+        this.timestamps[index] = timestamp;
+        this.deviceSequences[index] = deviceSequence;
+        this.receivedAt[index] = receivedAt;
+        this.currentConsumption[index] = currentConsumption;
+        this.averageConsumption[index] = averageConsumption;
+        this.remainingPart[index] = remainingPart;
+        this.timeToEmpty[index] = timeToEmpty;
+        writeSequence = sequence + 1;
+    }
+
+    public void append( HPBMDataBatch batch ) {
+        for ( int i = 0; i < batch.size(); i++ ) {
+            append( batch.getTimestamp( i ), batch.getDeviceSequence( i ), batch.getReceivedAt( i ), batch.getCurrentConsumption( i ), batch.getAverageConsumption( i ), batch.getRemainingPart( i ), batch.getTimeToEmpty( i ) );
+        }
+    }
+
+    // Reader side
+
+    /**
+     * Points the window at the newest samples.
+     *
+     * @return false if the buffer holds no samples yet
+     */
+    public boolean latest( int maxCount, SampleWindow window ) {
+        long end = writeSequence;
+        long start = Math.max( 0, end - Math.min( maxCount, readableCapacity ) );
+        window.set( this, start, (int) (end - start) );
+        return end > start;
+    }
+
+    /**
+     * Points the window at the samples appended since the given sequence number, oldest first. Samples
+     * that have already left the readable part of the buffer are skipped; compare
+     * {@link SampleWindow#getStartSequence()} with {@code sequence} to detect that.
+     *
+     * @return false if there are no new samples
+     */
+    public boolean since( long sequence, int maxCount, SampleWindow window ) {
+        long end = writeSequence;
+        long start = Math.max( sequence, end - readableCapacity );
+        if ( start < 0 ) start = 0;
+        int size = (int) Math.max( 0, Math.min( maxCount, end - start ) );
+        window.set( this, start, size );
+        return size > 0;
+    }
+
+    boolean isOverwritten( long sequence ) {
+        return writeSequence - sequence > mask;
+    }
+
+    long getTimestamp( long sequence ) {
+        return timestamps[(int) sequence & mask];
+    }
+
+    long getDeviceSequence( long sequence ) {
+        return deviceSequences[(int) sequence & mask];
+    }
+
+    long getReceivedAt( long sequence ) {
+        return receivedAt[(int) sequence & mask];
+    }
+
+    float getCurrentConsumption( long sequence ) {
+        return currentConsumption[(int) sequence & mask];
+    }
+
+    float getAverageConsumption( long sequence ) {
+        return averageConsumption[(int) sequence & mask];
+    }
+
+    float getRemainingPart( long sequence ) {
+        return remainingPart[(int) sequence & mask];
+    }
+
+    int getTimeToEmpty( long sequence ) {
+        return timeToEmpty[(int) sequence & mask];
+    }
+
+}
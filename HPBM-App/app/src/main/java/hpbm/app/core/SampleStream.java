@@ -0,0 +1,232 @@
+package hpbm.app.core;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Publish/subscribe distribution of samples to any number of handlers. {@link #publish(HPBMDataBatch)}
+ * only copies the samples into the pending queue of every subscription and hands the delivery to the
+ * subscription's executor, so a slow subscriber never holds up the publishing (radio) thread or the
+ * other subscribers. What happens to samples a subscriber cannot keep up with is decided by its
+ * {@link BackpressurePolicy}.
+ */
+public final class SampleStream {
+
+    private static final String TRACE_PUBLISH = "SampleStream.publish";
+    private static final String TRACE_DELIVER = "SampleStream.deliver";
+    private static final StreamSubscription[] NO_SUBSCRIPTIONS = new StreamSubscription[0];
+
+    private volatile StreamSubscription[] subscriptions = NO_SUBSCRIPTIONS;
+    private Subscription defaultSubscription;
+    private ExecutorService defaultExecutor;
+
+    public Subscription subscribe( HPBMDataHandler handler, SubscriptionOptions options ) {
+        StreamSubscription subscription = new StreamSubscription( handler, options );
+        synchronized ( this ) {
+            StreamSubscription[] current = subscriptions;
+            StreamSubscription[] updated = Arrays.copyOf( current, current.length + 1 );
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+        return subscription;
+    }
+
+    /**
+     * Single-slot subscription backing {@link Communicator#setDataHandler(HPBMDataHandler)}: replaces the
+     * handler set by the previous call. The handler gets every sample, in order, on a shared background thread.
+     */
+    public synchronized void setDefaultHandler( HPBMDataHandler handler ) {
+        if ( defaultSubscription != null ) {
+            defaultSubscription.cancel();
+            defaultSubscription = null;
+        }
+        if ( handler != null ) {
+            if ( defaultExecutor == null ) {
+                defaultExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread( runnable, "SampleStreamDispatch" );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                });
+            }
+            defaultSubscription = subscribe( handler, SubscriptionOptions.boundedBuffer( defaultExecutor, SubscriptionOptions.DEFAULT_CAPACITY ) );
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.length;
+    }
+
+    public void publish( HPBMDataBatch batch ) {
+        if ( batch.isEmpty() ) return;
+        StreamSubscription[] current = subscriptions;
+        if ( current.length == 0 ) return;
+        Tracer.begin( TRACE_PUBLISH );
+        try {
+            for ( int i = 0; i < current.length; i++ ) {
+                current[i].offer( batch );
+            }
+        } finally {
+            Tracer.end( TRACE_PUBLISH );
+        }
+    }
+
+    private synchronized void remove( StreamSubscription subscription ) {
+        StreamSubscription[] current = subscriptions;
+        for ( int i = 0; i < current.length; i++ ) {
+            if ( current[i] == subscription ) {
+                StreamSubscription[] updated = new StreamSubscription[current.length - 1];
+                System.arraycopy( current, 0, updated, 0, i );
+                System.arraycopy( current, i + 1, updated, i, current.length - i - 1 );
+                subscriptions = updated.length == 0 ? NO_SUBSCRIPTIONS : updated;
+                return;
+            }
+        }
+    }
+
+    private final class StreamSubscription implements Subscription, Runnable {
+
+        private final HPBMDataHandler handler;
+        private final BackpressurePolicy policy;
+        private final Executor executor;
+        private final int sampleInterval;
+        private final HPBMDataBatch delivery;
+
+        // Pending samples, a ring guarded by this
+        private final long[] timestamps;
+        private final long[] deviceSequences;
+        private final long[] deviceTimes;
+        private final long[] receivedAt;
+        private final float[] currentConsumption;
+        private final float[] averageConsumption;
+        private final float[] remainingPart;
+        private final int[] timeToEmpty;
+        private int head;
+        private int size;
+
+        private boolean scheduled;      // a delivery is queued on the executor or running
+        private long offeredSamples;
+        private long deliveredSamples;
+        private long droppedSamples;
+        private volatile boolean cancelled;
+
+        StreamSubscription( HPBMDataHandler handler, SubscriptionOptions options ) {
+            this.handler = handler;
+            this.policy = options.getPolicy();
+            this.executor = options.getExecutor();
+            this.sampleInterval = options.getSampleInterval();
+            int capacity = options.getCapacity();
+            this.delivery = new HPBMDataBatch( capacity );
+            this.timestamps = new long[capacity];
+            this.deviceSequences = new long[capacity];
+            this.deviceTimes = new long[capacity];
+            this.receivedAt = new long[capacity];
+            this.currentConsumption = new float[capacity];
+            this.averageConsumption = new float[capacity];
+            this.remainingPart = new float[capacity];
+            this.timeToEmpty = new int[capacity];
+        }
+
+        void offer( HPBMDataBatch batch ) {
+            boolean schedule;
+            synchronized ( this ) {
+                if ( cancelled ) return;
+                if ( policy == BackpressurePolicy.DROP && scheduled ) {
+                    droppedSamples += batch.size();
+                    return;
+                }
+                for ( int i = 0; i < batch.size(); i++ ) {
+                    if ( policy == BackpressurePolicy.SAMPLE_EVERY_N && offeredSamples++ % sampleInterval != 0 ) continue;
+                    if ( size == timestamps.length ) {
+                        if ( policy == BackpressurePolicy.DROP ) {
+                            droppedSamples += batch.size() - i;
+                            break;
+                        }
+                        // Make room by discarding the oldest pending sample
+                        head = (head + 1) % timestamps.length;
+                        size--;
+                        droppedSamples++;
+                    }
+                    int tail = (head + size) % timestamps.length;
+                    timestamps[tail] = batch.getTimestamp( i );
+                    deviceSequences[tail] = batch.getDeviceSequence( i );
+                    deviceTimes[tail] = batch.getDeviceTime( i );
+                    receivedAt[tail] = batch.getReceivedAt( i );
+                    currentConsumption[tail] = batch.getCurrentConsumption( i );
+                    averageConsumption[tail] = batch.getAverageConsumption( i );
+                    remainingPart[tail] = batch.getRemainingPart( i );
+                    timeToEmpty[tail] = batch.getTimeToEmpty( i );
+                    size++;
+                }
+                schedule = size > 0 && !scheduled;
+                if ( schedule ) scheduled = true;
+            }
+            if ( schedule ) {
+                executor.execute( this );
+            }
+        }
+
+        @Override
+        public void run() {
+            while ( true ) {
+                synchronized ( this ) {
+                    if ( cancelled || size == 0 ) {
+                        scheduled = false;
+                        return;
+                    }
+                    delivery.clear();
+                    while ( size > 0 ) {
+                        delivery.add( timestamps[head], deviceSequences[head], deviceTimes[head], receivedAt[head],
+                            currentConsumption[head], averageConsumption[head], remainingPart[head], timeToEmpty[head] );
+                        head = (head + 1) % timestamps.length;
+                        size--;
+                    }
+                }
+
+                boolean completed = false;
+                Tracer.begin( TRACE_DELIVER );
+                try {
+                    handler.onBatchReceived( delivery );
+                    completed = true;
+                } finally {
+                    Tracer.end( TRACE_DELIVER );
+                    synchronized ( this ) {
+                        deliveredSamples += delivery.size();
+                        if ( !completed ) scheduled = false;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized ( this ) {
+                cancelled = true;
+                size = 0;
+            }
+            remove( this );
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized long getDeliveredSamples() {
+            return deliveredSamples;
+        }
+
+        @Override
+        public synchronized long getDroppedSamples() {
+            return droppedSamples;
+        }
+
+    }
+
+}
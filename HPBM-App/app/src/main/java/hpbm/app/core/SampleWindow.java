@@ -0,0 +1,86 @@
+package hpbm.app.core;
+
+/**
+ * Zero-copy view of consecutive samples in a {@link SampleRingBuffer}, oldest first. A window is owned
+ * by a single reader and can be reused for any number of reads.
+ */
+public final class SampleWindow {
+
+    private SampleRingBuffer buffer;
+    private long startSequence;
+    private int size;
+
+    void set( SampleRingBuffer buffer, long startSequence, int size ) {
+        this.buffer = buffer;
+        this.startSequence = startSequence;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getStartSequence() {
+        return startSequence;
+    }
+
+    public long getEndSequence() {
+        return startSequence + size;
+    }
+
+    /**
+     * @return false if the writer has wrapped around and may have overwritten some of the samples of this window
+     */
+    public boolean isValid() {
+        return size == 0 || !buffer.isOverwritten( startSequence );
+    }
+
+    public long getSequence( int index ) {
+        checkIndex( index );
+        return startSequence + index;
+    }
+
+    public long getTimestamp( int index ) {
+        checkIndex( index );
+        return buffer.getTimestamp( startSequence + index );
+    }
+
+    public long getDeviceSequence( int index ) {  // -1 if the device does not number its samples
+        checkIndex( index );
+        return buffer.getDeviceSequence( startSequence + index );
+    }
+
+    public long getReceivedAt( int index ) {
+        checkIndex( index );
+        return buffer.getReceivedAt( startSequence + index );
+    }
+
+    public float getCurrentConsumption( int index ) {
+        checkIndex( index );
+        return buffer.getCurrentConsumption( startSequence + index );
+    }
+
+    public float getAverageConsumption( int index ) {
+        checkIndex( index );
+        return buffer.getAverageConsumption( startSequence + index );
+    }
+
+    public float getRemainingPart( int index ) {
+        checkIndex( index );
+        return buffer.getRemainingPart( startSequence + index );
+    }
+
+    public int getTimeToEmpty( int index ) {
+        checkIndex( index );
+        return buffer.getTimeToEmpty( startSequence + index );
+    }
+
+    private void checkIndex( int index ) {
+        if ( index < 0 || index >= size ) throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+    }
+
+}
@@ -0,0 +1,152 @@
+package hpbm.app.core;
+
+import java.util.EnumSet;
+
+/**
+ * Gets the phone ready to scan for devices. All prerequisites are checked at once when the user asks for
+ * devices. If some are missing the user gets one explanation for all of them, then the prompts for all of
+ * them, and every answer re-checks everything: the scan starts the moment nothing is missing, whatever
+ * prompts are still open.
+ *
+ * The platform side of checking, prompting and scanning is the {@link Environment}'s. Answers to prompts
+ * the current run has not made are ignored, so a cancelled or restarted run cannot start a scan.
+ */
+public final class ScanSetup {
+
+    public enum Prerequisite {
+        BLUETOOTH_HARDWARE,     // cannot be prompted for, its absence fails the setup
+        BLUETOOTH_ENABLED,
+        LOCATION_SERVICE,       // scanning needs it from Android 6.0
+        LOCATION_PERMISSION     // scanning needs it from Android 6.0
+    }
+
+    public enum State { IDLE, EXPLAINING, PROMPTING, SCANNING, FAILED, CANCELLED }
+
+    public interface Environment {
+        boolean isSatisfied( Prerequisite prerequisite );
+
+        /**
+         * Tells the user why the prerequisites are needed, if any of them needs telling, and runs proceed
+         * once the user read it.
+         */
+        void explain( EnumSet<Prerequisite> missing, Runnable proceed );
+
+        /**
+         * Asks the platform to fix the prerequisite. The answer comes back through {@link #onPromptAnswered}.
+         */
+        void prompt( Prerequisite prerequisite );
+
+        void startScan();
+
+        void onSetupFailed( Prerequisite prerequisite );
+    }
+
+    private final Environment environment;
+    private final EnumSet<Prerequisite> missing = EnumSet.noneOf( Prerequisite.class );
+    private final EnumSet<Prerequisite> prompted = EnumSet.noneOf( Prerequisite.class );
+    private State state = State.IDLE;
+    private int run;
+    private long startedAt;                 // [ns]
+    private long lastSetupMillis = -1;      // [ms] from start to the scan of the last run that got there
+
+    public ScanSetup( Environment environment ) {
+        this.environment = environment;
+    }
+
+    /**
+     * Starts over, a run in progress is abandoned.
+     */
+    public synchronized void start() {
+        run++;
+        startedAt = System.nanoTime();
+        prompted.clear();
+        state = State.IDLE;
+        evaluate();
+        if ( state != State.IDLE ) return;
+
+        final int thisRun = run;
+        state = State.EXPLAINING;
+        environment.explain( EnumSet.copyOf( missing ), new Runnable() {
+            @Override
+            public void run() {
+                onExplained( thisRun );
+            }
+        } );
+    }
+
+    public synchronized void cancel() {
+        run++;
+        prompted.clear();
+        if ( state != State.SCANNING && state != State.FAILED ) {
+            state = State.CANCELLED;
+        }
+    }
+
+    /**
+     * Called once the platform answered a prompt, whether or not it fixed the prerequisite.
+     */
+    public synchronized void onPromptAnswered( Prerequisite prerequisite ) {
+        if ( state != State.PROMPTING || !prompted.remove( prerequisite ) ) return;
+        evaluate();
+        if ( state == State.PROMPTING && missing.contains( prerequisite ) ) {
+            fail( prerequisite );
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized EnumSet<Prerequisite> getMissing() {
+        return EnumSet.copyOf( missing );
+    }
+
+    /**
+     * @return [ms] from {@link #start()} to the scan of the last run that got there, -1 if none did
+     */
+    public synchronized long getLastSetupMillis() {
+        return lastSetupMillis;
+    }
+
+    private synchronized void onExplained( int thisRun ) {
+        if ( thisRun != run || state != State.EXPLAINING ) return;
+        evaluate();
+        if ( state != State.EXPLAINING ) return;
+
+        state = State.PROMPTING;
+        prompted.addAll( missing );
+        for ( Prerequisite prerequisite : EnumSet.copyOf( missing ) ) {
+            // An answer given right away may already have finished the run
+            if ( thisRun != run || state != State.PROMPTING ) return;
+            environment.prompt( prerequisite );
+        }
+    }
+
+    /**
+     * Re-checks every prerequisite, starts the scan when none is missing and fails when one cannot be fixed.
+     * Otherwise the state stays.
+     */
+    private void evaluate() {
+        missing.clear();
+        for ( Prerequisite prerequisite : Prerequisite.values() ) {
+            if ( !environment.isSatisfied( prerequisite ) ) {
+                missing.add( prerequisite );
+            }
+        }
+        if ( missing.contains( Prerequisite.BLUETOOTH_HARDWARE ) ) {
+            fail( Prerequisite.BLUETOOTH_HARDWARE );
+        } else if ( missing.isEmpty() ) {
+            state = State.SCANNING;
+            prompted.clear();
+            lastSetupMillis = (System.nanoTime() - startedAt) / 1000000;
+            environment.startScan();
+        }
+    }
+
+    private void fail( Prerequisite prerequisite ) {
+        state = State.FAILED;
+        prompted.clear();
+        environment.onSetupFailed( prerequisite );
+    }
+
+}
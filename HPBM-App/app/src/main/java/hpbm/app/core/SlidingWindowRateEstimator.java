@@ -0,0 +1,52 @@
+package hpbm.app.core;
+
+/**
+ * Average rate over the last N samples. Keeps running sums over a fixed ring, so an update costs the
+ * same no matter how wide the window is.
+ */
+public final class SlidingWindowRateEstimator implements RateEstimator {
+
+    private final float[] consumed;     // [ml]
+    private final int[] intervals;      // [ms]
+    private int next;
+    private int count;
+    private double windowConsumed;      // [ml]
+    private long windowMillis;          // [ms]
+
+    public SlidingWindowRateEstimator( int windowSamples ) {
+        if ( windowSamples <= 0 ) {
+            throw new IllegalArgumentException( "Window must hold at least one sample: " + windowSamples );
+        }
+        this.consumed = new float[windowSamples];
+        this.intervals = new int[windowSamples];
+    }
+
+    @Override
+    public void reset() {
+        next = 0;
+        count = 0;
+        windowConsumed = 0;
+        windowMillis = 0;
+    }
+
+    @Override
+    public void addSample(float consumed, int intervalMillis) {
+        if ( count == this.consumed.length ) {
+            windowConsumed -= this.consumed[next];
+            windowMillis -= intervals[next];
+        } else {
+            count++;
+        }
+        this.consumed[next] = consumed;
+        intervals[next] = intervalMillis;
+        windowConsumed += consumed;
+        windowMillis += intervalMillis;
+        next = (next + 1) % this.consumed.length;
+    }
+
+    @Override
+    public float getRate() {
+        return windowMillis > 0 ? (float) (1000.0 * windowConsumed / windowMillis) : Float.NaN;
+    }
+
+}
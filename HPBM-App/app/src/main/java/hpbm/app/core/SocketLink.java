@@ -0,0 +1,294 @@
+package hpbm.app.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Talks the device's line protocol over a non-blocking TCP connection, on a thread of its own. Every
+ * line the device sends is handed to the listener like a notification payload, without its line end
+ * ("\n" or "\r\n"). When the listener cannot take a line the link stops reading until it can: the
+ * socket's buffers fill up and TCP throttles the device, where a radio link would have dropped
+ * notifications.
+ * Commands are written in the order they were sent and their buffers go back to the pool.
+ */
+public final class SocketLink {
+
+    public interface Listener {
+        void onConnected();
+        /**
+         * @return false when the line cannot be taken right now, it is offered again shortly
+         */
+        boolean onLine( byte[] data, int offset, int length, long receivedAt );  // [ms]
+        void onDisconnected( IOException cause );  // null when the device closed the connection or the link was closed
+    }
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = IngestionThread.DEFAULT_MAX_PAYLOAD_SIZE;
+    public static final long CONNECT_TIMEOUT = 5000;   // [ms]
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long RETRY_MILLIS = 2;         // [ms] until a refused line is offered again
+    private static final byte LINE_END = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final CommandBufferPool pool;
+    private final Listener listener;
+    private final int maxLineLength;
+    private final Queue<CommandBuffer> commands = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate( READ_BUFFER_SIZE );
+    private final ByteBuffer writeBuffer;
+    private volatile Thread thread;
+    private volatile Selector selector;
+    private volatile boolean running;
+    private volatile boolean connected;
+    // Written by the link thread only
+    private int lineStart;
+    private int scanned;
+    private boolean discarding;     // of a line that outgrew the read buffer
+    private boolean stalled;
+    private volatile long receivedBytes;
+    private volatile long receivedLines;
+    private volatile long oversizedLines;
+    private volatile long stalls;
+
+    public SocketLink( String name, String host, int port, CommandBufferPool pool, Listener listener ) {
+        this( name, host, port, pool, listener, DEFAULT_MAX_LINE_LENGTH );
+    }
+
+    /**
+     * @param maxLineLength Longer lines are skipped and counted, at most the read buffer's size.
+     */
+    public SocketLink( String name, String host, int port, CommandBufferPool pool, Listener listener, int maxLineLength ) {
+        if ( maxLineLength > READ_BUFFER_SIZE ) {
+            throw new IllegalArgumentException( "Lines longer than the read buffer: " + maxLineLength );
+        }
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.pool = pool;
+        this.listener = listener;
+        this.maxLineLength = maxLineLength;
+        this.writeBuffer = ByteBuffer.allocate( pool.getBufferCapacity() );
+        writeBuffer.limit( 0 );
+    }
+
+    /**
+     * Connects in the background, the listener learns the outcome. The host name is resolved there too.
+     */
+    public synchronized void connect() {
+        if ( running ) return;
+        running = true;
+        Thread t = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, name );
+        t.setDaemon( true );
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Drops the connection and waits for the link thread, unless called from it. Queued commands are released unsent.
+     */
+    public void close() {
+        Thread t;
+        synchronized ( this ) {
+            if ( !running ) return;
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        Selector s = selector;
+        if ( s != null ) {
+            s.wakeup();
+        }
+        if ( t == Thread.currentThread() ) return;
+        try {
+            t.join();
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Queues the command and returns, its buffer goes back to the pool once written.
+     *
+     * @return false if not connected, the buffer is released right away
+     */
+    public boolean send( CommandBuffer command ) {
+        Selector s = selector;
+        if ( !connected || s == null ) {
+            pool.release( command );
+            return false;
+        }
+        commands.add( command );
+        s.wakeup();
+        return true;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public long getReceivedLines() {
+        return receivedLines;
+    }
+
+    public long getOversizedLines() {
+        return oversizedLines;
+    }
+
+    /**
+     * @return How often reading paused because the listener refused a line
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    private void runLoop() {
+        IOException failure = null;
+        SocketChannel channel = null;
+        try {
+            selector = Selector.open();
+            channel = SocketChannel.open();
+            channel.configureBlocking( false );
+            channel.socket().setTcpNoDelay( true );
+            channel.connect( new InetSocketAddress( host, port ) );
+            SelectionKey key = channel.register( selector, SelectionKey.OP_CONNECT );
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            while ( running && !connected ) {
+                long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 ) throw new ConnectException( "Timed out connecting to " + host + ":" + port );
+                selector.select( remaining );
+                if ( key.isValid() && key.isConnectable() && channel.finishConnect() ) {
+                    connected = true;
+                }
+            }
+            if ( connected ) {
+                resetReadBuffer();
+                listener.onConnected();
+            }
+            while ( running ) {
+                key.interestOps( (stalled ? 0 : SelectionKey.OP_READ) | (writeBuffer.hasRemaining() ? SelectionKey.OP_WRITE : 0) );
+                selector.select( stalled ? RETRY_MILLIS : 0 );
+                selector.selectedKeys().clear();
+                if ( stalled ) {
+                    deliverLines( System.currentTimeMillis() );
+                }
+                if ( !stalled && !read( channel ) ) break;
+                write( channel );
+            }
+        } catch ( IOException ex ) {
+            failure = ex;
+        } finally {
+            connected = false;
+            running = false;
+            closeQuietly( channel );
+            closeQuietly( selector );
+            CommandBuffer command;
+            while ( (command = commands.poll()) != null ) {
+                pool.release( command );
+            }
+            writeBuffer.limit( 0 );
+        }
+        listener.onDisconnected( failure );
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean read( SocketChannel channel ) throws IOException {
+        int count;
+        while ( (count = channel.read( readBuffer )) > 0 ) {
+            receivedBytes += count;
+            deliverLines( System.currentTimeMillis() );
+            if ( stalled ) return true;
+        }
+        return count == 0;
+    }
+
+    /**
+     * Hands the complete lines in the read buffer to the listener and makes room for more.
+     */
+    private void deliverLines( long now ) {
+        byte[] data = readBuffer.array();
+        int end = readBuffer.position();
+        stalled = false;
+        for ( ; scanned < end; scanned++ ) {
+            if ( data[scanned] != LINE_END ) continue;
+            int length = scanned - lineStart;
+            if ( length > 0 && data[scanned - 1] == CARRIAGE_RETURN ) length--;
+            if ( discarding || length > maxLineLength ) {
+                oversizedLines++;
+                discarding = false;
+            } else if ( length > 0 ) {
+                if ( !listener.onLine( data, lineStart, length, now ) ) {
+                    stalled = true;
+                    stalls++;
+                    break;
+                }
+                receivedLines++;
+            }
+            lineStart = scanned + 1;
+        }
+        if ( lineStart > 0 ) {
+            // Keep the partial line, or the refused one, at the start of the buffer
+            System.arraycopy( data, lineStart, data, 0, end - lineStart );
+            readBuffer.position( end - lineStart );
+            scanned -= lineStart;
+            lineStart = 0;
+        } else if ( !stalled && !readBuffer.hasRemaining() ) {
+            // A line that does not fit, counted once its end arrives. A refused line filling the buffer waits instead.
+            discarding = true;
+            resetReadBuffer();
+        }
+    }
+
+    private void write( SocketChannel channel ) throws IOException {
+        while ( true ) {
+            if ( !writeBuffer.hasRemaining() ) {
+                CommandBuffer command = commands.poll();
+                if ( command == null ) return;
+                writeBuffer.clear();
+                writeBuffer.put( command.getData(), 0, command.getLength() );
+                writeBuffer.flip();
+                pool.release( command );
+            }
+            channel.write( writeBuffer );
+            if ( writeBuffer.hasRemaining() ) return;  // the socket is full, continued when it is writable
+        }
+    }
+
+    private void resetReadBuffer() {
+        readBuffer.clear();
+        lineStart = 0;
+        scanned = 0;
+        stalled = false;
+    }
+
+    private static void closeQuietly( Closeable closeable ) {
+        if ( closeable == null ) return;
+        try {
+            closeable.close();
+        } catch ( IOException ex ) {
+            // Nothing left to do with it
+        }
+    }
+
+}
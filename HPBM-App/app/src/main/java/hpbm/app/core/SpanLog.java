@@ -0,0 +1,160 @@
+package hpbm.app.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Lightweight span log that records trace sections into a preallocated ring and writes them to a file
+ * from a background thread. The file uses the Chrome trace event format, so it can be opened directly
+ * in chrome://tracing or the Perfetto UI on a desktop. Events that do not fit into the ring before the
+ * writer drains it are dropped and counted.
+ */
+public final class SpanLog implements Tracer.Sink {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final long FLUSH_INTERVAL = 500; // [ms]
+
+    private final File file;
+    private final String[] names;
+    private final long[] timestamps;    // [us]
+    private final long[] threadIds;
+    private final boolean[] begins;
+    private final long originNanos = System.nanoTime();
+
+    private int head;
+    private int size;
+    private long droppedEvents;
+    private boolean running;
+    private Thread writerThread;
+
+    public SpanLog( File file ) {
+        this( file, DEFAULT_CAPACITY );
+    }
+
+    public SpanLog( File file, int capacity ) {
+        this.file = file;
+        this.names = new String[capacity];
+        this.timestamps = new long[capacity];
+        this.threadIds = new long[capacity];
+        this.begins = new boolean[capacity];
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    public synchronized void start() throws IOException {
+        if ( running ) return;
+        final Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), Charset.forName( "UTF-8" ) ) );
+        writer.write( "[\n" );
+        running = true;
+        writerThread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                writeLoop( writer );
+            }
+        }, "SpanLogWriter" );
+        writerThread.setDaemon( true );
+        writerThread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized ( this ) {
+            if ( !running ) return;
+            running = false;
+            thread = writerThread;
+            writerThread = null;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void beginSection(String name) {
+        record( name, true );
+    }
+
+    @Override
+    public void endSection(String name) {
+        record( name, false );
+    }
+
+    private void record( String name, boolean begin ) {
+        long timestamp = (System.nanoTime() - originNanos) / 1000;
+        long threadId = Thread.currentThread().getId();
+        synchronized ( this ) {
+            if ( size == names.length ) {
+                droppedEvents++;
+                return;
+            }
+            int index = (head + size) % names.length;
+            names[index] = name;
+            timestamps[index] = timestamp;
+            threadIds[index] = threadId;
+            begins[index] = begin;
+            size++;
+        }
+    }
+
+    private void writeLoop( Writer writer ) {
+        StringBuilder line = new StringBuilder( 128 );
+        try {
+            boolean keepRunning = true;
+            while ( keepRunning ) {
+                synchronized ( this ) {
+                    if ( running ) {
+                        try {
+                            wait( FLUSH_INTERVAL );
+                        } catch ( InterruptedException ex ) {
+                            running = false;
+                        }
+                    }
+                    keepRunning = running;
+                }
+                drain( writer, line );
+                writer.flush();
+            }
+        } catch ( IOException ex ) {
+            synchronized ( this ) {
+                running = false;
+            }
+        } finally {
+            try {
+                writer.close();
+            } catch ( IOException ignored ) {}
+        }
+    }
+
+    private void drain( Writer writer, StringBuilder line ) throws IOException {
+        while ( true ) {
+            synchronized ( this ) {
+                if ( size == 0 ) return;
+                line.setLength( 0 );
+                line.append( "{\"name\":\"" ).append( names[head] )
+                    .append( "\",\"ph\":\"" ).append( begins[head] ? 'B' : 'E' )
+                    .append( "\",\"ts\":" ).append( timestamps[head] )
+                    .append( ",\"pid\":1,\"tid\":" ).append( threadIds[head] )
+                    .append( "},\n" );
+                names[head] = null;
+                head = (head + 1) % names.length;
+                size--;
+            }
+            writer.append( line );
+        }
+    }
+
+}
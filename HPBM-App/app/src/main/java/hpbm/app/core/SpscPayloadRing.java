@@ -0,0 +1,107 @@
+package hpbm.app.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer/single-consumer ring of raw notification payloads. The producer copies a
+ * payload into the next free slot and never blocks or allocates: when the ring is full the payload is
+ * dropped and counted. The consumer reads a slot in place and releases it when done.
+ */
+public final class SpscPayloadRing {
+
+    private final int mask;
+    private final byte[][] payloads;
+    private final int[] channels;
+    private final int[] lengths;
+    private final long[] timestamps;        // [ms]
+    private final AtomicLong head = new AtomicLong();   // next slot to write, advanced by the producer only
+    private final AtomicLong tail = new AtomicLong();   // next slot to read, advanced by the consumer only
+    private final AtomicLong droppedPayloads = new AtomicLong();
+
+    /**
+     * @param slots Number of payloads the ring holds, must be a power of two.
+     * @param maxPayloadSize Larger payloads are dropped.
+     */
+    public SpscPayloadRing( int slots, int maxPayloadSize ) {
+        if ( slots < 2 || Integer.bitCount( slots ) != 1 ) {
+            throw new IllegalArgumentException( "Slot count must be a power of two: " + slots );
+        }
+        mask = slots - 1;
+        payloads = new byte[slots][maxPayloadSize];
+        channels = new int[slots];
+        lengths = new int[slots];
+        timestamps = new long[slots];
+    }
+
+    public int getMaxPayloadSize() {
+        return payloads[0].length;
+    }
+
+    public long getDroppedPayloads() {
+        return droppedPayloads.get();
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    // Producer side
+
+    /**
+     * @return true when the next offer would be dropped for lack of a free slot
+     */
+    public boolean isFull() {
+        return head.get() - tail.get() > mask;
+    }
+
+    /**
+     * @param channel Tells the consumer where the payload came from, e.g. which characteristic
+     */
+    public boolean offer( int channel, byte[] payload, int offset, int length, long timestamp ) {
+        long h = head.get();
+        if ( h - tail.get() > mask || length > payloads[0].length ) {
+            droppedPayloads.incrementAndGet();
+            return false;
+        }
+        int slot = (int) h & mask;
+        System.arraycopy( payload, offset, payloads[slot], 0, length );
+        channels[slot] = channel;
+        lengths[slot] = length;
+        timestamps[slot] = timestamp;
+        // Publishes the slot content. A full volatile write, not lazySet: a consumer announcing it is about to
+        // park must see it, or the producer must see the announcement, see IngestionThread
+        head.set( h + 1 );
+        return true;
+    }
+
+    // Consumer side
+
+    /**
+     * @return Slot holding the oldest payload or -1 if the ring is empty. The slot stays valid until {@link #release()}.
+     */
+    public int peek() {
+        long t = tail.get();
+        return t == head.get() ? -1 : (int) t & mask;
+    }
+
+    public int getChannel( int slot ) {
+        return channels[slot];
+    }
+
+    public byte[] getPayload( int slot ) {
+        return payloads[slot];
+    }
+
+    public int getLength( int slot ) {
+        return lengths[slot];
+    }
+
+    public long getTimestamp( int slot ) {
+        return timestamps[slot];
+    }
+
+    public void release() {
+        tail.lazySet( tail.get() + 1 );
+    }
+
+}
@@ -0,0 +1,11 @@
+package hpbm.app.core;
+
+/**
+ * Handle of a handler subscribed to a {@link SampleStream}.
+ */
+public interface Subscription {
+    void cancel();
+    boolean isCancelled();
+    long getDeliveredSamples();
+    long getDroppedSamples();    // discarded by the backpressure policy
+}
@@ -0,0 +1,60 @@
+package hpbm.app.core;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Delivery settings of a {@link SampleStream} subscription: the backpressure policy and the executor the
+ * handler is called on. Deliveries of one subscription never overlap, so any executor can be used.
+ */
+public final class SubscriptionOptions {
+
+    public static final int DEFAULT_CAPACITY = 256;  // [samples]
+
+    private final BackpressurePolicy policy;
+    private final Executor executor;
+    private final int capacity;
+    private final int sampleInterval;
+
+    private SubscriptionOptions( BackpressurePolicy policy, Executor executor, int capacity, int sampleInterval ) {
+        if ( executor == null ) throw new IllegalArgumentException( "Executor must not be null" );
+        if ( capacity <= 0 ) throw new IllegalArgumentException( "Capacity must be positive: " + capacity );
+        if ( sampleInterval <= 0 ) throw new IllegalArgumentException( "Sample interval must be positive: " + sampleInterval );
+        this.policy = policy;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.sampleInterval = sampleInterval;
+    }
+
+    public static SubscriptionOptions keepLatest( Executor executor ) {
+        return new SubscriptionOptions( BackpressurePolicy.KEEP_LATEST, executor, 1, 1 );
+    }
+
+    public static SubscriptionOptions boundedBuffer( Executor executor, int capacity ) {
+        return new SubscriptionOptions( BackpressurePolicy.BOUNDED_BUFFER, executor, capacity, 1 );
+    }
+
+    public static SubscriptionOptions sampleEveryN( Executor executor, int n, int capacity ) {
+        return new SubscriptionOptions( BackpressurePolicy.SAMPLE_EVERY_N, executor, capacity, n );
+    }
+
+    public static SubscriptionOptions drop( Executor executor, int capacity ) {
+        return new SubscriptionOptions( BackpressurePolicy.DROP, executor, capacity, 1 );
+    }
+
+    public BackpressurePolicy getPolicy() {
+        return policy;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+}
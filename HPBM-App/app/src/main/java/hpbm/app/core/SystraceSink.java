@@ -0,0 +1,24 @@
+package hpbm.app.core;
+
+import android.os.Trace;
+
+/**
+ * Forwards trace sections to the platform tracer, so they show up in systrace / Perfetto captures.
+ */
+public final class SystraceSink implements Tracer.Sink {
+
+    public static final SystraceSink INSTANCE = new SystraceSink();
+
+    private SystraceSink() {}
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection( name );
+    }
+
+    @Override
+    public void endSection(String name) {
+        Trace.endSection();
+    }
+
+}
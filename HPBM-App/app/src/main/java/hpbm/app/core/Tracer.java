@@ -0,0 +1,64 @@
+package hpbm.app.core;
+
+import java.util.Arrays;
+
+/**
+ * Named trace sections around the expensive stages of the app (BLE, parsing, dispatch, rendering).
+ * When no sink is installed a section costs a single volatile read, so calls can stay in hot paths.
+ * Section names must be compile-time constants to keep tracing allocation free.
+ */
+public final class Tracer {
+
+    public interface Sink {
+        void beginSection( String name );
+        void endSection( String name );
+    }
+
+    private static final Sink[] NO_SINKS = new Sink[0];
+
+    private static volatile Sink[] sinks = NO_SINKS;
+
+    private Tracer() {}
+
+    public static boolean isEnabled() {
+        return sinks.length > 0;
+    }
+
+    public static void begin( String name ) {
+        Sink[] current = sinks;
+        for ( int i = 0; i < current.length; i++ ) {
+            current[i].beginSection( name );
+        }
+    }
+
+    public static void end( String name ) {
+        Sink[] current = sinks;
+        for ( int i = current.length - 1; i >= 0; i-- ) {
+            current[i].endSection( name );
+        }
+    }
+
+    public static synchronized void addSink( Sink sink ) {
+        Sink[] current = sinks;
+        for ( Sink s : current ) {
+            if ( s == sink ) return;
+        }
+        Sink[] updated = Arrays.copyOf( current, current.length + 1 );
+        updated[current.length] = sink;
+        sinks = updated;
+    }
+
+    public static synchronized void removeSink( Sink sink ) {
+        Sink[] current = sinks;
+        for ( int i = 0; i < current.length; i++ ) {
+            if ( current[i] == sink ) {
+                Sink[] updated = new Sink[current.length - 1];
+                System.arraycopy( current, 0, updated, 0, i );
+                System.arraycopy( current, i + 1, updated, i, current.length - i - 1 );
+                sinks = updated.length == 0 ? NO_SINKS : updated;
+                return;
+            }
+        }
+    }
+
+}
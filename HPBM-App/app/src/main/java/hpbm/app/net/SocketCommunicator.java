@@ -0,0 +1,256 @@
+package hpbm.app.net;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import hpbm.app.ble.BluetoothDeviceInfo;
+import hpbm.app.core.AlertEngine;
+import hpbm.app.core.CommandBuffer;
+import hpbm.app.core.CommandBufferPool;
+import hpbm.app.core.CommandCallback;
+import hpbm.app.core.CommandChannel;
+import hpbm.app.core.CommandFailure;
+import hpbm.app.core.CommandType;
+import hpbm.app.core.Communicator;
+import hpbm.app.core.DevicePipeline;
+import hpbm.app.core.HPBMDataHandler;
+import hpbm.app.core.HPBMDevicesDiscoveryHandler;
+import hpbm.app.core.IngestionThread;
+import hpbm.app.core.LatencyHistogram;
+import hpbm.app.core.LinkStatistics;
+import hpbm.app.core.MessageInterpreter;
+import hpbm.app.core.ReportMode;
+import hpbm.app.core.SampleRingBuffer;
+import hpbm.app.core.SocketLink;
+import hpbm.app.core.Subscription;
+import hpbm.app.core.SubscriptionOptions;
+import hpbm.app.storage.LastKnownState;
+
+/**
+ * Talks to devices emulated on a desktop (see the tools' DeviceEmulator) over TCP instead of BLE. Each
+ * device listens on a port of its own, counting up from the first one, and its address is "host:port".
+ * The lines it sends go through the same {@link DevicePipeline} as BLE notifications; while ingestion
+ * is behind, the socket is not read and the device is held back by TCP. The device reports derived
+ * values only, sessions are not stored.
+ */
+public class SocketCommunicator implements Communicator {
+
+    public static final int DEFAULT_PORT = 7070;
+    public static final String EMULATOR_HOST = "10.0.2.2";     // the desktop, seen from the Android emulator
+
+    private static final String TAG = SocketCommunicator.class.getSimpleName();
+
+    private final String host;
+    private final int firstPort;
+    private final int deviceCount;
+    private final CommandBufferPool commandPool = new CommandBufferPool();
+    private final DevicePipeline pipeline;
+    private volatile LastKnownState lastKnownState;
+    private volatile SocketLink link;
+    private final CommandCallback reportModeCallback = new CommandCallback() {
+        @Override
+        public void onCommandAcknowledged(CommandType type, long latencyMillis) {
+            Log.d(TAG, "Report mode confirmed after " + latencyMillis + " ms.");
+        }
+
+        @Override
+        public void onCommandFailed(CommandType type, CommandFailure failure) {
+            Log.w(TAG, "Report mode not confirmed: " + failure);
+        }
+    };
+    private final SocketLink.Listener linkListener = new SocketLink.Listener() {
+        @Override
+        public void onConnected() {
+            Log.d(TAG, "Connected.");
+            pipeline.startSession(reportModeCallback);
+        }
+
+        @Override
+        public boolean onLine(byte[] data, int offset, int length, long receivedAt) {
+            // Refusing the line holds the device back, offering it anyway would drop it
+            IngestionThread ingestionThread = pipeline.getIngestionThread();
+            if ( ingestionThread.isFull() ) return false;
+            ingestionThread.offer(DevicePipeline.CHANNEL_MESSAGES, data, offset, length, receivedAt);
+            return true;
+        }
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            if ( cause != null ) {
+                Log.w(TAG, "Connection failed.", cause);
+            }
+            Log.d(TAG, "Disconnected. Link: " + pipeline.getLinkStatistics());
+            // Called on the link's reader thread, which no longer offers lines
+            pipeline.endSession();
+        }
+    };
+
+    public SocketCommunicator(MessageInterpreter messageInterpreter) {
+        this(messageInterpreter, EMULATOR_HOST, DEFAULT_PORT, 1);
+    }
+
+    /**
+     * @param deviceCount Devices listed, on the ports from the first one up
+     */
+    public SocketCommunicator(MessageInterpreter messageInterpreter, String host, int firstPort, int deviceCount) {
+        this.host = host;
+        this.firstPort = firstPort;
+        this.deviceCount = deviceCount;
+        this.pipeline = new DevicePipeline("HPBMIngestion", messageInterpreter, null, ReportMode.DERIVED, commandPool, new CommandChannel.Transport() {
+            @Override
+            public boolean send(CommandBuffer command) {
+                SocketLink current = link;
+                if ( current == null ) {
+                    commandPool.release(command);
+                    return false;
+                }
+                return current.send(command);
+            }
+        });
+    }
+
+    @Override
+    public void setDataHandler(HPBMDataHandler dataHandler) {
+        pipeline.setDataHandler(dataHandler);
+    }
+
+    @Override
+    public Subscription subscribe(HPBMDataHandler handler, SubscriptionOptions options) {
+        return pipeline.subscribe(handler, options);
+    }
+
+    @Override
+    public SampleRingBuffer getSampleBuffer() {
+        return pipeline.getSampleBuffer();
+    }
+
+    @Override
+    public boolean onRequestPermissionsResult(Activity hostActivity, int requestCode, String[] permissions, int[] grantResults) {
+        return false;
+    }
+
+    @Override
+    public boolean onActivityResult(Activity hostActivity, int requestCode, int resultCode, Intent intent) {
+        return false;
+    }
+
+    /**
+     * Lists the configured ports without probing them, connecting tells whether a device is there.
+     */
+    @Override
+    public void listAvailableDevices(Activity hostActivity, HPBMDevicesDiscoveryHandler handler) {
+        for ( int i = 0; i < deviceCount; i++ ) {
+            int port = firstPort + i;
+            handler.onDeviceDiscovered(new BluetoothDeviceInfo(host + ":" + port, "HPBM-Device #" + (i + 1) + " (emulated)"));
+        }
+        handler.onDeviceDiscoveryCompleted();
+    }
+
+    @Override
+    public boolean connect(Activity hostActivity, String hpbmDeviceAddress) {
+        int colon = hpbmDeviceAddress != null ? hpbmDeviceAddress.lastIndexOf(':') : -1;
+        int port = -1;
+        if ( colon > 0 ) {
+            try {
+                port = Integer.parseInt(hpbmDeviceAddress.substring(colon + 1));
+            } catch (NumberFormatException ex) {
+                port = -1;
+            }
+        }
+        if ( port <= 0 || port > 0xffff ) {
+            Log.w(TAG, "Not a host:port address: " + hpbmDeviceAddress);
+            return false;
+        }
+        SocketLink previous = link;
+        if ( previous != null ) {
+            previous.close();
+        }
+        Log.d(TAG, "Connecting to " + hpbmDeviceAddress + "...");
+        SocketLink current = new SocketLink("HPBMSocket", hpbmDeviceAddress.substring(0, colon), port, commandPool, linkListener);
+        link = current;
+        current.connect();
+        return true;
+    }
+
+    @Override
+    public boolean disconnect(Activity hostActivity) {
+        Log.d(TAG, "Disconnecting...");
+        SocketLink current = link;
+        link = null;
+        if ( current != null ) {
+            current.close();
+            Log.d(TAG, "Received " + current.getReceivedLines() + " lines, reading paused " + current.getStalls() + " times.");
+        }
+        pipeline.endSession();
+        IngestionThread ingestionThread = pipeline.getIngestionThread();
+        if ( ingestionThread.getDroppedPayloads() > 0 ) {
+            Log.w(TAG, "Ingestion dropped " + ingestionThread.getDroppedPayloads() + " payloads.");
+        }
+        return true;
+    }
+
+    @Override
+    public boolean sendRefillToMessage(Activity hostActivity, float amount, CommandCallback callback) {
+        return pipeline.sendRefillTo(amount, callback);
+    }
+
+    @Override
+    public boolean sendRefillWithMessage(Activity hostActivity, float amount, CommandCallback callback) {
+        return pipeline.sendRefillWith(amount, callback);
+    }
+
+    @Override
+    public boolean sendResetMessage(Activity hostActivity, CommandCallback callback) {
+        return pipeline.sendReset(callback);
+    }
+
+    @Override
+    public LatencyHistogram getCommandLatency(CommandType type) {
+        return pipeline.getCommandLatency(type);
+    }
+
+    @Override
+    public LinkStatistics getLinkStatistics() {
+        return pipeline.getLinkStatistics();
+    }
+
+    @Override
+    public void setMonitorVisible(boolean visible) {
+        pipeline.setMonitorVisible(visible);
+    }
+
+    @Override
+    public AlertEngine getAlerts() {
+        return pipeline.getAlerts();
+    }
+
+    @Override
+    public void addRecorder(DevicePipeline.Recorder recorder) {
+        pipeline.addRecorder(recorder);
+    }
+
+    @Override
+    public synchronized void restoreLastKnownState(File directory) {
+        if ( lastKnownState != null ) return;
+        LastKnownState state = new LastKnownState(new File(directory, LastKnownState.FILE_NAME), pipeline.getSampleBuffer(), pipeline.getEstimator());
+        lastKnownState = state;
+        state.restoreLater(new LastKnownState.Listener() {
+            @Override
+            public void onRestored(int samples) {
+                pipeline.publishLatest();
+            }
+
+            @Override
+            public void onRestoreFailed(IOException ex) {
+                Log.w(TAG, "Unable to restore the last known state.", ex);
+            }
+        });
+        // Sessions started from now on wait for the restore
+        pipeline.addRecorder(state);
+    }
+
+}
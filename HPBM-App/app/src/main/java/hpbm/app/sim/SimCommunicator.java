@@ -4,33 +4,95 @@ import android.app.Activity;
 import android.content.Intent;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import hpbm.app.ble.BluetoothDeviceInfo;
+import hpbm.app.core.AlertEngine;
+import hpbm.app.core.CommandBuffer;
+import hpbm.app.core.CommandBufferPool;
+import hpbm.app.core.CommandCallback;
+import hpbm.app.core.CommandChannel;
+import hpbm.app.core.CommandType;
 import hpbm.app.core.Communicator;
+import hpbm.app.core.DevicePipeline;
 import hpbm.app.core.HPBMDataHandler;
 import hpbm.app.core.MessageInterpreter;
+import hpbm.app.core.PayloadDecoder;
 import hpbm.app.core.HPBMData;
 import hpbm.app.core.HPBMDevicesDiscoveryHandler;
+import hpbm.app.core.LatencyHistogram;
+import hpbm.app.core.LinkStatistics;
+import hpbm.app.core.ReportMode;
+import hpbm.app.core.ReportRateController;
+import hpbm.app.core.SampleRingBuffer;
+import hpbm.app.core.Subscription;
+import hpbm.app.core.SubscriptionOptions;
+import hpbm.app.storage.LastKnownState;
 
+/**
+ * A device simulated in the app. It sends the lines the firmware would, envelope, derived message and
+ * command acknowledgements, through the same {@link DevicePipeline} as the real communicators.
+ */
 public class SimCommunicator implements Communicator {
 
 
     private static final String TAG = SimCommunicator.class.getSimpleName();
+    private static final float COMMAND_LOSS_RATE = 0.05f;   // commands the simulated device misses, exercises the retries
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int RECENT_COMMANDS = 32;
+    private static final long RECENT_COMMAND_MILLIS = 15000;    // [ms]
+    private static final int RECEIVED_SIZE = 192;   // [bytes] commands taken from one poll, '\0' separated like the firmware
 
+    private final CommandBufferPool commandPool = new CommandBufferPool();
+    private final DevicePipeline pipeline;
+    private volatile LastKnownState lastKnownState;
+    // The simulated device, run by the timer thread: the only producer of the pipeline's ingestion
     private float refillAmount = 1000f;
     private SimDataGenerator dataGenerator;
     private Timer dataReadingTimer;
-    private HPBMDataHandler dataHandler;
+    private final List<String> receivedCommands = new ArrayList<>();   // guarded by itself, as is the device
+    private final Random random = new Random();
+    // Recently executed command ids, like the firmware: a resend is acknowledged, not executed again
+    private final int[] recentCommandIds = new int[RECENT_COMMANDS];
+    private final long[] recentCommandTimes = new long[RECENT_COMMANDS];    // [ms]
+    private int recentCommandNext;
+    private int reportInterval = ReportRateController.FAST_INTERVAL;   // [ms] idle samples are reported this often
+    private long lastReportAt;          // [ms]
+    private boolean wasConsuming;
+    private long deviceStart;           // [ms] the simulated device's uptime counts from here
+    private int deviceSequence;
 
     public SimCommunicator(MessageInterpreter messageInterpreter ) {
         this.dataGenerator = new SimDataGenerator();
+        this.pipeline = new DevicePipeline("HPBMIngestion", messageInterpreter, null, ReportMode.DERIVED, commandPool, new CommandChannel.Transport() {
+            @Override
+            public boolean send(CommandBuffer command) {
+                return receiveCommand(command);
+            }
+        });
     }
 
     @Override
     public void setDataHandler(HPBMDataHandler dataHandler) {
-        this.dataHandler = dataHandler;
+        pipeline.setDataHandler(dataHandler);
+    }
+
+    @Override
+    public Subscription subscribe(HPBMDataHandler handler, SubscriptionOptions options) {
+        return pipeline.subscribe(handler, options);
+    }
+
+    @Override
+    public SampleRingBuffer getSampleBuffer() {
+        return pipeline.getSampleBuffer();
     }
 
     @Override
@@ -64,15 +126,18 @@ public class SimCommunicator implements Communicator {
     @Override
     public boolean connect( Activity hostActivity, String hpbmDeviceAddress ) {
         Log.d(TAG, "Starting simulation...");
-        dataGenerator.refill( refillAmount );
-        dataReadingTimer = new Timer();
-        dataReadingTimer.scheduleAtFixedRate(new TimerTask() {
+        final Timer timer = new Timer();
+        synchronized (receivedCommands) {
+            dataGenerator.refill( refillAmount );
+            deviceStart = System.currentTimeMillis();
+            dataReadingTimer = timer;
+        }
+        // The device is on, the report mode command waits for its first poll
+        pipeline.startSession(null);
+        timer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
-                HPBMData data = dataGenerator.getData();
-                if ( dataHandler != null ) {
-                    dataHandler.onDataReceived(data);
-                }
+                takeReading(timer);
             }
         }, 1000, 1000);
         return true;
@@ -80,28 +145,200 @@ public class SimCommunicator implements Communicator {
 
     @Override
     public boolean disconnect( Activity hostActivity  ) {
-        dataReadingTimer.cancel();
-        dataReadingTimer = null;
+        synchronized (receivedCommands) {
+            if ( dataReadingTimer != null ) {
+                dataReadingTimer.cancel();
+                dataReadingTimer = null;
+            }
+            receivedCommands.clear();
+        }
+        pipeline.endSession();
         return true;
     }
 
     @Override
-    public boolean sendRefillToMessage(Activity hostActivity, float amount) {
-        refillAmount = amount;
-        dataGenerator.refill( refillAmount );
-        return true;
+    public boolean sendRefillToMessage(Activity hostActivity, float amount, CommandCallback callback) {
+        return pipeline.sendRefillTo(amount, callback);
     }
 
     @Override
-    public boolean sendRefillWithMessage(Activity hostActivity, float amount) {
-        refillAmount = dataGenerator.getCurrentWaterAmount()+amount;
-        dataGenerator.refill( refillAmount );
-        return true;
+    public boolean sendRefillWithMessage(Activity hostActivity, float amount, CommandCallback callback) {
+        return pipeline.sendRefillWith(amount, callback);
     }
 
     @Override
-    public boolean sendResetMessage(Activity hostActivity) {
-        return true;
+    public boolean sendResetMessage(Activity hostActivity, CommandCallback callback) {
+        return pipeline.sendReset(callback);
+    }
+
+    @Override
+    public LatencyHistogram getCommandLatency(CommandType type) {
+        return pipeline.getCommandLatency(type);
+    }
+
+    @Override
+    public LinkStatistics getLinkStatistics() {
+        return pipeline.getLinkStatistics();
+    }
+
+    @Override
+    public AlertEngine getAlerts() {
+        return pipeline.getAlerts();
+    }
+
+    @Override
+    public void addRecorder(DevicePipeline.Recorder recorder) {
+        pipeline.addRecorder(recorder);
+    }
+
+    @Override
+    public synchronized void restoreLastKnownState(File directory) {
+        if ( lastKnownState != null ) return;
+        LastKnownState state = new LastKnownState(new File(directory, LastKnownState.FILE_NAME), pipeline.getSampleBuffer(), pipeline.getEstimator());
+        lastKnownState = state;
+        state.restoreLater(new LastKnownState.Listener() {
+            @Override
+            public void onRestored(int samples) {
+                pipeline.publishLatest();
+            }
+
+            @Override
+            public void onRestoreFailed(IOException ex) {
+                Log.w(TAG, "Unable to restore the last known state.", ex);
+            }
+        });
+        // Sessions started from now on wait for the restore
+        pipeline.addRecorder(state);
+    }
+
+    @Override
+    public void setMonitorVisible(boolean visible) {
+        pipeline.setMonitorVisible(visible);
+    }
+
+    /**
+     * The radio side of the simulated device: commands wait in its receive buffer until the next poll.
+     */
+    private boolean receiveCommand(CommandBuffer command) {
+        try {
+            synchronized (receivedCommands) {
+                if ( dataReadingTimer == null ) return false;
+                if ( random.nextFloat() >= COMMAND_LOSS_RATE ) {
+                    receivedCommands.add(new String(command.getData(), 0, command.getLength(), ASCII).trim());
+                }
+                return true;
+            }
+        } finally {
+            commandPool.release(command);
+        }
+    }
+
+    /**
+     * One second of the simulated device: polls the commands, takes a reading and reports it if due, numbered
+     * like the firmware's envelopes. The link itself never loses or reorders anything.
+     */
+    private void takeReading(Timer timer) {
+        synchronized (receivedCommands) {
+            if ( dataReadingTimer != timer ) return;    // disconnected while this reading was due
+            long now = System.currentTimeMillis();
+            pollCommands(now);
+            HPBMData data = dataGenerator.getData();
+            if ( !isReportDue(data.getCurrentConsumption() > 0f, now) ) return;
+            int sequence = deviceSequence++ & 0xfff;
+            long uptime = (now - deviceStart) & 0xffffff;
+            StringBuilder line = new StringBuilder("~");
+            line.append((char) PayloadDecoder.encodeSixBits(sequence >> 6 & 0x3f)).append((char) PayloadDecoder.encodeSixBits(sequence & 0x3f));
+            for ( int i = 3; i >= 0; i-- ) {
+                line.append((char) PayloadDecoder.encodeSixBits((int) (uptime >> 6 * i & 0x3f)));
+            }
+            line.append(String.format(Locale.US, "%.2f,%.2f,%.2f,%d",
+                data.getCurrentConsumption(), data.getAverageConsumption(), data.getRemainingPart(), data.getTimeToEmpty()));
+            send(line.toString(), now);
+        }
+    }
+
+    /**
+     * Mirrors the firmware: commands are polled once per sample, all that fit into its receive buffer, the
+     * rest is dropped and resent by the app. Each is executed unless its id was executed recently, and
+     * acknowledged with "A:&lt;id&gt;" or rejected with "N:&lt;id&gt;".
+     */
+    private void pollCommands(long now) {
+        int received = 0;
+        for ( String line : receivedCommands ) {
+            received += line.length() + 1;
+            if ( received > RECEIVED_SIZE ) break;
+            int id = -1;
+            String command = line;
+            if ( line.startsWith("#") && line.indexOf(',') > 0 ) {
+                try {
+                    id = Integer.parseInt(line.substring(1, line.indexOf(',')));
+                } catch ( NumberFormatException ex ) {
+                    Log.w(TAG, "Malformed command id: " + line);
+                    continue;
+                }
+                command = line.substring(line.indexOf(',') + 1);
+            }
+            boolean accepted = id > 0 && wasExecuted(id, now);
+            if ( !accepted ) {
+                accepted = executeCommand(command);
+                if ( accepted && id > 0 ) {
+                    recentCommandIds[recentCommandNext] = id;
+                    recentCommandTimes[recentCommandNext] = now;
+                    recentCommandNext = (recentCommandNext + 1) % RECENT_COMMANDS;
+                }
+            }
+            if ( id != -1 ) {
+                send((accepted ? "A:" : "N:") + id, now);
+            }
+        }
+        receivedCommands.clear();
+    }
+
+    private boolean wasExecuted(int id, long now) {
+        for ( int i = 0; i < RECENT_COMMANDS; i++ ) {
+            if ( recentCommandIds[i] == id && now - recentCommandTimes[i] < RECENT_COMMAND_MILLIS ) return true;
+        }
+        return false;
+    }
+
+    private void send(String line, long now) {
+        if ( !pipeline.getIngestionThread().offer(DevicePipeline.CHANNEL_MESSAGES, line.getBytes(ASCII), now) ) {
+            Log.w(TAG, "Ingestion is full, dropped " + line);
+        }
+    }
+
+    /**
+     * Mirrors the firmware: consumption and the first idle sample after it are reported right away,
+     * other idle samples only once the report interval has passed.
+     */
+    private boolean isReportDue(boolean consuming, long now) {
+        boolean due = consuming || wasConsuming || now - lastReportAt >= reportInterval;
+        wasConsuming = consuming;
+        if ( due ) lastReportAt = now;
+        return due;
+    }
+
+    private boolean executeCommand(String command) {
+        try {
+            if ( command.startsWith("RT:") ) {
+                refillAmount = Integer.parseInt(command.substring(3));
+                dataGenerator.refill( refillAmount );
+            } else if ( command.startsWith("RW:") ) {
+                refillAmount = dataGenerator.getCurrentWaterAmount() + Integer.parseInt(command.substring(3));
+                dataGenerator.refill( refillAmount );
+            } else if ( command.equals("RST") ) {
+                dataGenerator.refill( refillAmount );
+            } else if ( command.startsWith("RI:") ) {
+                reportInterval = Integer.parseInt(command.substring(3));
+            } else if ( !command.startsWith("MD:") ) {
+                // Report modes are accepted, the simulation always reports derived values
+                return false;
+            }
+            return true;
+        } catch ( NumberFormatException ex ) {
+            Log.w(TAG, "Malformed command: " + command);
+            return false;
+        }
     }
 
 }
@@ -0,0 +1,106 @@
+package hpbm.app.storage;
+
+/**
+ * Decoded samples of one chunk of a {@link SessionArchiveReader}, column oriented in primitive arrays.
+ * Reusable, one holder can take any chunk.
+ */
+public final class ArchiveChunk {
+
+    // Columns, filled directly by the codec
+    final long[] timestamps;            // [ms]
+    final float[] currentConsumption;   // [ml/s]
+    final float[] averageConsumption;   // [ml/s]
+    final float[] remainingPart;
+    final int[] timeToEmpty;            // [s]
+    int size;
+
+    public ArchiveChunk() {
+        this( SessionArchiveWriter.CHUNK_SAMPLES );
+    }
+
+    public ArchiveChunk( int capacity ) {
+        timestamps = new long[capacity];
+        currentConsumption = new float[capacity];
+        averageConsumption = new float[capacity];
+        remainingPart = new float[capacity];
+        timeToEmpty = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean add( long timestamp, float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty ) {
+        if ( size == timestamps.length ) return false;
+        this.timestamps[size] = timestamp;
+        this.currentConsumption[size] = currentConsumption;
+        this.averageConsumption[size] = averageConsumption;
+        this.remainingPart[size] = remainingPart;
+        this.timeToEmpty[size] = timeToEmpty;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return index of the first sample at or after the timestamp, {@link #size()} if there is none
+     */
+    public int indexOf( long timestamp ) {
+        int low = 0;
+        int high = size;
+        while ( low < high ) {
+            int middle = (low + high) >>> 1;
+            if ( timestamps[middle] < timestamp ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long getTimestamp( int index ) {
+        checkIndex( index );
+        return timestamps[index];
+    }
+
+    public float getCurrentConsumption( int index ) {
+        checkIndex( index );
+        return currentConsumption[index];
+    }
+
+    public float getAverageConsumption( int index ) {
+        checkIndex( index );
+        return averageConsumption[index];
+    }
+
+    public float getRemainingPart( int index ) {
+        checkIndex( index );
+        return remainingPart[index];
+    }
+
+    public int getTimeToEmpty( int index ) {
+        checkIndex( index );
+        return timeToEmpty[index];
+    }
+
+    private void checkIndex( int index ) {
+        if ( index < 0 || index >= size ) throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+    }
+
+}
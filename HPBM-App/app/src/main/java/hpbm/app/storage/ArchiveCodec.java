@@ -0,0 +1,154 @@
+package hpbm.app.storage;
+
+/**
+ * Bit level encoding of one archive chunk, column after column:
+ * <ul>
+ * <li>timestamps and time to empty as delta of deltas: nearly regular series cost one bit per sample,</li>
+ * <li>the consumption figures XORed with the previous value, storing only the bits that changed
+ * (the float compression of Facebook's Gorilla): repeated values cost one bit per sample.</li>
+ * </ul>
+ */
+final class ArchiveCodec {
+
+    private ArchiveCodec() {}
+
+    static void encode( ArchiveChunk chunk, BitOutput out ) {
+        int size = chunk.size;
+        if ( size == 0 ) return;
+        encodeLongs( chunk.timestamps, size, out );
+        encodeFloats( chunk.currentConsumption, size, out );
+        encodeFloats( chunk.averageConsumption, size, out );
+        encodeFloats( chunk.remainingPart, size, out );
+        encodeInts( chunk.timeToEmpty, size, out );
+    }
+
+    static void decode( BitInput in, int size, ArchiveChunk out ) {
+        out.size = 0;
+        if ( size == 0 ) return;
+        decodeLongs( in, size, out.timestamps );
+        decodeFloats( in, size, out.currentConsumption );
+        decodeFloats( in, size, out.averageConsumption );
+        decodeFloats( in, size, out.remainingPart );
+        decodeInts( in, size, out.timeToEmpty );
+        out.size = size;
+    }
+
+    private static void encodeLongs( long[] values, int size, BitOutput out ) {
+        out.writeBits( values[0], 64 );
+        long previousDelta = 0;
+        for ( int i = 1; i < size; i++ ) {
+            long delta = values[i] - values[i - 1];
+            writeDeltaOfDelta( delta - previousDelta, out );
+            previousDelta = delta;
+        }
+    }
+
+    private static void decodeLongs( BitInput in, int size, long[] values ) {
+        values[0] = in.readBits( 64 );
+        long delta = 0;
+        for ( int i = 1; i < size; i++ ) {
+            delta += readDeltaOfDelta( in );
+            values[i] = values[i - 1] + delta;
+        }
+    }
+
+    private static void encodeInts( int[] values, int size, BitOutput out ) {
+        out.writeBits( values[0], 32 );
+        long previousDelta = 0;
+        for ( int i = 1; i < size; i++ ) {
+            long delta = (long) values[i] - values[i - 1];
+            writeDeltaOfDelta( delta - previousDelta, out );
+            previousDelta = delta;
+        }
+    }
+
+    private static void decodeInts( BitInput in, int size, int[] values ) {
+        values[0] = (int) in.readBits( 32 );
+        long delta = 0;
+        for ( int i = 1; i < size; i++ ) {
+            delta += readDeltaOfDelta( in );
+            values[i] = (int) (values[i - 1] + delta);
+        }
+    }
+
+    /**
+     * '0' for 0, then '10', '110', '1110' followed by 7, 9 or 12 bits for small values, '1111' and 64 bits otherwise.
+     */
+    private static void writeDeltaOfDelta( long value, BitOutput out ) {
+        if ( value == 0 ) {
+            out.writeBits( 0, 1 );
+        } else if ( value >= -63 && value <= 64 ) {
+            out.writeBits( 0x2, 2 );
+            out.writeBits( value + 63, 7 );
+        } else if ( value >= -255 && value <= 256 ) {
+            out.writeBits( 0x6, 3 );
+            out.writeBits( value + 255, 9 );
+        } else if ( value >= -2047 && value <= 2048 ) {
+            out.writeBits( 0xe, 4 );
+            out.writeBits( value + 2047, 12 );
+        } else {
+            out.writeBits( 0xf, 4 );
+            out.writeBits( value, 64 );
+        }
+    }
+
+    private static long readDeltaOfDelta( BitInput in ) {
+        if ( !in.readBit() ) return 0;
+        if ( !in.readBit() ) return in.readBits( 7 ) - 63;
+        if ( !in.readBit() ) return in.readBits( 9 ) - 255;
+        if ( !in.readBit() ) return in.readBits( 12 ) - 2047;
+        return in.readBits( 64 );
+    }
+
+    /**
+     * '0' for an unchanged value. Otherwise '1', then '0' and the changed bits if they fit into the window of
+     * the previous change, or '1', 5 bits of leading zeros, 5 bits of length - 1 and the changed bits.
+     */
+    private static void encodeFloats( float[] values, int size, BitOutput out ) {
+        int previous = Float.floatToRawIntBits( values[0] );
+        out.writeBits( previous, 32 );
+        int leading = -1;
+        int trailing = 0;
+        for ( int i = 1; i < size; i++ ) {
+            int bits = Float.floatToRawIntBits( values[i] );
+            int xor = bits ^ previous;
+            previous = bits;
+            if ( xor == 0 ) {
+                out.writeBits( 0, 1 );
+                continue;
+            }
+            int xorLeading = Integer.numberOfLeadingZeros( xor );
+            int xorTrailing = Integer.numberOfTrailingZeros( xor );
+            if ( leading >= 0 && xorLeading >= leading && xorTrailing >= trailing ) {
+                out.writeBits( 0x2, 2 );
+                out.writeBits( xor >>> trailing, 32 - leading - trailing );
+            } else {
+                leading = xorLeading;
+                trailing = xorTrailing;
+                int meaningful = 32 - leading - trailing;
+                out.writeBits( 0x3, 2 );
+                out.writeBits( leading, 5 );
+                out.writeBits( meaningful - 1, 5 );
+                out.writeBits( xor >>> trailing, meaningful );
+            }
+        }
+    }
+
+    private static void decodeFloats( BitInput in, int size, float[] values ) {
+        int previous = (int) in.readBits( 32 );
+        values[0] = Float.intBitsToFloat( previous );
+        int leading = 0;
+        int trailing = 0;
+        for ( int i = 1; i < size; i++ ) {
+            if ( in.readBit() ) {
+                if ( in.readBit() ) {
+                    leading = (int) in.readBits( 5 );
+                    trailing = 32 - leading - ((int) in.readBits( 5 ) + 1);
+                }
+                previous ^= (int) in.readBits( 32 - leading - trailing ) << trailing;
+            }
+            values[i] = Float.intBitsToFloat( previous );
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package hpbm.app.storage;
+
+/**
+ * Reads a bit stream written by {@link BitOutput}.
+ */
+final class BitInput {
+
+    private byte[] bytes;
+    private int position;       // [bit]
+
+    void reset( byte[] bytes ) {
+        this.bytes = bytes;
+        this.position = 0;
+    }
+
+    boolean readBit() {
+        int bit = bytes[position >>> 3] >>> (7 - (position & 7)) & 1;
+        position++;
+        return bit != 0;
+    }
+
+    /**
+     * Reads {@code count} bits, at most 64, as an unsigned value.
+     */
+    long readBits( int count ) {
+        if ( count > 32 ) {
+            long high = readBits( count - 32 );
+            return high << 32 | readBits( 32 );
+        }
+        long result = 0;
+        while ( count > 0 ) {
+            int available = 8 - (position & 7);
+            int take = Math.min( available, count );
+            int bits = bytes[position >>> 3] >>> (available - take) & ((1 << take) - 1);
+            result = result << take | bits;
+            position += take;
+            count -= take;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,64 @@
+package hpbm.app.storage;
+
+import java.util.Arrays;
+
+/**
+ * Growable bit stream, most significant bit first.
+ */
+final class BitOutput {
+
+    private byte[] bytes;
+    private int length;         // complete bytes
+    private long pending;       // bits not yet forming a complete byte, right aligned
+    private int pendingBits;
+
+    BitOutput( int capacity ) {
+        bytes = new byte[capacity];
+    }
+
+    void reset() {
+        length = 0;
+        pending = 0;
+        pendingBits = 0;
+    }
+
+    void writeBit( boolean bit ) {
+        writeBits( bit ? 1 : 0, 1 );
+    }
+
+    /**
+     * Writes the lowest {@code count} bits of the value, at most 64.
+     */
+    void writeBits( long value, int count ) {
+        if ( count > 32 ) {
+            writeBits( value >>> 32, count - 32 );
+            count = 32;
+        }
+        pending = pending << count | (value & (-1L >>> (64 - count)));
+        pendingBits += count;
+        while ( pendingBits >= 8 ) {
+            pendingBits -= 8;
+            if ( length == bytes.length ) {
+                bytes = Arrays.copyOf( bytes, bytes.length * 2 );
+            }
+            bytes[length++] = (byte) (pending >>> pendingBits);
+        }
+    }
+
+    /**
+     * Pads the last byte with zeros.
+     *
+     * @return number of bytes written
+     */
+    int finish() {
+        if ( pendingBits > 0 ) {
+            writeBits( 0, 8 - pendingBits );
+        }
+        return length;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+}
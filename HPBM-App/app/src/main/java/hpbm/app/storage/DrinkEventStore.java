@@ -0,0 +1,230 @@
+package hpbm.app.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import hpbm.app.core.DrinkEvent;
+import hpbm.app.core.DrinkEventSegmenter;
+
+/**
+ * The drink events of all sessions, kept next to the session archives in one file of fixed-size records
+ * in time order: start and end [ms], volume [ml], peak rate [ml/s]. Events do not overlap, so the file is
+ * its own index: a range query finds its first event by binary search and reads on from there, and a daily
+ * summary reads that day's events only instead of the day's samples.
+ */
+public final class DrinkEventStore implements Closeable {
+
+    public static final String FILE_NAME = "drinks.log";
+    public static final int RECORD_SIZE = 24;   // [B]
+
+    private static final byte[] MAGIC = "HPBMDRK1".getBytes( Charset.forName( "US-ASCII" ) );
+    private static final int READ_RECORDS = 64;
+
+    private final File file;
+    private RandomAccessFile data;
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final byte[] buffer = new byte[READ_RECORDS * RECORD_SIZE];
+    private long count;
+    private long lastEnd = Long.MIN_VALUE;
+
+    private DrinkEventStore( File file, RandomAccessFile data, long count ) throws IOException {
+        this.file = file;
+        this.data = data;
+        this.count = count;
+        if ( count > 0 ) {
+            lastEnd = readLong( getPosition( count - 1 ) + 8 );
+        }
+    }
+
+    /**
+     * Opens the store, creating it if it does not exist. A record torn by a crash is dropped.
+     */
+    public static DrinkEventStore open( File file ) throws IOException {
+        RandomAccessFile data = new RandomAccessFile( file, "rw" );
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            if ( data.length() < MAGIC.length ) {
+                data.setLength( 0 );
+                data.write( MAGIC );
+            } else {
+                data.readFully( magic );
+                if ( !Arrays.equals( magic, MAGIC ) ) throw new IOException( "Not a drink event store: " + file );
+            }
+            long count = (data.length() - MAGIC.length) / RECORD_SIZE;
+            data.setLength( getPosition( count ) );
+            return new DrinkEventStore( file, data, count );
+        } catch ( IOException ex ) {
+            data.close();
+            throw ex;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * @return false if the event starts before the last one stored ended, e.g. after the phone's clock was set back
+     */
+    public synchronized boolean append( DrinkEvent event ) throws IOException {
+        if ( event.getStart() < lastEnd ) return false;
+        SessionLog.putLong( record, 0, event.getStart() );
+        SessionLog.putLong( record, 8, event.getEnd() );
+        SessionLog.putInt( record, 16, Float.floatToIntBits( event.getVolume() ) );
+        SessionLog.putInt( record, 20, Float.floatToIntBits( event.getPeakRate() ) );
+        data.seek( getPosition( count ) );
+        data.write( record );
+        count++;
+        lastEnd = event.getEnd();
+        return true;
+    }
+
+    /**
+     * Collects the events overlapping [from, to), oldest first.
+     */
+    public synchronized void query( long from, long to, List<DrinkEvent> out ) throws IOException {
+        long index = findFirstEndingFrom( from );
+        while ( index < count ) {
+            int records = (int) Math.min( READ_RECORDS, count - index );
+            data.seek( getPosition( index ) );
+            data.readFully( buffer, 0, records * RECORD_SIZE );
+            for ( int i = 0; i < records; i++ ) {
+                int offset = i * RECORD_SIZE;
+                long start = SessionLog.getLong( buffer, offset );
+                if ( start >= to ) return;
+                out.add( new DrinkEvent( start, SessionLog.getLong( buffer, offset + 8 ),
+                    Float.intBitsToFloat( SessionLog.getInt( buffer, offset + 16 ) ), Float.intBitsToFloat( SessionLog.getInt( buffer, offset + 20 ) ) ) );
+            }
+            index += records;
+        }
+    }
+
+    /**
+     * @return [ml] drunk in events starting in [from, to), without creating any events
+     */
+    public synchronized float getVolume( long from, long to ) throws IOException {
+        float volume = 0f;
+        long index = findFirstEndingFrom( from );
+        while ( index < count ) {
+            int records = (int) Math.min( READ_RECORDS, count - index );
+            data.seek( getPosition( index ) );
+            data.readFully( buffer, 0, records * RECORD_SIZE );
+            for ( int i = 0; i < records; i++ ) {
+                int offset = i * RECORD_SIZE;
+                long start = SessionLog.getLong( buffer, offset );
+                if ( start >= to ) return volume;
+                if ( start >= from ) {
+                    volume += Float.intBitsToFloat( SessionLog.getInt( buffer, offset + 16 ) );
+                }
+            }
+            index += records;
+        }
+        return volume;
+    }
+
+    /**
+     * Segments the archived sessions again, after their samples changed (see {@link Recalibration}), and
+     * replaces the store with the result. Events after the last archived sample, those of the running
+     * session, are kept. Appending is only blocked for the final swap.
+     */
+    public void rebuild( File[] archives ) throws IOException {
+        File rebuilt = new File( file.getPath() + ".tmp" );
+        if ( rebuilt.exists() && !rebuilt.delete() ) throw new IOException( "Unable to delete " + rebuilt );
+        final DrinkEventStore store = open( rebuilt );
+        try {
+            final IOException[] failure = { null };
+            DrinkEventSegmenter segmenter = new DrinkEventSegmenter( new DrinkEventSegmenter.Listener() {
+                @Override
+                public void onDrinkEvent( DrinkEvent event ) {
+                    if ( failure[0] != null ) return;
+                    try {
+                        store.append( event );
+                    } catch ( IOException ex ) {
+                        failure[0] = ex;
+                    }
+                }
+            } );
+            long archivedUntil = Long.MIN_VALUE;
+            ArchiveChunk chunk = new ArchiveChunk();
+            for ( File archive : archives ) {
+                SessionArchiveReader reader = SessionArchiveReader.open( archive );
+                try {
+                    for ( int c = 0; c < reader.getChunkCount(); c++ ) {
+                        reader.readChunk( c, chunk );
+                        for ( int i = 0; i < chunk.size(); i++ ) {
+                            segmenter.add( chunk.getTimestamp( i ), chunk.getCurrentConsumption( i ) );
+                        }
+                        if ( chunk.size() > 0 ) {
+                            archivedUntil = Math.max( archivedUntil, chunk.getTimestamp( chunk.size() - 1 ) );
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                segmenter.flush();
+            }
+            if ( failure[0] != null ) throw failure[0];
+
+            synchronized ( this ) {
+                List<DrinkEvent> live = new ArrayList<>();
+                query( archivedUntil == Long.MIN_VALUE ? Long.MIN_VALUE : archivedUntil + 1, Long.MAX_VALUE, live );
+                for ( DrinkEvent event : live ) {
+                    if ( event.getStart() > archivedUntil ) {
+                        store.append( event );
+                    }
+                }
+                store.close();
+                data.close();
+                if ( !rebuilt.renameTo( file ) ) {
+                    data = new RandomAccessFile( file, "rw" );
+                    throw new IOException( "Unable to replace " + file );
+                }
+                data = new RandomAccessFile( file, "rw" );
+                count = store.count;
+                lastEnd = store.lastEnd;
+            }
+        } finally {
+            store.close();
+            rebuilt.delete();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        data.close();
+    }
+
+    private long findFirstEndingFrom( long timestamp ) throws IOException {
+        long low = 0;
+        long high = count;
+        while ( low < high ) {
+            long middle = (low + high) >>> 1;
+            if ( readLong( getPosition( middle ) + 8 ) < timestamp ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long getPosition( long index ) {
+        return MAGIC.length + index * RECORD_SIZE;
+    }
+
+    private long readLong( long position ) throws IOException {
+        data.seek( position );
+        return data.readLong();
+    }
+
+}
@@ -0,0 +1,356 @@
+package hpbm.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decoded history between the session archives and whoever reads them, e.g. charts and analytics. History
+ * is cut into pages of fixed {@link #PAGE_MILLIS} buckets, the least recently used pages are evicted once
+ * the pages together hold more than the byte budget. A page is decoded only on a miss, and loads are
+ * serialized, so a page still in the cache is never decoded twice, not even when a prefetch and a reader
+ * ask for it at the same time.
+ *
+ * {@link #prefetch(long, long)} is meant to be called whenever the visible range changes: it loads the
+ * pages of one visible width to either side in the background, so panning finds them decoded. Prefetched
+ * pages are the first to go when space runs out and never push out pages in use.
+ */
+public final class HistoryCache {
+
+    public static final long PAGE_MILLIS = 10 * 60 * 1000;         // [ms]
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int INITIAL_PAGE_SAMPLES = 1024;
+
+    private final SessionCompactor sessions;
+    private final long maxBytes;
+    // Access ordered, the eldest entry is the least recently used page
+    private final LinkedHashMap<Long, HistoryPage> pages = new LinkedHashMap<>( 64, 0.75f, true );
+    // Prefetched pages nobody asked for yet, in the order loaded. Evicted before any page in use, moved to
+    // the pages in use on the first hit.
+    private final LinkedHashMap<Long, HistoryPage> prefetched = new LinkedHashMap<>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long prefetches;
+
+    // Loading, guarded by loadLock
+    private final Object loadLock = new Object();
+    private final List<SessionArchiveReader> readers = new ArrayList<>();   // by start time
+    private boolean readersListed;
+    private final ArchiveChunk chunk = new ArchiveChunk();
+    private SessionArchiveReader decodedReader;    // what chunk holds, adjacent pages usually share a chunk
+    private int decodedChunk = -1;
+    private long[] timestamps = new long[INITIAL_PAGE_SAMPLES];
+    private float[] currentConsumption = new float[INITIAL_PAGE_SAMPLES];
+    private float[] averageConsumption = new float[INITIAL_PAGE_SAMPLES];
+    private float[] remainingPart = new float[INITIAL_PAGE_SAMPLES];
+    private int[] timeToEmpty = new int[INITIAL_PAGE_SAMPLES];
+
+    private ExecutorService prefetchExecutor;
+    private volatile long prefetchGeneration;     // a newer viewport cancels prefetching for older ones
+
+    public HistoryCache( SessionCompactor sessions ) {
+        this( sessions, DEFAULT_MAX_BYTES );
+    }
+
+    public HistoryCache( SessionCompactor sessions, long maxBytes ) {
+        this.sessions = sessions;
+        this.maxBytes = maxBytes;
+    }
+
+    public static long getPageStart( long timestamp ) {
+        long remainder = timestamp % PAGE_MILLIS;
+        return remainder < 0 ? timestamp - remainder - PAGE_MILLIS : timestamp - remainder;
+    }
+
+    /**
+     * @return the page of the bucket holding the timestamp, loaded from the archives on a miss
+     */
+    public HistoryPage getPage( long timestamp ) throws IOException {
+        Long start = getPageStart( timestamp );
+        synchronized ( this ) {
+            HistoryPage page = getCached( start, true );
+            if ( page != null ) {
+                hits++;
+                return page;
+            }
+        }
+        return load( start, false );
+    }
+
+    /**
+     * Collects the pages overlapping [from, to), oldest first.
+     */
+    public void getPages( long from, long to, List<HistoryPage> out ) throws IOException {
+        for ( long start = getPageStart( from ); start < to; start += PAGE_MILLIS ) {
+            out.add( getPage( start ) );
+        }
+    }
+
+    /**
+     * Loads the pages of one visible width before and after [from, to) on a background thread, nearest
+     * first, unless they are cached already.
+     */
+    public void prefetch( final long from, final long to ) {
+        final long generation = ++prefetchGeneration;
+        final long width = Math.max( PAGE_MILLIS, to - from );
+        getPrefetchExecutor().execute( new Runnable() {
+            @Override
+            public void run() {
+                long before = getPageStart( from ) - PAGE_MILLIS;
+                long after = getPageStart( to - 1 ) + PAGE_MILLIS;
+                try {
+                    while ( generation == prefetchGeneration && (before >= from - width || after < to + width) ) {
+                        if ( after < to + width ) {
+                            if ( load( after, true ) == null ) return;
+                            after += PAGE_MILLIS;
+                        }
+                        if ( before >= from - width ) {
+                            if ( load( before, true ) == null ) return;
+                            before -= PAGE_MILLIS;
+                        }
+                    }
+                } catch ( IOException ex ) {
+                    // Left to the reader asking for the page, which gets to see the exception
+                }
+            }
+        });
+    }
+
+    /**
+     * A session was just compacted. Pages of its time range may have been cached before it was archived.
+     */
+    public void onArchiveAdded( File archive ) throws IOException {
+        synchronized ( loadLock ) {
+            if ( !readersListed ) return;     // picked up with the others on first use
+            for ( SessionArchiveReader reader : readers ) {
+                if ( reader.getFile().equals( archive ) ) return;
+            }
+            SessionArchiveReader reader = SessionArchiveReader.open( archive );
+            addReader( reader );
+            synchronized ( this ) {
+                long last = getPageStart( reader.getEndTime() );
+                for ( long start = getPageStart( reader.getStartTime() ); start <= last; start += PAGE_MILLIS ) {
+                    HistoryPage page = pages.remove( start );
+                    if ( page == null ) {
+                        page = prefetched.remove( start );
+                    }
+                    if ( page != null ) {
+                        bytes -= page.getByteSize();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts unused prefetched pages, then least recently used pages, until the cache holds no more than
+     * the given bytes. Called on memory pressure with a fraction of the budget, or 0 to drop everything.
+     */
+    public synchronized void trimToSize( long maxBytes ) {
+        evict( prefetched, maxBytes );
+        evict( pages, maxBytes );
+    }
+
+    public synchronized void evictAll() {
+        trimToSize( 0 );
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getByteSize() {
+        return bytes;
+    }
+
+    public synchronized int getPageCount() {
+        return pages.size() + prefetched.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return pages decoded for a reader, every other decode is a prefetch
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getPrefetchCount() {
+        return prefetches;
+    }
+
+    /**
+     * Forgets everything loaded, e.g. after the archives were rewritten.
+     */
+    public void invalidate() throws IOException {
+        synchronized ( loadLock ) {
+            try {
+                for ( SessionArchiveReader reader : readers ) {
+                    reader.close();
+                }
+            } finally {
+                readers.clear();
+                readersListed = false;
+                decodedReader = null;
+                evictAll();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        prefetchGeneration++;
+        synchronized ( this ) {
+            if ( prefetchExecutor != null ) {
+                prefetchExecutor.shutdown();
+                prefetchExecutor = null;
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format( Locale.US, "pages=%d bytes=%d/%d hits=%d misses=%d evictions=%d prefetches=%d",
+            pages.size() + prefetched.size(), bytes, maxBytes, hits, misses, evictions, prefetches );
+    }
+
+    /**
+     * @return the page, null if a prefetched page did not fit
+     */
+    private HistoryPage load( Long start, boolean prefetch ) throws IOException {
+        synchronized ( loadLock ) {
+            synchronized ( this ) {
+                // Someone else may have loaded it while this thread waited for the lock
+                HistoryPage page = getCached( start, !prefetch );
+                if ( page != null ) {
+                    if ( !prefetch ) hits++;
+                    return page;
+                }
+            }
+            HistoryPage page = decode( start );
+            synchronized ( this ) {
+                if ( prefetch ) {
+                    // Pages that may be needed never push out pages in use, prefetching stops once the cache is full
+                    evict( prefetched, maxBytes - page.getByteSize() );
+                    if ( bytes + page.getByteSize() > maxBytes ) return null;
+                    prefetches++;
+                } else {
+                    misses++;
+                }
+                (prefetch ? prefetched : pages).put( start, page );
+                bytes += page.getByteSize();
+                trimToSize( maxBytes );
+            }
+            return page;
+        }
+    }
+
+    private HistoryPage getCached( Long start, boolean use ) {
+        HistoryPage page = pages.get( start );
+        if ( page == null ) {
+            page = use ? prefetched.remove( start ) : prefetched.get( start );
+            if ( page != null && use ) {
+                pages.put( start, page );
+            }
+        }
+        return page;
+    }
+
+    private void evict( LinkedHashMap<Long, HistoryPage> from, long maxBytes ) {
+        Iterator<HistoryPage> eldest = from.values().iterator();
+        while ( bytes > maxBytes && eldest.hasNext() ) {
+            bytes -= eldest.next().getByteSize();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private HistoryPage decode( long start ) throws IOException {
+        if ( !readersListed ) {
+            for ( File archive : sessions.listArchives() ) {
+                try {
+                    addReader( SessionArchiveReader.open( archive ) );
+                } catch ( IOException ex ) {
+                    // An archive that cannot be read leaves a gap, the others are still worth showing
+                }
+            }
+            readersListed = true;
+        }
+        long end = start + PAGE_MILLIS;
+        int size = 0;
+        for ( SessionArchiveReader reader : readers ) {
+            if ( reader.getStartTime() >= end ) break;
+            if ( reader.getEndTime() < start ) continue;
+            for ( int c = reader.findChunk( start ); c < reader.getChunkCount() && reader.getChunkStartTime( c ) < end; c++ ) {
+                if ( reader != decodedReader || c != decodedChunk ) {
+                    decodedReader = null;
+                    reader.readChunk( c, chunk );
+                    decodedReader = reader;
+                    decodedChunk = c;
+                }
+                for ( int i = chunk.indexOf( start ); i < chunk.size() && chunk.timestamps[i] < end; i++ ) {
+                    if ( size == timestamps.length ) grow();
+                    timestamps[size] = chunk.timestamps[i];
+                    currentConsumption[size] = chunk.currentConsumption[i];
+                    averageConsumption[size] = chunk.averageConsumption[i];
+                    remainingPart[size] = chunk.remainingPart[i];
+                    timeToEmpty[size] = chunk.timeToEmpty[i];
+                    size++;
+                }
+            }
+        }
+        return new HistoryPage( start, size, timestamps, currentConsumption, averageConsumption, remainingPart, timeToEmpty );
+    }
+
+    private void addReader( SessionArchiveReader reader ) {
+        if ( reader.getChunkCount() == 0 ) return;
+        int index = readers.size();
+        while ( index > 0 && readers.get( index - 1 ).getStartTime() > reader.getStartTime() ) {
+            index--;
+        }
+        readers.add( index, reader );
+    }
+
+    private void grow() {
+        int capacity = timestamps.length * 2;
+        timestamps = Arrays.copyOf( timestamps, capacity );
+        currentConsumption = Arrays.copyOf( currentConsumption, capacity );
+        averageConsumption = Arrays.copyOf( averageConsumption, capacity );
+        remainingPart = Arrays.copyOf( remainingPart, capacity );
+        timeToEmpty = Arrays.copyOf( timeToEmpty, capacity );
+    }
+
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if ( prefetchExecutor == null ) {
+            prefetchExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread( runnable, "HistoryPrefetch" );
+                    thread.setDaemon( true );
+                    thread.setPriority( Thread.MIN_PRIORITY );
+                    return thread;
+                }
+            });
+        }
+        return prefetchExecutor;
+    }
+
+}
@@ -0,0 +1,93 @@
+package hpbm.app.storage;
+
+import java.util.Arrays;
+
+/**
+ * The stored samples of one fixed time bucket of {@link HistoryCache#PAGE_MILLIS}, column oriented in
+ * primitive arrays sized to fit. Pages are immutable once loaded, so a chart can draw from one while the
+ * cache loads others. A bucket without samples is an empty page.
+ */
+public final class HistoryPage {
+
+    private static final int SAMPLE_BYTES = 8 + 4 + 4 + 4 + 4;
+    private static final int OVERHEAD_BYTES = 128;     // object headers of the page and its five arrays
+
+    private final long start;                   // [ms] inclusive
+    private final long[] timestamps;            // [ms]
+    private final float[] currentConsumption;   // [ml/s]
+    private final float[] averageConsumption;   // [ml/s]
+    private final float[] remainingPart;
+    private final int[] timeToEmpty;            // [s]
+    private final int size;
+
+    HistoryPage( long start, int size, long[] timestamps, float[] currentConsumption, float[] averageConsumption, float[] remainingPart, int[] timeToEmpty ) {
+        this.start = start;
+        this.size = size;
+        this.timestamps = Arrays.copyOf( timestamps, size );
+        this.currentConsumption = Arrays.copyOf( currentConsumption, size );
+        this.averageConsumption = Arrays.copyOf( averageConsumption, size );
+        this.remainingPart = Arrays.copyOf( remainingPart, size );
+        this.timeToEmpty = Arrays.copyOf( timeToEmpty, size );
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {  // [ms] exclusive
+        return start + HistoryCache.PAGE_MILLIS;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return what the page holds on to, the measure the cache is bounded by
+     */
+    public long getByteSize() {
+        return OVERHEAD_BYTES + (long) SAMPLE_BYTES * size;
+    }
+
+    /**
+     * @return index of the first sample at or after the timestamp, {@link #size()} if there is none
+     */
+    public int indexOf( long timestamp ) {
+        int low = 0;
+        int high = size;
+        while ( low < high ) {
+            int middle = (low + high) >>> 1;
+            if ( timestamps[middle] < timestamp ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long getTimestamp( int index ) {
+        return timestamps[index];
+    }
+
+    public float getCurrentConsumption( int index ) {
+        return currentConsumption[index];
+    }
+
+    public float getAverageConsumption( int index ) {
+        return averageConsumption[index];
+    }
+
+    public float getRemainingPart( int index ) {
+        return remainingPart[index];
+    }
+
+    public int getTimeToEmpty( int index ) {
+        return timeToEmpty[index];
+    }
+
+}
@@ -0,0 +1,288 @@
+package hpbm.app.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.DevicePipeline;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.SampleRingBuffer;
+import hpbm.app.core.SampleWindow;
+
+/**
+ * The newest minutes of the sample buffer, kept on disk so a relaunched app shows the last known state as
+ * soon as it starts instead of defaults until the device reports again. In memory the sample buffer itself
+ * is the snapshot: it outlives activities, so a recreated monitor reads it directly.
+ *
+ * The file is rewritten in the background at most once per save interval while samples arrive, and once
+ * more when the session ends, through a temporary file so a crash leaves the previous snapshot intact.
+ * Added to the {@link DevicePipeline} that writes the buffer, it learns about both. The snapshot is read
+ * on the same background thread, see {@link #restoreLater(Listener)}.
+ *
+ * With raw pulse reporting the amounts of water only exist in the phone's {@link ConsumptionEstimator}, so
+ * they are part of the snapshot and seed the estimator on restore.
+ */
+public final class LastKnownState implements DevicePipeline.Recorder {
+
+    public interface Listener {
+        void onRestored( int samples );
+        void onRestoreFailed( IOException ex );
+    }
+
+    public static final String FILE_NAME = "state.snapshot";
+    public static final long DEFAULT_WINDOW = 10 * 60 * 1000;           // [ms]
+    public static final long DEFAULT_SAVE_INTERVAL = 15 * 1000;         // [ms]
+    public static final int MAX_SAMPLES = 2048;
+
+    private static final byte[] MAGIC_V1 = "HPBMLKS1".getBytes( Charset.forName( "US-ASCII" ) );
+    private static final byte[] MAGIC = "HPBMLKS2".getBytes( Charset.forName( "US-ASCII" ) );
+    private static final int HEADER_SIZE_V1 = 12;   // [B] magic, sample count
+    private static final int HEADER_SIZE = 20;  // [B] magic, sample count, initial and remaining amount [ml], NaN if unknown
+    private static final int SAMPLE_SIZE = 24;  // [B] timestamp, current and average consumption, remaining part, time to empty
+
+    private final File file;
+    private final SampleRingBuffer buffer;
+    private final ConsumptionEstimator estimator;
+    private final long window;
+    private final long saveInterval;
+    private final SampleWindow samples = new SampleWindow();
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                save();
+            } catch ( IOException ignored ) {
+                // The previous snapshot stays, the next save tries again
+            }
+        }
+    };
+    private ExecutorService executor;
+    private boolean restoring;                  // guarded by this
+    private volatile long lastSaveRequest = Long.MIN_VALUE;    // [ms]
+
+    public LastKnownState( File file, SampleRingBuffer buffer ) {
+        this( file, buffer, null );
+    }
+
+    /**
+     * @param estimator Its amounts are saved and restored along with the samples, may be null
+     */
+    public LastKnownState( File file, SampleRingBuffer buffer, ConsumptionEstimator estimator ) {
+        this( file, buffer, estimator, DEFAULT_WINDOW, DEFAULT_SAVE_INTERVAL );
+    }
+
+    public LastKnownState( File file, SampleRingBuffer buffer, ConsumptionEstimator estimator, long window, long saveInterval ) {
+        this.file = file;
+        this.buffer = buffer;
+        this.estimator = estimator;
+        this.window = window;
+        this.saveInterval = saveInterval;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Seeds the empty sample buffer with the snapshot, and the estimator with the amounts saved along. Must
+     * be called before the buffer's writer starts. Snapshots of the previous format restore the samples only.
+     *
+     * @return the samples restored, 0 if the buffer already holds samples or there is no usable snapshot
+     */
+    public int restore() throws IOException {
+        if ( buffer.getWriteSequence() > 0 || !file.isFile() ) return 0;
+        byte[] data = new byte[(int) Math.min( file.length(), HEADER_SIZE + MAX_SAMPLES * SAMPLE_SIZE )];
+        FileInputStream input = new FileInputStream( file );
+        try {
+            int read = 0;
+            while ( read < data.length ) {
+                int count = input.read( data, read, data.length - read );
+                if ( count < 0 ) break;
+                read += count;
+            }
+            byte[] magic = Arrays.copyOf( data, MAGIC.length );
+            int headerSize;
+            if ( Arrays.equals( magic, MAGIC ) ) {
+                headerSize = HEADER_SIZE;
+            } else if ( Arrays.equals( magic, MAGIC_V1 ) ) {
+                headerSize = HEADER_SIZE_V1;
+            } else {
+                return 0;
+            }
+            if ( read < headerSize ) return 0;
+            int count = SessionLog.getInt( data, MAGIC.length );
+            if ( count < 0 || count > MAX_SAMPLES || headerSize + count * SAMPLE_SIZE > read ) return 0;
+            if ( headerSize == HEADER_SIZE && estimator != null ) {
+                estimator.seed( Float.intBitsToFloat( SessionLog.getInt( data, 12 ) ), Float.intBitsToFloat( SessionLog.getInt( data, 16 ) ) );
+            }
+            for ( int i = 0; i < count; i++ ) {
+                int offset = headerSize + i * SAMPLE_SIZE;
+                long timestamp = SessionLog.getLong( data, offset );
+                buffer.append( timestamp, -1, timestamp,
+                    Float.intBitsToFloat( SessionLog.getInt( data, offset + 8 ) ),
+                    Float.intBitsToFloat( SessionLog.getInt( data, offset + 12 ) ),
+                    Float.intBitsToFloat( SessionLog.getInt( data, offset + 16 ) ),
+                    SessionLog.getInt( data, offset + 20 ) );
+            }
+            return count;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Runs {@link #restore()} in the background, so the caller does not wait for the file on the main
+     * thread. A session starting meanwhile waits for it in {@link #onSessionStarted()}, which keeps the
+     * restore ahead of the buffer's writer. The listener, if any, is called on the background thread once
+     * the samples are in the buffer.
+     */
+    public synchronized void restoreLater( final Listener listener ) {
+        restoring = true;
+        getExecutor().execute( new Runnable() {
+            @Override
+            public void run() {
+                int count = 0;
+                IOException failure = null;
+                try {
+                    count = restore();
+                } catch ( IOException ex ) {
+                    failure = ex;
+                } finally {
+                    onRestoreDone();
+                }
+                if ( listener == null ) return;
+                if ( failure != null ) {
+                    listener.onRestoreFailed( failure );
+                } else {
+                    listener.onRestored( count );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Called by the buffer's writer after appending. Requests a save once per save interval and returns
+     * right away.
+     */
+    public void onSamplesAppended( long now ) {
+        if ( now - lastSaveRequest < saveInterval ) return;
+        lastSaveRequest = now;
+        saveLater();
+    }
+
+    /**
+     * Waits for a restore still reading the snapshot, the buffer's writer starts right after.
+     */
+    @Override
+    public synchronized void onSessionStarted() {
+        boolean interrupted = false;
+        while ( restoring ) {
+            try {
+                wait();
+            } catch ( InterruptedException ex ) {
+                interrupted = true;
+            }
+        }
+        if ( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onSamples( HPBMDataBatch batch, long receivedAt ) {
+        onSamplesAppended( receivedAt );
+    }
+
+    @Override
+    public void onSessionEnded() {
+        saveLater();
+    }
+
+    public synchronized void saveLater() {
+        getExecutor().execute( saveTask );
+    }
+
+    private synchronized void onRestoreDone() {
+        restoring = false;
+        notifyAll();
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if ( executor == null ) {
+            executor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable runnable ) {
+                    Thread thread = new Thread( runnable, "LastKnownState" );
+                    thread.setDaemon( true );
+                    thread.setPriority( Thread.MIN_PRIORITY );
+                    return thread;
+                }
+            } );
+        }
+        return executor;
+    }
+
+    /**
+     * Writes the samples of the last window, at most {@link #MAX_SAMPLES}.
+     */
+    public synchronized void save() throws IOException {
+        if ( !buffer.latest( MAX_SAMPLES, samples ) ) return;
+        int last = samples.size() - 1;
+        long from = samples.getTimestamp( last ) - window;
+        int first = last;
+        while ( first > 0 && samples.getTimestamp( first - 1 ) >= from ) {
+            first--;
+        }
+        int count = last - first + 1;
+        byte[] data = new byte[HEADER_SIZE + count * SAMPLE_SIZE];
+        System.arraycopy( MAGIC, 0, data, 0, MAGIC.length );
+        SessionLog.putInt( data, MAGIC.length, count );
+        float initialAmount = Float.NaN;
+        float remainingAmount = Float.NaN;
+        if ( estimator != null ) {
+            synchronized ( estimator ) {
+                initialAmount = estimator.getInitialAmount();
+                remainingAmount = estimator.getRemainingAmount();
+            }
+        }
+        SessionLog.putInt( data, 12, Float.floatToIntBits( initialAmount ) );
+        SessionLog.putInt( data, 16, Float.floatToIntBits( remainingAmount ) );
+        for ( int i = 0; i < count; i++ ) {
+            int offset = HEADER_SIZE + i * SAMPLE_SIZE;
+            SessionLog.putLong( data, offset, samples.getTimestamp( first + i ) );
+            SessionLog.putInt( data, offset + 8, Float.floatToIntBits( samples.getCurrentConsumption( first + i ) ) );
+            SessionLog.putInt( data, offset + 12, Float.floatToIntBits( samples.getAverageConsumption( first + i ) ) );
+            SessionLog.putInt( data, offset + 16, Float.floatToIntBits( samples.getRemainingPart( first + i ) ) );
+            SessionLog.putInt( data, offset + 20, samples.getTimeToEmpty( first + i ) );
+        }
+        // Overwritten by the writer while copying, the next save gets a consistent copy
+        if ( !samples.isValid() ) return;
+
+        File temporary = new File( file.getPath() + ".tmp" );
+        FileOutputStream output = new FileOutputStream( temporary );
+        try {
+            output.write( data );
+        } finally {
+            output.close();
+        }
+        if ( !temporary.renameTo( file ) ) {
+            temporary.delete();
+            throw new IOException( "Unable to replace " + file );
+        }
+    }
+
+    public synchronized void close() {
+        if ( executor != null ) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+}
@@ -0,0 +1,472 @@
+package hpbm.app.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hpbm.app.core.Calibration;
+import hpbm.app.core.ConsumptionEstimator;
+
+/**
+ * Rewrites every archived session for a new {@link Calibration}, e.g. once a pack has been calibrated and
+ * the coefficient the history was recorded with turns out wrong.
+ *
+ * Archives hold derived figures, so the pulse rate of every sample is recovered from its flow and the old
+ * calibration, and all volumes are scaled by the ratio of new to old volume per pulse at that rate. Volume
+ * carries over from session to session until the next refill, so the job works like a parallel prefix
+ * scan on a fork/join pool: every session is summarized in parallel, the summaries are chained in time
+ * order, and every session is rewritten in parallel starting from its chained state.
+ *
+ * The rewrite is atomic across all archives: new archives are written next to the old ones, then a commit
+ * marker is written and the new archives are moved into place. {@link #recover(File)} completes an
+ * interrupted commit, or drops the new archives when the marker never made it to storage.
+ */
+public final class Recalibration {
+
+    public interface Listener {
+        void onProgress( int percent );
+        void onRecalibrated( int archives, long samples, long millis );
+        void onRecalibrationFailed( IOException ex );
+    }
+
+    public static final String TEMPORARY_SUFFIX = ".recal";
+    public static final String COMMIT_MARKER = "recalibration.commit";
+
+    private static final float REFILL_THRESHOLD = 1e-6f;   // remaining part rising by more than this is a refill
+    private static final double FORECAST_TIME_CONSTANT = 1000.0 * ConsumptionEstimator.DEFAULT_FORECAST_HALF_LIFE / Math.log( 2.0 );  // [ms]
+
+    private final SessionCompactor sessions;
+    private final Calibration from;
+    private final Calibration to;
+    private final int parallelism;
+    private final double referenceRatio;    // where no flow tells the pulse rate
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicInteger reportedPercent = new AtomicInteger( -1 );
+    private long work;
+    private Listener listener;
+
+    public Recalibration( SessionCompactor sessions, Calibration from, Calibration to ) {
+        this( sessions, from, to, Runtime.getRuntime().availableProcessors() );
+    }
+
+    public Recalibration( SessionCompactor sessions, Calibration from, Calibration to, int parallelism ) {
+        this.sessions = sessions;
+        this.from = from;
+        this.to = to;
+        this.parallelism = parallelism;
+        this.referenceRatio = to.getMillilitresPerPulse( 0f ) / (double) from.getMillilitresPerPulse( 0f );
+    }
+
+    /**
+     * Runs the job on a background thread, the listener is called from worker threads.
+     */
+    public void start( final Listener listener ) {
+        Thread thread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                Recalibration.this.run( listener );
+            }
+        }, "Recalibration" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.start();
+    }
+
+    /**
+     * Runs the job on the calling thread and the pool. Sessions archived while it runs are not recalibrated.
+     */
+    public void run( Listener listener ) {
+        this.listener = listener;
+        long started = System.currentTimeMillis();
+        File[] archives = sessions.listArchives();
+        SessionArchiveReader[] readers = new SessionArchiveReader[archives.length];
+        ForkJoinPool pool = new ForkJoinPool( parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+                thread.setPriority( Thread.MIN_PRIORITY );
+                return thread;
+            }
+        }, null, false );
+        boolean committed = false;
+        try {
+            long samples = 0;
+            for ( int i = 0; i < archives.length; i++ ) {
+                readers[i] = SessionArchiveReader.open( archives[i] );
+                samples += readers[i].getSampleCount();
+            }
+            work = 2 * samples;     // every sample is decoded twice, once per pass
+
+            Scan[] scans = new Scan[archives.length];
+            pool.invoke( new SessionTask( readers, scans, 0, readers.length, false ) );
+            chain( scans );
+            pool.invoke( new SessionTask( readers, scans, 0, readers.length, true ) );
+
+            commit( archives );
+            committed = true;
+            if ( listener != null ) {
+                listener.onRecalibrated( archives.length, samples, System.currentTimeMillis() - started );
+            }
+        } catch ( IOException ex ) {
+            fail( ex );
+        } catch ( Failure failure ) {
+            fail( failure.getCause() );
+        } finally {
+            pool.shutdown();
+            for ( SessionArchiveReader reader : readers ) {
+                if ( reader == null ) continue;
+                try {
+                    reader.close();
+                } catch ( IOException ex ) {
+                    // Only read from
+                }
+            }
+            if ( !committed ) {
+                recover( sessions.getDirectory() );
+            }
+        }
+    }
+
+    /**
+     * Completes or rolls back a recalibration that was interrupted. Called before the archives are used.
+     */
+    public static void recover( File directory ) {
+        File marker = new File( directory, COMMIT_MARKER );
+        final boolean commit = marker.exists();
+        File[] files = directory.listFiles( new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.endsWith( TEMPORARY_SUFFIX ) || name.endsWith( TEMPORARY_SUFFIX + ".tmp" );
+            }
+        });
+        if ( files != null ) {
+            for ( File file : files ) {
+                String name = file.getName();
+                if ( commit && name.endsWith( TEMPORARY_SUFFIX ) ) {
+                    file.renameTo( new File( directory, name.substring( 0, name.length() - TEMPORARY_SUFFIX.length() ) ) );
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        marker.delete();
+    }
+
+    private void commit( File[] archives ) throws IOException {
+        File marker = new File( sessions.getDirectory(), COMMIT_MARKER );
+        FileOutputStream out = new FileOutputStream( marker );
+        try {
+            out.write( (from + " -> " + to + "\n").getBytes( Charset.forName( "UTF-8" ) ) );
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // From here on the recalibration happened, recover() completes it should the renames be interrupted
+        for ( File archive : archives ) {
+            File recalibrated = getTemporaryFile( archive );
+            if ( recalibrated.exists() && !recalibrated.renameTo( archive ) ) {
+                throw new IOException( "Unable to move " + recalibrated + " into place" );
+            }
+        }
+        if ( !marker.delete() ) {
+            throw new IOException( "Unable to delete " + marker );
+        }
+    }
+
+    private void fail( IOException ex ) {
+        if ( listener != null ) {
+            listener.onRecalibrationFailed( ex );
+        }
+    }
+
+    private static File getTemporaryFile( File archive ) {
+        return new File( archive.getPath() + TEMPORARY_SUFFIX );
+    }
+
+    /**
+     * Chains the sessions in time order: every scan starts from the state the session before left. The
+     * first sample of a session is not compared with the last one before by the scan, it is accounted for
+     * here.
+     */
+    private void chain( Scan[] scans ) {
+        Scan previous = null;
+        for ( Scan scan : scans ) {
+            if ( scan.isEmpty() ) continue;
+            if ( previous == null ) {
+                // Nothing to go by before the first sample, it is taken as recorded
+                scan.setStart( scan.firstOldRemaining, 0, 0, scan.firstFlow, scan.firstFlow * getRatio( scan.firstFlow ) );
+            } else if ( scan.firstOldRemaining > previous.lastOldRemaining + REFILL_THRESHOLD ) {
+                // Refilled with the first sample, as in Scan.step()
+                double ratio = getRatio( scan.firstFlow );
+                double consumed = 1 - scan.firstOldRemaining;
+                scan.setStart( 1 - ratio * consumed, consumed, ratio * consumed, scan.firstFlow, scan.firstFlow * ratio );
+            } else {
+                // Consumed by the first sample and by whatever the backlog sync added before it
+                double ratio = getRatio( scan.firstFlow );
+                double consumed = previous.lastOldRemaining - scan.firstOldRemaining;
+                scan.setStart( previous.getEndRemaining() - ratio * consumed,
+                    previous.getEndConsumedOld() + consumed, previous.getEndConsumedNew() + ratio * consumed,
+                    previous.getEndForecastOld(), previous.getEndForecastNew() );
+            }
+            previous = scan;
+        }
+    }
+
+    private void progress( int samples ) {
+        long done = processed.addAndGet( samples );
+        int percent = work > 0 ? (int) (100 * done / work) : 100;
+        int reported = reportedPercent.get();
+        if ( percent > reported && reportedPercent.compareAndSet( reported, percent ) && listener != null ) {
+            listener.onProgress( percent );
+        }
+    }
+
+    /**
+     * @return new volume per pulse over the old one at the pulse rate the flow was measured at
+     */
+    private double getRatio( float flow ) {
+        if ( from.isConstant() && to.isConstant() || !(flow > 0f) ) return referenceRatio;
+        float pulseRate = from.getPulseRate( flow );
+        return to.getMillilitresPerPulse( pulseRate ) / (double) from.getMillilitresPerPulse( pulseRate );
+    }
+
+    private final class SessionTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SessionArchiveReader[] readers;
+        private final Scan[] scans;
+        private final int start;
+        private final int end;
+        private final boolean rewrite;
+
+        SessionTask( SessionArchiveReader[] readers, Scan[] scans, int start, int end, boolean rewrite ) {
+            this.readers = readers;
+            this.scans = scans;
+            this.start = start;
+            this.end = end;
+            this.rewrite = rewrite;
+        }
+
+        @Override
+        protected void compute() {
+            if ( end - start > 1 ) {
+                int middle = (start + end) >>> 1;
+                invokeAll( new SessionTask( readers, scans, start, middle, rewrite ), new SessionTask( readers, scans, middle, end, rewrite ) );
+                return;
+            }
+            try {
+                if ( rewrite ) {
+                    scans[start].rewrite( readers[start] );
+                } else {
+                    scans[start] = new Scan();
+                    scans[start].summarize( readers[start] );
+                }
+            } catch ( IOException ex ) {
+                throw new Failure( ex );
+            }
+        }
+    }
+
+    /**
+     * Walks one session and follows what the estimator did: the remaining part of the pack, consumption
+     * summed since the last refill for the average, and the smoothed rate the time to empty is forecast
+     * with. Each is followed as recorded and as recalibrated.
+     *
+     * The summary pass starts from a zero state, which yields what the session adds to any start state:
+     * until a refill every quantity either adds up or decays by a factor.
+     */
+    private final class Scan {
+
+        // The session as archived, known after the summary pass
+        float firstOldRemaining = Float.NaN;
+        float lastOldRemaining;
+        float firstFlow;                    // [ml/s]
+        private long firstInterval;         // [ms] between the first two samples
+
+        // Running state
+        private boolean started;
+        private float previousOldRemaining;
+        private long previousTimestamp;
+        private double remaining;           // recalibrated remaining part
+        private double consumedOld;         // since the last refill
+        private double consumedNew;
+        private double forecastOld;         // [ml/s]
+        private double forecastNew;         // [ml/s]
+        private double forecastDecay;       // of the start state's forecast, the summary pass only
+        private boolean refilled;           // since the start of the scan
+        private double ratio;               // of the last sample
+
+        // Start state, chained from the session before
+        private double startRemaining;
+        private double startConsumedOld;
+        private double startConsumedNew;
+        private double startForecastOld;
+        private double startForecastNew;
+
+        boolean isEmpty() {
+            return Float.isNaN( firstOldRemaining );
+        }
+
+        void setStart( double remaining, double consumedOld, double consumedNew, double forecastOld, double forecastNew ) {
+            startRemaining = remaining;
+            startConsumedOld = consumedOld;
+            startConsumedNew = consumedNew;
+            startForecastOld = forecastOld;
+            startForecastNew = forecastNew;
+        }
+
+        double getEndRemaining() {
+            return refilled ? remaining : startRemaining + remaining;
+        }
+
+        double getEndConsumedOld() {
+            return refilled ? consumedOld : startConsumedOld + consumedOld;
+        }
+
+        double getEndConsumedNew() {
+            return refilled ? consumedNew : startConsumedNew + consumedNew;
+        }
+
+        double getEndForecastOld() {
+            return refilled ? forecastOld : startForecastOld * forecastDecay + forecastOld;
+        }
+
+        double getEndForecastNew() {
+            return refilled ? forecastNew : startForecastNew * forecastDecay + forecastNew;
+        }
+
+        void summarize( SessionArchiveReader reader ) throws IOException {
+            started = false;
+            remaining = consumedOld = consumedNew = forecastOld = forecastNew = 0;
+            forecastDecay = 1;
+            ArchiveChunk chunk = new ArchiveChunk();
+            for ( int c = 0; c < reader.getChunkCount(); c++ ) {
+                reader.readChunk( c, chunk );
+                for ( int i = 0; i < chunk.size; i++ ) {
+                    if ( isEmpty() ) {
+                        firstOldRemaining = chunk.remainingPart[i];
+                        firstFlow = chunk.currentConsumption[i];
+                    } else if ( firstInterval == 0 ) {
+                        firstInterval = chunk.timestamps[i] - previousTimestamp;
+                    }
+                    step( chunk.timestamps[i], chunk.remainingPart[i], chunk.currentConsumption[i], false );
+                }
+                progress( chunk.size );
+            }
+            lastOldRemaining = previousOldRemaining;
+        }
+
+        void rewrite( SessionArchiveReader reader ) throws IOException {
+            if ( isEmpty() ) return;
+            started = false;
+            remaining = startRemaining;
+            consumedOld = startConsumedOld;
+            consumedNew = startConsumedNew;
+            forecastOld = startForecastOld;
+            forecastNew = startForecastNew;
+            ArchiveChunk chunk = new ArchiveChunk();
+            SessionArchiveWriter writer = new SessionArchiveWriter( getTemporaryFile( reader.getFile() ) );
+            boolean written = false;
+            try {
+                for ( int c = 0; c < reader.getChunkCount(); c++ ) {
+                    reader.readChunk( c, chunk );
+                    for ( int i = 0; i < chunk.size; i++ ) {
+                        float oldRemaining = chunk.remainingPart[i];
+                        float flow = chunk.currentConsumption[i];
+                        step( chunk.timestamps[i], oldRemaining, flow, true );
+
+                        float average = chunk.averageConsumption[i];
+                        if ( average > 0f ) {
+                            average *= consumedOld > 0 ? consumedNew / consumedOld : referenceRatio;
+                        }
+                        float newRemaining = (float) remaining;
+                        int timeToEmpty = chunk.timeToEmpty[i];
+                        if ( newRemaining <= 0f ) {
+                            timeToEmpty = 0;
+                        } else if ( timeToEmpty > 0 && oldRemaining > 0f && forecastNew > 0 ) {
+                            timeToEmpty = (int) Math.min( Integer.MAX_VALUE, timeToEmpty * (newRemaining / oldRemaining) * (forecastOld / forecastNew) );
+                        }
+                        writer.append( chunk.timestamps[i], (float) (flow * ratio), average, newRemaining, timeToEmpty );
+                    }
+                    progress( chunk.size );
+                }
+                writer.close();
+                written = true;
+            } finally {
+                if ( !written ) {
+                    writer.abort();
+                }
+            }
+        }
+
+        /**
+         * The first sample of the session continues from the start state, as if it followed the last sample
+         * of the session before, apart from the time between them.
+         */
+        private void step( long timestamp, float oldRemaining, float flow, boolean rewriting ) {
+            long interval = started ? timestamp - previousTimestamp : firstInterval;
+            if ( !started ) {
+                started = true;
+                previousOldRemaining = oldRemaining;
+            }
+            previousTimestamp = timestamp;
+            ratio = getRatio( flow );
+
+            boolean refill = oldRemaining > previousOldRemaining + REFILL_THRESHOLD;
+            if ( refill ) {
+                // A refill fills the pack to the brim, the sample already holds what was consumed after it
+                previousOldRemaining = 1f;
+                remaining = 1;
+                consumedOld = 0;
+                consumedNew = 0;
+                refilled = true;
+            }
+            double consumed = Math.max( 0, previousOldRemaining - oldRemaining );
+            remaining -= ratio * consumed;
+            consumedOld += consumed;
+            consumedNew += ratio * consumed;
+            if ( rewriting && remaining < 0 ) {
+                remaining = 0;
+            }
+            previousOldRemaining = oldRemaining;
+
+            // The forecast is smoothed like EwmaRateEstimator does, restarting from the first sample after a refill
+            if ( refill ) {
+                forecastOld = flow;
+                forecastNew = flow * ratio;
+            } else if ( interval > 0 ) {
+                double keep = Math.exp( -interval / FORECAST_TIME_CONSTANT );
+                forecastOld = forecastOld * keep + (1 - keep) * flow;
+                forecastNew = forecastNew * keep + (1 - keep) * flow * ratio;
+                forecastDecay *= keep;
+            }
+        }
+    }
+
+    /**
+     * Carries an {@link IOException} out of a fork/join task.
+     */
+    private static final class Failure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Failure( IOException cause ) {
+            super( cause );
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package hpbm.app.storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import hpbm.app.core.HPBMDataBatch;
+
+/**
+ * Append-only log of the samples of the running session, one fixed-size record per sample: timestamp [ms],
+ * current and average consumption [ml/s], remaining part and time to empty [s]. Cheap to write while the
+ * session runs; once it is over, {@link SessionCompactor} turns it into a compact session archive.
+ */
+public final class SampleLog implements Closeable {
+
+    public static final int RECORD_SIZE = 24;   // [B]
+    public static final int HEADER_SIZE = 8;    // [B]
+
+    private static final byte[] MAGIC = "HPBMSMP1".getBytes( Charset.forName( "US-ASCII" ) );
+    private static final int BUFFERED_RECORDS = 256;
+
+    private final File file;
+    private final RandomAccessFile data;
+    private final byte[] buffer = new byte[BUFFERED_RECORDS * RECORD_SIZE];
+    private int buffered;
+    private long writtenRecords;
+    private boolean closed;
+
+    private SampleLog( File file, RandomAccessFile data ) {
+        this.file = file;
+        this.data = data;
+    }
+
+    /**
+     * Creates a new log, replacing any existing file.
+     */
+    public static SampleLog create( File file ) throws IOException {
+        RandomAccessFile data = new RandomAccessFile( file, "rw" );
+        try {
+            data.setLength( 0 );
+            data.write( MAGIC );
+            return new SampleLog( file, data );
+        } catch ( IOException ex ) {
+            data.close();
+            throw ex;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long size() {
+        return writtenRecords + buffered;
+    }
+
+    /**
+     * Appends every sample of the batch. Samples arriving after the log was closed are ignored.
+     */
+    public synchronized void append( HPBMDataBatch batch ) throws IOException {
+        if ( closed ) return;
+        for ( int i = 0; i < batch.size(); i++ ) {
+            if ( buffered == BUFFERED_RECORDS ) {
+                flush();
+            }
+            int offset = buffered * RECORD_SIZE;
+            SessionLog.putLong( buffer, offset, batch.getTimestamp( i ) );
+            SessionLog.putInt( buffer, offset + 8, Float.floatToRawIntBits( batch.getCurrentConsumption( i ) ) );
+            SessionLog.putInt( buffer, offset + 12, Float.floatToRawIntBits( batch.getAverageConsumption( i ) ) );
+            SessionLog.putInt( buffer, offset + 16, Float.floatToRawIntBits( batch.getRemainingPart( i ) ) );
+            SessionLog.putInt( buffer, offset + 20, batch.getTimeToEmpty( i ) );
+            buffered++;
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if ( buffered == 0 || closed ) return;
+        data.write( buffer, 0, buffered * RECORD_SIZE );
+        writtenRecords += buffered;
+        buffered = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if ( closed ) return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            data.close();
+        }
+    }
+
+    /**
+     * Sequential reader of a closed log. A torn record at the end (crash during a write) is ignored.
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private long timestamp;
+        private float currentConsumption;
+        private float averageConsumption;
+        private float remainingPart;
+        private int timeToEmpty;
+
+        public Reader( File file ) throws IOException {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            byte[] magic = new byte[HEADER_SIZE];
+            try {
+                in.readFully( magic );
+            } catch ( EOFException ex ) {
+                Arrays.fill( magic, (byte) 0 );
+            }
+            if ( !Arrays.equals( magic, MAGIC ) ) {
+                in.close();
+                throw new IOException( "Not a sample log: " + file );
+            }
+        }
+
+        /**
+         * @return false at the end of the log
+         */
+        public boolean next() throws IOException {
+            try {
+                timestamp = in.readLong();
+                currentConsumption = in.readFloat();
+                averageConsumption = in.readFloat();
+                remainingPart = in.readFloat();
+                timeToEmpty = in.readInt();
+                return true;
+            } catch ( EOFException ex ) {
+                return false;
+            }
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public float getCurrentConsumption() {
+            return currentConsumption;
+        }
+
+        public float getAverageConsumption() {
+            return averageConsumption;
+        }
+
+        public float getRemainingPart() {
+            return remainingPart;
+        }
+
+        public int getTimeToEmpty() {
+            return timeToEmpty;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
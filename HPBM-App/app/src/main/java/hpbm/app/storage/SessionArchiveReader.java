@@ -0,0 +1,174 @@
+package hpbm.app.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.HPBMDataHandler;
+
+/**
+ * Reads a session archive written by {@link SessionArchiveWriter}. Only the index is loaded when the
+ * archive is opened, chunks are read and decoded one at a time when asked for, so a range query touches
+ * only the chunks overlapping the range.
+ */
+public final class SessionArchiveReader implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile data;
+    private final long[] firstTimestamps;
+    private final long[] lastTimestamps;
+    private final int[] sizes;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] crcs;
+    private final long sampleCount;
+    private final BitInput bits = new BitInput();
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[SessionArchiveWriter.CHUNK_SAMPLES * 4];
+
+    private SessionArchiveReader( File file, RandomAccessFile data, int chunkCount ) throws IOException {
+        this.file = file;
+        this.data = data;
+        firstTimestamps = new long[chunkCount];
+        lastTimestamps = new long[chunkCount];
+        sizes = new int[chunkCount];
+        offsets = new long[chunkCount];
+        lengths = new int[chunkCount];
+        crcs = new int[chunkCount];
+        long samples = 0;
+        for ( int i = 0; i < chunkCount; i++ ) {
+            firstTimestamps[i] = data.readLong();
+            lastTimestamps[i] = data.readLong();
+            sizes[i] = data.readInt();
+            offsets[i] = data.readLong();
+            lengths[i] = data.readInt();
+            crcs[i] = data.readInt();
+            samples += sizes[i];
+        }
+        sampleCount = samples;
+    }
+
+    public static SessionArchiveReader open( File file ) throws IOException {
+        RandomAccessFile data = new RandomAccessFile( file, "r" );
+        try {
+            long length = data.length();
+            byte[] magic = new byte[SessionArchiveWriter.MAGIC.length];
+            if ( length >= magic.length + SessionArchiveWriter.TRAILER_SIZE ) {
+                data.seek( length - SessionArchiveWriter.TRAILER_SIZE );
+                long indexOffset = data.readLong();
+                int chunkCount = data.readInt();
+                data.readFully( magic );
+                if ( Arrays.equals( magic, SessionArchiveWriter.MAGIC ) && chunkCount >= 0
+                        && indexOffset + (long) chunkCount * SessionArchiveWriter.INDEX_ENTRY_SIZE == length - SessionArchiveWriter.TRAILER_SIZE ) {
+                    data.seek( indexOffset );
+                    return new SessionArchiveReader( file, data, chunkCount );
+                }
+            }
+            throw new IOException( "Not a session archive: " + file );
+        } catch ( IOException ex ) {
+            data.close();
+            throw ex;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getChunkCount() {
+        return sizes.length;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getStartTime() {  // [ms], Long.MAX_VALUE if the archive is empty
+        return sizes.length > 0 ? firstTimestamps[0] : Long.MAX_VALUE;
+    }
+
+    public long getEndTime() {  // [ms], Long.MIN_VALUE if the archive is empty
+        return sizes.length > 0 ? lastTimestamps[sizes.length - 1] : Long.MIN_VALUE;
+    }
+
+    public long getChunkStartTime( int chunk ) {
+        return firstTimestamps[chunk];
+    }
+
+    public long getChunkEndTime( int chunk ) {
+        return lastTimestamps[chunk];
+    }
+
+    public int getChunkSize( int chunk ) {
+        return sizes[chunk];
+    }
+
+    /**
+     * @return the first chunk holding samples at or after the timestamp, {@link #getChunkCount()} if there is none
+     */
+    public int findChunk( long timestamp ) {
+        int low = 0;
+        int high = sizes.length;
+        while ( low < high ) {
+            int middle = (low + high) >>> 1;
+            if ( lastTimestamps[middle] < timestamp ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads and decodes one chunk. Safe to call from several threads, reads are serialized.
+     */
+    public synchronized void readChunk( int chunk, ArchiveChunk out ) throws IOException {
+        int length = lengths[chunk];
+        if ( buffer.length < length ) {
+            buffer = new byte[length];
+        }
+        data.seek( offsets[chunk] );
+        data.readFully( buffer, 0, length );
+        crc.reset();
+        crc.update( buffer, 0, length );
+        if ( (int) crc.getValue() != crcs[chunk] ) {
+            throw new IOException( "Chunk " + chunk + " of " + file + " is corrupt" );
+        }
+        if ( out.getCapacity() < sizes[chunk] ) {
+            throw new IllegalArgumentException( "Chunk holds " + sizes[chunk] + " samples, more than the capacity " + out.getCapacity() );
+        }
+        bits.reset( buffer );
+        ArchiveCodec.decode( bits, sizes[chunk], out );
+    }
+
+    /**
+     * Streams the samples in [from, to) to the handler, at most one batch per chunk. Only the chunks
+     * overlapping the range are decoded.
+     *
+     * @param chunk Scratch holder for decoded chunks
+     * @param batch Scratch batch handed to the handler, at least as large as a chunk
+     */
+    public void query( long from, long to, ArchiveChunk chunk, HPBMDataBatch batch, HPBMDataHandler handler ) throws IOException {
+        for ( int i = findChunk( from ); i < sizes.length && firstTimestamps[i] < to; i++ ) {
+            readChunk( i, chunk );
+            batch.clear();
+            for ( int j = chunk.indexOf( from ); j < chunk.size() && chunk.getTimestamp( j ) < to; j++ ) {
+                batch.add( chunk.getTimestamp( j ), chunk.getCurrentConsumption( j ), chunk.getAverageConsumption( j ), chunk.getRemainingPart( j ), chunk.getTimeToEmpty( j ) );
+            }
+            if ( !batch.isEmpty() ) {
+                handler.onBatchReceived( batch );
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+}
@@ -0,0 +1,150 @@
+package hpbm.app.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a sealed session archive: compressed chunks of {@link #CHUNK_SAMPLES} samples (see
+ * {@link ArchiveCodec}), followed by an index of the chunks' time ranges, so a reader can decode only the
+ * chunks a query needs. The archive is written to a temporary file and renamed into place on
+ * {@link #close()}, a half written archive is never visible.
+ *
+ * Layout: magic, chunks, index (per chunk: first and last timestamp, sample count, offset, length,
+ * CRC32), then the trailer: index offset, chunk count, magic.
+ */
+public final class SessionArchiveWriter implements Closeable {
+
+    public static final int CHUNK_SAMPLES = 1024;
+
+    static final byte[] MAGIC = "HPBMARC1".getBytes( Charset.forName( "US-ASCII" ) );
+    static final int INDEX_ENTRY_SIZE = 36;     // [B]
+    static final int TRAILER_SIZE = 20;         // [B]
+    private static final int INITIAL_INDEX_CAPACITY = 64;
+
+    private final File file;
+    private final File temporaryFile;
+    private final FileOutputStream fileStream;
+    private final DataOutputStream out;
+    private final ArchiveChunk chunk = new ArchiveChunk();
+    private final BitOutput bits = new BitOutput( CHUNK_SAMPLES * 8 );
+    private final CRC32 crc = new CRC32();
+    private long offset;
+    private long[] index = new long[INITIAL_INDEX_CAPACITY * 6];  // per chunk: first and last timestamp, size, offset, length, CRC
+    private int chunkCount;
+    private long sampleCount;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private boolean closed;
+
+    public SessionArchiveWriter( File file ) throws IOException {
+        this.file = file;
+        this.temporaryFile = new File( file.getPath() + ".tmp" );
+        this.fileStream = new FileOutputStream( temporaryFile );
+        this.out = new DataOutputStream( new BufferedOutputStream( fileStream ) );
+        out.write( MAGIC );
+        offset = MAGIC.length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Samples must come in time order.
+     */
+    public void append( long timestamp, float currentConsumption, float averageConsumption, float remainingPart, int timeToEmpty ) throws IOException {
+        if ( timestamp < lastTimestamp ) {
+            throw new IllegalArgumentException( "Samples must be appended in time order: " + timestamp + " after " + lastTimestamp );
+        }
+        lastTimestamp = timestamp;
+        chunk.add( timestamp, currentConsumption, averageConsumption, remainingPart, timeToEmpty );
+        sampleCount++;
+        if ( chunk.isFull() ) {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Writes the index, forces the archive to the storage device and moves it into place.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( closed ) return;
+        closed = true;
+        boolean completed = false;
+        try {
+            if ( !chunk.isEmpty() ) {
+                writeChunk();
+            }
+            long indexOffset = offset;
+            for ( int i = 0; i < chunkCount; i++ ) {
+                out.writeLong( index[i * 6] );
+                out.writeLong( index[i * 6 + 1] );
+                out.writeInt( (int) index[i * 6 + 2] );
+                out.writeLong( index[i * 6 + 3] );
+                out.writeInt( (int) index[i * 6 + 4] );
+                out.writeInt( (int) index[i * 6 + 5] );
+            }
+            out.writeLong( indexOffset );
+            out.writeInt( chunkCount );
+            out.write( MAGIC );
+            out.flush();
+            fileStream.getFD().sync();
+            completed = true;
+        } finally {
+            out.close();
+            if ( !completed || !temporaryFile.renameTo( file ) ) {
+                temporaryFile.delete();
+                if ( completed ) throw new IOException( "Unable to move the archive into place: " + file );
+            }
+        }
+    }
+
+    /**
+     * Drops everything written so far.
+     */
+    public void abort() {
+        closed = true;
+        try {
+            out.close();
+        } catch ( IOException ex ) {
+            // Deleted anyway
+        }
+        temporaryFile.delete();
+    }
+
+    private void writeChunk() throws IOException {
+        bits.reset();
+        ArchiveCodec.encode( chunk, bits );
+        int length = bits.finish();
+        crc.reset();
+        crc.update( bits.getBytes(), 0, length );
+        out.write( bits.getBytes(), 0, length );
+
+        if ( (chunkCount + 1) * 6 > index.length ) {
+            long[] grown = new long[index.length * 2];
+            System.arraycopy( index, 0, grown, 0, index.length );
+            index = grown;
+        }
+        int entry = chunkCount * 6;
+        index[entry] = chunk.getTimestamp( 0 );
+        index[entry + 1] = chunk.getTimestamp( chunk.size() - 1 );
+        index[entry + 2] = chunk.size();
+        index[entry + 3] = offset;
+        index[entry + 4] = length;
+        index[entry + 5] = crc.getValue();
+        chunkCount++;
+        offset += length;
+        chunk.clear();
+    }
+
+}
@@ -0,0 +1,142 @@
+package hpbm.app.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Turns the sample logs of completed sessions into session archives on a background thread. Every session
+ * lives in the sessions directory as "&lt;start time&gt;.live" while it runs and as "&lt;start time&gt;.hpbma"
+ * once compacted. The log is only deleted after its archive is safely in place, so a crash at any point
+ * loses nothing: logs left over are compacted the next time {@link #compactPending(File)} runs.
+ */
+public final class SessionCompactor {
+
+    public interface Listener {
+        void onSessionCompacted( File archive, long samples, long logBytes, long archiveBytes );
+        void onCompactionFailed( File log, IOException ex );
+    }
+
+    public static final String LOG_SUFFIX = ".live";
+    public static final String ARCHIVE_SUFFIX = ".hpbma";
+
+    private final File directory;
+    private final Listener listener;
+    private ExecutorService executor;
+
+    public SessionCompactor( File directory, Listener listener ) {
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public File getLogFile( long sessionStart ) {
+        return new File( directory, sessionStart + LOG_SUFFIX );
+    }
+
+    public static File getArchiveFile( File log ) {
+        String name = log.getName();
+        return new File( log.getParentFile(), name.substring( 0, name.length() - LOG_SUFFIX.length() ) + ARCHIVE_SUFFIX );
+    }
+
+    /**
+     * @return the archives of all compacted sessions, oldest first
+     */
+    public File[] listArchives() {
+        return list( ARCHIVE_SUFFIX );
+    }
+
+    public synchronized void compactLater( final File log ) {
+        if ( executor == null ) {
+            executor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread( runnable, "SessionCompaction" );
+                    thread.setDaemon( true );
+                    thread.setPriority( Thread.MIN_PRIORITY );
+                    return thread;
+                }
+            });
+        }
+        executor.execute( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact( log );
+                } catch ( IOException ex ) {
+                    if ( listener != null ) {
+                        listener.onCompactionFailed( log, ex );
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules every log except the one of the running session.
+     *
+     * @param activeLog may be null
+     */
+    public void compactPending( File activeLog ) {
+        for ( File log : list( LOG_SUFFIX ) ) {
+            if ( !log.equals( activeLog ) ) {
+                compactLater( log );
+            }
+        }
+    }
+
+    /**
+     * Compacts the log right away on the calling thread.
+     */
+    public void compact( File log ) throws IOException {
+        if ( !log.exists() ) return;
+        File archive = getArchiveFile( log );
+        SampleLog.Reader reader = new SampleLog.Reader( log );
+        SessionArchiveWriter writer = new SessionArchiveWriter( archive );
+        boolean written = false;
+        try {
+            long lastTimestamp = Long.MIN_VALUE;
+            while ( reader.next() ) {
+                // A reordered notification can carry a sample older than the one before, archives are in time order
+                lastTimestamp = Math.max( lastTimestamp, reader.getTimestamp() );
+                writer.append( lastTimestamp, reader.getCurrentConsumption(), reader.getAverageConsumption(), reader.getRemainingPart(), reader.getTimeToEmpty() );
+            }
+            if ( writer.getSampleCount() > 0 ) {
+                writer.close();
+                written = true;
+            }
+        } finally {
+            reader.close();
+            if ( !written ) {
+                writer.abort();
+            }
+        }
+        long logBytes = log.length();
+        if ( !log.delete() ) {
+            throw new IOException( "Unable to delete the compacted log: " + log );
+        }
+        if ( written && listener != null ) {
+            listener.onSessionCompacted( archive, writer.getSampleCount(), logBytes, archive.length() );
+        }
+    }
+
+    private File[] list( final String suffix ) {
+        File[] files = directory.listFiles( new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith( suffix );
+            }
+        });
+        if ( files == null ) return new File[0];
+        Arrays.sort( files );
+        return files;
+    }
+
+}
@@ -0,0 +1,229 @@
+package hpbm.app.storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Append-only log of the pulse samples received from the device, one fixed-size record per sample:
+ * receive time [ms], device sequence number, pulse count and the period the count covers [ms].
+ * Records are buffered and written in blocks; a torn record at the end of the file (crash during a write)
+ * is cut off when the log is opened again. Samples must arrive with increasing device sequence numbers,
+ * older ones are skipped, which makes re-sending an overlapping backlog harmless.
+ */
+public final class SessionLog implements Closeable {
+
+    public static final int RECORD_SIZE = 16;   // [B]
+    public static final int HEADER_SIZE = 8;    // [B]
+
+    private static final byte[] MAGIC = "HPBMLOG1".getBytes( Charset.forName( "US-ASCII" ) );
+    private static final int BUFFERED_RECORDS = 256;
+
+    private final File file;
+    private final RandomAccessFile data;
+    private final byte[] buffer = new byte[BUFFERED_RECORDS * RECORD_SIZE];
+    private int buffered;           // records in the buffer
+    private long writtenRecords;    // records in the file
+    private int lastDeviceSequence = -1;
+
+    private SessionLog( File file, RandomAccessFile data, long writtenRecords, int lastDeviceSequence ) {
+        this.file = file;
+        this.data = data;
+        this.writtenRecords = writtenRecords;
+        this.lastDeviceSequence = lastDeviceSequence;
+    }
+
+    /**
+     * Opens the log, creating it if it does not exist yet.
+     */
+    public static SessionLog open( File file ) throws IOException {
+        RandomAccessFile data = new RandomAccessFile( file, "rw" );
+        try {
+            byte[] magic = new byte[HEADER_SIZE];
+            if ( data.length() < HEADER_SIZE ) {
+                data.setLength( 0 );
+                data.write( MAGIC );
+            } else {
+                data.readFully( magic );
+                if ( !Arrays.equals( magic, MAGIC ) ) {
+                    throw new IOException( "Not a session log: " + file );
+                }
+            }
+            long records = (data.length() - HEADER_SIZE) / RECORD_SIZE;
+            data.setLength( HEADER_SIZE + records * RECORD_SIZE );
+            int lastDeviceSequence = -1;
+            if ( records > 0 ) {
+                data.seek( HEADER_SIZE + (records - 1) * RECORD_SIZE + 8 );
+                lastDeviceSequence = data.readInt();
+            }
+            data.seek( data.length() );
+            return new SessionLog( file, data, records, lastDeviceSequence );
+        } catch ( IOException ex ) {
+            data.close();
+            throw ex;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of records, including the ones not flushed yet
+     */
+    public synchronized long size() {
+        return writtenRecords + buffered;
+    }
+
+    /**
+     * @return device sequence number of the newest record, -1 if there is none since the device started over
+     */
+    public synchronized int getLastDeviceSequence() {
+        return lastDeviceSequence;
+    }
+
+    /**
+     * The device restarted and counts sequence numbers from zero again.
+     */
+    public synchronized void resetDeviceSequence() {
+        lastDeviceSequence = -1;
+    }
+
+    /**
+     * @return false if the sample is not newer than the last one in the log and was skipped
+     */
+    public synchronized boolean append( int deviceSequence, long timestamp, int pulses, int periodMillis ) throws IOException {
+        if ( deviceSequence <= lastDeviceSequence ) return false;
+        if ( buffered == BUFFERED_RECORDS ) {
+            flush();
+        }
+        int offset = buffered * RECORD_SIZE;
+        putLong( buffer, offset, timestamp );
+        putInt( buffer, offset + 8, deviceSequence );
+        putShort( buffer, offset + 12, Math.min( pulses, Short.MAX_VALUE ) );
+        putShort( buffer, offset + 14, Math.min( periodMillis, 0xffff ) );
+        buffered++;
+        lastDeviceSequence = deviceSequence;
+        return true;
+    }
+
+    public synchronized void flush() throws IOException {
+        if ( buffered == 0 ) return;
+        data.write( buffer, 0, buffered * RECORD_SIZE );
+        writtenRecords += buffered;
+        buffered = 0;
+    }
+
+    /**
+     * Flushes and forces the records to the storage device.
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        data.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Sequential reader of a log, e.g. one copied off a phone. A torn record at the end is ignored.
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private long timestamp;
+        private int deviceSequence;
+        private int pulses;
+        private int periodMillis;
+
+        public Reader( File file ) throws IOException {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            byte[] magic = new byte[HEADER_SIZE];
+            try {
+                in.readFully( magic );
+            } catch ( EOFException ex ) {
+                Arrays.fill( magic, (byte) 0 );
+            }
+            if ( !Arrays.equals( magic, MAGIC ) ) {
+                in.close();
+                throw new IOException( "Not a session log: " + file );
+            }
+        }
+
+        /**
+         * @return false at the end of the log
+         */
+        public boolean next() throws IOException {
+            try {
+                timestamp = in.readLong();
+                deviceSequence = in.readInt();
+                pulses = in.readUnsignedShort();
+                periodMillis = in.readUnsignedShort();
+                return true;
+            } catch ( EOFException ex ) {
+                return false;
+            }
+        }
+
+        public long getTimestamp() {  // [ms] receive time
+            return timestamp;
+        }
+
+        public int getDeviceSequence() {
+            return deviceSequence;
+        }
+
+        public int getPulses() {
+            return pulses;
+        }
+
+        public int getPeriodMillis() {
+            return periodMillis;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+    static void putLong( byte[] b, int offset, long v ) {
+        putInt( b, offset, (int) (v >>> 32) );
+        putInt( b, offset + 4, (int) v );
+    }
+
+    static void putInt( byte[] b, int offset, int v ) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    static void putShort( byte[] b, int offset, int v ) {
+        b[offset] = (byte) (v >>> 8);
+        b[offset + 1] = (byte) v;
+    }
+
+    static long getLong( byte[] b, int offset ) {
+        return (long) getInt( b, offset ) << 32 | getInt( b, offset + 4 ) & 0xffffffffL;
+    }
+
+    static int getInt( byte[] b, int offset ) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | b[offset + 3] & 0xff;
+    }
+
+}
@@ -0,0 +1,209 @@
+package hpbm.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+import hpbm.app.core.Calibration;
+import hpbm.app.core.DevicePipeline;
+import hpbm.app.core.DrinkEvent;
+import hpbm.app.core.DrinkEventSegmenter;
+import hpbm.app.core.HPBMDataBatch;
+
+/**
+ * Everything the app keeps of past sessions, whichever communicator delivered them: every session is
+ * logged while it runs and archived once it ends, its sips go to the drink events, and the archives are
+ * read back through the history cache and can be recalibrated.
+ *
+ * Added to the {@link DevicePipeline} of a communicator as a recorder. The directory is opened with the
+ * first session, until then {@link #getHistory()} and {@link #getDrinkEvents()} return null.
+ */
+public final class SessionStorage implements DevicePipeline.Recorder {
+
+    public interface Listener {
+        void onSessionArchived( File archive, long samples, long logBytes, long archiveBytes );
+        // Storage goes on without what failed, ex may be null
+        void onStorageFailed( String message, IOException ex );
+    }
+
+    public static final String DIRECTORY_NAME = "sessions";
+
+    private final File directory;
+    private final Listener listener;
+    private volatile SessionCompactor sessionCompactor;
+    private volatile HistoryCache history;
+    private volatile DrinkEventStore drinkEvents;
+    private boolean opened;                     // guarded by this
+    // Session log and drink segmenter are touched by the recorder callbacks: on the ingestion thread, or while it is stopped
+    private SampleLog sampleLog;                // samples of the running session
+    private final DrinkEventSegmenter drinkSegmenter = new DrinkEventSegmenter( new DrinkEventSegmenter.Listener() {
+        @Override
+        public void onDrinkEvent( DrinkEvent event ) {
+            DrinkEventStore store = drinkEvents;
+            if ( store == null ) return;
+            try {
+                if ( !store.append( event ) ) {
+                    listener.onStorageFailed( "Dropped " + event + ", it overlaps the last one stored.", null );
+                }
+            } catch ( IOException ex ) {
+                listener.onStorageFailed( "Unable to store " + event, ex );
+            }
+        }
+    } );
+    private final SessionCompactor.Listener compactionListener = new SessionCompactor.Listener() {
+        @Override
+        public void onSessionCompacted( File archive, long samples, long logBytes, long archiveBytes ) {
+            listener.onSessionArchived( archive, samples, logBytes, archiveBytes );
+            HistoryCache cache = history;
+            if ( cache == null ) return;
+            try {
+                cache.onArchiveAdded( archive );
+            } catch ( IOException ex ) {
+                listener.onStorageFailed( "Unable to open " + archive.getName() + " for the history.", ex );
+            }
+        }
+
+        @Override
+        public void onCompactionFailed( File log, IOException ex ) {
+            listener.onStorageFailed( "Unable to archive " + log.getName() + ", retrying when the app starts again.", ex );
+        }
+    };
+
+    public SessionStorage( File directory, Listener listener ) {
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return of archived sessions, null while the storage is not open
+     */
+    public HistoryCache getHistory() {
+        return history;
+    }
+
+    /**
+     * @return sips of all sessions, null while the storage is not open
+     */
+    public DrinkEventStore getDrinkEvents() {
+        return drinkEvents;
+    }
+
+    /**
+     * Opens the directory unless it is open, completes an interrupted recalibration and archives the
+     * sessions the app did not get to before it was stopped, in the background. Called with the first
+     * session, call it earlier to read the history before connecting.
+     *
+     * @return false if the directory cannot be created, sessions are not stored then
+     */
+    public synchronized boolean open() {
+        if ( opened ) return sessionCompactor != null;
+        opened = true;
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            listener.onStorageFailed( "Unable to create " + directory + ", sessions will not be archived.", null );
+            return false;
+        }
+        // A recalibration the app was stopped in the middle of
+        Recalibration.recover( directory );
+        SessionCompactor compactor = new SessionCompactor( directory, compactionListener );
+        history = new HistoryCache( compactor );
+        try {
+            drinkEvents = DrinkEventStore.open( new File( directory, DrinkEventStore.FILE_NAME ) );
+        } catch ( IOException ex ) {
+            listener.onStorageFailed( "Unable to open the drink events, sips will not be recorded.", ex );
+        }
+        sessionCompactor = compactor;
+        compactor.compactPending( null );
+        return true;
+    }
+
+    /**
+     * Rewrites the archived sessions in the background.
+     *
+     * @return false when there are none because the storage is not open
+     */
+    public boolean recalibrate( Calibration from, Calibration to, final Recalibration.Listener recalibrationListener ) {
+        final SessionCompactor compactor = sessionCompactor;
+        if ( compactor == null ) return false;
+        new Recalibration( compactor, from, to ).start( new Recalibration.Listener() {
+            @Override
+            public void onProgress( int percent ) {
+                if ( recalibrationListener != null ) recalibrationListener.onProgress( percent );
+            }
+
+            @Override
+            public void onRecalibrated( int archives, long samples, long millis ) {
+                try {
+                    // The cache still reads the replaced archives
+                    history.invalidate();
+                } catch ( IOException ex ) {
+                    listener.onStorageFailed( "Unable to close the replaced archives.", ex );
+                }
+                DrinkEventStore store = drinkEvents;
+                if ( store != null ) {
+                    try {
+                        // The volumes of the archived events changed with the samples
+                        store.rebuild( compactor.listArchives() );
+                    } catch ( IOException ex ) {
+                        listener.onStorageFailed( "Unable to rebuild the drink events, they keep the old calibration.", ex );
+                    }
+                }
+                if ( recalibrationListener != null ) recalibrationListener.onRecalibrated( archives, samples, millis );
+            }
+
+            @Override
+            public void onRecalibrationFailed( IOException ex ) {
+                if ( recalibrationListener != null ) recalibrationListener.onRecalibrationFailed( ex );
+            }
+        } );
+        return true;
+    }
+
+    @Override
+    public void onSessionStarted() {
+        if ( !open() ) return;
+        try {
+            sampleLog = SampleLog.create( sessionCompactor.getLogFile( System.currentTimeMillis() ) );
+        } catch ( IOException ex ) {
+            listener.onStorageFailed( "Unable to record the session.", ex );
+        }
+    }
+
+    @Override
+    public void onSamples( HPBMDataBatch batch, long receivedAt ) {
+        if ( sampleLog != null ) {
+            try {
+                sampleLog.append( batch );
+            } catch ( IOException ex ) {
+                listener.onStorageFailed( "Unable to record samples, the rest of the session is not archived.", ex );
+                archive( sampleLog );
+                sampleLog = null;
+            }
+        }
+        drinkSegmenter.add( batch );
+    }
+
+    /**
+     * The session is over, its log is archived in the background.
+     */
+    @Override
+    public void onSessionEnded() {
+        drinkSegmenter.flush();
+        if ( sampleLog != null ) {
+            archive( sampleLog );
+            sampleLog = null;
+        }
+    }
+
+    private void archive( SampleLog log ) {
+        try {
+            log.close();
+            sessionCompactor.compactLater( log.getFile() );
+        } catch ( IOException ex ) {
+            listener.onStorageFailed( "Unable to close the session log, it is archived when the app starts again.", ex );
+        }
+    }
+
+}
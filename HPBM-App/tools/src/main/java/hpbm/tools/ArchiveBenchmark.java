@@ -0,0 +1,203 @@
+package hpbm.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.HPBMData;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.HPBMDataHandler;
+import hpbm.app.storage.ArchiveChunk;
+import hpbm.app.storage.SampleLog;
+import hpbm.app.storage.SessionArchiveReader;
+import hpbm.app.storage.SessionArchiveWriter;
+
+/**
+ * Archives sessions the way the app does (pulse reports through the consumption estimator, then into a
+ * session archive) and reports per session:
+ * - size: raw sample log, the log gzipped for reference, the archive, and the archive's bits per sample,
+ * - decode throughput of whole chunks and of range queries over random ten minute windows.
+ * Every archive is read back and compared sample by sample, a mismatch fails the run.
+ * Without arguments a set of synthetic sessions is used.
+ */
+public final class ArchiveBenchmark {
+
+    private static final int SYNTHETIC_SESSIONS = 3;
+    private static final int SYNTHETIC_SAMPLES = 8 * 3600;
+    private static final long QUERY_MILLIS = 10 * 60 * 1000;
+    private static final long TIMING_NANOS = 1000000000L;
+
+    public static void main( String[] args ) throws IOException {
+        List<RecordedSession> sessions = new ArrayList<>();
+        for ( String arg : args ) {
+            sessions.add( RecordedSession.load( new File( arg ) ) );
+        }
+        if ( sessions.isEmpty() ) {
+            for ( int i = 0; i < SYNTHETIC_SESSIONS; i++ ) {
+                sessions.add( RecordedSession.synthesize( i, SYNTHETIC_SAMPLES ) );
+            }
+        }
+
+        System.out.println( String.format( Locale.US, "%-20s %8s %10s %10s %10s %7s %9s %12s %12s",
+            "session", "samples", "log [B]", "gzip [B]", "archive", "ratio", "bits/smp", "decode [M/s]", "queries/s" ) );
+        for ( RecordedSession session : sessions ) {
+            run( session );
+        }
+    }
+
+    private static void run( RecordedSession session ) throws IOException {
+        HPBMDataBatch samples = toSamples( session );
+        File file = File.createTempFile( "archive-benchmark", ".hpbma" );
+        file.deleteOnExit();
+        SessionArchiveWriter writer = new SessionArchiveWriter( file );
+        for ( int i = 0; i < samples.size(); i++ ) {
+            writer.append( samples.getTimestamp( i ), samples.getCurrentConsumption( i ), samples.getAverageConsumption( i ), samples.getRemainingPart( i ), samples.getTimeToEmpty( i ) );
+        }
+        writer.close();
+
+        long logBytes = SampleLog.HEADER_SIZE + (long) SampleLog.RECORD_SIZE * samples.size();
+        long gzipBytes = gzip( samples );
+        long archiveBytes = file.length();
+
+        SessionArchiveReader reader = SessionArchiveReader.open( file );
+        try {
+            verify( reader, samples );
+            double decodeRate = measureDecode( reader );
+            double queryRate = measureQueries( reader );
+            System.out.println( String.format( Locale.US, "%-20s %8d %10d %10d %10d %6.1fx %9.2f %12.1f %12.0f",
+                session.getName(), samples.size(), logBytes, gzipBytes, archiveBytes, (double) logBytes / archiveBytes,
+                8.0 * archiveBytes / samples.size(), decodeRate / 1e6, queryRate ) );
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static HPBMDataBatch toSamples( RecordedSession session ) {
+        ConsumptionEstimator estimator = ConsumptionEstimator.createDefault();
+        estimator.refillTo( 1000f );
+        HPBMDataBatch samples = new HPBMDataBatch( session.size() );
+        long timestamp = 1500000000000L;
+        for ( int i = 0; i < session.size(); i++ ) {
+            estimator.addPulses( session.getPulses( i ), session.getInterval( i ) );
+            timestamp += session.getInterval( i );
+            estimator.appendTo( timestamp, samples );
+        }
+        return samples;
+    }
+
+    private static long gzip( HPBMDataBatch samples ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream( bytes );
+        byte[] record = new byte[SampleLog.RECORD_SIZE];
+        for ( int i = 0; i < samples.size(); i++ ) {
+            putLong( record, 0, samples.getTimestamp( i ) );
+            putLong( record, 8, (long) Float.floatToRawIntBits( samples.getCurrentConsumption( i ) ) << 32 | Float.floatToRawIntBits( samples.getAverageConsumption( i ) ) & 0xffffffffL );
+            putLong( record, 16, (long) Float.floatToRawIntBits( samples.getRemainingPart( i ) ) << 32 | samples.getTimeToEmpty( i ) & 0xffffffffL );
+            out.write( record );
+        }
+        out.close();
+        return bytes.size();
+    }
+
+    private static void verify( SessionArchiveReader reader, final HPBMDataBatch samples ) throws IOException {
+        if ( reader.getSampleCount() != samples.size() ) fail( "archive holds " + reader.getSampleCount() + " of " + samples.size() + " samples" );
+        ArchiveChunk chunk = new ArchiveChunk();
+        int index = 0;
+        for ( int c = 0; c < reader.getChunkCount(); c++ ) {
+            reader.readChunk( c, chunk );
+            for ( int i = 0; i < chunk.size(); i++, index++ ) {
+                if ( chunk.getTimestamp( i ) != samples.getTimestamp( index )
+                        || !same( chunk.getCurrentConsumption( i ), samples.getCurrentConsumption( index ) )
+                        || !same( chunk.getAverageConsumption( i ), samples.getAverageConsumption( index ) )
+                        || !same( chunk.getRemainingPart( i ), samples.getRemainingPart( index ) )
+                        || chunk.getTimeToEmpty( i ) != samples.getTimeToEmpty( index ) ) {
+                    fail( "sample " + index + " differs" );
+                }
+            }
+        }
+
+        // A range query returns exactly the samples in [from, to)
+        final long from = samples.getTimestamp( samples.size() / 3 );
+        final long to = samples.getTimestamp( samples.size() / 2 );
+        final int[] seen = { samples.size() / 3 };
+        reader.query( from, to, new ArchiveChunk(), new HPBMDataBatch( SessionArchiveWriter.CHUNK_SAMPLES ), new HPBMDataHandler() {
+            @Override
+            public void onDataReceived( HPBMData data ) {}
+
+            @Override
+            public void onBatchReceived( HPBMDataBatch batch ) {
+                for ( int i = 0; i < batch.size(); i++ ) {
+                    if ( batch.getTimestamp( i ) != samples.getTimestamp( seen[0]++ ) ) fail( "query returned the wrong samples" );
+                }
+            }
+        });
+        if ( seen[0] != samples.size() / 2 ) fail( "query returned " + (seen[0] - samples.size() / 3) + " samples" );
+    }
+
+    /**
+     * @return samples decoded per second
+     */
+    private static double measureDecode( SessionArchiveReader reader ) throws IOException {
+        ArchiveChunk chunk = new ArchiveChunk();
+        long decoded = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for ( int c = 0; c < reader.getChunkCount(); c++ ) {
+                reader.readChunk( c, chunk );
+                decoded += chunk.size();
+            }
+            elapsed = System.nanoTime() - start;
+        } while ( elapsed < TIMING_NANOS );
+        return decoded * 1e9 / elapsed;
+    }
+
+    /**
+     * @return range queries over random {@link #QUERY_MILLIS} windows per second
+     */
+    private static double measureQueries( SessionArchiveReader reader ) throws IOException {
+        Random random = new Random( 1 );
+        ArchiveChunk chunk = new ArchiveChunk();
+        HPBMDataBatch batch = new HPBMDataBatch( SessionArchiveWriter.CHUNK_SAMPLES );
+        HPBMDataHandler handler = new HPBMDataHandler() {
+            @Override
+            public void onDataReceived( HPBMData data ) {}
+
+            @Override
+            public void onBatchReceived( HPBMDataBatch batch ) {}
+        };
+        long span = Math.max( 1, reader.getEndTime() - reader.getStartTime() - QUERY_MILLIS );
+        long queries = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            long from = reader.getStartTime() + (long) (random.nextDouble() * span);
+            reader.query( from, from + QUERY_MILLIS, chunk, batch, handler );
+            queries++;
+            elapsed = System.nanoTime() - start;
+        } while ( elapsed < TIMING_NANOS );
+        return queries * 1e9 / elapsed;
+    }
+
+    private static boolean same( float a, float b ) {
+        return Float.floatToRawIntBits( a ) == Float.floatToRawIntBits( b );
+    }
+
+    private static void putLong( byte[] b, int offset, long v ) {
+        for ( int i = 0; i < 8; i++ ) {
+            b[offset + i] = (byte) (v >>> (56 - 8 * i));
+        }
+    }
+
+    private static void fail( String what ) {
+        System.out.println( "FAILED: " + what );
+        System.exit( 1 );
+    }
+
+}
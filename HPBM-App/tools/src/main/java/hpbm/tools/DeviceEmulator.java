@@ -0,0 +1,275 @@
+package hpbm.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Serves many {@link VirtualDevice}s to the app's SocketCommunicator, or to a soak test, from one thread.
+ * Each device listens on a TCP port of its own, on all interfaces, and talks to one client at a time like
+ * a device keeps one BLE connection. Its lines go through a small output buffer, the device's UART, into a
+ * small socket send buffer: a client that does not keep up throttles the device through TCP until readings
+ * no longer fit and are dropped, with their sequence numbers skipped as on the device. Device time runs at
+ * a multiple of real time, the devices are booted at random offsets within a second so their readings
+ * interleave.
+ *
+ * Usage: DeviceEmulator [devices] [first port] [speedup]
+ */
+public final class DeviceEmulator {
+
+    static final int DEFAULT_DEVICES = 4;
+    static final int DEFAULT_PORT = 7070;           // SocketCommunicator.DEFAULT_PORT, the tools do not see the app's net package
+    static final int OUTPUT_BUFFER_SIZE = 1024;     // [B] per device
+    static final int SOCKET_SEND_BUFFER_SIZE = 4096;    // [B] a hint, the system may round it up
+    private static final int INPUT_BUFFER_SIZE = 512;
+
+    private final Slot[] slots;
+    private final double speedup;
+    private final Selector selector;
+    private volatile boolean running;
+    private volatile boolean paused;
+    private volatile Thread thread;
+    private long startNanos;
+    private long pausedMillis;                      // [ms] device time when paused
+
+    /**
+     * One device with its server socket and connected client.
+     */
+    private static final class Slot implements VirtualDevice.Output {
+        final VirtualDevice device = new VirtualDevice();
+        final ByteBuffer output = ByteBuffer.allocate( OUTPUT_BUFFER_SIZE );
+        final ByteBuffer input = ByteBuffer.allocate( INPUT_BUFFER_SIZE );
+        final long bootOffset;                      // [ms] device uptime at the emulator's start
+        ServerSocketChannel server;
+        SocketChannel client;
+        int connections;
+        long sentBytes;                             // queued for a client
+
+        Slot( long bootOffset ) {
+            this.bootOffset = bootOffset;
+        }
+
+        @Override
+        public boolean send( byte[] lines, int length ) {
+            if ( client == null ) return true;      // nobody listening, gone like a notification without a connection
+            if ( output.remaining() < length ) return false;
+            output.put( lines, 0, length );
+            sentBytes += length;
+            return true;
+        }
+    }
+
+    /**
+     * @param firstPort 0 binds every device to a free port, see {@link #getPort(int)}
+     * @param speedup Device milliseconds per real millisecond
+     */
+    DeviceEmulator( int devices, int firstPort, double speedup ) throws IOException {
+        this.speedup = speedup;
+        this.selector = Selector.open();
+        this.slots = new Slot[devices];
+        Random random = new Random( devices );
+        for ( int i = 0; i < devices; i++ ) {
+            Slot slot = new Slot( random.nextInt( (int) VirtualDevice.READING_PERIOD ) );
+            slot.server = ServerSocketChannel.open();
+            slot.server.setOption( StandardSocketOptions.SO_REUSEADDR, true );
+            slot.server.bind( new InetSocketAddress( firstPort == 0 ? 0 : firstPort + i ) );
+            slot.server.configureBlocking( false );
+            slot.server.register( selector, SelectionKey.OP_ACCEPT, slot );
+            slots[i] = slot;
+        }
+    }
+
+    int getDeviceCount() {
+        return slots.length;
+    }
+
+    int getPort( int device ) {
+        return slots[device].server.socket().getLocalPort();
+    }
+
+    VirtualDevice getDevice( int device ) {
+        return slots[device].device;
+    }
+
+    int getConnections( int device ) {
+        return slots[device].connections;
+    }
+
+    /**
+     * @return Bytes the device queued for its clients, dropped readings are not counted
+     */
+    long getSentBytes( int device ) {
+        return slots[device].sentBytes;
+    }
+
+    /**
+     * Stops device time for good, readings already produced are still sent.
+     */
+    void pause() {
+        paused = true;
+        selector.wakeup();
+    }
+
+    synchronized void start() {
+        if ( running ) return;
+        running = true;
+        Thread t = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runLoop();
+                } catch ( IOException ex ) {
+                    ex.printStackTrace();
+                }
+            }
+        }, "DeviceEmulator" );
+        thread = t;
+        t.start();
+    }
+
+    void stop() throws InterruptedException {
+        Thread t;
+        synchronized ( this ) {
+            if ( !running ) return;
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        selector.wakeup();
+        t.join();
+    }
+
+    private void runLoop() throws IOException {
+        startNanos = System.nanoTime();
+        try {
+            while ( running ) {
+                long now = getDeviceTime();
+                long nextEvent = Long.MAX_VALUE;
+                for ( Slot slot : slots ) {
+                    slot.device.advanceTo( now + slot.bootOffset, slot );
+                    flush( slot );
+                    nextEvent = Math.min( nextEvent, slot.device.getNextEvent() - slot.bootOffset );
+                }
+                long wait = paused ? 0 : (long) Math.ceil( (nextEvent - getDeviceTime()) / speedup );
+                if ( !paused && wait <= 0 ) {
+                    selector.selectNow();
+                } else {
+                    selector.select( wait );
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while ( keys.hasNext() ) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Slot slot = (Slot) key.attachment();
+                    if ( !key.isValid() ) continue;
+                    if ( key.isAcceptable() ) {
+                        accept( slot );
+                    } else {
+                        if ( key.isReadable() ) read( slot );
+                        if ( slot.client != null && key.isValid() && key.isWritable() ) flush( slot );
+                    }
+                }
+            }
+        } finally {
+            for ( Slot slot : slots ) {
+                disconnect( slot );
+                slot.server.close();
+            }
+            selector.close();
+        }
+    }
+
+    /**
+     * @return [ms] since the start, scaled by the speedup
+     */
+    private long getDeviceTime() {
+        if ( paused ) return pausedMillis;
+        long elapsed = (long) ((System.nanoTime() - startNanos) / 1000000.0 * speedup);
+        pausedMillis = elapsed;
+        return elapsed;
+    }
+
+    private void accept( Slot slot ) throws IOException {
+        SocketChannel client = slot.server.accept();
+        if ( client == null ) return;
+        if ( slot.client != null ) {
+            client.close();     // connected to someone else already
+            return;
+        }
+        client.configureBlocking( false );
+        client.setOption( StandardSocketOptions.TCP_NODELAY, true );
+        client.setOption( StandardSocketOptions.SO_SNDBUF, SOCKET_SEND_BUFFER_SIZE );
+        client.register( selector, SelectionKey.OP_READ, slot );
+        slot.client = client;
+        slot.connections++;
+        slot.output.clear();
+        slot.input.clear();
+    }
+
+    private void read( Slot slot ) throws IOException {
+        int count;
+        try {
+            count = slot.client.read( slot.input );
+        } catch ( IOException ex ) {
+            count = -1;
+        }
+        if ( count < 0 ) {
+            disconnect( slot );
+            return;
+        }
+        byte[] data = slot.input.array();
+        int end = slot.input.position();
+        int start = 0;
+        for ( int i = 0; i < end; i++ ) {
+            if ( data[i] == '\n' ) {
+                slot.device.receive( data, start, i - start );
+                start = i + 1;
+            }
+        }
+        if ( start == 0 && end == data.length ) {
+            start = end;    // no line is that long, drop it
+        }
+        System.arraycopy( data, start, data, 0, end - start );
+        slot.input.position( end - start );
+    }
+
+    private void flush( Slot slot ) throws IOException {
+        if ( slot.client == null || slot.output.position() == 0 ) return;
+        slot.output.flip();
+        try {
+            slot.client.write( slot.output );
+        } catch ( IOException ex ) {
+            disconnect( slot );
+            return;
+        }
+        slot.output.compact();
+        slot.client.keyFor( selector ).interestOps( slot.output.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ );
+    }
+
+    private void disconnect( Slot slot ) {
+        if ( slot.client == null ) return;
+        try {
+            slot.client.close();
+        } catch ( IOException ex ) {
+            // Closed anyway
+        }
+        slot.client = null;
+    }
+
+    public static void main( String[] args ) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_DEVICES;
+        int firstPort = args.length > 1 ? Integer.parseInt( args[1] ) : DEFAULT_PORT;
+        double speedup = args.length > 2 ? Double.parseDouble( args[2] ) : 1;
+        DeviceEmulator emulator = new DeviceEmulator( devices, firstPort, speedup );
+        emulator.start();
+        System.out.println( devices + " devices on ports " + emulator.getPort( 0 ) + " to " + emulator.getPort( devices - 1 ) + ", " + speedup + "x real time. Stop with Ctrl+C." );
+    }
+
+}
@@ -0,0 +1,127 @@
+package hpbm.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.CumulativeRateEstimator;
+import hpbm.app.core.EwmaRateEstimator;
+import hpbm.app.core.RateEstimator;
+import hpbm.app.core.SlidingWindowRateEstimator;
+
+/**
+ * Replays recorded sessions through every rate estimator and reports:
+ * - accuracy: mean absolute error of the estimated rate against the rate actually realized over the following horizon,
+ * - cost: nanoseconds per sample update.
+ * Without arguments a set of synthetic sessions is used.
+ */
+public final class EstimatorBenchmark {
+
+    private static final int HORIZON = 600;             // [s]
+    private static final int TIMING_ROUNDS = 20;
+    private static final int SYNTHETIC_SESSIONS = 5;
+    private static final int SYNTHETIC_SAMPLES = 8 * 3600;
+
+    private interface EstimatorFactory {
+        String getName();
+        RateEstimator create();
+    }
+
+    public static void main( String[] args ) throws IOException {
+        List<RecordedSession> sessions = new ArrayList<>();
+        for ( String arg : args ) {
+            sessions.add( RecordedSession.load( new File( arg ) ) );
+        }
+        if ( sessions.isEmpty() ) {
+            for ( int i = 0; i < SYNTHETIC_SESSIONS; i++ ) {
+                sessions.add( RecordedSession.synthesize( i, SYNTHETIC_SAMPLES ) );
+            }
+        }
+
+        List<EstimatorFactory> factories = createFactories();
+        System.out.println( String.format( Locale.US, "%-28s %-16s %12s %12s %12s", "session", "estimator", "MAE [ml/s]", "bias [ml/s]", "ns/sample" ) );
+        for ( RecordedSession session : sessions ) {
+            for ( EstimatorFactory factory : factories ) {
+                double[] accuracy = measureAccuracy( session, factory.create() );
+                double cost = measureCost( session, factory.create() );
+                System.out.println( String.format( Locale.US, "%-28s %-16s %12.4f %12.4f %12.1f", session.getName(), factory.getName(), accuracy[0], accuracy[1], cost ) );
+            }
+        }
+    }
+
+    private static List<EstimatorFactory> createFactories() {
+        List<EstimatorFactory> factories = new ArrayList<>();
+        factories.add( new EstimatorFactory() {
+            @Override public String getName() { return "cumulative"; }
+            @Override public RateEstimator create() { return new CumulativeRateEstimator(); }
+        });
+        for ( final int halfLife : new int[] { 60, 300, 900 } ) {
+            factories.add( new EstimatorFactory() {
+                @Override public String getName() { return "ewma-" + halfLife + "s"; }
+                @Override public RateEstimator create() { return new EwmaRateEstimator( halfLife ); }
+            });
+        }
+        for ( final int window : new int[] { 60, 300, 900 } ) {
+            factories.add( new EstimatorFactory() {
+                @Override public String getName() { return "window-" + window; }
+                @Override public RateEstimator create() { return new SlidingWindowRateEstimator( window ); }
+            });
+        }
+        return factories;
+    }
+
+    /**
+     * @return mean absolute error and mean error (bias) of the estimate against the rate realized over the next {@link #HORIZON} seconds
+     */
+    private static double[] measureAccuracy( RecordedSession session, RateEstimator estimator ) {
+        int n = session.size();
+        float coeff = ConsumptionEstimator.DEFAULT_PULSE_TO_CONSUMED_COEFF;
+        double[] consumedPrefix = new double[n + 1];
+        long[] millisPrefix = new long[n + 1];
+        for ( int i = 0; i < n; i++ ) {
+            consumedPrefix[i + 1] = consumedPrefix[i] + coeff * session.getPulses( i );
+            millisPrefix[i + 1] = millisPrefix[i] + session.getInterval( i );
+        }
+
+        double absoluteError = 0;
+        double error = 0;
+        int count = 0;
+        int end = 0;
+        for ( int i = 0; i < n; i++ ) {
+            estimator.addSample( coeff * session.getPulses( i ), session.getInterval( i ) );
+            while ( end <= n && millisPrefix[end] - millisPrefix[i + 1] < HORIZON * 1000L ) {
+                end++;
+            }
+            if ( end > n ) break;
+            float estimate = estimator.getRate();
+            if ( Float.isNaN( estimate ) ) continue;
+            double realized = 1000.0 * (consumedPrefix[end] - consumedPrefix[i + 1]) / (millisPrefix[end] - millisPrefix[i + 1]);
+            absoluteError += Math.abs( estimate - realized );
+            error += estimate - realized;
+            count++;
+        }
+        return count > 0 ? new double[] { absoluteError / count, error / count } : new double[] { Double.NaN, Double.NaN };
+    }
+
+    private static double measureCost( RecordedSession session, RateEstimator estimator ) {
+        float coeff = ConsumptionEstimator.DEFAULT_PULSE_TO_CONSUMED_COEFF;
+        int n = session.size();
+        float sink = 0f;
+        long best = Long.MAX_VALUE;
+        for ( int round = 0; round < TIMING_ROUNDS; round++ ) {
+            estimator.reset();
+            long start = System.nanoTime();
+            for ( int i = 0; i < n; i++ ) {
+                estimator.addSample( coeff * session.getPulses( i ), session.getInterval( i ) );
+                sink += estimator.getRate();
+            }
+            best = Math.min( best, System.nanoTime() - start );
+        }
+        if ( sink == Float.MIN_VALUE ) System.out.print( "" ); // keeps the loop from being optimized away
+        return n > 0 ? (double) best / n : Double.NaN;
+    }
+
+}
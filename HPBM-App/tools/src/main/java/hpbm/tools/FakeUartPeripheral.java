@@ -0,0 +1,455 @@
+package hpbm.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import hpbm.app.core.GattClient;
+import hpbm.app.core.GattTransport;
+import hpbm.app.core.NordicUart;
+
+/**
+ * A device with the Nordic UART service, in memory, behind the {@link GattTransport} the app's
+ * {@link GattClient} runs on. Time passes in connection events: each one carries one ATT request of the
+ * app and its response, then up to a number of packets from the device, notifications first come first
+ * served. Notifications can get lost, every packet can arrive a number of connection events late, and the
+ * link can drop at random.
+ *
+ * Events run either when the caller steps them, which is deterministic and as fast as the machine, or
+ * on a timer thread at the connection interval, where the callbacks come from that thread like they come
+ * from the phone's binder threads.
+ */
+final class FakeUartPeripheral implements GattTransport {
+
+    static final String ADDRESS = "FA:KE:00:00:00:01";
+
+    private static final int ATT_OVERHEAD = 3;
+    private static final int RSSI = -60;    // [dBm]
+
+    private final int intervalMillis;
+    private final int maxMtu;
+    private final int packetsPerEvent;
+    private final int latencyEvents;
+    private final float notificationLoss;
+    private final float disconnectRate;      // per connection event
+    private final Random random;
+
+    private final ArrayDeque<Runnable> requests = new ArrayDeque<>();      // ATT requests of the app, one per event
+    private final ArrayDeque<byte[]> notifications = new ArrayDeque<>();   // queued by the device's firmware
+    private final List<Delivery> deliveries = new ArrayList<>();           // in flight to the app
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    private Callback callback;
+    private ScheduledExecutorService timer;
+    private long event;
+    private int state = STATE_DISCONNECTED;
+    private boolean connectPending;
+    private boolean servicesDiscovered;
+    private boolean notifying;
+    private int mtu = GattClient.DEFAULT_MTU;
+    private int priority = CONNECTION_PRIORITY_BALANCED;
+    private long sentNotifications;
+    private long lostNotifications;
+    private long droppedNotifications;      // queued while nobody listened or when the link dropped
+    private int disconnects;
+
+    private static final class Delivery {
+        final long event;
+        final Runnable callback;
+        final boolean notification;
+
+        Delivery( long event, Runnable callback, boolean notification ) {
+            this.event = event;
+            this.callback = callback;
+            this.notification = notification;
+        }
+    }
+
+    /**
+     * @param intervalMillis connection interval
+     * @param maxMtu the largest MTU the device accepts
+     * @param packetsPerEvent packets the device sends per connection event
+     * @param latencyMillis extra delay of every packet, rounded up to connection events
+     * @param notificationLoss share of notifications that never arrive
+     * @param disconnectRate chance the link drops in a connection event
+     */
+    FakeUartPeripheral( int intervalMillis, int maxMtu, int packetsPerEvent, int latencyMillis, float notificationLoss, float disconnectRate, long seed ) {
+        this.intervalMillis = intervalMillis;
+        this.maxMtu = maxMtu;
+        this.packetsPerEvent = packetsPerEvent;
+        this.latencyEvents = (latencyMillis + intervalMillis - 1) / intervalMillis;
+        this.notificationLoss = notificationLoss;
+        this.disconnectRate = disconnectRate;
+        this.random = new Random( seed );
+    }
+
+    // Device side
+
+    /**
+     * Queues a notification on RX, as the firmware does when it has a message.
+     *
+     * @return false if it was dropped because notifications are off or it does not fit the MTU
+     */
+    synchronized boolean notify( byte[] payload ) {
+        if ( state != STATE_CONNECTED || !notifying || payload.length > mtu - ATT_OVERHEAD ) {
+            droppedNotifications++;
+            return false;
+        }
+        notifications.add( payload.clone() );
+        return true;
+    }
+
+    /**
+     * @return the bytes the app wrote to TX so far, in order
+     */
+    synchronized byte[] getReceived() {
+        return received.toByteArray();
+    }
+
+    synchronized int getPendingNotifications() {
+        return notifications.size();
+    }
+
+    /**
+     * @return notifications sent but not yet delivered because of the latency
+     */
+    synchronized int getNotificationsInFlight() {
+        int count = 0;
+        for ( Delivery delivery : deliveries ) {
+            if ( delivery.notification ) count++;
+        }
+        return count;
+    }
+
+    synchronized long getSentNotifications() {
+        return sentNotifications;
+    }
+
+    synchronized long getLostNotifications() {
+        return lostNotifications;
+    }
+
+    synchronized long getDroppedNotifications() {
+        return droppedNotifications;
+    }
+
+    synchronized int getDisconnects() {
+        return disconnects;
+    }
+
+    synchronized int getConnectionPriority() {
+        return priority;
+    }
+
+    synchronized boolean isNotifying() {
+        return notifying;
+    }
+
+    /**
+     * @return [ms] of simulated time, one connection interval per event
+     */
+    synchronized long getTime() {
+        return event * intervalMillis;
+    }
+
+    int getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Drops the link, the app hears of it with the next connection event.
+     */
+    synchronized void dropLink() {
+        if ( state == STATE_CONNECTED ) {
+            disconnectLocked();
+        }
+    }
+
+    // Time
+
+    /**
+     * Runs connection events on the caller's thread.
+     */
+    void runEvents( int count ) {
+        for ( int i = 0; i < count; i++ ) {
+            runEvent();
+        }
+    }
+
+    /**
+     * Runs connection events on a timer thread at the connection interval, until {@link #stop()}.
+     */
+    synchronized void start() {
+        if ( timer != null ) return;
+        timer = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, "FakeUartPeripheral" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        timer.scheduleAtFixedRate( new Runnable() {
+            @Override
+            public void run() {
+                runEvent();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+    }
+
+    synchronized void stop() {
+        if ( timer != null ) {
+            timer.shutdown();
+            timer = null;
+        }
+    }
+
+    void runEvent() {
+        List<Runnable> due = new ArrayList<>();
+        synchronized ( this ) {
+            event++;
+            if ( connectPending ) {
+                connectPending = false;
+                state = STATE_CONNECTED;
+                deliver( new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onConnectionStateChange( STATE_CONNECTED );
+                    }
+                }, false );
+            } else if ( state == STATE_CONNECTED ) {
+                if ( disconnectRate > 0 && random.nextFloat() < disconnectRate ) {
+                    disconnectLocked();
+                } else {
+                    int packets = packetsPerEvent;
+                    if ( !requests.isEmpty() ) {
+                        requests.poll().run();
+                        packets--;
+                    }
+                    for ( ; packets > 0 && !notifications.isEmpty(); packets-- ) {
+                        final byte[] payload = notifications.poll();
+                        sentNotifications++;
+                        if ( notificationLoss > 0 && random.nextFloat() < notificationLoss ) {
+                            lostNotifications++;
+                            continue;
+                        }
+                        deliver( new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onCharacteristicChanged( NordicUart.RX, payload );
+                            }
+                        }, true );
+                    }
+                }
+            }
+            for ( int i = 0; i < deliveries.size(); ) {
+                if ( deliveries.get( i ).event <= event ) {
+                    due.add( deliveries.remove( i ).callback );
+                } else {
+                    i++;
+                }
+            }
+        }
+        // Outside the lock, the app calls back in from its callbacks
+        for ( Runnable runnable : due ) {
+            runnable.run();
+        }
+    }
+
+    private void deliver( Runnable callback, boolean notification ) {
+        deliveries.add( new Delivery( event + latencyEvents, callback, notification ) );
+    }
+
+    private void clearDeliveries() {
+        droppedNotifications += getNotificationsInFlight();
+        deliveries.clear();
+    }
+
+    private void disconnectLocked() {
+        disconnects++;
+        state = STATE_DISCONNECTED;
+        servicesDiscovered = false;
+        notifying = false;
+        mtu = GattClient.DEFAULT_MTU;
+        requests.clear();
+        droppedNotifications += notifications.size();
+        notifications.clear();
+        // Whatever was in flight is lost with the link
+        clearDeliveries();
+        deliveries.add( new Delivery( event, new Runnable() {
+            @Override
+            public void run() {
+                callback.onConnectionStateChange( STATE_DISCONNECTED );
+            }
+        }, false ) );
+    }
+
+    // GattTransport, the app side
+
+    @Override
+    public synchronized void setCallback( Callback callback ) {
+        this.callback = callback;
+    }
+
+    @Override
+    public synchronized boolean connect( String address, boolean autoConnect ) {
+        if ( !ADDRESS.equals( address ) ) return false;
+        if ( state == STATE_DISCONNECTED ) {
+            connectPending = true;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean reconnect() {
+        return connect( ADDRESS, false );
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        connectPending = false;
+        if ( state == STATE_CONNECTED ) {
+            disconnectLocked();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        connectPending = false;
+        if ( state == STATE_CONNECTED ) {
+            disconnectLocked();
+        }
+        // No callbacks after close
+        clearDeliveries();
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        if ( state != STATE_CONNECTED ) return false;
+        requests.add( new Runnable() {
+            @Override
+            public void run() {
+                servicesDiscovered = true;
+                deliver( new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onServicesDiscovered( true );
+                    }
+                }, false );
+            }
+        } );
+        return true;
+    }
+
+    @Override
+    public synchronized boolean hasService( UUID service ) {
+        return servicesDiscovered && NordicUart.SERVICE.equals( service );
+    }
+
+    @Override
+    public synchronized int getCharacteristicProperties( UUID service, UUID characteristic ) {
+        if ( !hasService( service ) ) return 0;
+        if ( NordicUart.RX.equals( characteristic ) ) return PROPERTY_NOTIFY;
+        if ( NordicUart.TX.equals( characteristic ) ) return PROPERTY_WRITE;
+        return 0;
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic( UUID service, UUID characteristic ) {
+        // Neither characteristic is readable
+        return false;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic( UUID service, final UUID characteristic, byte[] value ) {
+        if ( state != STATE_CONNECTED || (getCharacteristicProperties( service, characteristic ) & PROPERTY_WRITE) == 0
+            || value.length > mtu - ATT_OVERHEAD ) {
+            return false;
+        }
+        final byte[] copy = value.clone();
+        requests.add( new Runnable() {
+            @Override
+            public void run() {
+                received.write( copy, 0, copy.length );
+                deliver( new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCharacteristicWrite( characteristic, true );
+                    }
+                }, false );
+            }
+        } );
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setNotification( UUID service, final UUID characteristic, final boolean enable, boolean indicate ) {
+        if ( state != STATE_CONNECTED || indicate || (getCharacteristicProperties( service, characteristic ) & PROPERTY_NOTIFY) == 0 ) {
+            return false;
+        }
+        requests.add( new Runnable() {
+            @Override
+            public void run() {
+                notifying = enable;
+                deliver( new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDescriptorWrite( characteristic, CLIENT_CHARACTERISTIC_CONFIG, true );
+                    }
+                }, false );
+            }
+        } );
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu( final int requested ) {
+        if ( state != STATE_CONNECTED ) return false;
+        requests.add( new Runnable() {
+            @Override
+            public void run() {
+                mtu = Math.max( GattClient.DEFAULT_MTU, Math.min( requested, maxMtu ) );
+                final int agreed = mtu;
+                deliver( new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onMtuChanged( agreed, true );
+                    }
+                }, false );
+            }
+        } );
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority( int priority ) {
+        if ( state != STATE_CONNECTED ) return false;
+        this.priority = priority;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean readRemoteRssi() {
+        if ( state != STATE_CONNECTED ) return false;
+        requests.add( new Runnable() {
+            @Override
+            public void run() {
+                deliver( new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReadRemoteRssi( RSSI, true );
+                    }
+                }, false );
+            }
+        } );
+        return true;
+    }
+
+}
@@ -0,0 +1,426 @@
+package hpbm.tools;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hpbm.app.core.AlertEngine;
+import hpbm.app.core.AlertRule;
+import hpbm.app.core.CommandBuffer;
+import hpbm.app.core.CommandBufferPool;
+import hpbm.app.core.CommandChannel;
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.CumulativeRateEstimator;
+import hpbm.app.core.DevicePipeline;
+import hpbm.app.core.DrinkEventSegmenter;
+import hpbm.app.core.EwmaRateEstimator;
+import hpbm.app.core.GattClient;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.IngestionThread;
+import hpbm.app.core.LinkMonitor;
+import hpbm.app.core.MessageInterpreter;
+import hpbm.app.core.MessageInterpreterImpl;
+import hpbm.app.core.NordicUart;
+import hpbm.app.core.NotificationRouter;
+import hpbm.app.core.PulseBatch;
+import hpbm.app.core.RateEstimator;
+import hpbm.app.core.ReportMode;
+import hpbm.app.core.SampleEnvelope;
+import hpbm.app.core.SampleRingBuffer;
+import hpbm.app.core.SlidingWindowRateEstimator;
+import hpbm.app.core.SpscPayloadRing;
+
+/**
+ * Regression gate for the hot paths: decoding with {@link MessageInterpreter}, notification routing into a
+ * {@link DevicePipeline} wired like BLECommunicator wires it, estimator updates, ring buffer writes and what runs on every sample after
+ * them. Every path is run through thousands of operations after a warm-up, in bursts like connection events,
+ * while the allocated bytes of the threads involved and the time per operation are measured.
+ * Fails when a path allocates in steady state, all budgets are zero bytes, or when the time per operation
+ * of its best round exceeds its budget; the best round is the one least disturbed by the machine, the median
+ * is reported too. Latency budgets leave headroom for slow build machines, a factor given as argument
+ * scales them. The gradle task turns escape analysis off: ART does not have it,
+ * an allocation the JIT removes here would still happen on the phone.
+ *
+ * Usage: HotPathBudgetCheck [latency budget factor]
+ */
+public final class HotPathBudgetCheck {
+
+    private static final int WARMUP_ITERATIONS = 300000;   // past the JIT's last tier, its transitions allocate
+    private static final int ITERATIONS = 10000;        // per round
+    private static final int ROUNDS = 15;
+    private static final int BURST = 64;                // operations between settling, untimed
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+    private static final UUID UUID_OTHER = UUID.fromString( "00002a19-0000-1000-8000-00805f9b34fb" );
+    private static final int CHANNEL_UART_RX = 0;
+
+    private static final byte[] DERIVED = "0.12,-1.00,0.93,1234\n".getBytes( ASCII );
+    private static final byte[] PULSE_REPORT = "P:17,1000\r\n".getBytes( ASCII );
+    private static final byte[] PULSE_BATCH = "B;123456789:;<=>?@AB".getBytes( ASCII );
+    private static final byte[] ENVELOPED_BATCH = "~00000:B;123456789:".getBytes( ASCII );
+    private static final byte[] ACK = "A:1234\n".getBytes( ASCII );
+
+    /**
+     * One operation of a hot path, with what it needs around it.
+     */
+    private abstract static class HotPath {
+        final String name;
+        final double maxNanos;      // [ns] per operation
+
+        HotPath( String name, double maxNanos ) {
+            this.name = name;
+            this.maxNanos = maxNanos;
+        }
+
+        abstract void run( int i );
+
+        void begin() {
+        }
+
+        void end() {
+        }
+
+        /**
+         * Called after every burst, untimed, e.g. to let another thread catch up.
+         */
+        void settle() {
+        }
+
+        /**
+         * @return Another thread doing part of the work, its allocations count too, or -1
+         */
+        long getWorkerThreadId() {
+            return -1;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threads;
+    private static int failures;
+    // Of the routing path, written by the measuring thread only
+    private static long routedAt;
+
+    public static void main( String[] args ) throws InterruptedException {
+        double factor = args.length > 0 ? Double.parseDouble( args[0] ) : 1;
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if ( !threads.isThreadAllocatedMemorySupported() ) {
+            System.out.println( "Thread allocation accounting not supported by this JVM, skipping." );
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled( true );
+
+        List<HotPath> paths = new ArrayList<>();
+        addDecoding( paths );
+        addRouting( paths );
+        addEstimation( paths );
+        addBuffering( paths );
+
+        long overhead = measureOverhead();
+        System.out.println( String.format( Locale.US, "%-32s %10s %10s %10s %10s", "hot path", "B/op", "median ns", "min ns", "budget ns" ) );
+        for ( HotPath path : paths ) {
+            path.begin();
+            try {
+                measure( path, overhead, factor );
+            } finally {
+                path.end();
+            }
+        }
+        if ( failures > 0 ) {
+            System.out.println( "FAILED: " + failures + " hot paths over budget." );
+            System.exit( 1 );
+        }
+        System.out.println( "OK" );
+    }
+
+    private static void addDecoding( List<HotPath> paths ) {
+        final MessageInterpreter interpreter = new MessageInterpreterImpl();
+        final HPBMDataBatch dataBatch = new HPBMDataBatch( 1 );
+        final PulseBatch pulseBatch = new PulseBatch( 64 );
+        final SampleEnvelope envelope = new SampleEnvelope();
+        final LinkMonitor linkMonitor = new LinkMonitor();
+        final CommandBufferPool pool = new CommandBufferPool();
+
+        paths.add( new HotPath( "decode derived", 400 ) {
+            @Override
+            void run( int i ) {
+                dataBatch.clear();
+                interpreter.readMessage( DERIVED, DERIVED.length, i, dataBatch );
+            }
+        } );
+        paths.add( new HotPath( "decode pulse report", 200 ) {
+            @Override
+            void run( int i ) {
+                interpreter.readPulseReport( PULSE_REPORT, PULSE_REPORT.length, pulseBatch );
+            }
+        } );
+        paths.add( new HotPath( "decode pulse batch", 300 ) {
+            @Override
+            void run( int i ) {
+                interpreter.readPulseBatch( PULSE_BATCH, PULSE_BATCH.length, pulseBatch );
+            }
+        } );
+        paths.add( new HotPath( "decode envelope, link monitor", 300 ) {
+            @Override
+            void run( int i ) {
+                interpreter.readEnvelope( ENVELOPED_BATCH, ENVELOPED_BATCH.length, envelope );
+                envelope.set( i & 0xfff, (i * 1000) & 0xffffff );
+                linkMonitor.onMessage( envelope, 1, i * 1000L + (i & 31) );
+            }
+        } );
+        paths.add( new HotPath( "decode acknowledgement", 200 ) {
+            @Override
+            void run( int i ) {
+                if ( interpreter.readCommandAck( ACK, ACK.length ) < 0 ) interpreter.readCommandNack( ACK, ACK.length );
+            }
+        } );
+        paths.add( new HotPath( "encode command", 400 ) {
+            @Override
+            void run( int i ) {
+                CommandBuffer command = pool.acquire();
+                interpreter.writeCommandId( i, command );
+                interpreter.writeRefillToCommand( 750f, command );
+                pool.release( command );
+            }
+        } );
+    }
+
+    /**
+     * What BLECommunicator does with a notification: the GATT callback routes it to the ingestion thread of its
+     * {@link DevicePipeline}, which decodes it, follows the link, estimates and buffers the samples and
+     * evaluates the alerts.
+     */
+    private static void addRouting( List<HotPath> paths ) {
+        final ConsumptionEstimator estimator = ConsumptionEstimator.createDefault();
+        estimator.refillTo( 500f );
+        final CommandBufferPool pool = new CommandBufferPool();
+        final DevicePipeline pipeline = new DevicePipeline( "HPBMIngestion", new MessageInterpreterImpl(), estimator, ReportMode.BATCHED_PULSES, pool,
+            new CommandChannel.Transport() {
+                @Override
+                public boolean send( CommandBuffer command ) {
+                    pool.release( command );
+                    return false;
+                }
+            } );
+        pipeline.getAlerts().setRules( AlertRule.createDefaults() );
+        final IngestionThread ingestionThread = pipeline.getIngestionThread();
+        final AtomicLong workerThreadId = new AtomicLong( -1 );
+        pipeline.addRecorder( new DevicePipeline.Recorder() {
+            @Override
+            public void onSessionStarted() {
+            }
+
+            @Override
+            public void onSamples( HPBMDataBatch batch, long receivedAt ) {
+                if ( workerThreadId.get() < 0 ) workerThreadId.set( Thread.currentThread().getId() );
+            }
+
+            @Override
+            public void onSessionEnded() {
+            }
+        } );
+        final NotificationRouter router = new NotificationRouter( ingestionThread );
+        router.addRoute( NordicUart.RX, DevicePipeline.CHANNEL_MESSAGES );
+        // The transport stays idle, notifications are handed to the client the way the transport would
+        final GattClient client = new GattClient( new FakeUartPeripheral( 15, GattClient.REQUESTED_MTU, 4, 0, 0f, 0f, 1 ), new GattClient.Listener() {
+            @Override
+            public void onConnected() {
+            }
+
+            @Override
+            public void onConnecting() {
+            }
+
+            @Override
+            public void onDisconnected() {
+            }
+
+            @Override
+            public void onServicesDiscovered() {
+            }
+
+            @Override
+            public void onCharacteristicRead( UUID characteristic, byte[] value ) {
+            }
+
+            @Override
+            public void onCharacteristicChanged( UUID characteristic, byte[] value ) {
+                router.route( characteristic, value, routedAt );
+            }
+
+            @Override
+            public void onReadRemoteRssi( int rssi ) {
+            }
+        } );
+        final byte[][] payloads = { PULSE_BATCH, ENVELOPED_BATCH, PULSE_REPORT, DERIVED };
+        // Characteristic UUIDs as the platform hands them over: equal to, but not the same instance as the route keys
+        final UUID rx = new UUID( NordicUart.RX.getMostSignificantBits(), NordicUart.RX.getLeastSignificantBits() );
+        final UUID other = new UUID( UUID_OTHER.getMostSignificantBits(), UUID_OTHER.getLeastSignificantBits() );
+        paths.add( new HotPath( "route notification", 8000 ) {
+            @Override
+            void run( int i ) {
+                // Every 16th notification comes from a characteristic without a route
+                routedAt = i;
+                client.onCharacteristicChanged( (i & 15) == 15 ? other : rx, payloads[i % payloads.length] );
+            }
+
+            @Override
+            void begin() {
+                ingestionThread.start();
+            }
+
+            @Override
+            void end() {
+                ingestionThread.stop();
+            }
+
+            @Override
+            void settle() {
+                while ( !ingestionThread.isDrained() ) Thread.yield();
+            }
+
+            @Override
+            long getWorkerThreadId() {
+                while ( workerThreadId.get() < 0 ) Thread.yield();
+                return workerThreadId.get();
+            }
+        } );
+    }
+
+    private static void addEstimation( List<HotPath> paths ) {
+        final ConsumptionEstimator estimator = ConsumptionEstimator.createDefault();
+        estimator.refillTo( 1e9f );
+        final PulseBatch pulseBatch = new PulseBatch( 64 );
+        final HPBMDataBatch dataBatch = new HPBMDataBatch( 64 );
+        MessageInterpreter interpreter = new MessageInterpreterImpl();
+        interpreter.readPulseBatch( PULSE_BATCH, PULSE_BATCH.length, pulseBatch );
+
+        paths.add( new HotPath( "estimate pulse batch", 2500 ) {
+            @Override
+            void run( int i ) {
+                dataBatch.clear();
+                estimator.addPulses( pulseBatch, i * 1000L, dataBatch );
+            }
+        } );
+        addRateEstimator( paths, "rate cumulative", new CumulativeRateEstimator() );
+        addRateEstimator( paths, "rate ewma", new EwmaRateEstimator( ConsumptionEstimator.DEFAULT_FORECAST_HALF_LIFE ) );
+        addRateEstimator( paths, "rate sliding window", new SlidingWindowRateEstimator( 300 ) );
+
+        final DrinkEventSegmenter segmenter = new DrinkEventSegmenter( null );
+        paths.add( new HotPath( "segment drink events", 100 ) {
+            @Override
+            void run( int i ) {
+                segmenter.add( i * 1000L, (i & 3) == 0 ? 0f : 3f );    // one endless sip, stalling for a breath
+            }
+        } );
+    }
+
+    private static void addRateEstimator( List<HotPath> paths, String name, final RateEstimator estimator ) {
+        paths.add( new HotPath( name, 100 ) {
+            @Override
+            void run( int i ) {
+                estimator.addSample( (i & 7) * 0.135f, 1000 );
+                estimator.getRate();
+            }
+        } );
+    }
+
+    private static void addBuffering( List<HotPath> paths ) {
+        final SampleRingBuffer sampleBuffer = new SampleRingBuffer();
+        final HPBMDataBatch dataBatch = new HPBMDataBatch( 20 );
+        for ( int i = 0; i < dataBatch.getCapacity(); i++ ) {
+            dataBatch.add( i * 50L, 2.7f, 1.1f, 0.6f, 3600 );
+        }
+        final SpscPayloadRing payloadRing = new SpscPayloadRing( IngestionThread.DEFAULT_SLOTS, IngestionThread.DEFAULT_MAX_PAYLOAD_SIZE );
+        final AlertEngine alertEngine = new AlertEngine();
+        alertEngine.setRules( AlertRule.createDefaults() );
+
+        paths.add( new HotPath( "append sample batch", 1500 ) {
+            @Override
+            void run( int i ) {
+                sampleBuffer.append( dataBatch );
+            }
+        } );
+        paths.add( new HotPath( "payload ring offer, take", 100 ) {
+            @Override
+            void run( int i ) {
+                payloadRing.offer( CHANNEL_UART_RX, ENVELOPED_BATCH, 0, ENVELOPED_BATCH.length, i );
+                if ( payloadRing.peek() >= 0 ) payloadRing.release();
+            }
+        } );
+        paths.add( new HotPath( "evaluate alerts", 200 ) {
+            @Override
+            void run( int i ) {
+                alertEngine.evaluate( i * 1000L, (i & 3) * 1.5f, 0.5f, 3600 );
+            }
+        } );
+    }
+
+    /**
+     * Bytes the accounting itself allocates around a measurement, subtracted from every path.
+     */
+    private static long measureOverhead() {
+        HotPath empty = new HotPath( "empty", 0 ) {
+            @Override
+            void run( int i ) {
+            }
+        };
+        long overhead = Long.MAX_VALUE;
+        for ( int i = 0; i < 3; i++ ) {
+            long threadId = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes( threadId );
+            runBursts( empty, ITERATIONS );
+            overhead = Math.min( overhead, threads.getThreadAllocatedBytes( threadId ) - before );
+        }
+        return overhead;
+    }
+
+    private static void measure( HotPath path, long overhead, double factor ) {
+        runBursts( path, WARMUP_ITERATIONS );
+        long threadId = Thread.currentThread().getId();
+        long workerId = path.getWorkerThreadId();
+        double[] nanos = new double[ROUNDS];
+        long bytes = 0;
+        for ( int round = 0; round < ROUNDS; round++ ) {
+            long before = threads.getThreadAllocatedBytes( threadId );
+            long workerBefore = workerId >= 0 ? threads.getThreadAllocatedBytes( workerId ) : 0;
+            nanos[round] = (double) runBursts( path, ITERATIONS ) / ITERATIONS;
+            bytes += Math.max( 0, threads.getThreadAllocatedBytes( threadId ) - before - overhead );
+            if ( workerId >= 0 ) bytes += threads.getThreadAllocatedBytes( workerId ) - workerBefore;
+        }
+        Arrays.sort( nanos );
+        double median = nanos[ROUNDS / 2];
+        double best = nanos[0];
+        double budget = path.maxNanos * factor;
+        double bytesPerOperation = (double) bytes / ((long) ITERATIONS * ROUNDS);
+        System.out.println( String.format( Locale.US, "%-32s %10.2f %10.1f %10.1f %10.0f", path.name, bytesPerOperation, median, best, budget ) );
+        if ( bytes > 0 ) {
+            failures++;
+            System.out.println( "  FAIL " + path.name + ": allocated " + bytes + " bytes in steady state" );
+        }
+        if ( best > budget ) {
+            failures++;
+            System.out.println( String.format( Locale.US, "  FAIL %s: %.1f ns per operation, over the budget of %.0f ns", path.name, best, budget ) );
+        }
+    }
+
+    /**
+     * @return [ns] spent in the operations, settling excluded
+     */
+    private static long runBursts( HotPath path, int iterations ) {
+        long nanos = 0;
+        for ( int i = 0; i < iterations; i += BURST ) {
+            int end = Math.min( iterations, i + BURST );
+            long start = System.nanoTime();
+            for ( int j = i; j < end; j++ ) {
+                path.run( j );
+            }
+            nanos += System.nanoTime() - start;
+            path.settle();
+        }
+        return nanos;
+    }
+
+}
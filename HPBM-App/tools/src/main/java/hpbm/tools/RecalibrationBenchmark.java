@@ -0,0 +1,167 @@
+package hpbm.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import hpbm.app.core.Calibration;
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.CumulativeRateEstimator;
+import hpbm.app.core.EwmaRateEstimator;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.storage.ArchiveChunk;
+import hpbm.app.storage.Recalibration;
+import hpbm.app.storage.SessionArchiveReader;
+import hpbm.app.storage.SessionArchiveWriter;
+import hpbm.app.storage.SessionCompactor;
+
+/**
+ * Archives a year (or the given number of days) of per-second sessions recorded with the original
+ * firmware coefficient, recalibrates them to a calibration curve and reports the throughput. The same
+ * pulses are run through an estimator with the new curve as the truth, and every 64th sample of the
+ * recalibrated archives is compared with it. Exits with a non-zero status when the figures disagree or
+ * the recalibration leaves temporary files behind.
+ */
+public final class RecalibrationBenchmark {
+
+    private static final Calibration RECORDED = Calibration.constant( 0.2281f );
+    private static final Calibration CALIBRATED = new Calibration( new float[] { 0f, 60f, 160f }, new float[] { 0.16f, 0.14f, 0.125f } );
+    private static final int DEFAULT_DAYS = 365;
+    private static final int SESSION_SAMPLES = 16 * 3600;       // the awake hours of a day
+    private static final long DAY = 24 * 3600 * 1000;
+    private static final float PACK = 3000f;                    // [ml]
+    private static final float REFILL_BELOW = 0.3f;             // before a sip can run it dry, that is not recoverable
+    private static final int TRUTH_STRIDE = 64;
+
+    private static final float MAX_FLOW_ERROR = 1e-4f;          // relative
+    private static final float MAX_AVERAGE_ERROR = 1e-3f;       // relative
+    private static final float MAX_REMAINING_ERROR = 1e-4f;     // part of the pack
+    private static final float MAX_TIME_TO_EMPTY_ERROR = 0.02f; // relative
+
+    public static void main( String[] args ) throws IOException {
+        int days = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_DAYS;
+        File directory = File.createTempFile( "recalibration", "" );
+        if ( !directory.delete() || !directory.mkdir() ) throw new IOException( "Unable to create " + directory );
+
+        ConsumptionEstimator recorded = new ConsumptionEstimator( RECORDED, new CumulativeRateEstimator(), new EwmaRateEstimator( ConsumptionEstimator.DEFAULT_FORECAST_HALF_LIFE ) );
+        ConsumptionEstimator truth = new ConsumptionEstimator( CALIBRATED, new CumulativeRateEstimator(), new EwmaRateEstimator( ConsumptionEstimator.DEFAULT_FORECAST_HALF_LIFE ) );
+        recorded.refillTo( PACK );
+        truth.refillTo( PACK );
+        int truthSamples = (int) ((long) days * SESSION_SAMPLES / TRUTH_STRIDE + 1);
+        HPBMDataBatch expected = new HPBMDataBatch( truthSamples );
+        HPBMDataBatch sample = new HPBMDataBatch( 1 );
+        long index = 1;
+        long start = System.nanoTime();
+        for ( int day = 0; day < days; day++ ) {
+            RecordedSession session = RecordedSession.synthesize( day, SESSION_SAMPLES );
+            long timestamp = 1500000000000L + day * DAY;
+            SessionArchiveWriter writer = new SessionArchiveWriter( new File( directory, timestamp + SessionCompactor.ARCHIVE_SUFFIX ) );
+            if ( day == 0 ) {
+                // What the very first sample consumed cannot be told from the pack before, so history starts idle
+                recorded.addPulses( 0, 1000 );
+                recorded.appendTo( timestamp, sample );
+                writer.append( timestamp, sample.getCurrentConsumption( 0 ), sample.getAverageConsumption( 0 ), sample.getRemainingPart( 0 ), sample.getTimeToEmpty( 0 ) );
+                truth.addPulses( 0, 1000 );
+                sample.clear();
+            }
+            for ( int i = 0; i < session.size(); i++, index++ ) {
+                if ( recorded.getRemainingPart() < REFILL_BELOW ) {
+                    recorded.refillTo( PACK );
+                    truth.refillTo( PACK );
+                }
+                timestamp += session.getInterval( i );
+                recorded.addPulses( session.getPulses( i ), session.getInterval( i ) );
+                truth.addPulses( session.getPulses( i ), session.getInterval( i ) );
+                sample.clear();
+                recorded.appendTo( timestamp, sample );
+                writer.append( timestamp, sample.getCurrentConsumption( 0 ), sample.getAverageConsumption( 0 ), sample.getRemainingPart( 0 ), sample.getTimeToEmpty( 0 ) );
+                if ( index % TRUTH_STRIDE == 0 ) {
+                    truth.appendTo( timestamp, expected );
+                }
+            }
+            writer.close();
+        }
+        System.out.println( String.format( Locale.US, "archived %d days, %d samples in %.1f s", days, index, (System.nanoTime() - start) / 1e9 ) );
+
+        SessionCompactor sessions = new SessionCompactor( directory, null );
+        final int[] progress = { 0 };
+        final IOException[] failure = { null };
+        Recalibration.Listener listener = new Recalibration.Listener() {
+            @Override
+            public void onProgress( int percent ) {
+                progress[0] = Math.max( progress[0], percent );
+            }
+
+            @Override
+            public void onRecalibrated( int archives, long samples, long millis ) {
+                System.out.println( String.format( Locale.US, "recalibrated %d sessions, %d samples in %.2f s on %d cores: %.1f M samples/s",
+                    archives, samples, millis / 1e3, Runtime.getRuntime().availableProcessors(), samples / 1e3 / Math.max( 1, millis ) ) );
+            }
+
+            @Override
+            public void onRecalibrationFailed( IOException ex ) {
+                failure[0] = ex;
+            }
+        };
+        new Recalibration( sessions, RECORDED, CALIBRATED ).run( listener );
+        if ( failure[0] != null ) throw failure[0];
+        if ( progress[0] != 100 ) fail( "progress ended at " + progress[0] + "%" );
+
+        compare( sessions, expected );
+
+        for ( File file : directory.listFiles() ) {
+            if ( !file.getName().endsWith( SessionCompactor.ARCHIVE_SUFFIX ) ) fail( "left behind " + file.getName() );
+            file.delete();
+        }
+        directory.delete();
+        System.out.println( "OK" );
+    }
+
+    private static void compare( SessionCompactor sessions, HPBMDataBatch expected ) throws IOException {
+        ArchiveChunk chunk = new ArchiveChunk();
+        long index = 0;     // the idle sample first
+        int compared = 0;
+        float flowError = 0f;
+        float averageError = 0f;
+        float remainingError = 0f;
+        float timeToEmptyError = 0f;
+        for ( File archive : sessions.listArchives() ) {
+            SessionArchiveReader reader = SessionArchiveReader.open( archive );
+            try {
+                for ( int c = 0; c < reader.getChunkCount(); c++ ) {
+                    reader.readChunk( c, chunk );
+                    for ( int i = 0; i < chunk.size(); i++, index++ ) {
+                        if ( index == 0 || index % TRUTH_STRIDE != 0 ) continue;
+                        if ( chunk.getTimestamp( i ) != expected.getTimestamp( compared ) ) fail( "sample " + index + " moved" );
+                        flowError = Math.max( flowError, relativeError( chunk.getCurrentConsumption( i ), expected.getCurrentConsumption( compared ) ) );
+                        averageError = Math.max( averageError, relativeError( chunk.getAverageConsumption( i ), expected.getAverageConsumption( compared ) ) );
+                        remainingError = Math.max( remainingError, Math.abs( chunk.getRemainingPart( i ) - expected.getRemainingPart( compared ) ) );
+                        int timeToEmpty = expected.getTimeToEmpty( compared );
+                        if ( timeToEmpty > 0 ) {
+                            timeToEmptyError = Math.max( timeToEmptyError, Math.abs( chunk.getTimeToEmpty( i ) - timeToEmpty ) / (float) Math.max( 60, timeToEmpty ) );
+                        }
+                        compared++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        System.out.println( String.format( Locale.US, "largest error over %d samples: flow %.2e, average %.2e, remaining %.2e, time to empty %.2e",
+            compared, flowError, averageError, remainingError, timeToEmptyError ) );
+        if ( compared != expected.size() ) fail( "compared " + compared + " of " + expected.size() + " samples" );
+        if ( flowError > MAX_FLOW_ERROR || averageError > MAX_AVERAGE_ERROR || remainingError > MAX_REMAINING_ERROR || timeToEmptyError > MAX_TIME_TO_EMPTY_ERROR ) {
+            fail( "recalibrated figures disagree with the truth" );
+        }
+    }
+
+    private static float relativeError( float actual, float expected ) {
+        return Math.abs( actual - expected ) / Math.max( 1e-3f, Math.abs( expected ) );
+    }
+
+    private static void fail( String what ) {
+        System.out.println( "FAILED: " + what );
+        System.exit( 1 );
+    }
+
+}
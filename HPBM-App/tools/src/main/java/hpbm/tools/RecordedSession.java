@@ -0,0 +1,96 @@
+package hpbm.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Raw pulse reports of one session, as captured from the device ("P:&lt;pulses&gt;,&lt;interval ms&gt;" per line).
+ */
+final class RecordedSession {
+
+    private static final String PULSE_REPORT_PREFIX = "P:";
+
+    private final String name;
+    private final int[] pulses;
+    private final int[] intervals;  // [ms]
+    private final int size;
+
+    private RecordedSession( String name, int[] pulses, int[] intervals, int size ) {
+        this.name = name;
+        this.pulses = pulses;
+        this.intervals = intervals;
+        this.size = size;
+    }
+
+    static RecordedSession load( File file ) throws IOException {
+        int[] pulses = new int[1024];
+        int[] intervals = new int[1024];
+        int size = 0;
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), Charset.forName( "UTF-8" ) ) );
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                line = line.trim();
+                if ( !line.startsWith( PULSE_REPORT_PREFIX ) ) continue;
+                int comma = line.indexOf( ',' );
+                if ( comma < 0 ) continue;
+                if ( size == pulses.length ) {
+                    pulses = Arrays.copyOf( pulses, size * 2 );
+                    intervals = Arrays.copyOf( intervals, size * 2 );
+                }
+                pulses[size] = Integer.parseInt( line.substring( PULSE_REPORT_PREFIX.length(), comma ) );
+                intervals[size] = Integer.parseInt( line.substring( comma + 1 ) );
+                size++;
+            }
+        } finally {
+            reader.close();
+        }
+        return new RecordedSession( file.getName(), pulses, intervals, size );
+    }
+
+    /**
+     * A session with sips of random size separated by idle periods, in the spirit of the SimDataGenerator.
+     */
+    static RecordedSession synthesize( long seed, int samples ) {
+        Random random = new Random( seed );
+        int[] pulses = new int[samples];
+        int[] intervals = new int[samples];
+        int sipLeft = 0;
+        int sipPulsesPerSecond = 0;
+        for ( int i = 0; i < samples; i++ ) {
+            if ( sipLeft == 0 && random.nextInt( 120 ) == 0 ) {
+                sipLeft = 2 + random.nextInt( 8 );
+                sipPulsesPerSecond = 40 + random.nextInt( 120 );
+            }
+            if ( sipLeft > 0 ) {
+                pulses[i] = Math.max( 0, sipPulsesPerSecond + (int) (random.nextGaussian() * 10) );
+                sipLeft--;
+            }
+            intervals[i] = 990 + random.nextInt( 21 );
+        }
+        return new RecordedSession( "synthetic-" + seed, pulses, intervals, samples );
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getPulses( int index ) {
+        return pulses[index];
+    }
+
+    int getInterval( int index ) {
+        return intervals[index];
+    }
+
+}
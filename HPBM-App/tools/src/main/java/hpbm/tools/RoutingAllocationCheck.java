@@ -0,0 +1,126 @@
+package hpbm.tools;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.IngestionThread;
+import hpbm.app.core.LinkMonitor;
+import hpbm.app.core.NotificationRouter;
+import hpbm.app.core.PayloadDecoder;
+import hpbm.app.core.PulseBatch;
+import hpbm.app.core.SampleEnvelope;
+import hpbm.app.core.SampleRingBuffer;
+
+/**
+ * Checks that the steady state notification path allocates nothing: routing on the radio thread as well as
+ * decoding, estimation and buffering on the ingestion thread, the same way BLECommunicator wires them.
+ * Exits with a non-zero status when either thread allocates, so it can run as part of the build's check.
+ */
+public final class RoutingAllocationCheck {
+
+    private static final UUID UUID_RX = UUID.fromString( "6e400003-b5a3-f393-e0a9-e50e24dcca9e" );
+    private static final UUID UUID_OTHER = UUID.fromString( "6e400002-b5a3-f393-e0a9-e50e24dcca9e" );
+    private static final int CHANNEL_UART_RX = 0;
+    private static final int WARMUP_NOTIFICATIONS = 200000;
+    private static final int MEASURED_NOTIFICATIONS = 1000000;
+    private static final int PACING_BURST = 64;
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+
+    private static volatile long ingestionThreadId = -1;
+    private static volatile long processedPayloads;
+
+    public static void main( String[] args ) throws InterruptedException {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if ( !threads.isThreadAllocatedMemorySupported() ) {
+            System.out.println( "Thread allocation accounting not supported by this JVM, skipping." );
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled( true );
+
+        final ConsumptionEstimator estimator = ConsumptionEstimator.createDefault();
+        estimator.refillTo( 500f );
+        final PulseBatch pulseBatch = new PulseBatch( 64 );
+        final HPBMDataBatch dataBatch = new HPBMDataBatch( 64 );
+        final SampleRingBuffer sampleBuffer = new SampleRingBuffer();
+        final SampleEnvelope envelope = new SampleEnvelope();
+        final LinkMonitor linkMonitor = new LinkMonitor();
+        IngestionThread ingestionThread = new IngestionThread( "HPBMIngestion", new IngestionThread.PayloadHandler() {
+            @Override
+            public void onPayload( int channel, byte[] payload, int length, long timestamp ) {
+                ingestionThreadId = Thread.currentThread().getId();
+                if ( channel != CHANNEL_UART_RX ) return;
+                int envelopeLength = PayloadDecoder.decodeEnvelope( payload, length, envelope );
+                if ( envelopeLength > 0 ) {
+                    length -= envelopeLength;
+                    System.arraycopy( payload, envelopeLength, payload, 0, length );
+                }
+                dataBatch.clear();
+                if ( PayloadDecoder.decodePulseBatch( payload, length, pulseBatch ) || PayloadDecoder.decodePulseReport( payload, length, pulseBatch ) ) {
+                    long lastTimestamp = timestamp;
+                    if ( envelopeLength > 0 ) {
+                        linkMonitor.onMessage( envelope, pulseBatch.size(), timestamp );
+                        lastTimestamp = linkMonitor.toPhoneTime( linkMonitor.getDeviceTime() );
+                    }
+                    estimator.addPulses( pulseBatch, lastTimestamp, dataBatch );
+                } else {
+                    PayloadDecoder.decodeDerived( payload, length, timestamp, dataBatch );
+                }
+                sampleBuffer.append( dataBatch );
+                processedPayloads++;
+            }
+        });
+        NotificationRouter router = new NotificationRouter( ingestionThread );
+        router.addRoute( UUID_RX, CHANNEL_UART_RX );
+        ingestionThread.start();
+
+        byte[][] payloads = {
+            "B;123456789:;<=>?@AB".getBytes( ASCII ),
+            "~00000:B;123456789:".getBytes( ASCII ),
+            "P:17,1000\r\n".getBytes( ASCII ),
+            "0.12,-1.00,0.93,1234\n".getBytes( ASCII ),
+        };
+        // Characteristic UUIDs as the platform hands them over: equal to, but not the same instance as the route keys
+        UUID rx = new UUID( UUID_RX.getMostSignificantBits(), UUID_RX.getLeastSignificantBits() );
+        UUID other = new UUID( UUID_OTHER.getMostSignificantBits(), UUID_OTHER.getLeastSignificantBits() );
+
+        notify( router, rx, other, payloads, WARMUP_NOTIFICATIONS );
+        while ( ingestionThreadId < 0 ) Thread.sleep( 1 );
+
+        long producerId = Thread.currentThread().getId();
+        long consumerId = ingestionThreadId;
+        long producerBefore = threads.getThreadAllocatedBytes( producerId );
+        long consumerBefore = threads.getThreadAllocatedBytes( consumerId );
+        long processedBefore = processedPayloads;
+        notify( router, rx, other, payloads, MEASURED_NOTIFICATIONS );
+        long producerBytes = threads.getThreadAllocatedBytes( producerId ) - producerBefore;
+        long consumerBytes = threads.getThreadAllocatedBytes( consumerId ) - consumerBefore;
+        long processed = processedPayloads - processedBefore;
+        ingestionThread.stop();
+
+        System.out.println( "Routed " + MEASURED_NOTIFICATIONS + " notifications, processed " + processed + ", dropped " + ingestionThread.getDroppedPayloads() + " in total." );
+        System.out.println( "Radio thread allocated " + producerBytes + " bytes, ingestion thread " + consumerBytes + " bytes." );
+        if ( processed == 0 || producerBytes > 0 || consumerBytes > 0 ) {
+            System.out.println( "FAILED: the notification path must not allocate." );
+            System.exit( 1 );
+        }
+    }
+
+    private static void notify( NotificationRouter router, UUID rx, UUID other, byte[][] payloads, int count ) {
+        long accepted = processedPayloads;
+        for ( int i = 0; i < count; i++ ) {
+            // Every 16th notification comes from a characteristic without a route
+            if ( router.route( (i & 15) == 15 ? other : rx, payloads[i % payloads.length], i ) ) {
+                accepted++;
+            }
+            if ( (i & (PACING_BURST - 1)) == PACING_BURST - 1 ) {
+                // Bursts like a connection event, then let the ingestion thread catch up
+                while ( processedPayloads < accepted ) Thread.yield();
+            }
+        }
+        while ( processedPayloads < accepted ) Thread.yield();
+    }
+
+}
@@ -0,0 +1,482 @@
+package hpbm.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hpbm.app.core.Calibration;
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.IngestionThread;
+import hpbm.app.core.LinkMonitor;
+import hpbm.app.core.LinkStatistics;
+import hpbm.app.core.MessageInterpreter;
+import hpbm.app.core.MessageInterpreterImpl;
+import hpbm.app.core.PulseBatch;
+import hpbm.app.core.SampleEnvelope;
+import hpbm.app.storage.ArchiveChunk;
+import hpbm.app.storage.SampleLog;
+import hpbm.app.storage.SessionArchiveReader;
+import hpbm.app.storage.SessionCompactor;
+import hpbm.app.storage.SessionLog;
+
+/**
+ * Crunches field data off the phone. Every file is one session, streamed through the app's decoders,
+ * {@link LinkMonitor}, forecast estimator and drink event segmenter into a {@link SessionSummary}, printed as
+ * a CSV row or a JSON object. Files are analyzed in parallel, each by one thread with a fixed amount of state,
+ * so memory stays bounded however large they are. The kind of a file is told by its name:
+ * - "*.hpbma": a session archive, decoded chunk by chunk,
+ * - "*.live": the sample log of a session,
+ * - "*.log": the pulse log the app keeps of the device's backlog, its sequence numbers tell the loss,
+ * - anything else: a capture, one line per notification as it arrived, "[&lt;receive time [ms]&gt;\t]&lt;payload&gt;",
+ *   in any report mode, with or without envelopes. Lines starting with '#' are comments. Without receive
+ *   times samples are placed by the device's clock or their intervals and latency is not reported.
+ * Directories are expanded to the files in them. Exits with a non-zero status if a file could not be read.
+ *
+ * Usage: SessionAnalyzer [--json] [--threads n] &lt;file or directory&gt;...
+ */
+public final class SessionAnalyzer {
+
+    static final String KIND_CAPTURE = "capture";
+    static final String KIND_ARCHIVE = "archive";
+    static final String KIND_SAMPLE_LOG = "sample-log";
+    static final String KIND_PULSE_LOG = "pulse-log";
+    static final String PULSE_LOG_SUFFIX = ".log";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PAYLOAD_SIZE = IngestionThread.DEFAULT_MAX_PAYLOAD_SIZE;
+    private static final long READING_PERIOD = 1000;    // [ms] of the derived report mode, for captures without times
+    private static final byte LINE_END = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    private static final byte TIME_SEPARATOR = '\t';
+    private static final byte COMMENT = '#';
+
+    private SessionAnalyzer() {
+    }
+
+    public static void main( String[] args ) throws Exception {
+        boolean json = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> files = new ArrayList<>();
+        for ( int i = 0; i < args.length; i++ ) {
+            if ( args[i].equals( "--json" ) ) {
+                json = true;
+            } else if ( args[i].equals( "--threads" ) && i + 1 < args.length ) {
+                threads = Math.max( 1, Integer.parseInt( args[++i] ) );
+            } else {
+                addFiles( new File( args[i] ), files );
+            }
+        }
+        if ( files.isEmpty() ) {
+            System.err.println( "Usage: SessionAnalyzer [--json] [--threads n] <file or directory>..." );
+            System.exit( 2 );
+        }
+
+        long startNanos = System.nanoTime();
+        long bytes = 0;
+        for ( File file : files ) {
+            bytes += file.length();
+        }
+        boolean failed = false;
+        for ( SessionSummary summary : analyze( files, threads, json, System.out ) ) {
+            failed |= summary.isFailed();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.err.println( String.format( Locale.US, "%d files, %.1f MB in %.1f s, %.1f MB/s",
+            files.size(), bytes / 1e6, seconds, bytes / 1e6 / seconds ) );
+        if ( failed ) System.exit( 1 );
+    }
+
+    /**
+     * Analyzes the files on a pool of threads and prints their summaries in the order of the files, each as
+     * soon as it and the ones before it are done.
+     *
+     * @param out null to print nothing
+     * @return the summaries, in the order of the files
+     */
+    static List<SessionSummary> analyze( List<File> files, int threads, boolean json, PrintStream out ) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( threads, files.size() ) ), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, "SessionAnalyzer-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        try {
+            List<SessionSummary> summaries = new ArrayList<>();
+            List<Future<SessionSummary>> futures = new ArrayList<>();
+            for ( final File file : files ) {
+                futures.add( executor.submit( new Callable<SessionSummary>() {
+                    @Override
+                    public SessionSummary call() {
+                        return analyze( file );
+                    }
+                } ) );
+            }
+            StringBuilder text = new StringBuilder();
+            if ( out != null ) {
+                if ( json ) {
+                    out.print( "[\n" );
+                } else {
+                    SessionSummary.appendCsvHeader( text );
+                    out.print( text );
+                }
+            }
+            for ( int i = 0; i < futures.size(); i++ ) {
+                SessionSummary summary;
+                try {
+                    summary = futures.get( i ).get();
+                } catch ( ExecutionException ex ) {
+                    summary = new SessionSummary( files.get( i ).getPath(), kindOf( files.get( i ) ) );
+                    summary.fail( String.valueOf( ex.getCause() ) );
+                }
+                summaries.add( summary );
+                if ( out == null ) continue;
+                text.setLength( 0 );
+                if ( json ) {
+                    text.append( "  " );
+                    summary.appendJson( text );
+                    text.append( i + 1 < futures.size() ? ",\n" : "\n" );
+                } else {
+                    summary.appendCsv( text );
+                }
+                out.print( text );
+            }
+            if ( out != null && json ) {
+                out.print( "]\n" );
+            }
+            return summaries;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static SessionSummary analyze( File file ) {
+        String kind = kindOf( file );
+        SessionSummary summary = new SessionSummary( file.getPath(), kind );
+        try {
+            if ( kind.equals( KIND_ARCHIVE ) ) {
+                analyzeArchive( file, summary );
+            } else if ( kind.equals( KIND_SAMPLE_LOG ) ) {
+                analyzeSampleLog( file, summary );
+            } else if ( kind.equals( KIND_PULSE_LOG ) ) {
+                analyzePulseLog( file, summary );
+            } else {
+                analyzeCapture( file, summary );
+            }
+        } catch ( IOException ex ) {
+            summary.fail( ex.toString() );
+        }
+        return summary;
+    }
+
+    static String kindOf( File file ) {
+        String name = file.getName();
+        if ( name.endsWith( SessionCompactor.ARCHIVE_SUFFIX ) ) return KIND_ARCHIVE;
+        if ( name.endsWith( SessionCompactor.LOG_SUFFIX ) ) return KIND_SAMPLE_LOG;
+        if ( name.endsWith( PULSE_LOG_SUFFIX ) ) return KIND_PULSE_LOG;
+        return KIND_CAPTURE;
+    }
+
+    private static void addFiles( File file, List<File> out ) {
+        File[] children = file.listFiles();
+        if ( children == null ) {
+            out.add( file );
+            return;
+        }
+        Arrays.sort( children );
+        for ( File child : children ) {
+            if ( child.isFile() ) out.add( child );
+        }
+    }
+
+    private static void analyzeArchive( File file, SessionSummary summary ) throws IOException {
+        SessionArchiveReader reader = SessionArchiveReader.open( file );
+        try {
+            ArchiveChunk chunk = new ArchiveChunk();
+            for ( int i = 0; i < reader.getChunkCount(); i++ ) {
+                reader.readChunk( i, chunk );
+                for ( int j = 0; j < chunk.size(); j++ ) {
+                    summary.addRate( chunk.getTimestamp( j ), chunk.getCurrentConsumption( j ) );
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        summary.finish( null, false );
+    }
+
+    private static void analyzeSampleLog( File file, SessionSummary summary ) throws IOException {
+        SampleLog.Reader reader = new SampleLog.Reader( file );
+        try {
+            while ( reader.next() ) {
+                summary.addRate( reader.getTimestamp(), reader.getCurrentConsumption() );
+            }
+        } finally {
+            reader.close();
+        }
+        summary.finish( null, false );
+    }
+
+    /**
+     * The log keeps only samples newer than the last one, so a gap in the numbering is loss and a step
+     * back a restarted device. Records carry the receive time of their notification, not a sample time.
+     */
+    private static void analyzePulseLog( File file, SessionSummary summary ) throws IOException {
+        Calibration calibration = Calibration.constant( ConsumptionEstimator.DEFAULT_PULSE_TO_CONSUMED_COEFF );
+        long received = 0;
+        long lost = 0;
+        long start = Long.MIN_VALUE;
+        int lastSequence = -1;
+        SessionLog.Reader reader = new SessionLog.Reader( file );
+        try {
+            while ( reader.next() ) {
+                int sequence = reader.getDeviceSequence();
+                if ( lastSequence >= 0 && sequence > lastSequence ) {
+                    lost += sequence - lastSequence - 1;
+                }
+                lastSequence = sequence;
+                received++;
+                if ( start == Long.MIN_VALUE ) start = reader.getTimestamp();
+                summary.addConsumed( reader.getTimestamp(), calibration.toMillilitres( reader.getPulses(), reader.getPeriodMillis() ), reader.getPeriodMillis() );
+            }
+        } finally {
+            reader.close();
+        }
+        summary.finish( new LinkStatistics( start, received, lost, 0, 0, Float.NaN, -1, -1, -1, Float.NaN ), false );
+    }
+
+    /**
+     * Decodes the lines like the communicators do: acknowledgements first, then an envelope, alone or in front
+     * of the message, then the message in whichever report mode it is.
+     */
+    private static void analyzeCapture( File file, SessionSummary summary ) throws IOException {
+        MessageInterpreter interpreter = new MessageInterpreterImpl();
+        Calibration calibration = Calibration.constant( ConsumptionEstimator.DEFAULT_PULSE_TO_CONSUMED_COEFF );
+        LinkMonitor linkMonitor = new LinkMonitor();
+        SampleEnvelope envelope = new SampleEnvelope();
+        HPBMDataBatch dataBatch = new HPBMDataBatch( 1 );
+        PulseBatch pulses = new PulseBatch( MAX_PAYLOAD_SIZE );
+        byte[] payload = new byte[MAX_PAYLOAD_SIZE];
+        boolean envelopePending = false;
+        boolean numbered = false;           // any envelope seen
+        boolean timed = false;              // any receive time seen
+        long clock = 0;                     // [ms] time of the last message, when not recorded
+        LineReader lines = new LineReader( new FileInputStream( file ), READ_BUFFER_SIZE );
+        try {
+            while ( lines.next() ) {
+                byte[] data = lines.getData();
+                int offset = lines.getOffset();
+                int end = offset + lines.getLength();
+                if ( end == offset || data[offset] == COMMENT ) continue;
+
+                long receivedAt = -1;
+                int separator = indexOf( data, TIME_SEPARATOR, offset, end );
+                if ( separator >= 0 ) {
+                    receivedAt = parseLong( data, offset, separator );
+                    if ( receivedAt < 0 ) {
+                        summary.addMalformed();
+                        continue;
+                    }
+                    if ( !timed ) linkMonitor.reset( receivedAt );
+                    timed = true;
+                    offset = separator + 1;
+                }
+                int length = end - offset;
+                if ( length > MAX_PAYLOAD_SIZE ) {
+                    summary.addMalformed();
+                    continue;
+                }
+                System.arraycopy( data, offset, payload, 0, length );
+
+                if ( interpreter.readCommandAck( payload, length ) >= 0 ) {
+                    summary.addAck();
+                    continue;
+                }
+                if ( interpreter.readCommandNack( payload, length ) >= 0 ) {
+                    summary.addNack();
+                    continue;
+                }
+                int envelopeLength = interpreter.readEnvelope( payload, length, envelope );
+                if ( envelopeLength > 0 ) {
+                    length -= envelopeLength;
+                    System.arraycopy( payload, envelopeLength, payload, 0, length );
+                    envelopePending = true;
+                    numbered = true;
+                    if ( length == 0 ) continue;
+                }
+                boolean enveloped = envelopePending;
+                envelopePending = false;
+
+                int samples;
+                int intervalMillis;
+                dataBatch.clear();
+                if ( interpreter.readMessage( payload, length, 0, dataBatch ) ) {
+                    samples = 1;
+                    intervalMillis = (int) READING_PERIOD;
+                } else if ( interpreter.readPulseReport( payload, length, pulses ) || interpreter.readPulseBatch( payload, length, pulses ) ) {
+                    samples = pulses.size();
+                    intervalMillis = samples * pulses.getPeriodMillis();
+                } else {
+                    summary.addMalformed();
+                    continue;
+                }
+
+                long timestamp;
+                if ( enveloped ) {
+                    long arrival = timed ? receivedAt : clock + intervalMillis;
+                    if ( linkMonitor.onMessage( envelope, samples, arrival ) == LinkMonitor.Arrival.DUPLICATE ) continue;
+                    timestamp = timed ? linkMonitor.toPhoneTime( linkMonitor.getDeviceTime() ) : linkMonitor.getDeviceTime();
+                } else {
+                    timestamp = receivedAt >= 0 ? receivedAt : clock + intervalMillis;
+                }
+                clock = Math.max( clock, timestamp );
+
+                if ( samples == 1 && dataBatch.size() == 1 ) {
+                    summary.addRate( timestamp, dataBatch.getCurrentConsumption( 0 ) );
+                } else {
+                    int period = pulses.getPeriodMillis();
+                    for ( int i = 0; i < samples; i++ ) {
+                        summary.addConsumed( timestamp - (long) (samples - 1 - i) * period,
+                            calibration.toMillilitres( pulses.getPulses( i ), period ), period );
+                    }
+                }
+            }
+            summary.addMalformed( lines.getOversizedLines() );
+        } finally {
+            lines.close();
+        }
+        summary.finish( numbered ? linkMonitor.getStatistics() : null, timed );
+    }
+
+    private static int indexOf( byte[] data, byte value, int from, int to ) {
+        for ( int i = from; i < to; i++ ) {
+            if ( data[i] == value ) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return -1 if the digits are no non-negative number
+     */
+    private static long parseLong( byte[] data, int from, int to ) {
+        if ( from == to || to - from > 18 ) return -1;
+        long value = 0;
+        for ( int i = from; i < to; i++ ) {
+            int digit = data[i] - '0';
+            if ( digit < 0 || digit > 9 ) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Splits a stream into lines in a buffer of fixed size, without their line end ("\n" or "\r\n").
+     * Lines that do not fit are skipped and counted.
+     */
+    static final class LineReader {
+
+        private final InputStream in;
+        private final byte[] buffer;
+        private int start;          // of the unread data
+        private int scanned;
+        private int end;
+        private int lineOffset;
+        private int lineLength;
+        private boolean discarding;
+        private boolean endOfStream;
+        private long oversizedLines;
+
+        LineReader( InputStream in, int bufferSize ) {
+            this.in = in;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        boolean next() throws IOException {
+            while ( true ) {
+                for ( ; scanned < end; scanned++ ) {
+                    if ( buffer[scanned] != LINE_END ) continue;
+                    int length = scanned - start;
+                    if ( length > 0 && buffer[scanned - 1] == CARRIAGE_RETURN ) length--;
+                    lineOffset = start;
+                    lineLength = length;
+                    start = ++scanned;
+                    if ( discarding ) {
+                        discarding = false;
+                        oversizedLines++;
+                        continue;
+                    }
+                    return true;
+                }
+                if ( endOfStream ) {
+                    if ( start == end ) return false;
+                    // The last line, without a line end
+                    lineOffset = start;
+                    lineLength = end - start;
+                    start = end;
+                    if ( !discarding ) return true;
+                    oversizedLines++;
+                    return false;
+                }
+                if ( start > 0 ) {
+                    System.arraycopy( buffer, start, buffer, 0, end - start );
+                    end -= start;
+                    scanned -= start;
+                    start = 0;
+                } else if ( end == buffer.length ) {
+                    // A line that does not fit, counted once its end arrives
+                    discarding = true;
+                    end = 0;
+                    scanned = 0;
+                }
+                int count = in.read( buffer, end, buffer.length - end );
+                if ( count < 0 ) {
+                    endOfStream = true;
+                } else {
+                    end += count;
+                }
+            }
+        }
+
+        byte[] getData() {
+            return buffer;
+        }
+
+        int getOffset() {
+            return lineOffset;
+        }
+
+        int getLength() {
+            return lineLength;
+        }
+
+        long getOversizedLines() {
+            return oversizedLines;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+package hpbm.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import hpbm.app.core.PayloadDecoder;
+
+/**
+ * Writes several large captures and analyzes them in parallel with the {@link SessionAnalyzer} to report the
+ * throughput. Run with a small heap (the gradle task does) it also shows that memory stays bounded. A
+ * summary with the wrong number of samples fails the run.
+ *
+ * Usage: SessionAnalyzerBenchmark [MB per capture]
+ */
+public final class SessionAnalyzerBenchmark {
+
+    private static final long PHONE_START = 1500000000000L;
+    private static final int DEFAULT_MEGABYTES = 64;
+    private static final int CAPTURES = 4;
+    private static final int LINE_CAPACITY = 1024;
+
+    public static void main( String[] args ) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_MEGABYTES;
+        File directory = File.createTempFile( "analyzer", "" );
+        if ( !directory.delete() || !directory.mkdir() ) throw new IOException( "Unable to create " + directory );
+        try {
+            List<File> files = new ArrayList<>();
+            long[] lines = new long[CAPTURES];
+            long bytes = 0;
+            for ( int i = 0; i < CAPTURES; i++ ) {
+                File file = new File( directory, "large-" + i + ".txt" );
+                lines[i] = writeCapture( file, megabytes * 1000000L, i );
+                files.add( file );
+                bytes += file.length();
+            }
+            Runtime runtime = Runtime.getRuntime();
+            long start = System.nanoTime();
+            List<SessionSummary> summaries = SessionAnalyzer.analyze( files, CAPTURES, false, null );
+            double seconds = (System.nanoTime() - start) / 1e9;
+            for ( int i = 0; i < CAPTURES; i++ ) {
+                SessionSummary s = summaries.get( i );
+                if ( s.getSamples() != lines[i] ) fail( s.getSamples() + " samples instead of " + lines[i] + " in " + s.getFile() );
+            }
+            System.out.println( String.format( Locale.US, "%d captures, %.0f MB in %.2f s: %.0f MB/s on %d threads, heap limit %d MB",
+                CAPTURES, bytes / 1e6, seconds, bytes / 1e6 / seconds, CAPTURES, runtime.maxMemory() / 1000000 ) );
+        } finally {
+            File[] files = directory.listFiles();
+            if ( files != null ) {
+                for ( File file : files ) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Enveloped derived readings with receive times, about a line per 40 bytes.
+     *
+     * @return lines written
+     */
+    private static long writeCapture( File file, long size, int seed ) throws IOException {
+        Random random = new Random( seed );
+        byte[] line = new byte[LINE_CAPACITY];
+        long lines = 0;
+        long written = 0;
+        OutputStream out = new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 );
+        try {
+            for ( long uptime = 1000; written < size; uptime += 1000 ) {
+                int length = writeDigits( line, 0, PHONE_START + uptime + 20 + random.nextInt( 40 ) );
+                line[length++] = '\t';
+                length = writeEnvelope( line, length, (int) lines, uptime );
+                float rate = lines % 60 < 10 ? 2f + random.nextInt( 300 ) / 100f : 0f;
+                length = VirtualDevice.writeFloat( line, length, rate );
+                line[length++] = ',';
+                length = VirtualDevice.writeFloat( line, length, 1.5f );
+                line[length++] = ',';
+                length = VirtualDevice.writeFloat( line, length, 0.5f );
+                line[length++] = ',';
+                length = writeDigits( line, length, 300 );
+                line[length++] = '\n';
+                out.write( line, 0, length );
+                written += length;
+                lines++;
+            }
+        } finally {
+            out.close();
+        }
+        return lines;
+    }
+
+    /**
+     * "~&lt;sequence&gt;&lt;uptime&gt;" as the device writes it, see {@link VirtualDevice}.
+     */
+    private static int writeEnvelope( byte[] out, int offset, int sequence, long uptime ) {
+        out[offset] = '~';
+        out[offset + 1] = PayloadDecoder.encodeSixBits( (sequence >> 6) & 0x3f );
+        out[offset + 2] = PayloadDecoder.encodeSixBits( sequence & 0x3f );
+        for ( int i = 0; i < 4; i++ ) {
+            out[offset + 3 + i] = PayloadDecoder.encodeSixBits( (int) ((uptime >> (6 * (3 - i))) & 0x3f) );
+        }
+        return offset + 7;
+    }
+
+    private static int writeDigits( byte[] out, int offset, long value ) {
+        String digits = Long.toString( value );
+        for ( int i = 0; i < digits.length(); i++ ) {
+            out[offset++] = (byte) digits.charAt( i );
+        }
+        return offset;
+    }
+
+    private static void fail( String what ) {
+        System.out.println( "FAILED: " + what );
+        System.exit( 1 );
+    }
+
+}
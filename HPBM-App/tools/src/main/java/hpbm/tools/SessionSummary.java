@@ -0,0 +1,310 @@
+package hpbm.tools;
+
+import java.util.Locale;
+
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.DrinkEvent;
+import hpbm.app.core.DrinkEventSegmenter;
+import hpbm.app.core.EwmaRateEstimator;
+import hpbm.app.core.LinkStatistics;
+import hpbm.app.core.RateEstimator;
+
+/**
+ * Statistics of one session, accumulated sample by sample with a fixed amount of state:
+ * - consumption, and drink events as the app segments them,
+ * - estimator error: mean absolute error and bias of the app's forecast rate against the rate realized over
+ *   the following {@link #HORIZON} seconds, the accuracy measure of the {@link EstimatorBenchmark},
+ * - loss and latency of the link, if the source numbers its samples and records when they arrived.
+ * Samples must come in time order, older ones are counted and skipped.
+ */
+final class SessionSummary {
+
+    static final String[] COLUMNS = {
+        "file", "kind", "samples", "start", "end", "duration_s", "consumed_ml",
+        "drink_events", "drink_volume_ml", "longest_drink_s", "forecast_mae", "forecast_bias",
+        "received", "lost", "duplicate", "reordered", "loss_rate",
+        "delay_p50_ms", "delay_p99_ms", "delay_max_ms", "jitter_ms", "drift_ppm",
+        "acks", "nacks", "malformed", "out_of_order", "error"
+    };
+
+    static final int HORIZON = 600;                     // [s]
+    private static final long SNAPSHOT_PERIOD = 1000;   // [ms] between forecasts waiting for their horizon
+    private static final int SNAPSHOTS = HORIZON + 2;   // at most one per second is pending
+
+    private final String file;
+    private final String kind;
+    private final RateEstimator forecast = new EwmaRateEstimator( ConsumptionEstimator.DEFAULT_FORECAST_HALF_LIFE );
+    private final DrinkEventSegmenter segmenter = new DrinkEventSegmenter( new DrinkEventSegmenter.Listener() {
+        @Override
+        public void onDrinkEvent( DrinkEvent event ) {
+            drinkEvents++;
+            drinkVolume += event.getVolume();
+            longestDrink = Math.max( longestDrink, event.getDuration() );
+        }
+    } );
+
+    // Forecasts waiting for the rate realized over their horizon, oldest first
+    private final long[] snapshotTimes = new long[SNAPSHOTS];
+    private final double[] snapshotConsumed = new double[SNAPSHOTS];
+    private final float[] snapshotRates = new float[SNAPSHOTS];
+    private int snapshotHead;
+    private int snapshotCount;
+
+    private long samples;
+    private long start = Long.MIN_VALUE;        // [ms]
+    private long lastTimestamp = Long.MIN_VALUE;    // [ms]
+    private long lastInterval = 1000;           // [ms]
+    private double consumed;                    // [ml]
+    private long drinkEvents;
+    private double drinkVolume;                 // [ml]
+    private long longestDrink;                  // [ms]
+    private double absoluteError;               // [ml/s]
+    private double error;                       // [ml/s]
+    private long errorCount;
+    private long acks;
+    private long nacks;
+    private long malformed;
+    private long outOfOrder;
+    private LinkStatistics link;                // null if the samples are not numbered
+    private boolean timed;                      // the link statistics include latency
+    private String failure;
+
+    SessionSummary( String file, String kind ) {
+        this.file = file;
+        this.kind = kind;
+    }
+
+    /**
+     * A sample of derived figures.
+     *
+     * @param rate [ml/s] consumption over the interval before the sample
+     */
+    void addRate( long timestamp, float rate ) {
+        long interval = lastInterval;
+        if ( lastTimestamp != Long.MIN_VALUE && timestamp > lastTimestamp && timestamp - lastTimestamp <= DrinkEventSegmenter.DEFAULT_MAX_INTERVAL ) {
+            interval = timestamp - lastTimestamp;
+        }
+        if ( !(rate > 0f) ) rate = 0f;
+        add( timestamp, rate * interval / 1000f, (int) interval, rate );
+    }
+
+    /**
+     * A sample of pulses counted by the device, converted to [ml].
+     */
+    void addConsumed( long timestamp, float consumed, int intervalMillis ) {
+        add( timestamp, consumed, intervalMillis, intervalMillis > 0 ? 1000f * consumed / intervalMillis : 0f );
+    }
+
+    void addAck() {
+        acks++;
+    }
+
+    void addNack() {
+        nacks++;
+    }
+
+    void addMalformed() {
+        malformed++;
+    }
+
+    void addMalformed( long lines ) {
+        malformed += lines;
+    }
+
+    /**
+     * Ends the session.
+     *
+     * @param link null if the samples are not numbered
+     * @param timed Whether the receive times are known, without them delays, jitter and drift mean nothing
+     */
+    void finish( LinkStatistics link, boolean timed ) {
+        segmenter.flush();
+        this.link = link;
+        this.timed = timed;
+    }
+
+    void fail( String failure ) {
+        this.failure = failure;
+    }
+
+    String getFile() {
+        return file;
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    long getSamples() {
+        return samples;
+    }
+
+    long getDuration() {  // [ms]
+        return samples > 0 ? lastTimestamp - start : 0;
+    }
+
+    double getConsumed() {
+        return consumed;
+    }
+
+    long getDrinkEvents() {
+        return drinkEvents;
+    }
+
+    double getDrinkVolume() {
+        return drinkVolume;
+    }
+
+    double getForecastError() {  // [ml/s] mean absolute, NaN if the session is shorter than the horizon
+        return errorCount > 0 ? absoluteError / errorCount : Double.NaN;
+    }
+
+    long getMalformed() {
+        return malformed;
+    }
+
+    LinkStatistics getLink() {
+        return link;
+    }
+
+    /**
+     * @return one value per column, null where unknown
+     */
+    Object[] getValues() {
+        LinkStatistics l = link;
+        boolean latency = l != null && timed && l.getReceivedSamples() > 0;
+        double mae = getForecastError();
+        return new Object[] {
+            file, kind, samples,
+            samples > 0 ? start : null,
+            samples > 0 ? lastTimestamp : null,
+            samples > 0 ? getDuration() / 1000.0 : null,
+            consumed, drinkEvents, drinkVolume, longestDrink / 1000.0,
+            Double.isNaN( mae ) ? null : mae,
+            Double.isNaN( mae ) ? null : error / errorCount,
+            l != null ? l.getReceivedSamples() : null,
+            l != null ? l.getLostSamples() : null,
+            l != null ? l.getDuplicateSamples() : null,
+            l != null ? l.getReorderedSamples() : null,
+            l != null && !Float.isNaN( l.getLossRate() ) ? (double) l.getLossRate() : null,
+            latency ? l.getDelayP50() : null,
+            latency ? l.getDelayP99() : null,
+            latency ? l.getDelayMax() : null,
+            latency ? (double) l.getJitterMillis() : null,
+            latency ? (double) l.getDriftPpm() : null,
+            acks, nacks, malformed, outOfOrder, failure
+        };
+    }
+
+    static void appendCsvHeader( StringBuilder out ) {
+        for ( int i = 0; i < COLUMNS.length; i++ ) {
+            if ( i > 0 ) out.append( ',' );
+            out.append( COLUMNS[i] );
+        }
+        out.append( '\n' );
+    }
+
+    void appendCsv( StringBuilder out ) {
+        Object[] values = getValues();
+        for ( int i = 0; i < values.length; i++ ) {
+            if ( i > 0 ) out.append( ',' );
+            Object value = values[i];
+            if ( value instanceof String ) {
+                String text = (String) value;
+                if ( text.indexOf( ',' ) >= 0 || text.indexOf( '"' ) >= 0 || text.indexOf( '\n' ) >= 0 ) {
+                    out.append( '"' ).append( text.replace( "\"", "\"\"" ) ).append( '"' );
+                } else {
+                    out.append( text );
+                }
+            } else if ( value != null ) {
+                appendNumber( out, value );
+            }
+        }
+        out.append( '\n' );
+    }
+
+    void appendJson( StringBuilder out ) {
+        Object[] values = getValues();
+        out.append( '{' );
+        for ( int i = 0; i < values.length; i++ ) {
+            if ( i > 0 ) out.append( ", " );
+            out.append( '"' ).append( COLUMNS[i] ).append( "\": " );
+            Object value = values[i];
+            if ( value instanceof String ) {
+                appendJsonString( out, (String) value );
+            } else if ( value != null ) {
+                appendNumber( out, value );
+            } else {
+                out.append( "null" );
+            }
+        }
+        out.append( '}' );
+    }
+
+    private void add( long timestamp, float consumed, int intervalMillis, float rate ) {
+        if ( timestamp <= lastTimestamp ) {
+            outOfOrder++;
+            return;
+        }
+        if ( samples == 0 ) {
+            start = timestamp;
+        } else if ( timestamp - lastTimestamp <= DrinkEventSegmenter.DEFAULT_MAX_INTERVAL ) {
+            lastInterval = timestamp - lastTimestamp;
+        }
+        samples++;
+        lastTimestamp = timestamp;
+        this.consumed += consumed;
+        forecast.addSample( consumed, intervalMillis );
+        segmenter.add( timestamp, rate );
+
+        // Settle the forecasts whose horizon has passed, then queue the current one
+        long horizon = HORIZON * 1000L;
+        while ( snapshotCount > 0 && snapshotTimes[snapshotHead] + horizon <= timestamp ) {
+            long elapsed = timestamp - snapshotTimes[snapshotHead];
+            double realized = 1000.0 * (this.consumed - snapshotConsumed[snapshotHead]) / elapsed;
+            double difference = snapshotRates[snapshotHead] - realized;
+            absoluteError += Math.abs( difference );
+            error += difference;
+            errorCount++;
+            snapshotHead = (snapshotHead + 1) % SNAPSHOTS;
+            snapshotCount--;
+        }
+        float estimate = forecast.getRate();
+        if ( Float.isNaN( estimate ) ) return;
+        int newest = (snapshotHead + snapshotCount - 1) % SNAPSHOTS;
+        if ( snapshotCount > 0 && timestamp - snapshotTimes[newest] < SNAPSHOT_PERIOD ) return;
+        if ( snapshotCount == SNAPSHOTS ) {
+            snapshotHead = (snapshotHead + 1) % SNAPSHOTS;   // not reached with one snapshot per second, dropped unsettled
+            snapshotCount--;
+        }
+        int slot = (snapshotHead + snapshotCount) % SNAPSHOTS;
+        snapshotTimes[slot] = timestamp;
+        snapshotConsumed[slot] = this.consumed;
+        snapshotRates[slot] = estimate;
+        snapshotCount++;
+    }
+
+    private static void appendNumber( StringBuilder out, Object value ) {
+        if ( value instanceof Double ) {
+            out.append( String.format( Locale.US, "%.4f", (Double) value ) );
+        } else {
+            out.append( value );
+        }
+    }
+
+    private static void appendJsonString( StringBuilder out, String text ) {
+        out.append( '"' );
+        for ( int i = 0; i < text.length(); i++ ) {
+            char c = text.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                out.append( '\\' ).append( c );
+            } else if ( c < 0x20 ) {
+                out.append( String.format( Locale.US, "\\u%04x", (int) c ) );
+            } else {
+                out.append( c );
+            }
+        }
+        out.append( '"' );
+    }
+
+}
@@ -0,0 +1,145 @@
+package hpbm.tools;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import hpbm.app.core.PayloadDecoder;
+
+/**
+ * Device side of the backlog sync on a simulated link, with the same encoding and flow control as the
+ * firmware but without the firmware's 20 byte notification limit: chunks fill the negotiated MTU.
+ * Time is simulated in connection events; each event carries the app's pending writes to the device
+ * and up to a fixed number of notifications back.
+ */
+final class SimulatedSyncPeripheral {
+
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+    private static final int ATT_OVERHEAD = 3;
+
+    private final int[] backlog;
+    private final int periodMillis;
+    private final int mtu;
+    private final int windowSamples;
+    private final int notificationsPerEvent;
+    private final int retransmitEvents;
+    private final float lossRate;
+    private final Random random = new Random( 1 );
+    private final List<String> receivedWrites = new ArrayList<>();
+    private final byte[] notification;
+
+    private boolean syncing;
+    private int firstSequence;
+    private int nextSequence;
+    private int lastSequence;
+    private int ackedSequence;
+    private int eventsSinceAck;
+    private long sentBytes;
+    private long sentNotifications;
+
+    SimulatedSyncPeripheral( int[] backlog, int periodMillis, int mtu, int windowSamples, int notificationsPerEvent, int retransmitEvents, float lossRate ) {
+        this.backlog = backlog;
+        this.periodMillis = periodMillis;
+        this.mtu = mtu;
+        this.windowSamples = windowSamples;
+        this.notificationsPerEvent = notificationsPerEvent;
+        this.retransmitEvents = retransmitEvents;
+        this.lossRate = lossRate;
+        this.notification = new byte[mtu - ATT_OVERHEAD];
+    }
+
+    long getSentBytes() {
+        return sentBytes;
+    }
+
+    long getSentNotifications() {
+        return sentNotifications;
+    }
+
+    /**
+     * A write from the app, delivered with the next connection event.
+     */
+    void write( byte[] data, int length ) {
+        receivedWrites.add( new String( data, 0, length, ASCII ).trim() );
+    }
+
+    interface NotificationSink {
+        void onNotification( byte[] payload, int length );
+    }
+
+    /**
+     * Runs one connection event.
+     */
+    void connectionEvent( NotificationSink sink ) {
+        int sent = 0;
+        for ( String write : receivedWrites ) {
+            if ( write.startsWith( "SY:" ) ) {
+                startSync( Integer.parseInt( write.substring( 3 ) ) );
+                notify( sink, encodeHeader() );
+                sent++;
+            } else if ( write.startsWith( "SA:" ) ) {
+                int acked = Integer.parseInt( write.substring( 3 ) );
+                if ( acked > ackedSequence ) {
+                    ackedSequence = acked;
+                    eventsSinceAck = 0;
+                }
+            }
+        }
+        receivedWrites.clear();
+        if ( !syncing ) return;
+        if ( ackedSequence >= lastSequence ) {
+            syncing = false;
+            return;
+        }
+        if ( ++eventsSinceAck > retransmitEvents ) {
+            // Go back to the last acknowledged sample and repeat the announcement in case it was lost
+            nextSequence = ackedSequence + 1;
+            eventsSinceAck = 0;
+            notify( sink, encodeHeader() );
+            sent++;
+        }
+        for ( ; sent < notificationsPerEvent && nextSequence <= lastSequence && nextSequence - ackedSequence <= windowSamples; sent++ ) {
+            notify( sink, encodeChunk() );
+        }
+    }
+
+    private void startSync( int fromSequence ) {
+        firstSequence = Math.max( 0, fromSequence );
+        nextSequence = firstSequence;
+        lastSequence = backlog.length - 1;
+        ackedSequence = nextSequence - 1;
+        eventsSinceAck = 0;
+        syncing = nextSequence <= lastSequence;
+    }
+
+    private int encodeHeader() {
+        return encode( "SH:" + firstSequence + "," + lastSequence + "," + periodMillis + "," + windowSamples );
+    }
+
+    private int encodeChunk() {
+        int length = encode( "S" + nextSequence + "," );
+        while ( length + 2 <= notification.length && nextSequence <= lastSequence && nextSequence - ackedSequence <= windowSamples ) {
+            int pulses = Math.min( backlog[nextSequence], 4095 );
+            notification[length++] = PayloadDecoder.encodeSixBits( pulses >> 6 );
+            notification[length++] = PayloadDecoder.encodeSixBits( pulses & 63 );
+            nextSequence++;
+        }
+        return length;
+    }
+
+    private int encode( String text ) {
+        byte[] bytes = text.getBytes( ASCII );
+        System.arraycopy( bytes, 0, notification, 0, bytes.length );
+        return bytes.length;
+    }
+
+    private void notify( NotificationSink sink, int length ) {
+        sentBytes += length;
+        sentNotifications++;
+        if ( random.nextFloat() >= lossRate ) {
+            sink.onNotification( notification, length );
+        }
+    }
+
+}
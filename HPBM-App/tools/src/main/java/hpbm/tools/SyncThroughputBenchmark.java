@@ -0,0 +1,108 @@
+package hpbm.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import hpbm.app.core.BacklogSync;
+import hpbm.app.core.CommandBuffer;
+import hpbm.app.core.CommandBufferPool;
+import hpbm.app.core.CommandChannel;
+import hpbm.app.core.MessageInterpreterImpl;
+import hpbm.app.storage.SessionLog;
+
+/**
+ * Runs the app's backlog sync, decoding into a real session log, against a simulated peripheral and
+ * reports the throughput for combinations of MTU and flow control window. Link time is simulated,
+ * decode and storage time is measured.
+ */
+public final class SyncThroughputBenchmark {
+
+    private static final int BACKLOG_SAMPLES = 20000;
+    private static final int PERIOD_MILLIS = 30000;
+    private static final float CONNECTION_INTERVAL = 15f;       // [ms]
+    private static final int NOTIFICATIONS_PER_EVENT = 4;
+    private static final int RETRANSMIT_EVENTS = 40;
+    private static final int[] MTUS = { 23, 185, 247 };
+    private static final int[] WINDOWS = { 12, 48, 192, 768 };    // [samples]
+    private static final float[] LOSS_RATES = { 0f, 0.01f };
+    private static final int MAX_EVENTS = 10000000;
+
+    public static void main( String[] args ) throws IOException {
+        int[] backlog = new int[BACKLOG_SAMPLES];
+        Random random = new Random( 7 );
+        for ( int i = 0; i < backlog.length; i++ ) {
+            backlog[i] = random.nextFloat() < 0.1f ? random.nextInt( 400 ) : 0;
+        }
+
+        System.out.println( String.format( Locale.US, "%5s %7s %6s %10s %12s %10s %12s", "MTU", "window", "loss", "link [s]", "samples/s", "kB/s", "ns/sample" ) );
+        for ( float lossRate : LOSS_RATES ) {
+            for ( int mtu : MTUS ) {
+                for ( int window : WINDOWS ) {
+                    run( backlog, mtu, window, lossRate );
+                }
+            }
+        }
+    }
+
+    private static void run( int[] backlog, int mtu, int window, float lossRate ) throws IOException {
+        File file = File.createTempFile( "sync-benchmark", ".log" );
+        file.deleteOnExit();
+        final SimulatedSyncPeripheral peripheral = new SimulatedSyncPeripheral( backlog, PERIOD_MILLIS, mtu, window, NOTIFICATIONS_PER_EVENT, RETRANSMIT_EVENTS, lossRate );
+        final CommandBufferPool pool = new CommandBufferPool();
+        final boolean[] completed = { false };
+        SessionLog log = SessionLog.open( file );
+        final BacklogSync sync = new BacklogSync( new MessageInterpreterImpl(), log, pool, new CommandChannel.Transport() {
+            @Override
+            public boolean send( CommandBuffer command ) {
+                peripheral.write( command.getData(), command.getLength() );
+                pool.release( command );
+                return true;
+            }
+        }, new BacklogSync.Listener() {
+            @Override
+            public void onBacklogSample( int sequence, long timestamp, int pulses, int periodMillis ) {}
+
+            @Override
+            public void onSyncCompleted( int storedSamples, long transferMillis ) {
+                completed[0] = true;
+            }
+
+            @Override
+            public void onSyncFailed( IOException ex ) {
+                throw new IllegalStateException( ex );
+            }
+        });
+
+        CommandBuffer request = pool.acquire();
+        sync.writeRequest( request );
+        peripheral.write( request.getData(), request.getLength() );
+        pool.release( request );
+
+        final long[] processingNanos = { 0 };
+        final long[] now = { 0 };
+        int events = 0;
+        while ( !completed[0] && events < MAX_EVENTS ) {
+            now[0] = (long) (events * CONNECTION_INTERVAL);
+            peripheral.connectionEvent( new SimulatedSyncPeripheral.NotificationSink() {
+                @Override
+                public void onNotification( byte[] payload, int length ) {
+                    long start = System.nanoTime();
+                    sync.onPayload( payload, length, now[0] );
+                    processingNanos[0] += System.nanoTime() - start;
+                }
+            });
+            events++;
+        }
+        long stored = log.size();
+        log.close();
+        file.delete();
+
+        float linkSeconds = events * CONNECTION_INTERVAL / 1000f;
+        System.out.println( String.format( Locale.US, "%5d %7d %6.2f %10.2f %12.0f %10.2f %12.0f%s",
+            mtu, window, lossRate, linkSeconds, stored / linkSeconds, peripheral.getSentBytes() / 1024f / linkSeconds,
+            (double) processingNanos[0] / Math.max( 1, stored ), completed[0] && stored == backlog.length ? "" : "  INCOMPLETE" ) );
+    }
+
+}
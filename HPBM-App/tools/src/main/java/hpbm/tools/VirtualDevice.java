@@ -0,0 +1,315 @@
+package hpbm.tools;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import hpbm.app.core.PayloadDecoder;
+
+/**
+ * One emulated HPBM-Device. The water consumption and the readings follow HPBM-DeviceSim/src/main.cpp:
+ * 2 ml are drawn every 512 ms and a reading is taken every second, with the same float math and the
+ * same quirks, e.g. the first reading after a refill divides by zero and goes out as "nan" or "inf".
+ * The framing and the commands follow the HPBM-Device firmware: every reading is one line, the envelope
+ * in front of the derived message, whose values keep DeviceSim's formatting since a socket has no 20 byte
+ * notification to fit them into. Commands "#&lt;id&gt;,&lt;command&gt;" are polled with the next reading and
+ * answered with "A:&lt;id&gt;" or "N:&lt;id&gt;", as many as fit into the firmware's receive buffer. Only derived reporting is emulated, other report modes and the
+ * backlog sync are rejected. Time is the device's uptime, advanced by the caller.
+ */
+final class VirtualDevice {
+
+    interface Output {
+        boolean send( byte[] lines, int length );    // false when the lines did not fit and were dropped
+    }
+
+    static final long READING_PERIOD = 1000;        // [ms]
+    static final long CONSUMPTION_PERIOD = 512;     // [ms]
+    static final float CONSUMPTION = 2f;            // [ml] per consumption period
+    static final float INITIAL_AMOUNT = 1000f;      // [ml]
+
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+    private static final int ENVELOPE_SEQUENCE_MASK = 0xfff;
+    private static final long ENVELOPE_TIME_MASK = 0xffffffL;
+    private static final byte LINE_END = '\n';
+    private static final int RECENT_COMMANDS = 32;
+    private static final long RECENT_COMMAND_MILLIS = 15000;    // [ms]
+    private static final int RECEIVED_SIZE = 192;   // [bytes] commands taken from one poll, '\0' separated like the firmware
+
+    private final byte[] reading = new byte[64];
+    private final List<String> commands = new ArrayList<>();
+    private long uptime;                        // [ms]
+    private long nextReading = READING_PERIOD;
+    private long nextConsumption = CONSUMPTION_PERIOD;
+    private float initialWaterAmount = INITIAL_AMOUNT;  // [ml]
+    private float currentWaterAmount = INITIAL_AMOUNT;  // [ml]
+    private long startTime;                     // [ms]
+    private float currentConsumptionRate;       // [ml/s]
+    private float consumedSinceLastMeasurement; // [ml]
+    private int reportIntervalMillis;           // [ms] idle readings are reported this often, 0 reports all
+    private long lastReportAt;                  // [ms]
+    private boolean wasConsuming;
+    private int sampleSequence;
+    // Recently executed command ids, like the firmware: a resend is acknowledged, not executed again
+    private final long[] recentCommandIds = new long[RECENT_COMMANDS];
+    private final long[] recentCommandTimes = new long[RECENT_COMMANDS];    // [ms]
+    private int recentCommandNext;
+    private long sentReadings;
+    private long droppedReadings;
+    private long skippedReadings;
+
+    long getUptime() {
+        return uptime;
+    }
+
+    /**
+     * @return Uptime of the next reading or consumption [ms]
+     */
+    long getNextEvent() {
+        return Math.min( nextReading, nextConsumption );
+    }
+
+    float getCurrentWaterAmount() {
+        return currentWaterAmount;
+    }
+
+    long getSentReadings() {
+        return sentReadings;
+    }
+
+    /**
+     * @return Readings that did not fit into the output, their sequence numbers are skipped
+     */
+    long getDroppedReadings() {
+        return droppedReadings;
+    }
+
+    /**
+     * @return Idle readings not reported because of the report interval
+     */
+    long getSkippedReadings() {
+        return skippedReadings;
+    }
+
+    /**
+     * A command line from the app, executed with the next reading.
+     */
+    void receive( byte[] line, int offset, int length ) {
+        commands.add( new String( line, offset, length, ASCII ).trim() );
+    }
+
+    /**
+     * Runs the timers up to the uptime, in the order the device's timer library would.
+     */
+    void advanceTo( long now, Output output ) {
+        while ( true ) {
+            // Registered first, a reading goes ahead of a consumption due at the same time
+            if ( nextReading <= nextConsumption && nextReading <= now ) {
+                uptime = nextReading;
+                nextReading += READING_PERIOD;
+                pollCommands( output );
+                takeReading( output );
+            } else if ( nextConsumption < nextReading && nextConsumption <= now ) {
+                uptime = nextConsumption;
+                nextConsumption += CONSUMPTION_PERIOD;
+                consume( CONSUMPTION );
+            } else {
+                break;
+            }
+        }
+        uptime = now;
+    }
+
+    private void takeReading( Output output ) {
+        currentConsumptionRate = consumedSinceLastMeasurement;
+        consumedSinceLastMeasurement = 0;
+
+        float averageConsumptionRate = calculateAverageConsumptionRate();  // [ml/s]
+        float remainingPart = currentWaterAmount / initialWaterAmount;
+        int timeToEmpty = (int) (currentWaterAmount / averageConsumptionRate);  // [s]
+
+        if ( !isReportDue( currentConsumptionRate > 0f ) ) {
+            skippedReadings++;
+            return;
+        }
+        // Envelope and message in one line, sent or, with the output full, dropped
+        int length = writeEnvelope( reading );
+        length = writeFloat( reading, length, currentConsumptionRate );
+        reading[length++] = ',';
+        length = writeFloat( reading, length, averageConsumptionRate );
+        reading[length++] = ',';
+        length = writeFloat( reading, length, remainingPart );
+        reading[length++] = ',';
+        length = writeInt( reading, length, timeToEmpty );
+        reading[length++] = LINE_END;
+        if ( output.send( reading, length ) ) {
+            sentReadings++;
+        } else {
+            droppedReadings++;
+        }
+    }
+
+    private float calculateAverageConsumptionRate() {  // [ml/s]
+        int dt = (int) ((uptime - startTime) / 1000);
+        return (initialWaterAmount - currentWaterAmount) / dt;
+    }
+
+    private void consume( float amount ) {
+        if ( amount <= 0f ) return;
+        if ( currentWaterAmount <= 0f ) return;
+
+        currentWaterAmount -= amount;
+        consumedSinceLastMeasurement += amount;
+        if ( startTime == -1 ) {
+            startTime = uptime;
+        } else if ( currentWaterAmount <= 0f ) {
+            currentConsumptionRate = 0f;
+            consumedSinceLastMeasurement = 0f;
+            startTime = -1;
+        }
+    }
+
+    private boolean isReportDue( boolean consuming ) {
+        boolean due = consuming || wasConsuming || uptime - lastReportAt >= reportIntervalMillis;
+        wasConsuming = consuming;
+        if ( due ) lastReportAt = uptime;
+        return due;
+    }
+
+    private void refillTo( float waterAmount ) {
+        initialWaterAmount = waterAmount;
+        currentWaterAmount = initialWaterAmount;
+        startTime = uptime;
+    }
+
+    /**
+     * Runs the commands that fit into the firmware's receive buffer, the rest is dropped and resent by the app.
+     */
+    private void pollCommands( Output output ) {
+        int received = 0;
+        for ( String command : commands ) {
+            received += command.length() + 1;
+            if ( received > RECEIVED_SIZE ) break;
+            long commandId = -1;
+            if ( command.startsWith( "#" ) ) {
+                int separator = command.indexOf( ',' );
+                if ( separator < 0 ) continue;
+                try {
+                    commandId = Long.parseLong( command.substring( 1, separator ) );
+                } catch ( NumberFormatException ex ) {
+                    continue;
+                }
+                command = command.substring( separator + 1 );
+            }
+            boolean accepted = commandId > 0 && wasExecuted( commandId );
+            if ( !accepted ) {
+                accepted = execute( command );
+                if ( accepted && commandId > 0 ) {
+                    recentCommandIds[recentCommandNext] = commandId;
+                    recentCommandTimes[recentCommandNext] = uptime;
+                    recentCommandNext = (recentCommandNext + 1) % RECENT_COMMANDS;
+                }
+            }
+            if ( commandId != -1 ) {
+                byte[] ack = ((accepted ? "A:" : "N:") + commandId + "\n").getBytes( ASCII );
+                output.send( ack, ack.length );
+            }
+        }
+        commands.clear();
+    }
+
+    private boolean wasExecuted( long commandId ) {
+        for ( int i = 0; i < RECENT_COMMANDS; i++ ) {
+            if ( recentCommandIds[i] == commandId && uptime - recentCommandTimes[i] <= RECENT_COMMAND_MILLIS ) return true;
+        }
+        return false;
+    }
+
+    private boolean execute( String command ) {
+        try {
+            if ( command.startsWith( "RT:" ) ) {
+                refillTo( Float.parseFloat( command.substring( 3 ) ) );
+            } else if ( command.startsWith( "RW:" ) ) {
+                refillTo( currentWaterAmount + Float.parseFloat( command.substring( 3 ) ) );
+            } else if ( command.startsWith( "RST" ) ) {
+                refillTo( initialWaterAmount );
+            } else if ( command.equals( "MD:D" ) ) {
+                return true;
+            } else if ( command.startsWith( "RI:" ) ) {
+                reportIntervalMillis = Integer.parseInt( command.substring( 3 ) );
+            } else {
+                return false;
+            }
+            return true;
+        } catch ( NumberFormatException ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * "~&lt;sequence&gt;&lt;uptime&gt;", each field in characters of 6 bits, see
+     * {@link PayloadDecoder#encodeSixBits(int)}, high bits first.
+     */
+    private int writeEnvelope( byte[] out ) {
+        int sequence = sampleSequence & ENVELOPE_SEQUENCE_MASK;
+        long time = uptime & ENVELOPE_TIME_MASK;
+        out[0] = '~';
+        out[1] = PayloadDecoder.encodeSixBits( (sequence >> 6) & 0x3f );
+        out[2] = PayloadDecoder.encodeSixBits( sequence & 0x3f );
+        for ( int i = 0; i < 4; i++ ) {
+            out[3 + i] = PayloadDecoder.encodeSixBits( (int) ((time >> (6 * (3 - i))) & 0x3f) );
+        }
+        sampleSequence++;
+        return 7;
+    }
+
+    /**
+     * Arduino's Print::print(float): two decimals, rounded by adding half of the last one.
+     */
+    static int writeFloat( byte[] out, int offset, float number ) {
+        if ( Float.isNaN( number ) ) return writeAscii( out, offset, "nan" );
+        if ( Float.isInfinite( number ) ) return writeAscii( out, offset, "inf" );
+        if ( number > 4294967040f || number < -4294967040f ) return writeAscii( out, offset, "ovf" );
+        if ( number < 0f ) {
+            out[offset++] = '-';
+            number = -number;
+        }
+        number += 0.005f;
+        long intPart = (long) number;
+        float remainder = number - (float) intPart;
+        offset = writeLong( out, offset, intPart );
+        out[offset++] = '.';
+        for ( int i = 0; i < 2; i++ ) {
+            remainder *= 10f;
+            int digit = (int) remainder;
+            out[offset++] = (byte) ('0' + digit);
+            remainder -= digit;
+        }
+        return offset;
+    }
+
+    private static int writeInt( byte[] out, int offset, int value ) {
+        if ( value < 0 ) {
+            out[offset++] = '-';
+            return writeLong( out, offset, -(long) value );
+        }
+        return writeLong( out, offset, value );
+    }
+
+    private static int writeLong( byte[] out, int offset, long value ) {
+        int digits = 1;
+        for ( long v = value; v >= 10; v /= 10 ) digits++;
+        for ( int i = offset + digits - 1; i >= offset; i-- ) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    private static int writeAscii( byte[] out, int offset, String text ) {
+        for ( int i = 0; i < text.length(); i++ ) {
+            out[offset++] = (byte) text.charAt( i );
+        }
+        return offset;
+    }
+
+}
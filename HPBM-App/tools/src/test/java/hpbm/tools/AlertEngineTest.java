@@ -0,0 +1,166 @@
+package hpbm.tools;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import hpbm.app.core.AlertEngine;
+import hpbm.app.core.AlertRule;
+import hpbm.app.core.HPBMDataBatch;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link AlertEngine} with the default rules through the situations they are for and the ones they
+ * must stay quiet in:
+ * - A pack emptying with noisy readings raises "remaining" once, a refill clears it, readings hovering at
+ *   the threshold do not raise it again.
+ * - Raising again within the repeat interval is counted but not notified.
+ * - Two idle hours raise "noFlow", the next sip clears it. Sips never raise "leak", sustained flow does.
+ * - An unknown time to empty and samples older than the last one change nothing.
+ * Then the cost per sample is measured after a short and a long history, and evaluation must not allocate.
+ */
+public final class AlertEngineTest {
+
+    private static final long START = 1500000000000L;
+    private static final long MINUTE = 60 * 1000;
+    private static final int BATCH = 64;
+    private static final int SHORT_HISTORY = 1000000;
+    private static final int LONG_HISTORY = 20000000;
+
+    private static final class Recorder implements AlertEngine.Listener {
+        int raised;
+        int cleared;
+        String last;
+
+        @Override
+        public void onAlertRaised( AlertRule rule, long timestamp, float value ) {
+            raised++;
+            last = rule.getId();
+        }
+
+        @Override
+        public void onAlertCleared( AlertRule rule, long timestamp ) {
+            cleared++;
+        }
+    }
+
+    @Test
+    public void remaining() {
+        AlertEngine engine = new AlertEngine();
+        Recorder recorder = new Recorder();
+        engine.setRules( AlertRule.remainingBelow( "remaining", 0.15f ), AlertRule.timeToEmptyBelow( "timeToEmpty", 30 * 60 ) );
+        engine.setListener( recorder );
+        long t = START;
+        // Emptying at a percent a minute, readings off by up to two percent
+        for ( int i = 0; i < 90; i++, t += MINUTE ) {
+            float noise = (i % 2 == 0 ? 0.02f : -0.02f);
+            engine.evaluate( t, 0f, 1f - i / 100f + noise, -1 );
+        }
+        assertTrue( "one remaining alert while emptying, got " + recorder.raised, recorder.raised == 1 && "remaining".equals( recorder.last ) );
+        engine.evaluate( t - 2 * MINUTE, 0f, 1f, -1 );
+        assertTrue( "an old sample cleared the alert", engine.isRaised( "remaining" ) );
+
+        engine.evaluate( t += MINUTE, 0f, 1f, -1 );     // refilled
+        assertTrue( "the refill did not clear the alert", recorder.cleared == 1 && !engine.isRaised( "remaining" ) );
+        for ( int i = 0; i < 20; i++, t += MINUTE ) {
+            engine.evaluate( t, 0f, i % 2 == 0 ? 0.14f : 0.17f, -1 );
+        }
+        assertTrue( "raising again within the repeat interval must not notify: " + engine.getRaisedCount() + " raised, " + engine.getSuppressedCount() + " suppressed",
+            engine.getRaisedCount() == 2 && engine.getSuppressedCount() == 1 && recorder.raised == 1 );
+        engine.evaluate( t += MINUTE, 0f, 1f, -1 );
+        assertTrue( "cleared an alert that was never notified", recorder.cleared == 1 );
+        engine.evaluate( t += AlertRule.DEFAULT_REPEAT_INTERVAL, 0f, 0.1f, -1 );
+        assertTrue( "not notified again after the repeat interval", recorder.raised == 2 );
+        assertTrue( "an unknown time to empty raised an alert", !engine.isRaised( "timeToEmpty" ) );
+    }
+
+    @Test
+    public void noFlowAndLeak() {
+        AlertEngine engine = new AlertEngine();
+        Recorder recorder = new Recorder();
+        engine.setRules( AlertRule.createDefaults() );
+        engine.setListener( recorder );
+        long t = START;
+        // Idle samples every 30 s, the slow report interval
+        engine.evaluate( t, 5f, 0.9f, 3600 * 10 );
+        for ( t += 30000; t < START + 2 * 3600 * 1000; t += 30000 ) {
+            engine.evaluate( t, 0f, 0.9f, 3600 * 10 );
+        }
+        assertTrue( "raised before two idle hours", recorder.raised == 0 );
+        engine.evaluate( t += 30000, 0f, 0.9f, 3600 * 10 );
+        assertTrue( "two idle hours did not raise noFlow", recorder.raised == 1 && "noFlow".equals( recorder.last ) );
+
+        // Sips of ten seconds at 10 ml/s, a minute apart
+        for ( int sip = 0; sip < 30; sip++ ) {
+            for ( int s = 0; s < 10; s++ ) {
+                engine.evaluate( t += 1000, 10f, 0.9f, 3600 * 10 );
+            }
+            for ( int s = 0; s < 60; s++ ) {
+                engine.evaluate( t += 1000, 0f, 0.9f, 3600 * 10 );
+            }
+        }
+        assertTrue( "the sip did not clear noFlow", recorder.cleared == 1 && !engine.isRaised( "noFlow" ) );
+        assertTrue( "sips raised a leak", !engine.isRaised( "leak" ) );
+
+        for ( int s = 0; s < 90; s++ ) {
+            engine.evaluate( t += 1000, 3f, 0.9f, 3600 * 10 );
+        }
+        assertTrue( "sustained flow did not raise a leak", engine.isRaised( "leak" ) && "leak".equals( recorder.last ) );
+    }
+
+    @Test
+    public void cost() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        boolean accounting = threads.isThreadAllocatedMemorySupported();
+        if ( accounting ) threads.setThreadAllocatedMemoryEnabled( true );
+        long threadId = Thread.currentThread().getId();
+
+        AlertEngine engine = new AlertEngine();
+        engine.setRules( AlertRule.createDefaults() );
+        engine.setListener( new Recorder() );
+        HPBMDataBatch batch = new HPBMDataBatch( BATCH );
+        long[] timestamp = { START };
+        for ( int i = 0; i < 3; i++ ) {
+            evaluate( engine, batch, timestamp, SHORT_HISTORY / 2 );   // warm up
+        }
+
+        long start = System.nanoTime();
+        evaluate( engine, batch, timestamp, SHORT_HISTORY );
+        double early = (System.nanoTime() - start) / (double) SHORT_HISTORY;
+
+        long allocated = accounting ? threads.getThreadAllocatedBytes( threadId ) : 0;
+        evaluate( engine, batch, timestamp, LONG_HISTORY );
+        if ( accounting ) {
+            allocated = threads.getThreadAllocatedBytes( threadId ) - allocated;
+        }
+
+        start = System.nanoTime();
+        evaluate( engine, batch, timestamp, SHORT_HISTORY );
+        double late = (System.nanoTime() - start) / (double) SHORT_HISTORY;
+        System.out.println( String.format( Locale.US, "%d rules: %.1f ns/sample after %d samples, %.1f ns/sample after %d, %d bytes allocated over the last %d",
+            engine.getRules().length, early, 5 * SHORT_HISTORY / 2, late, 7 * SHORT_HISTORY / 2 + LONG_HISTORY, allocated, LONG_HISTORY ) );
+        assertTrue( "the cost per sample grew with the history", late < 2 * early + 20 );
+        assertTrue( "evaluating allocated " + allocated + " bytes", allocated == 0 );
+    }
+
+    /**
+     * A day's pattern of sips and idle time, emptying and refilling, delivered in batches like the ingestion thread does.
+     */
+    private static void evaluate( AlertEngine engine, HPBMDataBatch batch, long[] timestamp, int samples ) {
+        float remaining = 1f;
+        for ( int i = 0; i < samples; ) {
+            batch.clear();
+            for ( int b = 0; b < BATCH; b++, i++ ) {
+                timestamp[0] += 1000;
+                float rate = (i % 600) < 8 ? 8f + (i % 3) : 0f;
+                remaining -= rate / 3000f;
+                if ( remaining < 0.05f ) remaining = 1f;
+                batch.add( timestamp[0], -1, -1, timestamp[0], rate, 0.05f, remaining, (int) (remaining * 60000) );
+            }
+            engine.evaluate( batch );
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package hpbm.tools;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import hpbm.app.core.DrinkEvent;
+import hpbm.app.core.DrinkEventSegmenter;
+import hpbm.app.storage.ArchiveChunk;
+import hpbm.app.storage.DrinkEventStore;
+import hpbm.app.storage.SessionArchiveReader;
+import hpbm.app.storage.SessionArchiveWriter;
+import hpbm.app.storage.SessionCompactor;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Synthesizes a month of per-second sessions with known sips, some stalling for a breath, between stray
+ * meter pulses, single noisy samples and gaps in the stream, and segments them live into a
+ * {@link DrinkEventStore}.
+ * - Every sip must come out as exactly one event with its start, end and volume, and nothing else.
+ * - Range queries and daily volumes must match a scan of the truth; their cost is compared with summing
+ *   the day's archived samples.
+ * - Rebuilding the store from the archives must give the same events, a torn record must be dropped.
+ */
+public final class DrinkEventTest {
+
+    private static final long DAY = 24 * 3600 * 1000;
+    private static final long START = 1500000000000L;
+    private static final int DAYS = 30;
+    private static final int SESSION_SECONDS = 16 * 3600;
+    private static final int SIPS = 80;                     // a day
+    private static final int QUERIES = 2000;
+    private static final float MAX_VOLUME_ERROR = 1e-4f;    // relative
+
+    @Test
+    public void segmentsAMonthOfSessions() throws IOException {
+        File directory = File.createTempFile( "drinks", "" );
+        if ( !directory.delete() || !directory.mkdir() ) throw new IOException( "Unable to create " + directory );
+
+        final DrinkEventStore store = DrinkEventStore.open( new File( directory, DrinkEventStore.FILE_NAME ) );
+        DrinkEventSegmenter segmenter = new DrinkEventSegmenter( new DrinkEventSegmenter.Listener() {
+            @Override
+            public void onDrinkEvent( DrinkEvent event ) {
+                try {
+                    if ( !store.append( event ) ) fail( event + " overlaps the last one" );
+                } catch ( IOException ex ) {
+                    throw new IllegalStateException( ex );
+                }
+            }
+        } );
+        List<DrinkEvent> truth = new ArrayList<>();
+        long samples = 0;
+        for ( int day = 0; day < DAYS; day++ ) {
+            samples += synthesize( day, new File( directory, (START + day * DAY) + SessionCompactor.ARCHIVE_SUFFIX ), segmenter, truth );
+            segmenter.flush();   // the session ends
+        }
+        System.out.println( String.format( Locale.US, "%d days, %d samples, %d sips, %d events stored in %d bytes",
+            DAYS, samples, truth.size(), store.size(), store.getFile().length() ) );
+        compare( store, truth );
+        queries( store, truth );
+        dailyVolumes( store, new SessionCompactor( directory, null ).listArchives() );
+
+        // Rebuilt from the archives, e.g. after a recalibration
+        store.rebuild( new SessionCompactor( directory, null ).listArchives() );
+        compare( store, truth );
+
+        // A record torn by a crash
+        store.close();
+        RandomAccessFile file = new RandomAccessFile( store.getFile(), "rw" );
+        file.seek( file.length() );
+        file.write( new byte[DrinkEventStore.RECORD_SIZE / 2] );
+        file.close();
+        DrinkEventStore reopened = DrinkEventStore.open( store.getFile() );
+        compare( reopened, truth );
+        reopened.close();
+
+        for ( File leftover : directory.listFiles() ) {
+            if ( leftover.getName().endsWith( ".tmp" ) ) fail( "left behind " + leftover.getName() );
+            leftover.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * One session of per-second samples, archived and fed to the segmenter as they are taken.
+     *
+     * @return samples in the session
+     */
+    private static long synthesize( int day, File archive, DrinkEventSegmenter segmenter, List<DrinkEvent> truth ) throws IOException {
+        Random random = new Random( day );
+        float[] rates = new float[SESSION_SECONDS];
+        boolean[] missing = new boolean[SESSION_SECONDS];
+        int slot = SESSION_SECONDS / SIPS;
+        int sips = 0;
+        long[] starts = new long[SIPS];
+        int[] lengths = new int[SIPS];
+        for ( int s = 0; s < SIPS; s++ ) {
+            int first = s * slot + 60 + random.nextInt( slot - 180 );
+            int length = 2 + random.nextInt( 12 );
+            int stall = length > 5 && random.nextBoolean() ? 1 + random.nextInt( 2 ) : 0;    // a breath, bridged
+            for ( int i = 0; i < length; i++ ) {
+                rates[first + i] = stall > 0 && i >= 2 && i < 2 + stall ? 0f : 4f + 20f * random.nextFloat();
+            }
+            starts[sips] = first;
+            lengths[sips] = length;
+            sips++;
+            // Stray pulses and a noisy sample well away from the sip
+            rates[first + length + 20] = 0.23f;
+            rates[first - 30] = 0.23f;
+            if ( random.nextInt( 4 ) == 0 ) rates[first + length + 40] = 1.2f;  // below the minimum volume
+            if ( random.nextInt( 5 ) == 0 ) {
+                // Out of range for a minute
+                for ( int i = first + length + 50; i < first + length + 110; i++ ) {
+                    missing[i] = true;
+                }
+            }
+        }
+
+        long origin = START + day * DAY;
+        SessionArchiveWriter writer = new SessionArchiveWriter( archive );
+        long count = 0;
+        for ( int i = 0; i < SESSION_SECONDS; i++ ) {
+            if ( missing[i] ) continue;
+            long timestamp = origin + (i + 1) * 1000L;
+            writer.append( timestamp, rates[i], 0f, 1f, 0 );
+            segmenter.add( timestamp, rates[i] );
+            count++;
+        }
+        writer.close();
+
+        for ( int s = 0; s < sips; s++ ) {
+            int first = (int) starts[s];
+            float volume = 0f;
+            float peak = 0f;
+            for ( int i = first; i < first + lengths[s]; i++ ) {
+                volume += rates[i];
+                peak = Math.max( peak, rates[i] );
+            }
+            truth.add( new DrinkEvent( origin + first * 1000L, origin + (first + lengths[s]) * 1000L, volume, peak ) );
+        }
+        return count;
+    }
+
+    private static void compare( DrinkEventStore store, List<DrinkEvent> truth ) throws IOException {
+        List<DrinkEvent> events = new ArrayList<>();
+        store.query( Long.MIN_VALUE, Long.MAX_VALUE, events );
+        if ( events.size() != truth.size() ) fail( events.size() + " events for " + truth.size() + " sips" );
+        for ( int i = 0; i < events.size(); i++ ) {
+            DrinkEvent event = events.get( i );
+            DrinkEvent expected = truth.get( i );
+            if ( event.getStart() != expected.getStart() || event.getEnd() != expected.getEnd() || event.getPeakRate() != expected.getPeakRate()
+                || Math.abs( event.getVolume() - expected.getVolume() ) > MAX_VOLUME_ERROR * expected.getVolume() ) {
+                fail( event + " for " + expected );
+            }
+        }
+    }
+
+    private static void queries( DrinkEventStore store, List<DrinkEvent> truth ) throws IOException {
+        Random random = new Random( 7 );
+        List<DrinkEvent> events = new ArrayList<>();
+        long start = System.nanoTime();
+        for ( int q = 0; q < QUERIES; q++ ) {
+            long from = START + (long) (random.nextDouble() * DAYS * DAY);
+            long to = from + (long) (random.nextDouble() * DAY);
+            events.clear();
+            store.query( from, to, events );
+            int expected = 0;
+            float volume = 0f;
+            for ( DrinkEvent event : truth ) {
+                if ( event.getEnd() >= from && event.getStart() < to ) expected++;
+                if ( event.getStart() >= from && event.getStart() < to ) volume += event.getVolume();
+            }
+            if ( events.size() != expected ) fail( "query returned " + events.size() + " of " + expected + " events" );
+            if ( Math.abs( store.getVolume( from, to ) - volume ) > MAX_VOLUME_ERROR * Math.max( 1f, volume ) ) fail( "volume disagrees with the scan" );
+        }
+        System.out.println( String.format( Locale.US, "%d range queries checked in %.1f ms", QUERIES, (System.nanoTime() - start) / 1e6 ) );
+    }
+
+    /**
+     * The figure a daily summary needs, from the events and from the samples.
+     */
+    private static void dailyVolumes( DrinkEventStore store, File[] archives ) throws IOException {
+        float fromEvents = 0f;
+        long start = System.nanoTime();
+        for ( int day = 0; day < DAYS; day++ ) {
+            fromEvents += store.getVolume( START + day * DAY, START + (day + 1) * DAY );
+        }
+        long eventNanos = System.nanoTime() - start;
+
+        float fromSamples = 0f;
+        ArchiveChunk chunk = new ArchiveChunk();
+        start = System.nanoTime();
+        for ( File archive : archives ) {
+            SessionArchiveReader reader = SessionArchiveReader.open( archive );
+            try {
+                for ( int c = 0; c < reader.getChunkCount(); c++ ) {
+                    reader.readChunk( c, chunk );
+                    for ( int i = 0; i < chunk.size(); i++ ) {
+                        fromSamples += chunk.getCurrentConsumption( i );
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        long sampleNanos = System.nanoTime() - start;
+        System.out.println( String.format( Locale.US, "daily volumes: %.3f ms from events, %.1f ms from samples (%.0fx), %.0f ml of %.0f ml in events",
+            eventNanos / 1e6, sampleNanos / 1e6, sampleNanos / (double) Math.max( 1, eventNanos ), fromEvents, fromSamples ) );
+        if ( fromEvents > fromSamples ) fail( "the events hold more than was consumed" );
+    }
+
+}
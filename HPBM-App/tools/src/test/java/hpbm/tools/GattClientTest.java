@@ -0,0 +1,379 @@
+package hpbm.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+import hpbm.app.core.CommandBuffer;
+import hpbm.app.core.CommandBufferPool;
+import hpbm.app.core.GattClient;
+import hpbm.app.core.GattTransport;
+import hpbm.app.core.LatencyHistogram;
+import hpbm.app.core.NordicUart;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the app's {@link GattClient} against a {@link FakeUartPeripheral}:
+ * - Connecting discovers the UART service, negotiates the MTU and enables RX notifications.
+ * - Commands of any length arrive byte exact in chunks of the negotiated MTU, their buffers return to the pool.
+ * - Streams notifications for several connection intervals, MTUs, loss rates and link latencies and
+ *   reports throughput and latency; every notification not lost must arrive once and in order.
+ * - Closing or losing the connection with writes queued returns their buffers to the pool.
+ * - Random disconnects clear the queue and reconnecting resumes the stream.
+ * - The same with the events on a timer thread and commands written from another one.
+ */
+public final class GattClientTest {
+
+    private static final int[] INTERVALS = { 8, 30, 50 };   // [ms]
+    private static final int[] MTUS = { 23, 247 };          // [B]
+    private static final float[] LOSS_RATES = { 0f, 0.05f };
+    private static final int PACKETS_PER_EVENT = 4;
+    private static final int[] RATES = { 3, 50 };           // [messages/s] slow and fast reporting
+    private static final int[] LATENCIES = { 0, 20 };       // [ms] of the link, on top of the connection interval
+    private static final int STREAM_EVENTS = 5000;
+    private static final int MAX_SETUP_EVENTS = 100;
+    private static final int REAL_TIME_COMMANDS = 200;
+    private static final long REAL_TIME_LIMIT = 20000;      // [ms]
+
+    /**
+     * Checks the stream: each notification carries a sequence number and the time it was queued.
+     */
+    private static final class Recorder implements GattClient.Listener {
+        final LatencyHistogram latency = new LatencyHistogram();
+        FakeUartPeripheral peripheral;
+        GattClient client;
+        boolean realTime;
+        volatile boolean servicesDiscovered;
+        volatile int connected;
+        volatile int disconnected;
+        long delivered;
+        long deliveredBytes;
+        long lastSequence = -1;
+        String failure;
+
+        @Override
+        public void onConnected() {
+            connected++;
+        }
+
+        @Override
+        public void onConnecting() {}
+
+        @Override
+        public void onDisconnected() {
+            disconnected++;
+            servicesDiscovered = false;
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+            servicesDiscovered = true;
+            // As the app does
+            client.enableNotification( NordicUart.SERVICE, NordicUart.RX, true );
+        }
+
+        @Override
+        public void onCharacteristicRead( UUID characteristic, byte[] value ) {}
+
+        @Override
+        public synchronized void onCharacteristicChanged( UUID characteristic, byte[] value ) {
+            if ( !NordicUart.RX.equals( characteristic ) ) {
+                failure = "notification of " + characteristic;
+                return;
+            }
+            long sequence = getLong( value, 0 );
+            long queuedAt = getLong( value, 8 );
+            if ( sequence <= lastSequence && failure == null ) {
+                failure = "notification " + sequence + " after " + lastSequence;
+            }
+            lastSequence = sequence;
+            delivered++;
+            deliveredBytes += value.length;
+            latency.record( realTime ? (System.nanoTime() - queuedAt) / 1000000 : peripheral.getTime() - queuedAt );
+        }
+
+        @Override
+        public void onReadRemoteRssi( int rssi ) {}
+    }
+
+    /**
+     * Connects and waits until the service was discovered and notifications are on.
+     */
+    private static GattClient connect( FakeUartPeripheral peripheral, Recorder recorder ) {
+        recorder.peripheral = peripheral;
+        GattClient client = new GattClient( peripheral, recorder );
+        recorder.client = client;
+        assertTrue( "connecting was refused", client.connect( FakeUartPeripheral.ADDRESS, false ) );
+        for ( int i = 0; i < MAX_SETUP_EVENTS && !peripheral.isNotifying(); i++ ) {
+            peripheral.runEvent();
+        }
+        assertTrue( "the UART service was not discovered", recorder.servicesDiscovered && client.hasService( NordicUart.SERVICE ) );
+        assertTrue( "notifications were not enabled", peripheral.isNotifying() );
+        return client;
+    }
+
+    @Test
+    public void commands() {
+        Random random = new Random( 3 );
+        int[] lengths = { 1, 19, 20, 21, 100, 244, 245, 500 };
+        for ( int maxMtu : MTUS ) {
+            FakeUartPeripheral peripheral = new FakeUartPeripheral( 30, maxMtu, PACKETS_PER_EVENT, 0, 0f, 0f, 1 );
+            Recorder recorder = new Recorder();
+            GattClient client = connect( peripheral, recorder );
+            assertTrue( "negotiated an MTU of " + client.getMtu() + " with a device taking " + maxMtu,
+                client.getMtu() == Math.min( maxMtu, GattClient.REQUESTED_MTU ) );
+
+            CommandBufferPool pool = new CommandBufferPool( lengths.length, CommandBufferPool.DEFAULT_BUFFER_CAPACITY );
+            // All acquired up front, a command fitting one write is released as soon as it was issued
+            List<CommandBuffer> acquired = new ArrayList<>();
+            byte[] expected = new byte[0];
+            for ( int length : lengths ) {
+                byte[] data = new byte[length];
+                random.nextBytes( data );
+                acquired.add( pool.acquire().append( data ) );
+                expected = concat( expected, data );
+            }
+            for ( CommandBuffer command : acquired ) {
+                assertTrue( "a write was refused", client.write( NordicUart.SERVICE, NordicUart.TX, command, pool ) );
+            }
+            int chunks = 0;
+            for ( int length : lengths ) {
+                chunks += (length + client.getMaxWriteLength() - 1) / client.getMaxWriteLength();
+            }
+            peripheral.runEvents( chunks + 1 );
+            assertTrue( "the commands arrived garbled at MTU " + client.getMtu(), Arrays.equals( peripheral.getReceived(), expected ) );
+            for ( int i = 0; i < lengths.length; i++ ) {
+                assertTrue( "a command buffer did not return to the pool", acquired.contains( pool.acquire() ) );
+            }
+            System.out.println( String.format( Locale.US, "MTU %d: %d bytes of commands in %d writes", client.getMtu(), expected.length, chunks ) );
+        }
+    }
+
+    @Test
+    public void droppedCommands() {
+        for ( boolean close : new boolean[] { true, false } ) {
+            FakeUartPeripheral peripheral = new FakeUartPeripheral( 30, GattClient.DEFAULT_MTU, PACKETS_PER_EVENT, 0, 0f, 0f, 1 );
+            Recorder recorder = new Recorder();
+            GattClient client = connect( peripheral, recorder );
+            CommandBufferPool pool = new CommandBufferPool( 4, CommandBufferPool.DEFAULT_BUFFER_CAPACITY );
+            List<CommandBuffer> acquired = new ArrayList<>();
+            for ( int i = 0; i < 4; i++ ) {
+                CommandBuffer command = pool.acquire().append( new byte[100] );
+                acquired.add( command );
+                assertTrue( "a write was refused", client.write( NordicUart.SERVICE, NordicUart.TX, command, pool ) );
+            }
+            // The first command is partly written, the others wait in the queue
+            peripheral.runEvent();
+            if ( close ) {
+                client.close();
+            } else {
+                peripheral.disconnect();
+                peripheral.runEvents( 2 );
+                assertTrue( "the disconnect was not reported", recorder.disconnected == 1 );
+            }
+            List<CommandBuffer> returned = new ArrayList<>();
+            for ( int i = 0; i < acquired.size(); i++ ) {
+                CommandBuffer buffer = pool.acquire();
+                assertTrue( "a dropped command's buffer did not return to the pool on " + (close ? "close" : "disconnect"),
+                    acquired.contains( buffer ) && !returned.contains( buffer ) );
+                returned.add( buffer );
+            }
+        }
+    }
+
+    @Test
+    public void stream() {
+        for ( int interval : INTERVALS ) {
+            for ( int mtu : MTUS ) {
+                StringBuilder line = new StringBuilder( String.format( Locale.US, "saturated, %2d ms interval, MTU %3d:", interval, mtu ) );
+                for ( float loss : LOSS_RATES ) {
+                    line.append( String.format( Locale.US, " %6.1f kB/s at %2.0f%% loss", throughput( interval, mtu, loss ), loss * 100 ) );
+                }
+                System.out.println( line );
+            }
+        }
+        for ( int interval : INTERVALS ) {
+            for ( int rate : RATES ) {
+                for ( int latency : LATENCIES ) {
+                    latency( interval, rate, latency );
+                }
+            }
+        }
+    }
+
+    /**
+     * The device always has notifications of the largest size queued.
+     *
+     * @return [kB/s] of payload delivered
+     */
+    private static double throughput( int interval, int mtu, float loss ) {
+        FakeUartPeripheral peripheral = new FakeUartPeripheral( interval, mtu, PACKETS_PER_EVENT, 0, loss, 0f, 7 );
+        Recorder recorder = new Recorder();
+        GattClient client = connect( peripheral, recorder );
+        long sequence = 0;
+        long start = peripheral.getTime();
+        for ( int e = 0; e < STREAM_EVENTS; e++ ) {
+            while ( peripheral.getPendingNotifications() < PACKETS_PER_EVENT ) {
+                peripheral.notify( message( sequence++, peripheral.getTime(), client.getMaxWriteLength() ) );
+            }
+            peripheral.runEvent();
+        }
+        double seconds = (peripheral.getTime() - start) / 1000.0;
+        expectComplete( peripheral, recorder, sequence );
+        return recorder.deliveredBytes / seconds / 1000;
+    }
+
+    /**
+     * The device queues a message at a fixed rate, each stamped with the moment it was queued.
+     */
+    private static void latency( int interval, int rate, int latency ) {
+        FakeUartPeripheral peripheral = new FakeUartPeripheral( interval, 247, PACKETS_PER_EVENT, latency, 0f, 0f, 13 );
+        Recorder recorder = new Recorder();
+        connect( peripheral, recorder );
+        double period = 1000.0 / rate;    // [ms]
+        long sequence = 0;
+        double next = peripheral.getTime();
+        for ( int e = 0; e < STREAM_EVENTS; e++ ) {
+            long eventTime = peripheral.getTime() + interval;
+            for ( ; next <= eventTime; next += period ) {
+                peripheral.notify( message( sequence++, (long) Math.ceil( next ), 20 ) );
+            }
+            peripheral.runEvent();
+        }
+        int latencyEvents = (latency + interval - 1) / interval;
+        peripheral.runEvents( latencyEvents + 1 );
+        expectComplete( peripheral, recorder, sequence );
+        System.out.println( String.format( Locale.US, "%3d messages/s, %2d ms interval, %2d ms link latency: %s", rate, interval, latency, recorder.latency ) );
+        assertTrue( "a notification waited " + recorder.latency.getMax() + " ms", recorder.latency.getMax() <= (latencyEvents + 1) * interval );
+    }
+
+    /**
+     * Every notification the device sent arrived, unless the link lost it.
+     */
+    private static void expectComplete( FakeUartPeripheral peripheral, Recorder recorder, long queued ) {
+        assertTrue( String.valueOf( recorder.failure ), recorder.failure == null );
+        assertTrue( "notifications went missing: " + queued + " queued, " + recorder.delivered + " delivered, " + peripheral.getLostNotifications() + " lost",
+            recorder.delivered + peripheral.getLostNotifications() + peripheral.getNotificationsInFlight() == peripheral.getSentNotifications()
+            && peripheral.getSentNotifications() + peripheral.getPendingNotifications() == queued );
+    }
+
+    @Test
+    public void disconnects() {
+        FakeUartPeripheral peripheral = new FakeUartPeripheral( 30, 247, PACKETS_PER_EVENT, 60, 0f, 0.002f, 11 );
+        Recorder recorder = new Recorder();
+        GattClient client = connect( peripheral, recorder );
+        CommandBufferPool pool = new CommandBufferPool();
+        long sequence = 0;
+        int reconnects = 0;
+        for ( int e = 0; e < 50 * STREAM_EVENTS; e++ ) {
+            if ( client.getState() == GattTransport.STATE_DISCONNECTED ) {
+                assertTrue( "wrote while disconnected", !client.write( NordicUart.SERVICE, NordicUart.TX, pool.acquire().append( 1 ), pool ) );
+                reconnects++;
+                client.connect( FakeUartPeripheral.ADDRESS, false );
+            }
+            if ( e % 3 == 0 ) {
+                peripheral.notify( message( sequence++, peripheral.getTime(), 20 ) );
+            }
+            if ( e % 50 == 0 ) {
+                client.write( NordicUart.SERVICE, NordicUart.TX, pool.acquire().append( new byte[300] ), pool );
+            }
+            peripheral.runEvent();
+        }
+        assertTrue( String.valueOf( recorder.failure ), recorder.failure == null );
+        assertTrue( peripheral.getDisconnects() + " disconnects, " + recorder.disconnected + " reported, " + reconnects + " reconnects",
+            peripheral.getDisconnects() > 0 && recorder.disconnected == peripheral.getDisconnects() && recorder.connected == reconnects + 1 );
+        long undelivered = peripheral.getDroppedNotifications() + peripheral.getPendingNotifications() + peripheral.getNotificationsInFlight();
+        assertTrue( "the stream did not resume after reconnecting: " + recorder.delivered + " of " + sequence + " delivered, " + undelivered + " not",
+            recorder.delivered + undelivered == sequence && recorder.delivered > sequence * 9 / 10 );
+        System.out.println( String.format( Locale.US, "%d disconnects: %d of %d notifications delivered, %d dropped with the link, %s",
+            peripheral.getDisconnects(), recorder.delivered, sequence, peripheral.getDroppedNotifications(), recorder.latency ) );
+    }
+
+    @Test
+    public void realTime() throws InterruptedException {
+        final FakeUartPeripheral peripheral = new FakeUartPeripheral( 8, 247, PACKETS_PER_EVENT, 0, 0f, 0f, 5 );
+        Recorder recorder = new Recorder();
+        recorder.realTime = true;
+        recorder.peripheral = peripheral;
+        final GattClient client = new GattClient( peripheral, recorder );
+        recorder.client = client;
+        peripheral.start();
+        client.connect( FakeUartPeripheral.ADDRESS, false );
+        long deadline = System.currentTimeMillis() + REAL_TIME_LIMIT;
+        while ( !peripheral.isNotifying() && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 1 );
+        }
+        assertTrue( "notifications were not enabled in real time", peripheral.isNotifying() );
+
+        // Commands from one thread while notifications stream from another
+        final CommandBufferPool pool = new CommandBufferPool();
+        final byte[][] commands = new byte[REAL_TIME_COMMANDS][];
+        Random random = new Random( 9 );
+        byte[] expected = new byte[0];
+        for ( int i = 0; i < commands.length; i++ ) {
+            commands[i] = new byte[1 + random.nextInt( 400 )];
+            random.nextBytes( commands[i] );
+            expected = concat( expected, commands[i] );
+        }
+        Thread writer = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                for ( byte[] command : commands ) {
+                    client.write( NordicUart.SERVICE, NordicUart.TX, pool.acquire().append( command ), pool );
+                }
+            }
+        }, "writer" );
+        writer.start();
+        long sequence = 0;
+        while ( peripheral.getReceived().length < expected.length && System.currentTimeMillis() < deadline ) {
+            if ( peripheral.getPendingNotifications() < PACKETS_PER_EVENT ) {
+                peripheral.notify( message( sequence++, System.nanoTime(), 20 ) );
+            }
+            Thread.sleep( 2 );
+        }
+        writer.join();
+        Thread.sleep( 5 * peripheral.getIntervalMillis() );
+        peripheral.stop();
+        client.close();
+
+        assertTrue( "commands written from another thread arrived garbled", Arrays.equals( peripheral.getReceived(), expected ) );
+        assertTrue( String.valueOf( recorder.failure ), recorder.failure == null );
+        assertTrue( recorder.delivered + " of " + peripheral.getSentNotifications() + " notifications delivered in real time",
+            recorder.delivered == peripheral.getSentNotifications() );
+        System.out.println( String.format( Locale.US, "real time, 8 ms interval: %d bytes of commands, notifications %s", expected.length, recorder.latency ) );
+    }
+
+    private static byte[] message( long sequence, long time, int length ) {
+        byte[] message = new byte[Math.max( 16, length )];
+        putLong( message, 0, sequence );
+        putLong( message, 8, time );
+        return message;
+    }
+
+    private static void putLong( byte[] data, int offset, long value ) {
+        for ( int i = 0; i < 8; i++ ) {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static long getLong( byte[] data, int offset ) {
+        long value = 0;
+        for ( int i = 0; i < 8; i++ ) {
+            value |= (data[offset + i] & 0xFFL) << (8 * i);
+        }
+        return value;
+    }
+
+    private static byte[] concat( byte[] a, byte[] b ) {
+        byte[] result = Arrays.copyOf( a, a.length + b.length );
+        System.arraycopy( b, 0, result, a.length, b.length );
+        return result;
+    }
+
+}
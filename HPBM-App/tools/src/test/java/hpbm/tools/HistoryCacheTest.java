@@ -0,0 +1,157 @@
+package hpbm.tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import hpbm.app.storage.HistoryCache;
+import hpbm.app.storage.HistoryPage;
+import hpbm.app.storage.SessionArchiveWriter;
+import hpbm.app.storage.SessionCompactor;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Archives a week of sessions and pans a six hour chart across it, forth and back, the way the history
+ * screen drives {@link HistoryCache}: prefetch on every pan, then read the visible pages.
+ * - With a budget holding the whole week every page must be decoded exactly once.
+ * - With a small budget the cache must stay within it and still serve the visible range from memory.
+ * - The pages must hold exactly the archived samples.
+ */
+public final class HistoryCacheTest {
+
+    private static final long DAY = 24 * 3600 * 1000;
+    private static final long START = 1500000000000L;
+    private static final int DAYS = 7;
+    private static final long SESSION_MILLIS = 16 * 3600 * 1000;    // awake hours, the nights are gaps
+    private static final long SAMPLE_MILLIS = 1000;
+    private static final long VIEWPORT = 6 * 3600 * 1000;
+    private static final long PAN = 30 * 60 * 1000;
+    private static final long SMALL_BUDGET = 1024 * 1024;     // a little more than six hours
+
+    private File directory;
+    private SessionCompactor sessions;
+    private long samples;
+
+    @Before
+    public void archiveWeek() throws IOException {
+        directory = createDirectory();
+        for ( int day = 0; day < DAYS; day++ ) {
+            long start = START + day * DAY;
+            SessionArchiveWriter writer = new SessionArchiveWriter( new File( directory, start + SessionCompactor.ARCHIVE_SUFFIX ) );
+            for ( long t = start; t < start + SESSION_MILLIS; t += SAMPLE_MILLIS ) {
+                writer.append( t, 0.1f, 0.05f, 1f - (t - start) / (float) SESSION_MILLIS, (int) ((start + SESSION_MILLIS - t) / 1000) );
+            }
+            writer.close();
+            samples += writer.getSampleCount();
+        }
+        sessions = new SessionCompactor( directory, null );
+    }
+
+    @After
+    public void deleteWeek() {
+        for ( File file : directory.listFiles() ) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Everything fits: no page may be decoded twice.
+     */
+    @Test
+    public void unbounded() throws Exception {
+        HistoryCache cache = new HistoryCache( sessions, Long.MAX_VALUE );
+        long seen = pan( cache );
+        if ( seen != samples ) fail( "pages held " + seen + " of " + samples + " samples" );
+        pan( cache );
+        awaitPrefetching( cache );
+        long decodes = cache.getMissCount() + cache.getPrefetchCount();
+        System.out.println( "unbounded: " + cache );
+        if ( cache.getEvictionCount() != 0 ) fail( "evicted without memory pressure" );
+        if ( decodes != cache.getPageCount() ) fail( decodes + " decodes for " + cache.getPageCount() + " pages" );
+
+        long bytes = cache.getByteSize();
+        cache.trimToSize( bytes / 2 );
+        if ( cache.getByteSize() > bytes / 2 || cache.getEvictionCount() == 0 ) fail( "trimming left " + cache.getByteSize() + " of " + bytes + " bytes" );
+        cache.evictAll();
+        if ( cache.getPageCount() != 0 || cache.getByteSize() != 0 ) fail( "pages left after evicting all: " + cache );
+        cache.close();
+    }
+
+    /**
+     * A small budget: bounded, and the visible pages are served from memory once loaded.
+     */
+    @Test
+    public void bounded() throws Exception {
+        HistoryCache cache = new HistoryCache( sessions, SMALL_BUDGET );
+        List<HistoryPage> pages = new ArrayList<>();
+        for ( long from = START; from + VIEWPORT <= START + DAYS * DAY; from += PAN ) {
+            cache.prefetch( from, from + VIEWPORT );
+            pages.clear();
+            cache.getPages( from, from + VIEWPORT, pages );
+            if ( cache.getByteSize() > SMALL_BUDGET ) fail( "holds " + cache.getByteSize() + " bytes" );
+            long misses = cache.getMissCount();
+            pages.clear();
+            cache.getPages( from, from + VIEWPORT, pages );
+            if ( cache.getMissCount() != misses ) fail( "visible pages decoded again" );
+        }
+        awaitPrefetching( cache );
+        System.out.println( "bounded:   " + cache );
+        if ( cache.getEvictionCount() == 0 ) fail( "never evicted with a small budget" );
+        cache.close();
+    }
+
+    /**
+     * Pans across the week and back.
+     *
+     * @return samples in the pages that were visible
+     */
+    private static long pan( HistoryCache cache ) throws IOException {
+        List<HistoryPage> pages = new ArrayList<>();
+        long end = START + DAYS * DAY;
+        Set<Long> seen = new HashSet<>();
+        long samples = 0;
+        for ( long from = START; from < end; from += PAN ) {
+            cache.prefetch( from, from + VIEWPORT );
+            pages.clear();
+            cache.getPages( from, from + VIEWPORT, pages );
+            for ( HistoryPage page : pages ) {
+                if ( seen.add( page.getStart() ) ) {
+                    samples += page.size();
+                }
+                for ( int i = 1; i < page.size(); i++ ) {
+                    if ( page.getTimestamp( i ) <= page.getTimestamp( i - 1 ) || page.getTimestamp( i ) >= page.getEnd() ) fail( "page out of order" );
+                }
+            }
+        }
+        for ( long from = end - VIEWPORT; from >= START; from -= PAN ) {
+            cache.prefetch( from, from + VIEWPORT );
+            pages.clear();
+            cache.getPages( from, from + VIEWPORT, pages );
+        }
+        return samples;
+    }
+
+    private static void awaitPrefetching( HistoryCache cache ) throws InterruptedException {
+        long count;
+        do {
+            count = cache.getPrefetchCount() + cache.getMissCount();
+            Thread.sleep( 200 );
+        } while ( count != cache.getPrefetchCount() + cache.getMissCount() );
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile( "history", "" );
+        if ( !directory.delete() || !directory.mkdir() ) throw new IOException( "Unable to create " + directory );
+        return directory;
+    }
+
+}
@@ -0,0 +1,118 @@
+package hpbm.tools;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.SampleRingBuffer;
+import hpbm.app.core.SampleWindow;
+import hpbm.app.storage.LastKnownState;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Saves the last known state of an hour of per-second samples and restores it into a fresh sample buffer
+ * the way a relaunched app does:
+ * - The restored buffer must hold exactly the samples of the last window, newest last, with their figures.
+ * - Restored in the background, a starting session must wait for the samples.
+ * - The estimator's amounts must come back with them, unless a refill set them meanwhile; a snapshot of the
+ *   previous format restores the samples only.
+ * - A full snapshot must restore at most {@link LastKnownState#MAX_SAMPLES}.
+ * - A buffer that already holds samples, a truncated and a foreign file must restore nothing.
+ */
+public final class LastKnownStateTest {
+
+    private static final long START = 1500000000000L;
+    private static final int SAMPLES = 3600;
+
+    @Test
+    public void savesAndRestores() throws IOException {
+        File file = File.createTempFile( "state", ".snapshot" );
+        SampleRingBuffer live = new SampleRingBuffer();
+        for ( int i = 0; i < SAMPLES; i++ ) {
+            long t = START + i * 1000L;
+            live.append( t, (i % 60) < 5 ? 10f + i % 7 : 0f, 0.05f, 1f - i / (float) SAMPLES, SAMPLES - i );
+        }
+        ConsumptionEstimator estimator = ConsumptionEstimator.createDefault();
+        estimator.refillTo( 750f );
+        estimator.addPulses( 1000, 60000 );
+        LastKnownState state = new LastKnownState( file, live, estimator );
+        state.save();
+        int expected = (int) (LastKnownState.DEFAULT_WINDOW / 1000) + 1;
+        System.out.println( String.format( Locale.US, "snapshot of %d samples, %d bytes", expected, file.length() ) );
+
+        SampleRingBuffer restored = new SampleRingBuffer();
+        ConsumptionEstimator seeded = ConsumptionEstimator.createDefault();
+        int count = new LastKnownState( file, restored, seeded ).restore();
+        if ( count != expected ) fail( "restored " + count + " of " + expected + " samples" );
+        if ( seeded.getInitialAmount() != estimator.getInitialAmount() || seeded.getRemainingAmount() != estimator.getRemainingAmount() ) {
+            fail( "restored " + seeded.getRemainingAmount() + " of " + seeded.getInitialAmount() + " ml instead of "
+                + estimator.getRemainingAmount() + " of " + estimator.getInitialAmount() );
+        }
+        ConsumptionEstimator refilled = ConsumptionEstimator.createDefault();
+        refilled.refillTo( 300f );
+        new LastKnownState( file, new SampleRingBuffer(), refilled ).restore();
+        if ( refilled.getRemainingAmount() != 300f ) fail( "the snapshot overrode a refill" );
+        SampleWindow liveWindow = new SampleWindow();
+        SampleWindow restoredWindow = new SampleWindow();
+        live.latest( count, liveWindow );
+        restored.latest( count, restoredWindow );
+        for ( int i = 0; i < count; i++ ) {
+            if ( liveWindow.getTimestamp( i ) != restoredWindow.getTimestamp( i ) || liveWindow.getCurrentConsumption( i ) != restoredWindow.getCurrentConsumption( i )
+                || liveWindow.getRemainingPart( i ) != restoredWindow.getRemainingPart( i ) || liveWindow.getTimeToEmpty( i ) != restoredWindow.getTimeToEmpty( i ) ) {
+                fail( "sample " + i + " differs" );
+            }
+        }
+
+        if ( new LastKnownState( file, restored ).restore() != 0 ) fail( "restored into a buffer holding samples" );
+
+        // In the background, a session starting meanwhile waits for the samples
+        SampleRingBuffer background = new SampleRingBuffer();
+        LastKnownState later = new LastKnownState( file, background );
+        later.restoreLater( null );
+        later.onSessionStarted();
+        if ( background.getWriteSequence() != expected ) fail( "session started with " + background.getWriteSequence() + " of " + expected + " samples restored" );
+        later.close();
+
+        // The previous format: the same samples behind a shorter header without the amounts
+        byte[] snapshot = Files.readAllBytes( file.toPath() );
+        byte[] previous = new byte[snapshot.length - 8];
+        System.arraycopy( "HPBMLKS1".getBytes( StandardCharsets.US_ASCII ), 0, previous, 0, 8 );
+        System.arraycopy( snapshot, 8, previous, 8, 4 );
+        System.arraycopy( snapshot, 20, previous, 12, snapshot.length - 20 );
+        Files.write( file.toPath(), previous );
+        ConsumptionEstimator unseeded = ConsumptionEstimator.createDefault();
+        count = new LastKnownState( file, new SampleRingBuffer(), unseeded ).restore();
+        if ( count != expected ) fail( "restored " + count + " of " + expected + " samples of the previous format" );
+        if ( unseeded.getInitialAmount() != ConsumptionEstimator.DEFAULT_INITIAL_AMOUNT ) fail( "seeded from a snapshot without amounts" );
+
+        // The biggest snapshot there is
+        SampleRingBuffer fast = new SampleRingBuffer();
+        for ( int i = 0; i < LastKnownState.MAX_SAMPLES * 2; i++ ) {
+            fast.append( START + i * 50L, 1f, 0.05f, 0.5f, 600 );
+        }
+        new LastKnownState( file, fast ).save();
+        count = new LastKnownState( file, new SampleRingBuffer() ).restore();
+        if ( count != LastKnownState.MAX_SAMPLES ) fail( "restored " + count + " of " + LastKnownState.MAX_SAMPLES + " samples of a full snapshot" );
+
+        RandomAccessFile truncated = new RandomAccessFile( file, "rw" );
+        truncated.setLength( truncated.length() / 2 );
+        truncated.close();
+        if ( new LastKnownState( file, new SampleRingBuffer() ).restore() != 0 ) fail( "restored a truncated snapshot" );
+        truncated = new RandomAccessFile( file, "rw" );
+        truncated.seek( 0 );
+        truncated.writeBytes( "NOTHPBM!" );
+        truncated.close();
+        if ( new LastKnownState( file, new SampleRingBuffer() ).restore() != 0 ) fail( "restored a foreign file" );
+
+        file.delete();
+        if ( new File( file.getPath() + ".tmp" ).exists() ) fail( "left the temporary file behind" );
+    }
+
+}
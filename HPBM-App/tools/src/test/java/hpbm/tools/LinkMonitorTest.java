@@ -0,0 +1,98 @@
+package hpbm.tools;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import hpbm.app.core.LinkMonitor;
+import hpbm.app.core.LinkStatistics;
+import hpbm.app.core.SampleEnvelope;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Replays a long session with known loss, duplicates, reordering, transit delay and clock drift through
+ * {@link LinkMonitor} and compares what it reports with the truth. The session is long enough for both the
+ * envelope's sequence and its uptime to wrap.
+ */
+public final class LinkMonitorTest {
+
+    private static final int MESSAGES = 20000;
+    private static final long REPORT_MILLIS = 1000;         // [ms] device time between messages
+    private static final double DRIFT = 80e-6;              // device clock runs fast by this much
+    private static final long BASE_DELAY = 20;              // [ms]
+    private static final double MEAN_EXTRA_DELAY = 15;      // [ms] exponentially distributed on top
+    private static final double LOSS_RATE = 0.02;
+    private static final double DUPLICATE_RATE = 0.01;
+    private static final double SWAP_RATE = 0.01;
+    private static final long MAX_MAPPING_ERROR = 30;       // [ms]
+    private static final double MAX_DRIFT_ERROR = 10;       // [ppm]
+
+    @Test
+    public void replaysALossySession() {
+        Random random = new Random( 42 );
+        long phoneStart = 1500000000000L;
+        long deviceStart = 3600000;                         // the device has been running for an hour
+
+        int count = 0;
+        int[] order = new int[MESSAGES * 2];
+        int lost = 0;
+        int duplicates = 0;
+        int swaps = 0;
+        for ( int i = 0; i < MESSAGES; i++ ) {
+            double event = random.nextDouble();
+            if ( event < LOSS_RATE ) {
+                lost++;
+            } else if ( event < LOSS_RATE + DUPLICATE_RATE ) {
+                order[count++] = i;
+                order[count++] = i;
+                duplicates++;
+            } else if ( event < LOSS_RATE + DUPLICATE_RATE + SWAP_RATE && i + 1 < MESSAGES ) {
+                order[count++] = i + 1;
+                order[count++] = i;
+                swaps++;
+                i++;
+            } else {
+                order[count++] = i;
+            }
+        }
+
+        LinkMonitor monitor = new LinkMonitor();
+        monitor.reset( phoneStart );
+        SampleEnvelope envelope = new SampleEnvelope();
+        long lastReceivedAt = 0;
+        long maxMappingError = 0;
+        for ( int k = 0; k < count; k++ ) {
+            int i = order[k];
+            long deviceTime = deviceStart + Math.round( i * REPORT_MILLIS * (1 + DRIFT) );
+            long sentAt = phoneStart + i * REPORT_MILLIS;
+            long receivedAt = Math.max( lastReceivedAt, sentAt + BASE_DELAY + Math.round( -MEAN_EXTRA_DELAY * Math.log( 1 - random.nextDouble() ) ) );
+            lastReceivedAt = receivedAt;
+            envelope.set( i & 0xfff, (int) (deviceTime & 0xffffff) );
+            LinkMonitor.Arrival arrival = monitor.onMessage( envelope, 1, receivedAt );
+            if ( arrival != LinkMonitor.Arrival.DUPLICATE && monitor.getSequence() != i ) {
+                fail( "Message " + i + " extended to sequence " + monitor.getSequence() );
+            }
+            if ( monitor.getDeviceTime() != deviceTime ) {
+                fail( "Message " + i + " extended to device time " + monitor.getDeviceTime() + " instead of " + deviceTime );
+            }
+            if ( i > MESSAGES / 10 ) {
+                // Mapped send time against the true one plus the smallest possible delay
+                maxMappingError = Math.max( maxMappingError, Math.abs( monitor.toPhoneTime( deviceTime ) - sentAt - BASE_DELAY ) );
+            }
+        }
+
+        LinkStatistics statistics = monitor.getStatistics();
+        System.out.println( statistics );
+        System.out.println( "Injected: lost=" + lost + " duplicates=" + duplicates + " swapped=" + swaps + ", drift " + Math.round( DRIFT * 1e6 ) + "ppm" );
+        System.out.println( "Largest mapping error after warm-up: " + maxMappingError + " ms" );
+        if ( statistics.getLostSamples() != lost ) fail( "lost samples" );
+        if ( statistics.getDuplicateSamples() != duplicates ) fail( "duplicate samples" );
+        if ( statistics.getReorderedSamples() != swaps ) fail( "reordered samples" );
+        if ( statistics.getReceivedSamples() != MESSAGES - lost ) fail( "received samples" );
+        // The device clock runs fast, so phone time advances slower than device time
+        if ( Math.abs( statistics.getDriftPpm() + DRIFT * 1e6 ) > MAX_DRIFT_ERROR ) fail( "drift" );
+        if ( maxMappingError > MAX_MAPPING_ERROR ) fail( "mapping error" );
+    }
+
+}
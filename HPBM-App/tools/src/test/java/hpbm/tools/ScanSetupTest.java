@@ -0,0 +1,221 @@
+package hpbm.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+
+import hpbm.app.core.ScanSetup;
+import hpbm.app.core.ScanSetup.Prerequisite;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link ScanSetup} through a simulated phone and user:
+ * - Nothing missing scans at once, no Bluetooth hardware fails at once, neither explains or prompts.
+ * - Everything missing is explained once and prompted once each; the scan starts with the last fix, also
+ *   when a prerequisite got fixed outside a prompt, and late answers do not scan twice.
+ * - A denied permission fails, a cancelled run never scans.
+ * Tap-to-scan latency is reported for the user's time with the prompts, against the one-step-at-a-time
+ * chain the setup replaced, and for the setup's own time when nothing is missing.
+ */
+public final class ScanSetupTest {
+
+    // [ms] of the user's time
+    private static final long READ_EXPLANATION = 3000;
+    private static final long ANSWER_DIALOG = 2000;
+    private static final long ANSWER_SETTINGS = 6000;
+    private static final int ROUNDS = 100000;
+
+    /**
+     * A phone whose prompts stack up, the user answering the topmost first, with a clock of the user's time.
+     */
+    private static final class SimulatedPhone implements ScanSetup.Environment {
+        final EnumSet<Prerequisite> missing;
+        final EnumSet<Prerequisite> refused = EnumSet.noneOf( Prerequisite.class );
+        final List<Prerequisite> open = new ArrayList<>();
+        ScanSetup setup;
+        Runnable pendingExplanation;
+        long now;
+        long scannedAt = -1;
+        int explanations;
+        int prompts;
+        int scans;
+        Prerequisite failed;
+
+        SimulatedPhone( EnumSet<Prerequisite> missing ) {
+            this.missing = missing;
+        }
+
+        @Override
+        public boolean isSatisfied( Prerequisite prerequisite ) {
+            return !missing.contains( prerequisite );
+        }
+
+        @Override
+        public void explain( EnumSet<Prerequisite> missing, Runnable proceed ) {
+            explanations++;
+            pendingExplanation = proceed;
+        }
+
+        @Override
+        public void prompt( Prerequisite prerequisite ) {
+            prompts++;
+            open.add( prerequisite );
+        }
+
+        @Override
+        public void startScan() {
+            scans++;
+            scannedAt = now;
+        }
+
+        @Override
+        public void onSetupFailed( Prerequisite prerequisite ) {
+            failed = prerequisite;
+        }
+
+        void readExplanation() {
+            now += READ_EXPLANATION;
+            Runnable proceed = pendingExplanation;
+            pendingExplanation = null;
+            proceed.run();
+        }
+
+        boolean answerTopmost() {
+            if ( open.isEmpty() ) return false;
+            Prerequisite prerequisite = open.remove( open.size() - 1 );
+            now += prerequisite == Prerequisite.LOCATION_SERVICE ? ANSWER_SETTINGS : ANSWER_DIALOG;
+            if ( !refused.contains( prerequisite ) ) {
+                missing.remove( prerequisite );
+            }
+            setup.onPromptAnswered( prerequisite );
+            return true;
+        }
+    }
+
+    private static SimulatedPhone start( EnumSet<Prerequisite> missing ) {
+        SimulatedPhone phone = new SimulatedPhone( missing );
+        phone.setup = new ScanSetup( phone );
+        phone.setup.start();
+        return phone;
+    }
+
+    @Test
+    public void nothingMissing() {
+        SimulatedPhone phone = start( EnumSet.noneOf( Prerequisite.class ) );
+        assertTrue( "nothing missing did not scan right away", phone.scans == 1 && phone.explanations == 0 && phone.prompts == 0 );
+        assertTrue( "not scanning: " + phone.setup.getState(), phone.setup.getState() == ScanSetup.State.SCANNING );
+    }
+
+    @Test
+    public void noHardware() {
+        SimulatedPhone phone = start( EnumSet.of( Prerequisite.BLUETOOTH_HARDWARE, Prerequisite.LOCATION_PERMISSION ) );
+        assertTrue( "missing hardware did not fail right away",
+            phone.failed == Prerequisite.BLUETOOTH_HARDWARE && phone.explanations == 0 && phone.prompts == 0 && phone.scans == 0 );
+    }
+
+    @Test
+    public void everythingMissing() {
+        SimulatedPhone phone = start( EnumSet.of( Prerequisite.BLUETOOTH_ENABLED, Prerequisite.LOCATION_SERVICE, Prerequisite.LOCATION_PERMISSION ) );
+        assertTrue( "prompted before the explanation was read", phone.explanations == 1 && phone.prompts == 0 );
+        phone.readExplanation();
+        assertTrue( "prompted " + phone.prompts + " times for 3 missing prerequisites", phone.prompts == 3 );
+        while ( phone.answerTopmost() ) {
+            assertTrue( "scanned with " + phone.missing + " missing", phone.scans == (phone.missing.isEmpty() ? 1 : 0) );
+        }
+        assertTrue( "everything missing did not end in one scan", phone.scans == 1 && phone.explanations == 1 && phone.failed == null );
+        long chain = chainLatency( EnumSet.of( Prerequisite.BLUETOOTH_ENABLED, Prerequisite.LOCATION_SERVICE, Prerequisite.LOCATION_PERMISSION ) );
+        System.out.println( String.format( Locale.US, "everything missing: tap to scan after %.1f s of the user's time, %.1f s with the chain",
+            phone.scannedAt / 1000.0, chain / 1000.0 ) );
+        assertTrue( "not faster than the chain", phone.scannedAt < chain );
+
+        phone = start( EnumSet.of( Prerequisite.LOCATION_PERMISSION ) );
+        phone.readExplanation();
+        phone.answerTopmost();
+        chain = chainLatency( EnumSet.of( Prerequisite.LOCATION_PERMISSION ) );
+        System.out.println( String.format( Locale.US, "permission missing: tap to scan after %.1f s of the user's time, %.1f s with the chain",
+            phone.scannedAt / 1000.0, chain / 1000.0 ) );
+        assertTrue( "the permission alone took longer than with the chain", phone.scans == 1 && phone.scannedAt <= chain );
+    }
+
+    @Test
+    public void fixedOutsideAPrompt() {
+        SimulatedPhone phone = start( EnumSet.of( Prerequisite.BLUETOOTH_ENABLED, Prerequisite.LOCATION_PERMISSION ) );
+        phone.readExplanation();
+        phone.answerTopmost();                                      // the permission
+        phone.missing.remove( Prerequisite.BLUETOOTH_ENABLED );     // from the quick settings, its prompt still open
+        phone.setup.onPromptAnswered( Prerequisite.LOCATION_PERMISSION );
+        assertTrue( "a repeated answer started the scan", phone.scans == 0 );
+        phone.answerTopmost();
+        assertTrue( "the fixed prerequisite did not start the scan", phone.scans == 1 );
+        phone.setup.onPromptAnswered( Prerequisite.BLUETOOTH_ENABLED );
+        assertTrue( "a late answer scanned again", phone.scans == 1 );
+    }
+
+    @Test
+    public void denied() {
+        SimulatedPhone phone = start( EnumSet.of( Prerequisite.BLUETOOTH_ENABLED, Prerequisite.LOCATION_PERMISSION ) );
+        phone.refused.add( Prerequisite.LOCATION_PERMISSION );
+        phone.readExplanation();
+        phone.answerTopmost();
+        assertTrue( "a denied permission did not fail", phone.failed == Prerequisite.LOCATION_PERMISSION && phone.setup.getState() == ScanSetup.State.FAILED );
+        phone.answerTopmost();
+        assertTrue( "scanned without the permission", phone.scans == 0 );
+    }
+
+    @Test
+    public void cancelled() {
+        SimulatedPhone phone = start( EnumSet.of( Prerequisite.BLUETOOTH_ENABLED ) );
+        phone.setup.cancel();
+        phone.readExplanation();
+        assertTrue( "prompted after the cancel", phone.prompts == 0 );
+
+        phone = start( EnumSet.of( Prerequisite.BLUETOOTH_ENABLED ) );
+        phone.readExplanation();
+        phone.setup.cancel();
+        phone.answerTopmost();
+        assertTrue( "a cancelled setup scanned", phone.scans == 0 && phone.setup.getState() == ScanSetup.State.CANCELLED );
+    }
+
+    /**
+     * The setup's own part of tap to scan, every prerequisite checked and the scan started.
+     */
+    @Test
+    public void ownCost() {
+        SimulatedPhone phone = new SimulatedPhone( EnumSet.noneOf( Prerequisite.class ) );
+        ScanSetup setup = new ScanSetup( phone );
+        phone.setup = setup;
+        for ( int i = 0; i < ROUNDS; i++ ) {
+            setup.start();     // warm up
+        }
+        long start = System.nanoTime();
+        for ( int i = 0; i < ROUNDS; i++ ) {
+            setup.start();
+        }
+        double nanos = (System.nanoTime() - start) / (double) ROUNDS;
+        System.out.println( String.format( Locale.US, "nothing missing: %.2f us from tap to scan, the platform's checks not included", nanos / 1000 ) );
+        assertTrue( "not every start scanned", phone.scans == 2 * ROUNDS );
+    }
+
+    /**
+     * The user's time with the chain the setup replaced: one step after the other, the location service
+     * and the permission each with their own explanation.
+     */
+    private static long chainLatency( EnumSet<Prerequisite> missing ) {
+        long time = 0;
+        if ( missing.contains( Prerequisite.BLUETOOTH_ENABLED ) ) {
+            time += ANSWER_DIALOG;
+        }
+        if ( missing.contains( Prerequisite.LOCATION_SERVICE ) ) {
+            time += READ_EXPLANATION + ANSWER_SETTINGS;
+        }
+        if ( missing.contains( Prerequisite.LOCATION_PERMISSION ) ) {
+            time += READ_EXPLANATION + ANSWER_DIALOG;
+        }
+        return time;
+    }
+
+}
@@ -0,0 +1,413 @@
+package hpbm.tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import hpbm.app.core.ConsumptionEstimator;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.LinkStatistics;
+import hpbm.app.core.PayloadDecoder;
+import hpbm.app.storage.SampleLog;
+import hpbm.app.storage.SessionArchiveWriter;
+import hpbm.app.storage.SessionCompactor;
+import hpbm.app.storage.SessionLog;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes one file of every kind the {@link SessionAnalyzer} reads, with known content, and fails when its
+ * summaries disagree with the truth:
+ * - a capture of an emulated device with receive times, dropped readings, duplicates, transit delay and
+ *   clock drift: loss, duplicates, consumption, the drink event, delays and drift,
+ * - captures without receive times, of raw pulse reports with garbage lines and of enveloped pulse batches
+ *   with lost batches: samples, consumption, malformed lines and loss,
+ * - a session archive, a sample log and a pulse log with gaps in its numbering,
+ * - a file that is not what its name says: reported as failed, the others unaffected.
+ * Every disagreement is printed before the test fails. The throughput on large captures is measured by
+ * {@link SessionAnalyzerBenchmark}.
+ */
+public final class SessionAnalyzerTest {
+
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+    private static final long PHONE_START = 1500000000000L;
+    private static final float COEFF = ConsumptionEstimator.DEFAULT_PULSE_TO_CONSUMED_COEFF;
+
+    private static final long CAPTURE_MILLIS = 40 * 60 * 1000;  // [ms] of device time
+    private static final int DROP_EVERY = 37;                   // readings
+    private static final int DUPLICATE_EVERY = 500;             // readings
+    private static final double DRIFT = 250e-6;                 // phone clock runs fast by this much
+    private static final int MIN_DELAY = 20;                    // [ms]
+    private static final int MAX_DELAY = 80;                    // [ms]
+    private static final double MAX_DRIFT_ERROR = 30;           // [ppm]
+    private static final int MAX_MAPPING_ERROR = 15;            // [ms] of the fitted clock mapping, delays are measured from it
+    private static final double MAX_CONSUMED_ERROR = 0.02;      // relative, a lost reading's consumption is estimated
+    private static final double MAX_EXACT_ERROR = 1e-4;         // relative, float sums
+
+    private static final int PULSE_SAMPLES = 4 * 3600;
+    private static final int BATCH_PERIOD = 50;                 // [ms]
+    private static final int BATCH_SAMPLES = 20;
+    private static final int BATCHES = 20000;
+    private static final int DROP_BATCH_EVERY = 50;
+    private static final int ARCHIVE_SAMPLES = 20000;
+    private static final int LOG_SAMPLES = 10000;
+    private static final int LOG_GAP_EVERY = 333;
+    private static final int LINE_CAPACITY = 1024;
+
+    private File directory;
+    private int failures;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile( "analyzer", "" );
+        if ( !directory.delete() || !directory.mkdir() ) throw new IOException( "Unable to create " + directory );
+    }
+
+    @After
+    public void deleteDirectory() {
+        for ( File file : directory.listFiles() ) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void summarizesEveryKind() throws Exception {
+        List<File> files = new ArrayList<>();
+        DeviceCapture device = writeDeviceCapture( new File( directory, "device.txt" ) );
+        files.add( device.file );
+        File pulses = new File( directory, "pulses.txt" );
+        double pulsesConsumed = writePulseCapture( pulses );
+        files.add( pulses );
+        File batches = new File( directory, "batches.txt" );
+        double[] batchesTruth = writeBatchCapture( batches );
+        files.add( batches );
+        File archive = new File( directory, PHONE_START + SessionCompactor.ARCHIVE_SUFFIX );
+        double archiveConsumed = writeArchive( archive );
+        files.add( archive );
+        File sampleLog = new File( directory, (PHONE_START + 1) + SessionCompactor.LOG_SUFFIX );
+        double sampleLogConsumed = writeSampleLog( sampleLog );
+        files.add( sampleLog );
+        File pulseLog = new File( directory, "backlog" + SessionAnalyzer.PULSE_LOG_SUFFIX );
+        double[] pulseLogTruth = writePulseLog( pulseLog );
+        files.add( pulseLog );
+        File broken = new File( directory, "broken" + SessionCompactor.ARCHIVE_SUFFIX );
+        writeAscii( broken, "not an archive\n" );
+        files.add( broken );
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        List<SessionSummary> summaries = SessionAnalyzer.analyze( files, 3, false, new PrintStream( csv, true, "US-ASCII" ) );
+        for ( SessionSummary summary : summaries ) {
+            StringBuilder row = new StringBuilder();
+            summary.appendCsv( row );
+            System.out.print( row );
+        }
+
+        SessionSummary s = summaries.get( 0 );
+        LinkStatistics link = s.getLink();
+        check( "device: samples", s.getSamples() == device.sent, s.getSamples() + " instead of " + device.sent );
+        check( "device: link", link != null, "no link statistics" );
+        if ( link != null ) {
+            check( "device: lost", link.getLostSamples() == device.dropped, link.getLostSamples() + " instead of " + device.dropped );
+            check( "device: duplicates", link.getDuplicateSamples() == device.duplicated, link.getDuplicateSamples() + " instead of " + device.duplicated );
+            check( "device: delay", link.getDelayP50() <= (MAX_DELAY - MIN_DELAY) / 2 + 10 && link.getDelayMax() <= MAX_DELAY - MIN_DELAY + MAX_MAPPING_ERROR,
+                "p50 " + link.getDelayP50() + " ms, max " + link.getDelayMax() + " ms" );
+            check( "device: drift", Math.abs( link.getDriftPpm() - DRIFT * 1e6 ) <= MAX_DRIFT_ERROR, link.getDriftPpm() + " instead of " + DRIFT * 1e6 + " ppm" );
+        }
+        checkClose( "device: consumed", s.getConsumed(), device.consumed, MAX_CONSUMED_ERROR );
+        check( "device: drink events", s.getDrinkEvents() == 1, s.getDrinkEvents() + " instead of 1" );
+        checkClose( "device: drink volume", s.getDrinkVolume(), device.consumed, MAX_CONSUMED_ERROR );
+        check( "device: malformed", s.getMalformed() == 0, s.getMalformed() + " lines" );
+        check( "device: forecast error", !Double.isNaN( s.getForecastError() ), "not evaluated" );
+
+        s = summaries.get( 1 );
+        check( "pulses: samples", s.getSamples() == PULSE_SAMPLES, s.getSamples() + " instead of " + PULSE_SAMPLES );
+        checkClose( "pulses: consumed", s.getConsumed(), pulsesConsumed, MAX_EXACT_ERROR );
+        check( "pulses: malformed", s.getMalformed() == 2, s.getMalformed() + " lines instead of 2" );
+        check( "pulses: link", s.getLink() == null, "link statistics without envelopes" );
+        check( "pulses: forecast error", !Double.isNaN( s.getForecastError() ), "not evaluated" );
+
+        s = summaries.get( 2 );
+        check( "batches: lost", s.getLink() != null && s.getLink().getLostSamples() == (long) batchesTruth[1],
+            (s.getLink() != null ? s.getLink().getLostSamples() : -1) + " instead of " + (long) batchesTruth[1] );
+        checkClose( "batches: consumed", s.getConsumed(), batchesTruth[0], MAX_EXACT_ERROR );
+        check( "batches: samples", s.getSamples() == (long) batchesTruth[2], s.getSamples() + " instead of " + (long) batchesTruth[2] );
+
+        s = summaries.get( 3 );
+        check( "archive: samples", s.getSamples() == ARCHIVE_SAMPLES, s.getSamples() + " instead of " + ARCHIVE_SAMPLES );
+        checkClose( "archive: consumed", s.getConsumed(), archiveConsumed, MAX_EXACT_ERROR );
+
+        s = summaries.get( 4 );
+        check( "sample log: samples", s.getSamples() == ARCHIVE_SAMPLES, s.getSamples() + " instead of " + ARCHIVE_SAMPLES );
+        checkClose( "sample log: consumed", s.getConsumed(), sampleLogConsumed, MAX_EXACT_ERROR );
+
+        s = summaries.get( 5 );
+        check( "pulse log: lost", s.getLink() != null && s.getLink().getLostSamples() == (long) pulseLogTruth[1],
+            (s.getLink() != null ? s.getLink().getLostSamples() : -1) + " instead of " + (long) pulseLogTruth[1] );
+        checkClose( "pulse log: consumed", s.getConsumed(), pulseLogTruth[0], MAX_EXACT_ERROR );
+
+        s = summaries.get( 6 );
+        check( "broken: failed", s.isFailed(), "not reported" );
+
+        String[] rows = csv.toString( "US-ASCII" ).split( "\n" );
+        check( "csv: rows", rows.length == files.size() + 1, rows.length + " lines for " + files.size() + " files" );
+        for ( String row : rows ) {
+            int columns = row.replaceAll( "\"[^\"]*\"", "" ).split( ",", -1 ).length;
+            check( "csv: columns", columns == SessionSummary.COLUMNS.length, columns + " in " + row );
+        }
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        SessionAnalyzer.analyze( files, 3, true, new PrintStream( json, true, "US-ASCII" ) );
+        String text = json.toString( "US-ASCII" );
+        check( "json: objects", text.startsWith( "[\n" ) && text.endsWith( "]\n" ) && text.split( "\n" ).length == files.size() + 2, text );
+        assertEquals( "disagreements with the truth", 0, failures );
+    }
+
+    private static final class DeviceCapture {
+        File file;
+        long sent;
+        long dropped;
+        long duplicated;
+        double consumed;
+    }
+
+    /**
+     * Runs an emulated device through its water and writes what a phone with a fast clock would receive.
+     */
+    private static DeviceCapture writeDeviceCapture( File file ) throws IOException {
+        final DeviceCapture capture = new DeviceCapture();
+        capture.file = file;
+        final Random random = new Random( 7 );
+        final OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+        final VirtualDevice device = new VirtualDevice();
+        try {
+            out.write( "# emulated device, receive time [ms] and line\n".getBytes( ASCII ) );
+            VirtualDevice.Output output = new VirtualDevice.Output() {
+                private long readings;
+
+                @Override
+                public boolean send( byte[] lines, int length ) {
+                    boolean reading = lines[0] == '~';
+                    if ( reading && ++readings % DROP_EVERY == 0 ) return false;
+                    long receivedAt = PHONE_START + Math.round( device.getUptime() * (1 + DRIFT) ) + MIN_DELAY + random.nextInt( MAX_DELAY - MIN_DELAY + 1 );
+                    int copies = reading && readings % DUPLICATE_EVERY == 0 ? 2 : 1;
+                    try {
+                        for ( int copy = 0; copy < copies; copy++ ) {
+                            int start = 0;
+                            for ( int i = 0; i < length; i++ ) {
+                                if ( lines[i] != '\n' ) continue;
+                                out.write( Long.toString( receivedAt ).getBytes( ASCII ) );
+                                out.write( '\t' );
+                                out.write( lines, start, i + 1 - start );
+                                start = i + 1;
+                            }
+                        }
+                    } catch ( IOException ex ) {
+                        throw new IllegalStateException( ex );
+                    }
+                    if ( copies > 1 ) capture.duplicated++;
+                    return true;
+                }
+            };
+            byte[] command = "#1,RI:0".getBytes( ASCII );
+            device.receive( command, 0, command.length );
+            for ( long t = 0; t <= CAPTURE_MILLIS; t += 100 ) {
+                device.advanceTo( t, output );
+            }
+        } finally {
+            out.close();
+        }
+        capture.sent = device.getSentReadings();
+        capture.dropped = device.getDroppedReadings();
+        capture.consumed = VirtualDevice.INITIAL_AMOUNT - Math.max( 0f, device.getCurrentWaterAmount() );
+        return capture;
+    }
+
+    /**
+     * Raw pulse reports without receive times, sips between idle periods, and two lines of garbage.
+     *
+     * @return [ml] consumed
+     */
+    private static double writePulseCapture( File file ) throws IOException {
+        RecordedSession session = RecordedSession.synthesize( 3, PULSE_SAMPLES );
+        double consumed = 0;
+        OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+        try {
+            for ( int i = 0; i < session.size(); i++ ) {
+                if ( i == PULSE_SAMPLES / 3 ) out.write( "garbage\r\n".getBytes( ASCII ) );
+                if ( i == PULSE_SAMPLES / 2 ) {
+                    byte[] line = new byte[100000];
+                    Arrays.fill( line, (byte) '9' );
+                    out.write( line );
+                    out.write( '\n' );
+                }
+                out.write( ("P:" + session.getPulses( i ) + "," + session.getInterval( i ) + "\n").getBytes( ASCII ) );
+                consumed += COEFF * session.getPulses( i );
+            }
+        } finally {
+            out.close();
+        }
+        return consumed;
+    }
+
+    /**
+     * Enveloped pulse batches without receive times, some lost.
+     *
+     * @return [ml] consumed, lost samples, samples received
+     */
+    private static double[] writeBatchCapture( File file ) throws IOException {
+        Random random = new Random( 11 );
+        double consumed = 0;
+        long lost = 0;
+        long received = 0;
+        int sequence = 0;
+        long uptime = 0;
+        byte[] line = new byte[LINE_CAPACITY];
+        OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+        try {
+            for ( int batch = 0; batch < BATCHES; batch++ ) {
+                uptime += BATCH_SAMPLES * BATCH_PERIOD;
+                boolean drop = batch % DROP_BATCH_EVERY == DROP_BATCH_EVERY / 2;     // never the last, its loss would go unseen
+                int length = writeEnvelope( line, sequence, uptime );
+                line[length++] = 'B';
+                line[length++] = PayloadDecoder.encodeSixBits( BATCH_PERIOD / 5 );
+                boolean sipping = batch % 40 < 10;
+                for ( int i = 0; i < BATCH_SAMPLES; i++ ) {
+                    int pulses = sipping ? random.nextInt( 30 ) : 0;
+                    line[length++] = PayloadDecoder.encodeSixBits( pulses );
+                    if ( !drop ) consumed += COEFF * pulses;
+                }
+                line[length++] = '\n';
+                sequence += BATCH_SAMPLES;
+                if ( drop ) {
+                    lost += BATCH_SAMPLES;
+                } else {
+                    received += BATCH_SAMPLES;
+                    out.write( line, 0, length );
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return new double[] { consumed, lost, received };
+    }
+
+    /**
+     * @return [ml] consumed
+     */
+    private static double writeArchive( File file ) throws IOException {
+        SessionArchiveWriter writer = new SessionArchiveWriter( file );
+        double consumed = 0;
+        try {
+            for ( int i = 0; i < ARCHIVE_SAMPLES; i++ ) {
+                float rate = rateAt( i );
+                writer.append( PHONE_START + i * 1000L, rate, 1f, 1f - i / (float) ARCHIVE_SAMPLES, -1 );
+                consumed += rate;
+            }
+        } catch ( IOException ex ) {
+            writer.abort();
+            throw ex;
+        }
+        writer.close();
+        return consumed;
+    }
+
+    /**
+     * @return [ml] consumed
+     */
+    private static double writeSampleLog( File file ) throws IOException {
+        SampleLog log = SampleLog.create( file );
+        HPBMDataBatch batch = new HPBMDataBatch( 100 );
+        double consumed = 0;
+        try {
+            for ( int i = 0; i < ARCHIVE_SAMPLES; i++ ) {
+                float rate = rateAt( i );
+                batch.add( PHONE_START + i * 1000L, rate, 1f, 1f, -1 );
+                consumed += rate;
+                if ( batch.size() == batch.getCapacity() ) {
+                    log.append( batch );
+                    batch.clear();
+                }
+            }
+            log.append( batch );
+        } finally {
+            log.close();
+        }
+        return consumed;
+    }
+
+    /**
+     * @return [ml] consumed, lost samples
+     */
+    private static double[] writePulseLog( File file ) throws IOException {
+        SessionLog log = SessionLog.open( file );
+        double consumed = 0;
+        long lost = 0;
+        try {
+            int sequence = 0;
+            for ( int i = 0; i < LOG_SAMPLES; i++ ) {
+                if ( i % LOG_GAP_EVERY == LOG_GAP_EVERY - 1 ) {
+                    sequence += 3;
+                    lost += 3;
+                }
+                int pulses = (i / 30) % 4 == 0 ? 25 : 0;
+                log.append( sequence++, PHONE_START + i * 1000L, pulses, 1000 );
+                consumed += COEFF * pulses;
+            }
+        } finally {
+            log.close();
+        }
+        return new double[] { consumed, lost };
+    }
+
+    private static float rateAt( int i ) {
+        return (i / 20) % 30 == 0 ? 3f + (i % 7) * 0.25f : 0f;
+    }
+
+    /**
+     * "~&lt;sequence&gt;&lt;uptime&gt;" as the device writes it, see {@link VirtualDevice}.
+     */
+    private static int writeEnvelope( byte[] out, int sequence, long uptime ) {
+        out[0] = '~';
+        out[1] = PayloadDecoder.encodeSixBits( (sequence >> 6) & 0x3f );
+        out[2] = PayloadDecoder.encodeSixBits( sequence & 0x3f );
+        for ( int i = 0; i < 4; i++ ) {
+            out[3 + i] = PayloadDecoder.encodeSixBits( (int) ((uptime >> (6 * (3 - i))) & 0x3f) );
+        }
+        return 7;
+    }
+
+    private static void writeAscii( File file, String text ) throws IOException {
+        OutputStream out = new FileOutputStream( file );
+        try {
+            out.write( text.getBytes( ASCII ) );
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkClose( String what, double actual, double expected, double maxRelativeError ) {
+        check( what, Math.abs( actual - expected ) <= maxRelativeError * Math.abs( expected ),
+            String.format( Locale.US, "%.3f instead of %.3f", actual, expected ) );
+    }
+
+    private void check( String what, boolean ok, String detail ) {
+        if ( ok ) return;
+        failures++;
+        System.out.println( "FAIL " + what + ": " + detail );
+    }
+
+}
@@ -0,0 +1,324 @@
+package hpbm.tools;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import hpbm.app.core.CommandBuffer;
+import hpbm.app.core.CommandBufferPool;
+import hpbm.app.core.HPBMDataBatch;
+import hpbm.app.core.IngestionThread;
+import hpbm.app.core.MessageInterpreter;
+import hpbm.app.core.MessageInterpreterImpl;
+import hpbm.app.core.PayloadDecoder;
+import hpbm.app.core.SampleEnvelope;
+import hpbm.app.core.SocketLink;
+import hpbm.app.core.SpscPayloadRing;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the {@link DeviceEmulator} and the app's {@link SocketLink} against each other:
+ * - A {@link VirtualDevice} reports the readings HPBM-DeviceSim computes and answers commands like the firmware.
+ * - Many devices stream through socket links into ingestion threads and the app's decoding: every reading
+ *   arrives once and in order, refill commands are acknowledged and take effect.
+ * - A client slower than its device pauses reading instead of dropping lines; the device is throttled
+ *   by TCP and drops readings itself, but every byte it sent arrives.
+ */
+public final class SocketLinkTest {
+
+    private static final Charset ASCII = Charset.forName( "US-ASCII" );
+    private static final int SOAK_DEVICES = 32;
+    private static final double SOAK_SPEEDUP = 100;
+    private static final long SOAK_MILLIS = 3000;           // [ms] real time
+    private static final int MIN_SOAK_READINGS = 250;       // per device, of the 300 taken while connected
+    private static final double SLOW_SPEEDUP = 20000;
+    private static final long SLOW_MILLIS = 2000;           // [ms] real time
+    private static final long SLOW_HANDLER_NANOS = 200000;  // per payload
+    private static final int SLOW_RING_SLOTS = 16;
+    private static final long DRAIN_IDLE_MILLIS = 300;      // [ms] without a line once the device stopped
+    private static final long CONNECT_LIMIT = 5000;         // [ms]
+    private static final int REFILL_COMMAND_ID = 1;
+    private static final float REFILL_AMOUNT = 500f;        // [ml]
+    private static final int ENVELOPE_SEQUENCE_MASK = 0xfff;
+
+    /**
+     * Client side of one device: a socket link feeding an ingestion thread, which decodes like the app.
+     */
+    private static final class Receiver implements SocketLink.Listener, IngestionThread.PayloadHandler {
+        final MessageInterpreter interpreter = new MessageInterpreterImpl();
+        final CommandBufferPool pool = new CommandBufferPool();
+        final IngestionThread ingestion;
+        final SocketLink link;
+        final SampleEnvelope envelope = new SampleEnvelope();
+        final HPBMDataBatch batch = new HPBMDataBatch( 1 );
+        volatile boolean slow;
+        volatile boolean connected;
+        volatile boolean disconnected;
+        volatile IOException failure;
+        volatile long lastLineAt;               // [ms]
+        // Ingestion thread only
+        int lastSequence = -1;
+        long envelopes;
+        long readings;
+        long undecodable;
+        long gaps;
+        long outOfOrder;
+        long acks;
+        long nacks;
+        float lastRemainingPart = Float.NaN;
+
+        Receiver( String name, int port, SpscPayloadRing ring ) {
+            ingestion = new IngestionThread( name + "Ingestion", this, ring );
+            link = new SocketLink( name, "127.0.0.1", port, pool, this );
+        }
+
+        void connect() {
+            ingestion.start();
+            link.connect();
+        }
+
+        void close() {
+            link.close();
+            ingestion.stop();
+        }
+
+        boolean send( int id, String command ) {
+            CommandBuffer buffer = pool.acquire();
+            interpreter.writeCommandId( id, buffer );
+            buffer.append( (command + "\n").getBytes( ASCII ) );
+            return link.send( buffer );
+        }
+
+        @Override
+        public void onConnected() {
+            connected = true;
+        }
+
+        @Override
+        public boolean onLine( byte[] data, int offset, int length, long receivedAt ) {
+            lastLineAt = System.currentTimeMillis();
+            if ( ingestion.isFull() ) return false;
+            ingestion.offer( 0, data, offset, length, receivedAt );
+            return true;
+        }
+
+        @Override
+        public void onDisconnected( IOException cause ) {
+            failure = cause;
+            disconnected = true;
+        }
+
+        @Override
+        public void onPayload( int channel, byte[] payload, int length, long timestamp ) {
+            if ( slow ) {
+                LockSupport.parkNanos( SLOW_HANDLER_NANOS );
+            }
+            if ( interpreter.readCommandAck( payload, length ) == REFILL_COMMAND_ID ) {
+                acks++;
+            } else if ( interpreter.readCommandNack( payload, length ) >= 0 ) {
+                nacks++;
+            } else {
+                int envelopeLength = interpreter.readEnvelope( payload, length, envelope );
+                if ( envelopeLength > 0 ) {
+                    envelopes++;
+                    int sequence = envelope.getSequence();
+                    if ( lastSequence >= 0 ) {
+                        int step = (sequence - lastSequence) & ENVELOPE_SEQUENCE_MASK;
+                        if ( step == 0 || step > ENVELOPE_SEQUENCE_MASK / 2 ) {
+                            outOfOrder++;
+                        } else {
+                            gaps += step - 1;
+                        }
+                    }
+                    lastSequence = sequence;
+                    length -= envelopeLength;
+                    System.arraycopy( payload, envelopeLength, payload, 0, length );
+                }
+                batch.clear();
+                if ( interpreter.readMessage( payload, length, timestamp, batch ) ) {
+                    readings++;
+                    lastRemainingPart = batch.getRemainingPart( 0 );
+                } else {
+                    undecodable++;
+                }
+            }
+        }
+    }
+
+    /**
+     * The readings of HPBM-DeviceSim, worked out from its source, and the firmware's command handling.
+     */
+    @Test
+    public void deviceMath() {
+        final List<String> lines = new ArrayList<>();
+        VirtualDevice.Output output = new VirtualDevice.Output() {
+            @Override
+            public boolean send( byte[] data, int length ) {
+                for ( String line : new String( data, 0, length, ASCII ).split( "\n" ) ) {
+                    lines.add( line );
+                }
+                return true;
+            }
+        };
+        VirtualDevice device = new VirtualDevice();
+        device.advanceTo( 2000, output );
+        expectLines( lines, "~0000?X2.00,2.00,1.00,499", "~0100O@4.00,3.00,0.99,331" );
+        device.advanceTo( 10000, output );
+        assertTrue( "reading at 10 s: " + lines.get( lines.size() - 1 ), reading( lines.get( lines.size() - 1 ) ).equals( "4.00,3.80,0.96,253" ) );
+        device.advanceTo( 255000, output );
+        assertTrue( "reading at 255 s: " + lines.get( lines.size() - 1 ), reading( lines.get( lines.size() - 1 ) ).equals( "4.00,3.91,0.00,1" ) );
+        lines.clear();
+        device.advanceTo( 300000, output );
+        assertTrue( "readings while emptying: " + lines, reading( lines.get( 0 ) ).equals( "2.00,3.90,0.00,0" ) && reading( lines.get( 1 ) ).equals( "0.00,3.89,0.00,0" )
+            && reading( lines.get( lines.size() - 1 ) ).equals( "0.00,3.33,0.00,0" ) );
+
+        lines.clear();
+        receive( device, "#5,RT:500" );
+        receive( device, "#6,MD:R" );
+        device.advanceTo( 301000, output );
+        // Refilled right before the reading, the average divides by zero seconds
+        expectLines( lines, "A:5", "N:6", lines.get( 2 ) );
+        assertTrue( "reading after the refill: " + lines.get( 2 ), reading( lines.get( 2 ) ).equals( "0.00,nan,1.00,0" ) );
+        lines.clear();
+        receive( device, "#5,RT:500" );     // resent, acknowledged but not executed again
+        device.advanceTo( 302000, output );
+        expectLines( lines, "A:5", lines.get( 1 ) );
+        assertTrue( "reading after the resend: " + lines.get( 1 ), reading( lines.get( 1 ) ).equals( "4.00,4.00,0.99,124" ) );
+        System.out.println( "device math: readings and commands as expected" );
+    }
+
+    /**
+     * Many devices at once, each through its own link and ingestion thread.
+     */
+    @Test
+    public void soak() throws Exception {
+        DeviceEmulator emulator = new DeviceEmulator( SOAK_DEVICES, 0, SOAK_SPEEDUP );
+        emulator.start();
+        Receiver[] receivers = new Receiver[SOAK_DEVICES];
+        for ( int i = 0; i < SOAK_DEVICES; i++ ) {
+            receivers[i] = new Receiver( "Soak" + i, emulator.getPort( i ), new SpscPayloadRing( IngestionThread.DEFAULT_SLOTS, IngestionThread.DEFAULT_MAX_PAYLOAD_SIZE ) );
+            receivers[i].connect();
+        }
+        awaitConnected( receivers );
+        long start = System.currentTimeMillis();
+        for ( Receiver receiver : receivers ) {
+            assertTrue( "sending the refill failed", receiver.send( REFILL_COMMAND_ID, "RT:" + (int) REFILL_AMOUNT ) );
+        }
+        Thread.sleep( SOAK_MILLIS );
+        emulator.pause();
+        awaitDrained( receivers );
+        long millis = System.currentTimeMillis() - start;
+        long lines = 0;
+        long bytes = 0;
+        long readings = 0;
+        for ( Receiver receiver : receivers ) {
+            receiver.close();
+            lines += receiver.link.getReceivedLines();
+            bytes += receiver.link.getReceivedBytes();
+            readings += receiver.readings;
+        }
+        emulator.stop();
+        for ( int i = 0; i < SOAK_DEVICES; i++ ) {
+            Receiver receiver = receivers[i];
+            String device = "device " + i + ": ";
+            assertTrue( device + receiver.failure, receiver.failure == null );
+            assertTrue( device + "ingestion dropped or failed payloads",
+                receiver.ingestion.getDroppedPayloads() == 0 && receiver.ingestion.getFailedPayloads() == 0 );
+            assertTrue( device + "the device dropped readings or bytes went missing",
+                emulator.getDevice( i ).getDroppedReadings() == 0 && receiver.link.getReceivedBytes() == emulator.getSentBytes( i ) );
+            assertTrue( device + receiver.gaps + " readings missing, " + receiver.outOfOrder + " out of order",
+                receiver.gaps == 0 && receiver.outOfOrder == 0 );
+            assertTrue( device + receiver.readings + " readings for " + receiver.envelopes + " envelopes",
+                receiver.readings >= MIN_SOAK_READINGS && receiver.envelopes == receiver.readings + receiver.undecodable );
+            assertTrue( device + receiver.acks + " acknowledgements, " + receiver.nacks + " rejections, " + receiver.undecodable + " undecodable readings",
+                receiver.acks == 1 && receiver.nacks == 0 && receiver.undecodable == 1 );
+            float expected = emulator.getDevice( i ).getCurrentWaterAmount() / REFILL_AMOUNT;
+            assertTrue( device + "remaining part " + receiver.lastRemainingPart + " instead of " + expected,
+                Math.abs( receiver.lastRemainingPart - expected ) < 0.01f );
+        }
+        System.out.println( String.format( Locale.US, "soak: %d devices at %.0fx, %d readings in %d lines, %.0f lines/s, %.0f kB/s",
+            SOAK_DEVICES, SOAK_SPEEDUP, readings, lines, lines * 1000.0 / millis, bytes / (double) millis ) );
+    }
+
+    /**
+     * One device far faster than its client can decode.
+     */
+    @Test
+    public void backpressure() throws Exception {
+        DeviceEmulator emulator = new DeviceEmulator( 1, 0, SLOW_SPEEDUP );
+        emulator.start();
+        Receiver receiver = new Receiver( "Slow", emulator.getPort( 0 ), new SpscPayloadRing( SLOW_RING_SLOTS, IngestionThread.DEFAULT_MAX_PAYLOAD_SIZE ) );
+        receiver.slow = true;
+        receiver.connect();
+        awaitConnected( receiver );
+        Thread.sleep( SLOW_MILLIS );
+        emulator.pause();
+        receiver.slow = false;
+        awaitDrained( receiver );
+        receiver.close();
+        emulator.stop();
+
+        VirtualDevice device = emulator.getDevice( 0 );
+        assertTrue( String.valueOf( receiver.failure ), receiver.failure == null );
+        assertTrue( "ingestion dropped " + receiver.ingestion.getDroppedPayloads() + " payloads", receiver.ingestion.getDroppedPayloads() == 0 );
+        assertTrue( "reading never paused", receiver.link.getStalls() > 0 );
+        assertTrue( "the device was not throttled", device.getDroppedReadings() > 0 );
+        // The drops outlast the envelope's sequence numbers, the bytes tell whether anything got lost after the device
+        assertTrue( receiver.link.getReceivedBytes() + " bytes received of " + emulator.getSentBytes( 0 ) + " sent",
+            receiver.link.getReceivedBytes() == emulator.getSentBytes( 0 ) );
+        assertTrue( receiver.readings + " readings for " + receiver.envelopes + " envelopes",
+            receiver.undecodable == 0 && receiver.envelopes == receiver.readings );
+        System.out.println( String.format( Locale.US, "backpressure: %d readings received, reading paused %d times, the device dropped %d readings",
+            receiver.readings, receiver.link.getStalls(), device.getDroppedReadings() ) );
+    }
+
+    private static void receive( VirtualDevice device, String command ) {
+        byte[] line = command.getBytes( ASCII );
+        device.receive( line, 0, line.length );
+    }
+
+    private static void awaitConnected( Receiver... receivers ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_LIMIT;
+        for ( Receiver receiver : receivers ) {
+            while ( !receiver.connected && !receiver.disconnected && System.currentTimeMillis() < deadline ) {
+                Thread.sleep( 1 );
+            }
+            assertTrue( "not connected: " + receiver.failure, receiver.connected );
+        }
+    }
+
+    /**
+     * Waits until no line arrived for a while, closing the receiver then waits for its ingestion.
+     */
+    private static void awaitDrained( Receiver... receivers ) throws InterruptedException {
+        for ( Receiver receiver : receivers ) {
+            // Refused lines are offered again every few milliseconds, so a stalled link is not idle
+            while ( System.currentTimeMillis() - receiver.lastLineAt < DRAIN_IDLE_MILLIS ) {
+                Thread.sleep( 10 );
+            }
+        }
+    }
+
+    /**
+     * @return the derived message of a reading line, without its envelope
+     */
+    private static String reading( String line ) {
+        return line.substring( PayloadDecoder.ENVELOPE_LENGTH );
+    }
+
+    private static void expectLines( List<String> lines, String... expected ) {
+        boolean equal = lines.size() == expected.length;
+        for ( int i = 0; equal && i < expected.length; i++ ) {
+            equal = lines.get( i ).equals( expected[i] );
+        }
+        assertTrue( "lines " + lines + " instead of " + Arrays.toString( expected ), equal );
+    }
+
+}
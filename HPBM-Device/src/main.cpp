@@ -12,9 +12,28 @@ void processData();
 void takeReading();
 float calculateAverageConsumptionRate();
 void sendToBLE( float ccr, float acr, float rp, int tte );
-void sendToStream( Stream& s, float ccr, float acr, float rp, int tte );
-char* readFromBLE();
+int formatDerived( char* message, int room, float ccr, float acr, float rp, int tte );
+int formatFloat( char* out, int offset, float value, int decimals );
+int takePulseCount();
+void sendPulsesToBLE( int pulses, long elapsedMillis );
+bool isReportDue( bool consuming );
+void printEnvelope( int samples );
+char sixBits( unsigned int value );
+void sampleBatch();
+void sendBatchToBLE();
+void pollUserCommand();
+int readFromBLE();
 void parseUserCommand( char* command );
+bool executeUserCommand( char* command );
+void sendAckToBLE( long commandId, bool accepted );
+bool wasExecuted( long commandId );
+void rememberExecuted( long commandId );
+void closeBacklogBucket();
+void startSync( long fromSequence );
+void acknowledgeSync( long sequence );
+void continueSync();
+void sendSyncHeaderToBLE();
+void sendSyncChunkToBLE();
 void stopTimer();
 void startTimer();
 
@@ -26,6 +45,27 @@ void startTimer();
 #define INITIAL_WATER_AMOUNT        200         // [ml]
 #define PULSE_TO_CONSUMED_COEFF     0.135       // [ml]  Original value: 0.2281
 #define LED_PIN                     12
+#define REPORT_MODE_DERIVED         0           // "<ccr>,<acr>,<rp>,<tte>" computed on the device
+#define REPORT_MODE_RAW_PULSES      1           // "P:<pulses>,<elapsed ms>" - the app does the math
+#define REPORT_MODE_BATCHED_PULSES  2           // "B<period><sample>..." - one character per sample, see sampleBatch()
+#define BATCH_PERIOD_MILLIS         90          // [ms] ~11 Hz, a batch of BATCH_SIZE samples spans ~1 s, one notification per second as in the other modes
+#define BATCH_SIZE                  11          // samples per notification, so that envelope and batch fit into one 20 byte notification
+#define BATCH_SAMPLE_MAX            63          // largest pulse count a single sample character can hold
+#define BACKLOG_SIZE                256         // buckets kept for the app to fetch after a reconnect, ~2 hours
+#define BACKLOG_PERIOD_MILLIS       30000       // [ms]
+#define BACKLOG_SAMPLE_MAX          4095        // largest pulse count a bucket can report, two 6 bit characters
+#define SYNC_WINDOW_SAMPLES         24          // samples sent ahead of the app's acknowledgement
+#define SYNC_RETRANSMIT_MILLIS      2000        // [ms] go back to the last acknowledged sample after this long without progress
+#define SYNC_MAX_RETRANSMITS        5
+#define NOTIFICATION_SIZE           20
+#define ENVELOPE_LENGTH             7           // '~', sequence and uptime
+#define ENVELOPE_SEQUENCE_MASK      0xfff       // two 6 bit characters
+#define ENVELOPE_TIME_MASK          0xffffffUL  // [ms] four 6 bit characters, wraps after 4.6 hours
+#define SIX_BIT_ZERO                '0'         // character of the 6 bit value 0, see sixBits()
+#define SIX_BIT_ESCAPE              '\\'        // skipped, AT+BLEUARTTX takes it for the start of an escape sequence
+#define RECENT_COMMANDS             32          // executed command ids remembered, twice the commands the app keeps in flight
+#define RECENT_COMMAND_SECONDS      15          // [s] resends come within the app's attempts x acknowledgement timeout, 7.5 s
+#define RECEIVED_SIZE               192         // commands taken from one poll, '\0' separated, room for the app's 16 in flight
 
 Adafruit_BluefruitLE_SPI ble(BLUEFRUIT_SPI_CS, BLUEFRUIT_SPI_IRQ, BLUEFRUIT_SPI_RST);
 
@@ -40,6 +80,32 @@ float remainingPart;                        // []
 int timeToEmpty;                            // [s]
 float currentConsumptionRate;               // [ml]
 volatile int pulseCounter;
+int reportMode;
+unsigned long lastSampleMillis;             // [ms]
+long pulsesSinceModeChange;                 // pulses reported raw, not yet accounted in currentWaterAmount
+char batch[BATCH_SIZE + 3];                 // 'B', period, samples, '\0'
+int batchSize;
+int batchCarry;                             // pulses that did not fit into the previous sample character
+int batchPulses;                            // pulses in the batch being filled
+long reportIntervalMillis = 0;              // [ms] idle samples are reported this often, 0 reports every sample
+int unreportedPulses;                       // raw pulses of idle samples held back, see isReportDue()
+long skippedBatchMillis;                    // [ms] idle batches held back
+bool wasConsuming;
+unsigned int sampleSequence;                // samples reported since power-up, see printEnvelope()
+unsigned int recentCommandIds[RECENT_COMMANDS];     // correlation ids of recently executed commands, see parseUserCommand()
+unsigned int recentCommandSeconds[RECENT_COMMANDS]; // [s] when they were executed, 16 bits of millis() / 1000
+int recentCommandNext;                      // slot the next executed id goes into, the oldest one
+char received[RECEIVED_SIZE];               // commands of the last poll, see readFromBLE()
+volatile unsigned int backlogPulses;        // pulses of the open backlog bucket, counted independently of the report mode
+unsigned int backlog[BACKLOG_SIZE];         // ring of closed buckets, bucket n is at n % BACKLOG_SIZE
+long backlogCount;                          // buckets closed since power-up, i.e. the sequence of the open bucket
+bool syncing;
+long syncNext;                              // next bucket to send
+long syncAcked;                             // last bucket the app acknowledged
+long syncFirst;
+long syncLast;
+unsigned long syncProgressMillis;           // [ms]
+int syncRetransmits;
 
 void setup() {
     Serial.begin(115200);
@@ -52,8 +118,10 @@ void setup() {
     DDRB  &= 0xff;          // configure port B pins for input
     PORTB |= 0xff;          // enable pull-up resistors on all port B pins
 
+    reportMode = REPORT_MODE_DERIVED;
     refillTo( INITIAL_WATER_AMOUNT );
     startTimer();
+    timer.every(BACKLOG_PERIOD_MILLIS, closeBacklogBucket);
 
     /* Initialise the module */
     Serial.print(F("Initialising the Bluefruit LE module: "));
@@ -95,10 +163,12 @@ void setup() {
 
 void loop() {
     timer.update();
+    continueSync();
 }
 
 ISR( PCINT0_vect ) {
     pulseCounter++;
+    backlogPulses++;
 }
 
 void refillTo( float waterAmount ) {
@@ -107,6 +177,7 @@ void refillTo( float waterAmount ) {
     Serial.println(" ml");
     initialWaterAmount = waterAmount;
     currentWaterAmount = initialWaterAmount;
+    pulsesSinceModeChange = 0;
     startTime = millis();
 }
 
@@ -115,22 +186,109 @@ void stopTimer() {
 }
 
 void startTimer() {
-    timerAction = timer.every(SAMPLE_MILLIS, processData);        
+    lastSampleMillis = millis();
+    unreportedPulses = 0;
+    skippedBatchMillis = 0;
+    if ( reportMode == REPORT_MODE_BATCHED_PULSES ) {
+        batchSize = 0;
+        batchCarry = 0;
+        batchPulses = 0;
+        timerAction = timer.every(BATCH_PERIOD_MILLIS, sampleBatch);
+    } else {
+        timerAction = timer.every(SAMPLE_MILLIS, processData);
+    }
 }
 
 void processData() {
-    takeReading();
-    sendToBLE( currentConsumptionRate, averageConsumptionRate, remainingPart, timeToEmpty );
-    char* userCommand = readFromBLE();
-    if ( userCommand != NULL ) {
+    unsigned long now = millis();
+    if ( reportMode == REPORT_MODE_RAW_PULSES ) {
+        // No float math here, the app derives the consumption figures from the raw counts
+        int pulses = takePulseCount();
+        pulsesSinceModeChange += pulses;
+        unreportedPulses += pulses;
+        if ( isReportDue( pulses > 0 ) ) {
+            sendPulsesToBLE( unreportedPulses, now - lastSampleMillis );
+            unreportedPulses = 0;
+            lastSampleMillis = now;
+        }
+    } else {
+        takeReading();
+        if ( isReportDue( consumed > 0 ) ) {
+            sendToBLE( currentConsumptionRate, averageConsumptionRate, remainingPart, timeToEmpty );
+            lastSampleMillis = now;
+        }
+    }
+    pollUserCommand();
+}
+
+bool isReportDue( bool consuming ) {
+    // Consumption, and the first idle sample after it, is reported right away. Other idle samples only
+    // once the report interval the app asked for has passed, commands are still polled every sample.
+    bool due = consuming || wasConsuming || millis() - lastSampleMillis >= (unsigned long) reportIntervalMillis;
+    wasConsuming = consuming;
+    return due;
+}
+
+void pollUserCommand() {
+    int count = readFromBLE();
+    char* userCommand = received;
+    for ( int i = 0; i < count; i++ ) {
         parseUserCommand( userCommand );
+        userCommand += strlen( userCommand ) + 1;
     }
 }
 
+void sampleBatch() {
+    // Each sample is a single 6 bit character of the pulse count, see sixBits(). Counts above
+    // BATCH_SAMPLE_MAX are carried over into the next sample, so no pulse is ever lost.
+    int pulses = takePulseCount();
+    pulsesSinceModeChange += pulses;
+    pulses += batchCarry;
+    int value = pulses > BATCH_SAMPLE_MAX ? BATCH_SAMPLE_MAX : pulses;
+    batchCarry = pulses - value;
+    batch[2 + batchSize++] = sixBits( value );
+    batchPulses += value;
+    if ( batchSize == BATCH_SIZE ) {
+        if ( isReportDue( batchPulses > 0 ) ) {
+            if ( skippedBatchMillis > 0 ) {
+                // Account for the time covered by the idle batches held back, the app's rates depend on it
+                sendPulsesToBLE( 0, skippedBatchMillis );
+                skippedBatchMillis = 0;
+            }
+            sendBatchToBLE();
+            lastSampleMillis = millis();
+        } else {
+            skippedBatchMillis += (long) BATCH_SIZE * BATCH_PERIOD_MILLIS;
+        }
+        batchSize = 0;
+        batchPulses = 0;
+        pollUserCommand();
+    }
+}
+
+void sendBatchToBLE() {
+    batch[0] = 'B';
+    batch[1] = sixBits( BATCH_PERIOD_MILLIS / 5 );
+    batch[2 + batchSize] = '\0';
+    digitalWrite(LED_PIN, HIGH);
+    ble.print("AT+BLEUARTTX=");
+    printEnvelope( batchSize );
+    ble.println(batch);
+    ble.waitForOK();
+    digitalWrite(LED_PIN, LOW);
+}
+
+int takePulseCount() {
+    cli();
+    int pulses = pulseCounter;
+    pulseCounter = 0;
+    sei();
+    return pulses;
+}
+
 void takeReading() {
     // Original formula: consumed rate [Litres/hour] = (pulses per second x 60) / 73
-    consumed = PULSE_TO_CONSUMED_COEFF * pulseCounter; // [ml]
-    pulseCounter = 0;
+    consumed = PULSE_TO_CONSUMED_COEFF * takePulseCount(); // [ml]
     currentWaterAmount -= consumed; // [ml]
 
     if (currentWaterAmount <= 0.0) {
@@ -156,45 +314,313 @@ float calculateAverageConsumptionRate() {  // [ml/s]
 }
 
 void sendToBLE( float ccr, float acr, float rp, int tte ) {
+    // Envelope and derived message in one notification, one wakeup of the phone per sample. The message
+    // gets the room the envelope leaves, see formatDerived().
+    char message[40];
+    formatDerived( message, NOTIFICATION_SIZE - ENVELOPE_LENGTH, ccr, acr, rp, tte );
+    digitalWrite(LED_PIN, HIGH);
+    ble.print("AT+BLEUARTTX=");
+    printEnvelope( 1 );
+    ble.println(message);
+    ble.waitForOK();
+    digitalWrite(LED_PIN, LOW);
+}
+
+int formatDerived( char* message, int room, float ccr, float acr, float rp, int tte ) {
+    // "<ccr>,<acr>,<rp>,<tte>" with up to two decimals, see formatFloat(). While that does not fit into room
+    // characters the rates lose a decimal, then the remaining part: "4.05,3.91,.96,253" goes out as
+    // "4,4,.96,253", "0,.31,.96,2530" as "0,.3,.96,2530".
+    int length = 0;
+    for ( int decimals = 2; decimals >= -1; decimals-- ) {
+        int rateDecimals = decimals < 0 ? 0 : decimals;
+        length = formatFloat( message, 0, ccr, rateDecimals );
+        message[length++] = ',';
+        length = formatFloat( message, length, acr, rateDecimals );
+        message[length++] = ',';
+        length = formatFloat( message, length, rp, decimals < 0 ? 1 : 2 );
+        message[length++] = ',';
+        itoa( tte, message + length, 10 );
+        length += strlen( message + length );
+        if ( length <= room ) break;
+    }
+    return length;
+}
+
+int formatFloat( char* out, int offset, float value, int decimals ) {
+    // As Print::print(float) but without the zeros that carry nothing: "0.50" goes out as ".5", "1.00" as "1"
+    char number[12];
+    if ( isnan(value) ) {
+        strcpy( number, "nan" );
+    } else if ( isinf(value) ) {
+        strcpy( number, "inf" );
+    } else if ( value > 99999 || value < -99999 ) {
+        strcpy( number, "ovf" );
+    } else {
+        dtostrf( value, 1, decimals, number );
+        if ( strchr( number, '.' ) != NULL ) {
+            int end = strlen( number );
+            while ( number[end - 1] == '0' ) end--;
+            if ( number[end - 1] == '.' ) end--;
+            number[end] = '\0';
+        }
+    }
+    char* digits = number;
+    if ( digits[0] == '-' ) {
+        out[offset++] = '-';
+        digits++;
+    }
+    if ( digits[0] == '0' && digits[1] == '.' ) {
+        digits++;
+    }
+    strcpy( out + offset, digits );
+    return offset + strlen( digits );
+}
+
+void sendPulsesToBLE( int pulses, long elapsedMillis ) {
     digitalWrite(LED_PIN, HIGH);
     ble.print("AT+BLEUARTTX=");
-    sendToStream(ble, ccr, acr, rp, tte);
+    printEnvelope( 1 );
+    ble.print("P:");
+    ble.print(pulses);
+    ble.print(",");
+    ble.println(elapsedMillis);
     ble.waitForOK();
     digitalWrite(LED_PIN, LOW);
 }
 
+void printEnvelope( int samples ) {
+    // "~<sequence><uptime>" in front of every live message, so the app can tell lost, repeated and
+    // reordered notifications apart and map device time to phone time. Each field is sent as 6 bit
+    // characters, see sixBits(), high bits first: the sequence of the message's first sample in two
+    // characters, millis() in four. Both wrap, the app extends them.
+    unsigned int sequence = sampleSequence & ENVELOPE_SEQUENCE_MASK;
+    unsigned long uptime = millis() & ENVELOPE_TIME_MASK;
+    char envelope[8];
+    envelope[0] = '~';
+    envelope[1] = sixBits( (sequence >> 6) & 0x3f );
+    envelope[2] = sixBits( sequence & 0x3f );
+    for ( int i = 0; i < 4; i++ ) {
+        envelope[3 + i] = sixBits( (uptime >> (6 * (3 - i))) & 0x3f );
+    }
+    envelope[7] = '\0';
+    ble.print(envelope);
+    sampleSequence += samples;
+}
+
+char sixBits( unsigned int value ) {
+    // '0' + value, one more from the backslash on: the characters '0' to 'p' without the backslash
+    char c = SIX_BIT_ZERO + value;
+    return c < SIX_BIT_ESCAPE ? c : c + 1;
+}
+
 void parseUserCommand( char* userCommand ) {
+    // Commands from the app carry a correlation id, "#<id>,<command>", which is echoed in the acknowledgement.
+    // A command the app resends because the acknowledgement got lost is acknowledged again, but not executed twice,
+    // even when newer commands were executed in between: the app keeps several in flight.
+    long commandId = -1;
+    if ( userCommand[0] == '#' ) {
+        char* separator = strchr( userCommand, ',' );
+        if ( separator == NULL ) return;
+        commandId = atol( userCommand+1 );
+        userCommand = separator+1;
+    }
+    bool accepted = commandId > 0 && wasExecuted( commandId );
+    if ( !accepted ) {
+        accepted = executeUserCommand( userCommand );
+        if ( accepted && commandId > 0 ) {
+            rememberExecuted( commandId );
+        }
+    }
+    if ( commandId != -1 ) {
+        sendAckToBLE( commandId, accepted );
+    }
+}
+
+bool executeUserCommand( char* userCommand ) {
     if ( strncmp(userCommand, "RT:", 3 ) == 0 ) {
         float refillAmount = String( userCommand+3 ).toFloat();
         stopTimer();
         refillTo( refillAmount );
         startTimer();
+    } else if ( strncmp(userCommand, "RW:", 3 ) == 0 ) {
+        float refillAmount = String( userCommand+3 ).toFloat();
+        stopTimer();
+        refillTo( currentWaterAmount - PULSE_TO_CONSUMED_COEFF * pulsesSinceModeChange + refillAmount );
+        startTimer();
+    } else if ( strncmp(userCommand, "RST", 3 ) == 0 ) {
+        stopTimer();
+        refillTo( initialWaterAmount );
+        startTimer();
+    } else if ( strncmp(userCommand, "MD:", 3 ) == 0 ) {
+        int newMode = REPORT_MODE_DERIVED;
+        if ( userCommand[3] == 'R' ) {
+            newMode = REPORT_MODE_RAW_PULSES;
+        } else if ( userCommand[3] == 'B' ) {
+            newMode = REPORT_MODE_BATCHED_PULSES;
+        }
+        if ( newMode == REPORT_MODE_DERIVED && reportMode != REPORT_MODE_DERIVED ) {
+            // Account for the water consumed while the app was doing the math
+            currentWaterAmount -= PULSE_TO_CONSUMED_COEFF * pulsesSinceModeChange;
+        }
+        pulsesSinceModeChange = 0;
+        stopTimer();
+        reportMode = newMode;
+        startTimer();
+    } else if ( strncmp(userCommand, "RI:", 3 ) == 0 ) {
+        reportIntervalMillis = atol( userCommand+3 );
+    } else if ( strncmp(userCommand, "SY:", 3 ) == 0 ) {
+        startSync( atol( userCommand+3 ) );
+    } else if ( strncmp(userCommand, "SA:", 3 ) == 0 ) {
+        // Flow control of a running sync, sent without a correlation id and never acknowledged
+        acknowledgeSync( atol( userCommand+3 ) );
+    } else {
+        return false;
     }
+    return true;
 }
 
-void sendToStream( Stream& s, float ccr, float acr, float rp, int tte ) {
-    s.print(ccr);
-    s.print(",");
-    s.print(acr);
-    s.print(",");
-    s.print(rp);
-    s.print(",");
-    s.println(tte);
+bool wasExecuted( long commandId ) {
+    // Ids count up to 9999 and wrap to 1. They are compared for equality only and forgotten after
+    // RECENT_COMMAND_SECONDS, long before the app comes around to the same id again, so a wrapped id is
+    // executed. Empty slots hold id 0, which the app never uses.
+    unsigned int now = (unsigned int) (millis() / 1000);
+    for ( int i = 0; i < RECENT_COMMANDS; i++ ) {
+        if ( recentCommandIds[i] == (unsigned int) commandId && (unsigned int) (now - recentCommandSeconds[i]) <= RECENT_COMMAND_SECONDS ) {
+            return true;
+        }
+    }
+    return false;
 }
 
-char* readFromBLE() {
-    // Check for incoming characters from Bluefruit
-    ble.println("AT+BLEUARTRX");
-    ble.readline();
-    if (strcmp(ble.buffer, "OK") == 0) {
-        // no data
-        return NULL;
-    }
-    // Some data was found. It's in the buffer:
-    Serial.print(F("Recieved: "));
-    Serial.println(ble.buffer);
+void rememberExecuted( long commandId ) {
+    recentCommandIds[recentCommandNext] = (unsigned int) commandId;
+    recentCommandSeconds[recentCommandNext] = (unsigned int) (millis() / 1000);
+    recentCommandNext = (recentCommandNext + 1) % RECENT_COMMANDS;
+}
+
+void sendAckToBLE( long commandId, bool accepted ) {
+    ble.print( accepted ? "AT+BLEUARTTX=A:" : "AT+BLEUARTTX=N:" );
+    ble.println( commandId );
+    ble.waitForOK();
+}
+
+void closeBacklogBucket() {
+    cli();
+    unsigned int pulses = backlogPulses;
+    backlogPulses = 0;
+    sei();
+    backlog[backlogCount % BACKLOG_SIZE] = pulses > BACKLOG_SAMPLE_MAX ? BACKLOG_SAMPLE_MAX : pulses;
+    backlogCount++;
+}
+
+void startSync( long fromSequence ) {
+    // Everything from fromSequence on, or all that is left if the app asks for more than this device has
+    // counted since power-up (the device restarted) or for buckets that were overwritten already
+    long oldest = backlogCount > BACKLOG_SIZE ? backlogCount - BACKLOG_SIZE : 0;
+    syncFirst = fromSequence < oldest || fromSequence > backlogCount ? oldest : fromSequence;
+    syncLast = backlogCount - 1;
+    syncNext = syncFirst;
+    syncAcked = syncFirst - 1;
+    syncRetransmits = 0;
+    syncProgressMillis = millis();
+    sendSyncHeaderToBLE();
+    syncing = syncFirst <= syncLast;
+}
+
+void acknowledgeSync( long sequence ) {
+    if ( !syncing || sequence <= syncAcked || sequence > syncLast ) return;
+    syncAcked = sequence;
+    if ( syncNext <= syncAcked ) {
+        syncNext = syncAcked + 1;  // the app had more than we went back to
+    }
+    syncRetransmits = 0;
+    syncProgressMillis = millis();
+    if ( syncAcked == syncLast ) {
+        syncing = false;
+    }
+}
+
+void continueSync() {
+    if ( !syncing ) return;
+    long oldest = backlogCount > BACKLOG_SIZE ? backlogCount - BACKLOG_SIZE : 0;
+    if ( syncNext < oldest ) {
+        syncNext = oldest;  // overwritten while waiting, the app sees a gap
+    }
+    if ( syncNext <= syncLast && syncNext - syncAcked <= SYNC_WINDOW_SAMPLES ) {
+        sendSyncChunkToBLE();
+    } else if ( millis() - syncProgressMillis > SYNC_RETRANSMIT_MILLIS ) {
+        if ( ++syncRetransmits > SYNC_MAX_RETRANSMITS ) {
+            syncing = false;  // the app went away, it asks again after reconnecting
+            return;
+        }
+        // Go back to the last acknowledged bucket. The header goes out again in case the first one was lost.
+        syncNext = syncAcked + 1;
+        syncProgressMillis = millis();
+        sendSyncHeaderToBLE();
+    }
+    pollUserCommand();
+}
+
+void sendSyncHeaderToBLE() {
+    ble.print("AT+BLEUARTTX=SH:");
+    ble.print(syncFirst);
+    ble.print(",");
+    ble.print(syncLast);
+    ble.print(",");
+    ble.print(BACKLOG_PERIOD_MILLIS);
+    ble.print(",");
+    ble.println(SYNC_WINDOW_SAMPLES);
     ble.waitForOK();
-    return ble.buffer;
+}
+
+void sendSyncChunkToBLE() {
+    // "S<first sequence>,<samples>", each sample as two 6 bit characters, see sixBits(), high bits
+    // first, as many as fit into one notification
+    char chunk[NOTIFICATION_SIZE + 1];
+    chunk[0] = 'S';
+    ltoa( syncNext, chunk+1, 10 );
+    int length = strlen( chunk );
+    chunk[length++] = ',';
+    while ( length + 2 <= NOTIFICATION_SIZE && syncNext <= syncLast && syncNext - syncAcked <= SYNC_WINDOW_SAMPLES ) {
+        unsigned int value = backlog[syncNext % BACKLOG_SIZE];
+        chunk[length++] = sixBits( value >> 6 );
+        chunk[length++] = sixBits( value & 0x3f );
+        syncNext++;
+    }
+    chunk[length] = '\0';
+    digitalWrite(LED_PIN, HIGH);
+    ble.print("AT+BLEUARTTX=");
+    ble.println(chunk);
+    ble.waitForOK();
+    digitalWrite(LED_PIN, LOW);
+}
+
+int readFromBLE() {
+    // AT+BLEUARTRX returns everything waiting in the module's receive buffer, a line per command the app
+    // wrote, then OK. The whole dump is read before any command runs, acknowledging needs the AT channel.
+    // Commands run together on a line are split at their '#'. Those that do not fit into received are
+    // dropped, the app sends them again.
+    ble.println("AT+BLEUARTRX");
+    int count = 0;
+    int length = 0;
+    while ( ble.readline() > 0 ) {
+        if ( strcmp(ble.buffer, "OK") == 0 || strcmp(ble.buffer, "ERROR") == 0 ) break;
+        Serial.print(F("Received: "));
+        Serial.println(ble.buffer);
+        char* command = ble.buffer;
+        while ( *command != '\0' ) {
+            char* next = strchr( command + 1, '#' );
+            int commandLength = next == NULL ? strlen( command ) : next - command;
+            if ( length + commandLength + 1 <= RECEIVED_SIZE ) {
+                memcpy( received + length, command, commandLength );
+                length += commandLength;
+                received[length++] = '\0';
+                count++;
+            }
+            command += commandLength;
+        }
+    }
+    return count;
 }
 
 void error(const __FlashStringHelper*err) {